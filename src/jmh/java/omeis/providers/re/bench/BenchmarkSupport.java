@@ -0,0 +1,353 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Channel;
+import ome.model.core.Pixels;
+import ome.model.display.ChannelBinding;
+import ome.model.display.QuantumDef;
+import ome.model.display.RenderingDef;
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+import ome.model.enums.RenderingModel;
+import omeis.providers.re.Renderer;
+import omeis.providers.re.data.PlaneFactory;
+import omeis.providers.re.lut.LutProvider;
+import omeis.providers.re.lut.LutReader;
+import omeis.providers.re.quantum.QuantumFactory;
+
+/**
+ * Builds the objects required to benchmark the rendering engine without a
+ * database or a pixels repository.
+ *
+ * @since 5.5
+ */
+public class BenchmarkSupport {
+
+    /** Render the channels with primary colors and no alpha. */
+    public static final String PRIMARY = "primary";
+
+    /** Render the channels with non primary colors and alpha. */
+    public static final String ALPHA = "alpha";
+
+    /** Render the channels with a lookup table. */
+    public static final String LUT = "lut";
+
+    /** Render the channels with non primary colors and an overlay. */
+    public static final String OVERLAYS = "overlays";
+
+    /** The name of the lookup table used by the benchmarks. */
+    public static final String LUT_NAME = "ramp.lut";
+
+    /** Primary colors assigned to the channels in turn. */
+    private static final int[][] PRIMARY_COLORS = {
+            { 255, 0, 0 }, { 0, 255, 0 }, { 0, 0, 255 } };
+
+    /** Non primary colors assigned to the channels in turn. */
+    private static final int[][] COLORS = {
+            { 255, 0, 0 }, { 0, 255, 0 }, { 0, 0, 255 }, { 255, 255, 0 },
+            { 0, 255, 255 }, { 255, 0, 255 }, { 255, 128, 0 },
+            { 128, 0, 255 } };
+
+    /**
+     * Returns the range of the values generated for the specified type.
+     *
+     * @param type The value of the pixels type.
+     * @return See above.
+     */
+    public static double[] getRange(String type)
+    {
+        if (InMemoryPixelBuffer.getBytesPerPixel(type) <= 2) {
+            return PlaneFactory.getRange(type);
+        }
+        // 32-bit and floating point types.
+        return new double[] { 0, 1000000 };
+    }
+
+    /**
+     * Creates a new pixels type.
+     *
+     * @param value The value of the type.
+     * @return See above.
+     */
+    public static PixelsType newPixelsType(String value)
+    {
+        PixelsType type = new PixelsType();
+        type.setValue(value);
+        type.setBitSize(InMemoryPixelBuffer.getBytesPerPixel(value) * 8);
+        return type;
+    }
+
+    /**
+     * Creates a new family.
+     *
+     * @param value The value of the family.
+     * @return See above.
+     */
+    public static Family newFamily(String value)
+    {
+        Family family = new Family();
+        family.setValue(value);
+        return family;
+    }
+
+    /**
+     * Creates the quantum factory.
+     *
+     * @return See above.
+     */
+    public static QuantumFactory newQuantumFactory()
+    {
+        List<Family> families = new ArrayList<Family>();
+        for (String value : Arrays.asList(Family.VALUE_LINEAR,
+                Family.VALUE_LOGARITHMIC, Family.VALUE_EXPONENTIAL,
+                Family.VALUE_POLYNOMIAL)) {
+            families.add(newFamily(value));
+        }
+        return new QuantumFactory(families);
+    }
+
+    /**
+     * Creates a quantum definition mapping onto <code>[0, 255]</code>.
+     *
+     * @return See above.
+     */
+    public static QuantumDef newQuantumDef()
+    {
+        QuantumDef qd = new QuantumDef();
+        qd.setBitResolution(QuantumFactory.DEPTH_8BIT);
+        qd.setCdStart(0);
+        qd.setCdEnd(QuantumFactory.DEPTH_8BIT);
+        return qd;
+    }
+
+    /**
+     * Creates the metadata of a pixels set without statistics.
+     *
+     * @param type The value of the pixels type.
+     * @param sizeX The number of pixels along the <i>X</i>-axis.
+     * @param sizeY The number of pixels along the <i>Y</i>-axis.
+     * @param sizeZ The number of <i>Z</i>-sections.
+     * @param sizeC The number of channels.
+     * @return See above.
+     */
+    public static Pixels newPixels(String type, int sizeX, int sizeY,
+            int sizeZ, int sizeC)
+    {
+        Pixels pixels = new Pixels();
+        pixels.setPixelsType(newPixelsType(type));
+        pixels.setSizeX(sizeX);
+        pixels.setSizeY(sizeY);
+        pixels.setSizeZ(sizeZ);
+        pixels.setSizeC(sizeC);
+        pixels.setSizeT(1);
+        for (int c = 0; c < sizeC; c++) {
+            pixels.addChannel(new Channel());
+        }
+        return pixels;
+    }
+
+    /**
+     * Creates rendering settings for all the channels of the pixels set.
+     *
+     * @param pixels The pixels set.
+     * @param model The value of the rendering model.
+     * @param option One of the constants defined by this class or
+     *               <code>null</code>.
+     * @return See above.
+     */
+    public static RenderingDef newRenderingDef(Pixels pixels, String model,
+            String option)
+    {
+        RenderingDef def = new RenderingDef();
+        RenderingModel m = new RenderingModel();
+        m.setValue(model);
+        def.setModel(m);
+        def.setQuantization(newQuantumDef());
+        def.setDefaultZ(0);
+        def.setDefaultT(0);
+        double[] range = getRange(pixels.getPixelsType().getValue());
+        int sizeC = pixels.getSizeC();
+        for (int c = 0; c < sizeC; c++) {
+            ChannelBinding cb = new ChannelBinding();
+            cb.setActive(Boolean.TRUE);
+            cb.setFamily(newFamily(Family.VALUE_LINEAR));
+            cb.setCoefficient(1.0);
+            cb.setNoiseReduction(Boolean.FALSE);
+            cb.setInputStart(range[0]);
+            cb.setInputEnd(range[1]);
+            int[] color = PRIMARY.equals(option) ?
+                    PRIMARY_COLORS[c % PRIMARY_COLORS.length] :
+                    COLORS[c % COLORS.length];
+            cb.setRed(color[0]);
+            cb.setGreen(color[1]);
+            cb.setBlue(color[2]);
+            cb.setAlpha(ALPHA.equals(option) ? 128 : 255);
+            if (LUT.equals(option)) {
+                cb.setLookupTable(LUT_NAME);
+            }
+            def.addChannelBinding(cb);
+        }
+        return def;
+    }
+
+    /**
+     * Creates a lookup table provider returning a ramp for the channels
+     * bound to {@link #LUT_NAME}.
+     *
+     * @return See above.
+     */
+    public static LutProvider newLutProvider()
+    {
+        final LutReader ramp = newLutReader();
+        return (LutProvider) Proxy.newProxyInstance(
+                LutProvider.class.getClassLoader(),
+                new Class<?>[] { LutProvider.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (!"getLutReaders".equals(method.getName())) {
+                            return defaultValue(method.getReturnType());
+                        }
+                        List<LutReader> readers = new ArrayList<LutReader>();
+                        for (ChannelBinding cb : (ChannelBinding[]) args[0]) {
+                            if (cb.getActive()) {
+                                readers.add(LUT_NAME.equals(
+                                        cb.getLookupTable()) ? ramp : null);
+                            }
+                        }
+                        return readers;
+                    }
+                });
+    }
+
+    /**
+     * Creates a lookup table mapping each value onto a blue to yellow ramp.
+     *
+     * @return See above.
+     */
+    private static LutReader newLutReader()
+    {
+        return (LutReader) Proxy.newProxyInstance(
+                LutReader.class.getClassLoader(),
+                new Class<?>[] { LutReader.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        String name = method.getName();
+                        int v;
+                        if ("getRed".equals(name)
+                                || "getGreen".equals(name)) {
+                            v = ((Number) args[0]).intValue();
+                        } else if ("getBlue".equals(name)) {
+                            v = 255 - ((Number) args[0]).intValue();
+                        } else {
+                            return defaultValue(method.getReturnType());
+                        }
+                        return box(method.getReturnType(), v);
+                    }
+                });
+    }
+
+    /**
+     * Returns the value to return for a method not supported by a proxy.
+     *
+     * @param type The return type of the method.
+     * @return See above.
+     */
+    private static Object defaultValue(Class<?> type)
+    {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        return box(type, 0);
+    }
+
+    /**
+     * Converts the value to the specified primitive type.
+     *
+     * @param type The primitive type.
+     * @param v The value to convert.
+     * @return See above.
+     */
+    private static Object box(Class<?> type, int v)
+    {
+        if (type == byte.class) return (byte) v;
+        if (type == short.class) return (short) v;
+        if (type == long.class) return (long) v;
+        if (type == float.class) return (float) v;
+        if (type == double.class) return (double) v;
+        if (type == char.class) return (char) v;
+        return v;
+    }
+
+    /**
+     * Creates the overlays to render, a single overlay covering every other
+     * row of the plane.
+     *
+     * @param sizeX The number of pixels along the <i>X</i>-axis.
+     * @param sizeY The number of pixels along the <i>Y</i>-axis.
+     * @return See above.
+     */
+    public static Map<byte[], Integer> newOverlays(int sizeX, int sizeY)
+    {
+        byte[] mask = new byte[(sizeX * sizeY + 7) / 8];
+        for (int y = 0; y < sizeY; y += 2) {
+            for (int x = 0; x < sizeX; x++) {
+                int i = y * sizeX + x;
+                mask[i / 8] |= 1 << (7 - i % 8);
+            }
+        }
+        Map<byte[], Integer> overlays = new HashMap<byte[], Integer>();
+        overlays.put(mask, 0xFFFF0000);
+        return overlays;
+    }
+
+    /**
+     * Creates a renderer for an in-memory pixels set.
+     *
+     * @param type The value of the pixels type.
+     * @param sizeX The number of pixels along the <i>X</i>-axis.
+     * @param sizeY The number of pixels along the <i>Y</i>-axis.
+     * @param sizeZ The number of <i>Z</i>-sections.
+     * @param sizeC The number of channels.
+     * @param model The value of the rendering model.
+     * @param option One of the constants defined by this class or
+     *               <code>null</code>.
+     * @return See above.
+     */
+    public static Renderer newRenderer(String type, int sizeX, int sizeY,
+            int sizeZ, int sizeC, String model, String option)
+    {
+        Pixels pixels = newPixels(type, sizeX, sizeY, sizeZ, sizeC);
+        RenderingDef def = newRenderingDef(pixels, model, option);
+        PixelBuffer buffer = InMemoryPixelBuffer.newInstance(type, sizeX,
+                sizeY, sizeZ, sizeC, 42L);
+        List<RenderingModel> models = new ArrayList<RenderingModel>();
+        models.add(def.getModel());
+        Renderer renderer = new Renderer(newQuantumFactory(), models, pixels,
+                def, buffer, newLutProvider());
+        if (OVERLAYS.equals(option)) {
+            renderer.setOverlays(newOverlays(sizeX, sizeY));
+        }
+        return renderer;
+    }
+
+    /** Static methods only. */
+    private BenchmarkSupport() {}
+}
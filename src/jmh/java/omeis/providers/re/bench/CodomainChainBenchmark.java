@@ -0,0 +1,86 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.codomain.ReverseIntensityContext;
+import omeis.providers.re.quantum.QuantumFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of transforming quantized values through a codomain
+ * chain, with and without a map context.
+ *
+ * @since 5.5
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class CodomainChainBenchmark {
+
+    /** The number of values transformed per invocation. */
+    private static final int LENGTH = 4096;
+
+    /** Whether or not the reverse intensity context is added. */
+    @Param({ "false", "true" })
+    public boolean reverseIntensity;
+
+    /** The chain to benchmark. */
+    private CodomainChain chain;
+
+    /** The quantized values to transform. */
+    private int[] values;
+
+    /** The transformed values. */
+    private int[] result;
+
+    /** Creates the chain and the values to transform. */
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        chain = new CodomainChain(0, QuantumFactory.DEPTH_8BIT);
+        if (reverseIntensity) {
+            chain.add(new ReverseIntensityContext());
+        }
+        Random random = new Random(42L);
+        values = new int[LENGTH];
+        result = new int[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            values[i] = random.nextInt(QuantumFactory.DEPTH_8BIT + 1);
+        }
+    }
+
+    /**
+     * Transforms the values one at a time.
+     *
+     * @return See above.
+     */
+    @Benchmark
+    public int[] transform()
+    {
+        for (int i = 0; i < LENGTH; i++) {
+            result[i] = chain.transform(values[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import ome.io.nio.PixelBuffer;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+/**
+ * An in-memory {@link PixelBuffer} stand-in for the benchmarks. A single
+ * plane of random values is generated and returned for every
+ * <i>Z</i>-section, channel and timepoint so that large images can be
+ * benchmarked without holding the whole pixels set in memory.
+ * <p>
+ * The buffer is implemented as a dynamic proxy, only the methods used by
+ * the rendering engine are supported.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class InMemoryPixelBuffer implements InvocationHandler {
+
+    /** The value of the pixels type. */
+    private final String type;
+
+    /** The number of bytes per pixel. */
+    private final int bytesPerPixel;
+
+    /** The dimensions of the pixels set. */
+    private final int sizeX, sizeY, sizeZ, sizeC, sizeT;
+
+    /** The values of the plane. */
+    private final byte[] plane;
+
+    /**
+     * Returns the number of bytes per pixel of the specified type.
+     *
+     * @param type The value of the pixels type.
+     * @return See above.
+     */
+    static int getBytesPerPixel(String type)
+    {
+        if (PixelsType.VALUE_INT8.equals(type)
+                || PixelsType.VALUE_UINT8.equals(type)) {
+            return 1;
+        } else if (PixelsType.VALUE_INT16.equals(type)
+                || PixelsType.VALUE_UINT16.equals(type)) {
+            return 2;
+        } else if (PixelsType.VALUE_DOUBLE.equals(type)) {
+            return 8;
+        }
+        return 4;
+    }
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param type The value of the pixels type.
+     * @param sizeX The number of pixels along the <i>X</i>-axis.
+     * @param sizeY The number of pixels along the <i>Y</i>-axis.
+     * @param sizeZ The number of <i>Z</i>-sections.
+     * @param sizeC The number of channels.
+     * @param seed The seed used to generate the values.
+     * @return See above.
+     */
+    public static PixelBuffer newInstance(String type, int sizeX, int sizeY,
+            int sizeZ, int sizeC, long seed)
+    {
+        return (PixelBuffer) Proxy.newProxyInstance(
+                PixelBuffer.class.getClassLoader(),
+                new Class<?>[] { PixelBuffer.class },
+                new InMemoryPixelBuffer(type, sizeX, sizeY, sizeZ, sizeC,
+                        seed));
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param type The value of the pixels type.
+     * @param sizeX The number of pixels along the <i>X</i>-axis.
+     * @param sizeY The number of pixels along the <i>Y</i>-axis.
+     * @param sizeZ The number of <i>Z</i>-sections.
+     * @param sizeC The number of channels.
+     * @param seed The seed used to generate the values.
+     */
+    private InMemoryPixelBuffer(String type, int sizeX, int sizeY, int sizeZ,
+            int sizeC, long seed)
+    {
+        this.type = type;
+        this.bytesPerPixel = getBytesPerPixel(type);
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sizeC = sizeC;
+        this.sizeT = 1;
+        plane = new byte[sizeX * sizeY * bytesPerPixel];
+        fill(ByteBuffer.wrap(plane), new Random(seed));
+    }
+
+    /**
+     * Fills the specified buffer with random values within the range used
+     * by {@link BenchmarkSupport#getRange(String)}.
+     *
+     * @param buffer The buffer to fill.
+     * @param random The generator to use.
+     */
+    private void fill(ByteBuffer buffer, Random random)
+    {
+        double[] range = BenchmarkSupport.getRange(type);
+        double size = range[1] - range[0];
+        while (buffer.hasRemaining()) {
+            double v = range[0] + random.nextDouble() * size;
+            switch (bytesPerPixel) {
+                case 1:
+                    buffer.put((byte) (long) v);
+                    break;
+                case 2:
+                    buffer.putShort((short) (long) v);
+                    break;
+                case 8:
+                    buffer.putDouble(v);
+                    break;
+                default:
+                    if (PixelsType.VALUE_FLOAT.equals(type)) {
+                        buffer.putFloat((float) v);
+                    } else {
+                        buffer.putInt((int) (long) v);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Copies a region of the plane.
+     *
+     * @param x The <i>X</i> coordinate of the top-left corner.
+     * @param y The <i>Y</i> coordinate of the top-left corner.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param stride The number of pixels to skip between two values.
+     * @return See above.
+     */
+    private PixelData getRegion(int x, int y, int w, int h, int stride)
+    {
+        int step = stride + 1;
+        int width = w / step;
+        int height = h / step;
+        byte[] region = new byte[width * height * bytesPerPixel];
+        int offset = 0;
+        for (int j = 0; j < height; j++) {
+            int row = (y + j * step) * sizeX;
+            for (int i = 0; i < width; i++) {
+                System.arraycopy(plane, (row + x + i * step) * bytesPerPixel,
+                        region, offset, bytesPerPixel);
+                offset += bytesPerPixel;
+            }
+        }
+        return new PixelData(type, ByteBuffer.wrap(region));
+    }
+
+    /**
+     * Returns a copy of the stack.
+     *
+     * @return See above.
+     */
+    private PixelData getStack()
+    {
+        ByteBuffer stack = ByteBuffer.allocate(plane.length * sizeZ);
+        for (int z = 0; z < sizeZ; z++) {
+            stack.put(plane);
+        }
+        stack.rewind();
+        return new PixelData(type, stack);
+    }
+
+    /**
+     * Returns the integer value of the specified argument.
+     *
+     * @param args The arguments of the invoked method.
+     * @param index The index of the argument.
+     * @return See above.
+     */
+    private static int arg(Object[] args, int index)
+    {
+        return ((Number) args[index]).intValue();
+    }
+
+    /**
+     * Implemented as specified by the {@link InvocationHandler} interface.
+     *
+     * @see InvocationHandler#invoke(Object, Method, Object[])
+     */
+    public Object invoke(Object proxy, Method method, Object[] args)
+    {
+        String name = method.getName();
+        if ("getSizeX".equals(name)) return sizeX;
+        if ("getSizeY".equals(name)) return sizeY;
+        if ("getSizeZ".equals(name)) return sizeZ;
+        if ("getSizeC".equals(name)) return sizeC;
+        if ("getSizeT".equals(name)) return sizeT;
+        if ("getByteWidth".equals(name)) return bytesPerPixel;
+        if ("getRowSize".equals(name)) return sizeX * bytesPerPixel;
+        if ("getPlaneSize".equals(name)) return (long) plane.length;
+        if ("getStackSize".equals(name)) return (long) plane.length * sizeZ;
+        if ("getPlane".equals(name)) {
+            return new PixelData(type, ByteBuffer.wrap(plane.clone()));
+        }
+        if ("getTile".equals(name)) {
+            return getRegion(arg(args, 3), arg(args, 4), arg(args, 5),
+                    arg(args, 6), 0);
+        }
+        if ("getPlaneRegion".equals(name)) {
+            return getRegion(arg(args, 0), arg(args, 1), arg(args, 2),
+                    arg(args, 3), arg(args, 7));
+        }
+        if ("getStack".equals(name)) return getStack();
+        if ("getResolutionLevel".equals(name)) return 0;
+        if ("getResolutionLevels".equals(name)) return 1;
+        if ("setResolutionLevel".equals(name)
+                || "close".equals(name)) return null;
+        if ("getTileSize".equals(name)) return null;
+        if ("getId".equals(name)) return 1L;
+        if ("getPath".equals(name)) return "memory";
+        if ("toString".equals(name)) {
+            return "InMemoryPixelBuffer[" + type + " " + sizeX + "x" + sizeY
+                    + "x" + sizeZ + "]";
+        }
+        if ("hashCode".equals(name)) return System.identityHashCode(proxy);
+        if ("equals".equals(name)) return proxy == args[0];
+        throw new UnsupportedOperationException(name);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Pixels;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.PlaneFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of reading a plane from the pixels buffer for each
+ * type of plane.
+ *
+ * @since 5.5
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xmx4g" })
+public class PlaneFactoryBenchmark {
+
+    /** The number of <i>Z</i>-sections. */
+    private static final int SIZE_Z = 32;
+
+    /** The value of the pixels type. */
+    @Param({ "uint8", "uint16", "float" })
+    public String pixelsType;
+
+    /** The number of pixels along both the <i>X</i> and <i>Y</i> axes. */
+    @Param({ "256", "1024", "4096" })
+    public int size;
+
+    /** The type of plane, see {@link PlaneDef}. */
+    @Param({ "XY", "XZ", "ZY" })
+    public String slice;
+
+    /** The pixels set. */
+    private Pixels pixels;
+
+    /** The pixels buffer. */
+    private PixelBuffer buffer;
+
+    /** The plane to read. */
+    private PlaneDef planeDef;
+
+    /** Creates the pixels set and the plane definition. */
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        pixels = BenchmarkSupport.newPixels(pixelsType, size, size, SIZE_Z, 1);
+        buffer = InMemoryPixelBuffer.newInstance(pixelsType, size, size,
+                SIZE_Z, 1, 42L);
+        if ("XZ".equals(slice)) {
+            planeDef = new PlaneDef(PlaneDef.XZ, 0);
+            planeDef.setY(size / 2);
+        } else if ("ZY".equals(slice)) {
+            planeDef = new PlaneDef(PlaneDef.ZY, 0);
+            planeDef.setX(size / 2);
+        } else {
+            planeDef = new PlaneDef(PlaneDef.XY, 0);
+            planeDef.setZ(SIZE_Z / 2);
+        }
+    }
+
+    /**
+     * Reads the plane.
+     *
+     * @return See above.
+     */
+    @Benchmark
+    public Plane2D createPlane()
+    {
+        return PlaneFactory.createPlane(planeDef, 0, pixels, buffer);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ome.model.core.Pixels;
+import omeis.providers.re.quantum.QuantumFactory;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of quantizing a row of pixel intensity values, one
+ * value at a time and in bulk, for each pixels type and mapping family.
+ *
+ * @since 5.5
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class QuantumStrategyBenchmark {
+
+    /** The number of values quantized per invocation. */
+    private static final int LENGTH = 4096;
+
+    /** The value of the pixels type. */
+    @Param({ "uint8", "int16", "uint16", "int32", "float", "double" })
+    public String pixelsType;
+
+    /** The value of the mapping family. */
+    @Param({ QuantumFactory.LINEAR, QuantumFactory.LOGARITHMIC,
+        QuantumFactory.EXPONENTIAL, QuantumFactory.POLYNOMIAL })
+    public String family;
+
+    /** Whether or not the noise reduction is turned on. */
+    @Param({ "false", "true" })
+    public boolean noiseReduction;
+
+    /** The strategy to benchmark. */
+    private QuantumStrategy strategy;
+
+    /** The values to quantize, rounded for the integer types. */
+    private int[] intValues;
+
+    /** The values to quantize. */
+    private double[] doubleValues;
+
+    /** The quantized values. */
+    private int[] result;
+
+    /**
+     * Creates the strategy and the values to quantize.
+     *
+     * @throws Exception If an error occurs while quantizing a value.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        QuantumFactory factory = BenchmarkSupport.newQuantumFactory();
+        Pixels pixels = BenchmarkSupport.newPixels(pixelsType, 1, 1, 1, 1);
+        double[] range = BenchmarkSupport.getRange(pixelsType);
+        strategy = factory.getStrategy(BenchmarkSupport.newQuantumDef(),
+                pixels);
+        strategy.setExtent(range[0], range[1]);
+        strategy.setWindow(range[0], range[1]);
+        double k = QuantumFactory.POLYNOMIAL.equals(family) ? 2.0 : 1.0;
+        strategy.setMapping(factory.getFamily(family), k, noiseReduction);
+
+        Random random = new Random(42L);
+        intValues = new int[LENGTH];
+        doubleValues = new double[LENGTH];
+        result = new int[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            doubleValues[i] = range[0]
+                    + random.nextDouble() * (range[1] - range[0]);
+            intValues[i] = (int) doubleValues[i];
+        }
+        // Make sure the lazily built tables exist before measuring.
+        strategy.quantize(doubleValues[0]);
+    }
+
+    /**
+     * Quantizes the values one at a time.
+     *
+     * @param blackhole Consumes the quantized values.
+     * @throws Exception If an error occurs while quantizing a value.
+     */
+    @Benchmark
+    public void quantize(Blackhole blackhole) throws Exception
+    {
+        for (int i = 0; i < LENGTH; i++) {
+            blackhole.consume(strategy.quantize(doubleValues[i]));
+        }
+    }
+
+    /**
+     * Quantizes the integer values in bulk.
+     *
+     * @return See above.
+     * @throws Exception If an error occurs while quantizing a value.
+     */
+    @Benchmark
+    public int[] quantizeIntRow() throws Exception
+    {
+        strategy.quantize(intValues, result, LENGTH);
+        return result;
+    }
+
+    /**
+     * Quantizes the floating point values in bulk.
+     *
+     * @return See above.
+     * @throws Exception If an error occurs while quantizing a value.
+     */
+    @Benchmark
+    public int[] quantizeDoubleRow() throws Exception
+    {
+        strategy.quantize(doubleValues, result, LENGTH);
+        return result;
+    }
+}
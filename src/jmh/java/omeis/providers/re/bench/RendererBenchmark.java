@@ -0,0 +1,126 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import ome.model.enums.RenderingModel;
+import omeis.providers.re.RGBBuffer;
+import omeis.providers.re.Renderer;
+import omeis.providers.re.data.PlaneDef;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time taken to render a whole <i>XY</i> plane, end to end,
+ * for the common combinations of pixels type, number of channels, plane
+ * size, channel settings and rendering model.
+ *
+ * @since 5.5
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xmx4g" })
+public class RendererBenchmark {
+
+    /** The value of the pixels type. */
+    @Param({ "uint8", "uint16", "float" })
+    public String pixelsType;
+
+    /** The number of active channels. */
+    @Param({ "1", "3", "8" })
+    public int channels;
+
+    /** The number of pixels along both the <i>X</i> and <i>Y</i> axes. */
+    @Param({ "256", "1024", "4096", "8192" })
+    public int size;
+
+    /** The channel settings, see {@link BenchmarkSupport}. */
+    @Param({ "none", BenchmarkSupport.PRIMARY, BenchmarkSupport.ALPHA,
+        BenchmarkSupport.LUT, BenchmarkSupport.OVERLAYS })
+    public String options;
+
+    /** The value of the rendering model. */
+    @Param({ RenderingModel.VALUE_RGB, RenderingModel.VALUE_GREYSCALE })
+    public String model;
+
+    /** The renderer to benchmark. */
+    private Renderer renderer;
+
+    /** The plane to render. */
+    private PlaneDef planeDef;
+
+    /** The array to render into. */
+    private int[] target;
+
+    /** Creates the renderer. */
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        renderer = BenchmarkSupport.newRenderer(pixelsType, size, size, 1,
+                channels, model, options);
+        planeDef = new PlaneDef(PlaneDef.XY, 0);
+        planeDef.setZ(0);
+        target = new int[size * size];
+    }
+
+    /** Releases the resources held by the renderer. */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        renderer.close();
+    }
+
+    /**
+     * Renders the plane as packed integers.
+     *
+     * @return See above.
+     * @throws Exception If an error occurs while rendering.
+     */
+    @Benchmark
+    public int[] renderAsPackedInt() throws Exception
+    {
+        return renderer.renderAsPackedInt(planeDef, null);
+    }
+
+    /**
+     * Renders the plane as packed integers into a preallocated array.
+     *
+     * @return See above.
+     * @throws Exception If an error occurs while rendering.
+     */
+    @Benchmark
+    public int[] renderAsPackedIntIntoTarget() throws Exception
+    {
+        return renderer.renderAsPackedInt(planeDef, null, target);
+    }
+
+    /**
+     * Renders the plane as separate color bands.
+     *
+     * @return See above.
+     * @throws Exception If an error occurs while rendering.
+     */
+    @Benchmark
+    public RGBBuffer render() throws Exception
+    {
+        return renderer.render(planeDef);
+    }
+}
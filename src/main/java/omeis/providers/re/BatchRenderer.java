@@ -0,0 +1,293 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.ProjectionDef;
+import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.quantum.QuantizationException;
+
+/**
+ * Renders a series of planes, e.g. the timepoints of a movie, as a
+ * pipeline. The planes of the next frames are read by a loader thread while
+ * the current frame is quantized and composited on the executor of the
+ * {@link Renderer}, so the throughput is bounded by the slower of the two
+ * stages instead of their sum.
+ * <p>
+ * At most <code>window</code> frames are read ahead of the frame being
+ * rendered, which bounds the memory used by the loaded planes. The frames
+ * are handed to the {@link FrameConsumer} in the order of the plane
+ * definitions, in the calling thread.
+ * </p>
+ * <p>
+ * The rendering settings of the renderer must not be modified and its
+ * pixels buffer must not be used while a series is rendered.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class BatchRenderer {
+
+    /** The default number of frames read ahead. */
+    public static final int DEFAULT_WINDOW = 2;
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(BatchRenderer.class);
+
+    /** Receives the rendered frames. */
+    public interface FrameConsumer {
+
+        /**
+         * Invoked once per frame, in order, when the frame has been
+         * rendered. If the renderer has a buffer pool, the consumer may
+         * release the frame to the pool once done with it.
+         *
+         * @param index The index of the frame in the series.
+         * @param pd The plane definition of the frame.
+         * @param frame The packed pixels of the frame.
+         * @throws IOException If the frame could not be written out.
+         */
+        void frameRendered(int index, PlaneDef pd, int[] frame)
+            throws IOException;
+    }
+
+    /** The renderer used to render the frames. */
+    private final Renderer renderer;
+
+    /** The maximum number of frames read ahead. */
+    private final int window;
+
+    /** The projection rendered for each frame or <code>null</code>. */
+    private final ProjectionDef projection;
+
+    /**
+     * Returns the plane definitions of the timepoints within the specified
+     * range. The definitions are copies of <code>template</code>, only the
+     * timepoint differs.
+     *
+     * @param template The plane definition to copy.
+     * @param startT The first timepoint, inclusive.
+     * @param endT The last timepoint, inclusive.
+     * @return See above.
+     */
+    public static List<PlaneDef> getTimepoints(PlaneDef template, int startT,
+            int endT)
+    {
+        if (startT < 0 || endT < startT) {
+            throw new IllegalArgumentException("Invalid timepoint range: ["
+                    + startT + ", " + endT + "].");
+        }
+        List<PlaneDef> planes = new ArrayList<PlaneDef>(endT - startT + 1);
+        for (int t = startT; t <= endT; t++) {
+            PlaneDef pd = new PlaneDef(template.getSlice(), t);
+            pd.setX(template.getX());
+            pd.setY(template.getY());
+            pd.setZ(template.getZ());
+            pd.setStride(template.getStride());
+            RegionDef rd = template.getRegion();
+            if (rd != null) {
+                pd.setRegion(new RegionDef(rd.getX(), rd.getY(),
+                        rd.getWidth(), rd.getHeight()));
+            }
+            planes.add(pd);
+        }
+        return planes;
+    }
+
+    /**
+     * Creates a new instance reading {@link #DEFAULT_WINDOW} frames ahead.
+     *
+     * @param renderer The renderer used to render the frames.
+     */
+    public BatchRenderer(Renderer renderer)
+    {
+        this(renderer, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param renderer The renderer used to render the frames.
+     * @param window The maximum number of frames read ahead of the frame
+     *               being rendered.
+     */
+    public BatchRenderer(Renderer renderer, int window)
+    {
+        this(renderer, window, null);
+    }
+
+    /**
+     * Creates a new instance rendering a projection for each frame, e.g.
+     * a movie of the projections of the timepoints. The <i>Z</i>-section
+     * of the plane definitions is then ignored.
+     *
+     * @param renderer The renderer used to render the frames.
+     * @param window The maximum number of frames read ahead of the frame
+     *               being rendered.
+     * @param projection The projection to render for each frame or
+     *                   <code>null</code> to render the planes.
+     */
+    public BatchRenderer(Renderer renderer, int window,
+            ProjectionDef projection)
+    {
+        if (renderer == null) {
+            throw new NullPointerException("No renderer.");
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException(
+                    "The window must be positive.");
+        }
+        this.renderer = renderer;
+        this.window = window;
+        this.projection = projection;
+    }
+
+    /**
+     * Submits the task reading or projecting the planes of the specified
+     * frame.
+     *
+     * @param loader The executor to submit the task to.
+     * @param pd The plane definition of the frame.
+     * @return See above.
+     */
+    private Future<Plane2D[]> load(ExecutorService loader, final PlaneDef pd)
+    {
+        return loader.submit(new Callable<Plane2D[]>() {
+            public Plane2D[] call() {
+                return renderer.loadPlanes(pd, projection);
+            }
+        });
+    }
+
+    /**
+     * Waits for the planes of a frame to be read.
+     *
+     * @param future The task reading the planes.
+     * @return See above.
+     * @throws IOException
+     *             If an error occurred while reading the planes.
+     */
+    private Plane2D[] get(Future<Plane2D[]> future) throws IOException
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Renders the specified planes as packed integers and hands each frame
+     * to the consumer, in order.
+     *
+     * @param planes The plane definitions of the frames.
+     * @param consumer Receives the rendered frames.
+     * @throws IOException
+     *             If an error occurred while trying to pull out data from the
+     *             pixels data repository or thrown by the consumer.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     * @throws NullPointerException
+     *             If <code>planes</code> or <code>consumer</code> is
+     *             <code>null</code>.
+     */
+    public void renderAsPackedInt(List<PlaneDef> planes,
+            FrameConsumer consumer)
+        throws IOException, QuantizationException
+    {
+        if (planes == null) {
+            throw new NullPointerException("No plane definitions.");
+        }
+        if (consumer == null) {
+            throw new NullPointerException("No consumer.");
+        }
+        int n = planes.size();
+        if (n == 0) {
+            return;
+        }
+        // A single thread reads the planes so the pixels buffer is never
+        // accessed concurrently.
+        ExecutorService loader = Executors.newSingleThreadExecutor(
+                new RenderingExecutor.RenderingThreadFactory(
+                        "omero-renderer-loader-"));
+        List<Future<Plane2D[]>> loads = new ArrayList<Future<Plane2D[]>>(n);
+        try {
+            for (int k = 0; k < n && k < window; k++) {
+                loads.add(load(loader, planes.get(k)));
+            }
+            for (int k = 0; k < n; k++) {
+                Plane2D[] loaded = get(loads.get(k));
+                loads.set(k, null);
+                int next = k + window;
+                if (next < n) {
+                    loads.add(load(loader, planes.get(next)));
+                }
+                PlaneDef pd = planes.get(k);
+                int[] frame = renderer.renderPreloadedAsPackedInt(pd, loaded);
+                consumer.frameRendered(k, pd, frame);
+            }
+        } finally {
+            for (Future<Plane2D[]> f : loads) {
+                if (f != null) {
+                    f.cancel(false);
+                }
+            }
+            loader.shutdown();
+            awaitTermination(loader);
+            try {
+                renderer.getPixels().close();
+            } catch (IOException e) {
+                log.error("Pixels could not be closed successfully.", e);
+            }
+        }
+    }
+
+    /**
+     * Waits for the task in progress, if any, to complete so the pixels
+     * buffer can be closed safely.
+     *
+     * @param loader The executor to wait for.
+     */
+    private void awaitTermination(ExecutorService loader)
+    {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (loader.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.data.PlaneFactory;
+import omeis.providers.re.lut.LutReader;
+import omeis.providers.re.quantum.QuantizationException;
+import omeis.providers.re.quantum.Quantization_8_16_bit;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+/**
+ * Maps each raw pixel intensity value of a channel directly onto the packed
+ * <i>RGB</i> contribution of the channel i.e. <code>0x00RRGGBB</code>. The
+ * table fuses the quantum strategy, the codomain chain and either the color
+ * and alpha of the channel or its lookup table so that compositing a pixel
+ * requires a single table lookup followed by a saturating add.
+ * <p>
+ * Tables are only built for <i>8</i> and <i>16</i>-bit integer data, where
+ * the number of possible values is bounded by the pixels type. They are
+ * cached by the {@link Renderer} and rebuilt when the rendering settings
+ * of the channel change.
+ * </p>
+ *
+ * @since 5.5
+ */
+class ChannelLookupTable {
+
+    /** The strategy used to quantize the values. */
+    private final QuantumStrategy strategy;
+
+    /** Whether or not the alpha component was ignored. */
+    private final boolean alphaless;
+
+    /** The codomain chain the table was built with. */
+    private final CodomainChain chain;
+
+    /** The version of the codomain chain the table was built with. */
+    private final int chainVersion;
+
+    /** The lowest value of the pixels type. */
+    private final int min;
+
+    /** The packed <i>RGB</i> contribution of each value of the type. */
+    private final int[] table;
+
+    /**
+     * Returns <code>[min, max]</code> for the specified pixels type or
+     * <code>null</code> if the type is not an <i>8</i> or <i>16</i>-bit
+     * integer type.
+     *
+     * @param type The value of the pixels type.
+     * @return See above.
+     */
+    static int[] getRange(String type)
+    {
+        double[] range = PlaneFactory.getRange(type);
+        if (range == null || range[1] - range[0] > 0xFFFF) {
+            return null;
+        }
+        return new int[] { (int) range[0], (int) range[1] };
+    }
+
+    /**
+     * Returns <code>true</code> if a table can be built for the specified
+     * strategy and pixels type, <code>false</code> otherwise.
+     *
+     * @param qs The strategy used to quantize the values.
+     * @param type The value of the pixels type.
+     * @return See above.
+     */
+    static boolean isSupported(QuantumStrategy qs, String type)
+    {
+        return qs instanceof Quantization_8_16_bit && getRange(type) != null;
+    }
+
+    /** The mask of the lowest seven bits of each color component. */
+    private static final int LOW_BITS = 0x007F7F7F;
+
+    /** The mask of the highest bit of each color component. */
+    private static final int HIGH_BITS = 0x00808080;
+
+    /**
+     * Adds each color component of <code>value</code> to the matching
+     * component of <code>color</code>, clamping the result to
+     * <code>255</code>. Both values are packed as <code>0x00RRGGBB</code>,
+     * the highest byte is ignored.
+     * <p>
+     * The three components are added at once within the integer without
+     * branching: the lowest seven bits are added without carrying into the
+     * next component, the highest bit is then added separately and the
+     * components which overflowed are set to <code>255</code>.
+     * </p>
+     *
+     * @param color The packed color.
+     * @param value The packed value to add.
+     * @return See above.
+     */
+    static int add(int color, int value)
+    {
+        int low = (color & LOW_BITS) + (value & LOW_BITS);
+        int sum = low ^ ((color ^ value) & HIGH_BITS);
+        int carry = ((color & value) | ((color | value) & low)) & HIGH_BITS;
+        return sum | (carry >>> 7) * 0xFF;
+    }
+
+    /**
+     * Builds the table for the specified channel settings.
+     *
+     * @param qs The strategy used to quantize the values.
+     * @param cc The codomain chain of the channel.
+     * @param color The color of the channel, as <code>[r, g, b, a]</code>.
+     * @param reader The lookup table of the channel or <code>null</code>.
+     * @param alphaless Pass <code>true</code> to ignore the alpha component.
+     * @param type The value of the pixels type.
+     * @throws QuantizationException
+     *             If an error occurs while quantizing a value.
+     */
+    ChannelLookupTable(QuantumStrategy qs, CodomainChain cc, int[] color,
+            LutReader reader, boolean alphaless, String type)
+        throws QuantizationException
+    {
+        int[] range = getRange(type);
+        if (range == null) {
+            throw new IllegalArgumentException(
+                    "Pixels type not supported: " + type);
+        }
+        this.strategy = qs;
+        this.alphaless = alphaless;
+        this.chain = cc;
+        this.chainVersion = cc.getVersion();
+        this.min = range[0];
+
+        // Contribution of each quantized value.
+        int[] colors = new int[QuantumStrategy.MAX + 1];
+        if (reader != null) {
+            for (int q = 0; q < colors.length; q++) {
+                colors[q] = (reader.getRed(q) & 0xFF) << 16
+                        | (reader.getGreen(q) & 0xFF) << 8
+                        | (reader.getBlue(q) & 0xFF);
+            }
+        } else {
+            double redRatio = color[ColorsFactory.RED_INDEX] > 0 ?
+                    color[ColorsFactory.RED_INDEX] / 255.0 : 0.0;
+            double greenRatio = color[ColorsFactory.GREEN_INDEX] > 0 ?
+                    color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
+            double blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ?
+                    color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
+            float alpha = color[ColorsFactory.ALPHA_INDEX] / 255f;
+            for (int q = 0; q < colors.length; q++) {
+                int r = (int) (redRatio * q);
+                int g = (int) (greenRatio * q);
+                int b = (int) (blueRatio * q);
+                if (!alphaless) {
+                    r *= alpha;
+                    g *= alpha;
+                    b *= alpha;
+                }
+                colors[q] = r << 16 | g << 8 | b;
+            }
+        }
+
+        int length = range[1] - range[0] + 1;
+        table = new int[length];
+        for (int i = 0; i < length; i++) {
+            table[i] = min + i;
+        }
+        qs.quantize(table, table, length);
+        cc.compose(table);
+        for (int i = 0; i < length; i++) {
+            table[i] = colors[table[i]];
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the table was built for the specified
+     * strategy, codomain chain and alpha setting and if the chain has not
+     * been modified since, <code>false</code> otherwise.
+     *
+     * @param qs The strategy used to quantize the values.
+     * @param cc The codomain chain of the channel.
+     * @param alphaless Whether or not the alpha component is ignored.
+     * @return See above.
+     */
+    boolean isValid(QuantumStrategy qs, CodomainChain cc, boolean alphaless)
+    {
+        return strategy == qs && chain == cc
+                && chainVersion == cc.getVersion()
+                && this.alphaless == alphaless;
+    }
+
+    /**
+     * Adds the packed <i>RGB</i> contribution of each value to the matching
+     * element of <code>colors</code>, clamping each color component to
+     * <code>255</code>.
+     *
+     * @param values The raw pixel intensity values, within the range of the
+     *               pixels type.
+     * @param colors The packed colors to add the contributions to.
+     * @param length The number of values.
+     */
+    void accumulate(int[] values, int[] colors, int length)
+    {
+        int[] t = table;
+        int m = min;
+        for (int k = 0; k < length; k++) {
+            colors[k] = add(colors[k], t[values[k] - m]);
+        }
+    }
+
+    /**
+     * Returns the packed <i>RGB</i> contribution of the specified value.
+     *
+     * @param value The raw pixel intensity value, within the range of the
+     *              pixels type.
+     * @return See above.
+     */
+    int get(int value)
+    {
+        return table[value - min];
+    }
+}
@@ -5,6 +5,12 @@
 package omeis.providers.re;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,14 +21,21 @@ import ome.model.core.Pixels;
 import ome.model.display.ChannelBinding;
 
 import omeis.providers.re.codomain.CodomainChain;
-import omeis.providers.re.data.PlaneFactory;
 import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RowReader;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumStrategy;
 
 /**
  * Transforms a plane within a given pixels set into a greyscale image.
+ * <p>
+ * The plane is rendered row by row: each row is read with a
+ * {@link RowReader} specialized for the pixels type, quantized at once and
+ * mapped through a table of {@link QuantumStrategy#MAX} + 1 entries which
+ * folds the codomain chain, the alpha component and the output format. The
+ * blocks of rows are rendered concurrently on the executor of the renderer.
+ * </p>
  * 
  * @author Jean-Marie Burel &nbsp;&nbsp;&nbsp;&nbsp; <a
  *         href="mailto:j.burel@dundee.ac.uk">j.burel@dundee.ac.uk</a>
@@ -37,13 +50,247 @@ class GreyScaleStrategy extends RenderingStrategy {
 
     /** The logger for this particular class */
     private static Logger log = LoggerFactory.getLogger(GreyScaleStrategy.class);
-    
+
+    /** The minimum number of pixels rendered by a task. */
+    static final int MIN_BLOCK_SIZE = 64 * 1024;
+
+    /** Renders into the three bands of an {@link RGBBuffer}. */
+    static final int BANDED = 0;
+
+    /** Renders into packed <code>0xAARRGGBB</code> integers. */
+    static final int ARGB = 1;
+
+    /** Renders into packed <code>0xRRGGBBAA</code> integers. */
+    static final int RGBA = 2;
+
     /** The channel we're operating on */
     private int channel;
     
     /** The channel binding we're using */
     private ChannelBinding channelBinding;
 
+    /**
+     * Renders a block of rows of the plane.
+     */
+    static class GreyScaleTask implements RenderingTask {
+
+        /** The plane to render. */
+        private final Plane2D plane;
+
+        /** The strategy used to quantize the values. */
+        private final QuantumStrategy qs;
+
+        /** The output value of each quantized value. */
+        private final int[] table;
+
+        /** The packed output or <code>null</code>. */
+        private final int[] packed;
+
+        /** The bands of the output or <code>null</code>. */
+        private final byte[] r, g, b;
+
+        /** The number of pixels of a row. */
+        private final int width;
+
+        /** The first row to render. */
+        private final int rowStart;
+
+        /** The row after the last row to render. */
+        private final int rowEnd;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param plane The plane to render.
+         * @param qs The strategy used to quantize the values.
+         * @param table The output value of each quantized value.
+         * @param packed The packed output or <code>null</code>.
+         * @param bands The bands of the output if <code>packed</code> is
+         *              <code>null</code>.
+         * @param width The number of pixels of a row.
+         * @param rowStart The first row to render.
+         * @param rowEnd The row after the last row to render.
+         */
+        GreyScaleTask(Plane2D plane, QuantumStrategy qs, int[] table,
+                int[] packed, byte[][] bands, int width, int rowStart,
+                int rowEnd)
+        {
+            this.plane = plane;
+            this.qs = qs;
+            this.table = table;
+            this.packed = packed;
+            r = bands == null ? null : bands[0];
+            g = bands == null ? null : bands[1];
+            b = bands == null ? null : bands[2];
+            this.width = width;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        /**
+         * Renders the rows.
+         *
+         * @see RenderingTask#call()
+         */
+        public Object call() throws QuantizationException
+        {
+            RowReader reader = RowReader.newInstance(plane);
+            boolean integral = reader.isIntegral();
+            int[] values = integral ? new int[width] : null;
+            double[] doubles = integral ? null : new double[width];
+            int[] q = new int[width];
+            int[] t = table;
+            for (int y = rowStart; y < rowEnd; y++) {
+                if (integral) {
+                    reader.read(0, y, values, width);
+                    qs.quantize(values, q, width);
+                } else {
+                    reader.read(0, y, doubles, width);
+                    qs.quantize(doubles, q, width);
+                }
+                int offset = y * width;
+                if (packed != null) {
+                    int[] out = packed;
+                    for (int k = 0; k < width; k++) {
+                        out[offset + k] = t[q[k]];
+                    }
+                } else {
+                    for (int k = 0; k < width; k++) {
+                        byte v = (byte) t[q[k]];
+                        r[offset + k] = v;
+                        g[offset + k] = v;
+                        b[offset + k] = v;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Builds the table mapping each quantized value onto the output value,
+     * folding the codomain chain and the alpha component.
+     *
+     * @param cc The codomain chain of the channel.
+     * @param alpha The alpha component of the channel.
+     * @param format One of the output formats defined by this class.
+     * @return See above.
+     */
+    static int[] makeTable(CodomainChain cc, int alpha, int format)
+    {
+        float ratio = alpha / 255f;
+        int[] values = new int[QuantumStrategy.MAX + 1];
+        for (int q = 0; q < values.length; q++) {
+            values[q] = q;
+        }
+        cc.compose(values);
+        int[] table = new int[values.length];
+        for (int q = 0; q < table.length; q++) {
+            int v = values[q];
+            switch (format) {
+                case BANDED:
+                    table[q] = (byte) (v * ratio);
+                    break;
+                case ARGB:
+                    table[q] = alpha << 24 | v << 16 | v << 8 | v;
+                    break;
+                default:
+                    table[q] = alpha | v << 24 | v << 16 | v << 8;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Reads the plane of the channel to render.
+     *
+     * @param planeDef The plane to render.
+     * @param metadata The pixels set.
+     * @param close Pass <code>true</code> to close the pixels buffer once
+     *              the plane has been read.
+     * @return See above.
+     * @throws IOException
+     *             If an error occurred while reading the plane.
+     */
+    private Plane2D loadPlane(PlaneDef planeDef, Pixels metadata,
+            boolean close) throws IOException
+    {
+        PixelBuffer pixels = renderer.getPixels();
+        RenderingStats performanceStats = renderer.getStats();
+        try {
+            performanceStats.startIO(channel);
+            Plane2D plane = createPlane(planeDef, channel, metadata, pixels);
+            performanceStats.endIO(channel, plane);
+            return plane;
+        } finally {
+            if (close && !renderer.hasPreloadedPlanes()) {
+                try {
+                    pixels.close();
+                } catch (IOException e) {
+                    log.error("Pixels could not be closed successfully.", e);
+                    throw new ResourceError(
+                            e.getMessage() + " Please check server log.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders the plane into the specified output. The rows are divided
+     * into blocks, N-1 blocks are rendered on the executor of the renderer
+     * and one in the current thread.
+     *
+     * @param plane The plane to render.
+     * @param format One of the output formats defined by this class.
+     * @param packed The packed output or <code>null</code>.
+     * @param bands The bands of the output if <code>packed</code> is
+     *              <code>null</code>.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     */
+    private void render(Plane2D plane, int format, int[] packed,
+            byte[][] bands) throws QuantizationException
+    {
+        RenderingStats performanceStats = renderer.getStats();
+        QuantumStrategy qs =
+                renderer.getQuantumManager().getStrategyFor(channel);
+        int[] table = makeTable(renderer.getCodomainChain(channel),
+                channelBinding.getAlpha(), format);
+        performanceStats.startRendering();
+        int rows = Math.max(1, MIN_BLOCK_SIZE / Math.max(1, sizeX1));
+        ExecutorService processor = renderer.getExecutor();
+        if (processor == null || rows >= sizeX2) {
+            new GreyScaleTask(plane, qs, table, packed, bands, sizeX1, 0,
+                    sizeX2).call();
+            performanceStats.endRendering();
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int y = rows; y < sizeX2; y += rows) {
+            futures.add(processor.submit((Callable<?>) new GreyScaleTask(
+                    plane, qs, table, packed, bands, sizeX1, y,
+                    Math.min(sizeX2, y + rows))));
+        }
+        // Render the first block in the current thread.
+        new GreyScaleTask(plane, qs, table, packed, bands, sizeX1, 0,
+                rows).call();
+        // The executor is shared so it is not shut down.
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof QuantizationException) {
+                    throw (QuantizationException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        performanceStats.endRendering();
+    }
+
     /**
      * Implemented as specified by the superclass.
      * 
@@ -62,73 +309,21 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getRgbBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
-        QuantumStrategy qs = 
-        	renderer.getQuantumManager().getStrategyFor(channel);
-        CodomainChain cc = renderer.getCodomainChain(channel);
-        
-        // Retrieve the planar data to render
-        performanceStats.startIO(channel);
-        Plane2D plane =
-        	PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        performanceStats.endIO(channel);
-
+        Plane2D plane = loadPlane(planeDef, metadata, false);
         RGBBuffer buf = getRgbBuffer();
-        
-        byte value;
-        float alpha = channelBinding.getAlpha().floatValue() / 255;
-
-        int x1, x2, discreteValue, pixelIndex;
-        byte[] r = buf.getRedBand();
-        byte[] g = buf.getBlueBand();
-        byte[] b = buf.getGreenBand();
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-            for (int i = 0; i < planeSize; i++)
-            {
-                for (x1 = 0; x1 < sizeX1; ++x1)
-                {
-                    discreteValue = qs.quantize(plane.getPixelValue(i));
-                    if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-                    value = (byte) (discreteValue * alpha);
-                    r[i] = value;
-                    g[i] = value;
-                    b[i] = value;
-                }
-            }
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			pixelIndex = sizeX1 * x2 + x1;
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-        			value = (byte) (discreteValue * alpha);
-        			r[pixelIndex] = value;
-        			g[pixelIndex] = value;
-        			b[pixelIndex] = value;
-        		}
-        	}
-        }
+        render(plane, BANDED, null, new byte[][] {buf.getRedBand(),
+                buf.getGreenBand(), buf.getBlueBand()});
         return buf;
     }
-    
+
     /**
-	 * Implemented as specified by the superclass.
-	 * 
-	 * @see RenderingStrategy#render(Renderer ctx, PlaneDef planeDef)
-	 */
-	@Override
-	RGBIntBuffer renderAsPackedInt(Renderer ctx, PlaneDef planeDef)
-	        throws IOException, QuantizationException {
+     * Implemented as specified by the superclass.
+     * 
+     * @see RenderingStrategy#render(Renderer ctx, PlaneDef planeDef)
+     */
+    @Override
+    RGBIntBuffer renderAsPackedInt(Renderer ctx, PlaneDef planeDef)
+            throws IOException, QuantizationException {
         // Set the context and retrieve objects we're gonna use.
         renderer = ctx;
         // Initialize sizeX1 and sizeX2 according to the plane definition and
@@ -139,77 +334,20 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getIntBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
-        QuantumStrategy qs = 
-        	renderer.getQuantumManager().getStrategyFor(channel);
-        CodomainChain cc = renderer.getCodomainChain(channel);
-        
-        // Retrieve the planar data to render
-        
-        Plane2D plane;
-        try {
-        	performanceStats.startIO(channel);
-        	plane = PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        	performanceStats.endIO(channel);
-		} finally
-		{
-			try
-            {
-                pixels.close();
-            } 
-            catch (IOException e)
-            {
-                log.error("Pixels could not be closed successfully.", e);
-    			throw new ResourceError(
-    					e.getMessage() + " Please check server log.");
-            }
-		}
-       
-	    RGBIntBuffer dataBuf = getIntBuffer();
-	    
-        int alpha = channelBinding.getAlpha();
-        int[] buf = ((RGBIntBuffer) dataBuf).getDataBuffer();
-        int x1, x2, discreteValue, pixelIndex;
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-        	for (int i = 0; i < planeSize; i++)
-        	{
-                discreteValue = qs.quantize(plane.getPixelValue(i));
-                if (hasMapContext) {
-                    discreteValue = cc.transform(discreteValue);
-                }
-                buf[i] = alpha << 24 | discreteValue << 16
-                        | discreteValue << 8 | discreteValue;
-        	}
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		pixelIndex = sizeX1 * x2;
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-        			buf[pixelIndex + x1] = alpha << 24 | discreteValue << 16
-        			| discreteValue << 8 | discreteValue;
-        		}
-        	}
-        }
-	    return dataBuf;
-	}
+        Plane2D plane = loadPlane(planeDef, metadata, true);
+        RGBIntBuffer dataBuf = getIntBuffer();
+        render(plane, ARGB, dataBuf.getDataBuffer(), null);
+        return dataBuf;
+    }
 
-	/**
-	 * Implemented as specified by the superclass.
-	 * 
-	 * @see RenderingStrategy#renderAsPackedIntAsRGBA(Renderer ctx, PlaneDef planeDef)
-	 */
-	@Override
-	RGBAIntBuffer renderAsPackedIntAsRGBA(Renderer ctx, PlaneDef planeDef)
-	        throws IOException, QuantizationException {
+    /**
+     * Implemented as specified by the superclass.
+     * 
+     * @see RenderingStrategy#renderAsPackedIntAsRGBA(Renderer ctx, PlaneDef planeDef)
+     */
+    @Override
+    RGBAIntBuffer renderAsPackedIntAsRGBA(Renderer ctx, PlaneDef planeDef)
+            throws IOException, QuantizationException {
         // Set the context and retrieve objects we're gonna use.
         renderer = ctx;
         // Initialize sizeX1 and sizeX2 according to the plane definition and
@@ -220,52 +358,11 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getRGBAIntBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
-        QuantumStrategy qs = 
-        	renderer.getQuantumManager().getStrategyFor(channel);
-        CodomainChain cc = renderer.getCodomainChain(channel);
-        
-        // Retrieve the planar data to render
-        performanceStats.startIO(channel);
-        Plane2D plane =
-        	PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        performanceStats.endIO(channel);
-	
-	    RGBAIntBuffer dataBuf = getRGBAIntBuffer();
-	    
-        int alpha = channelBinding.getAlpha();
-        int[] buf = ((RGBAIntBuffer) dataBuf).getDataBuffer();
-        int x1, x2, discreteValue, pixelIndex;
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-        	for (int i = 0; i < planeSize; i++)
-        	{
-                discreteValue = qs.quantize(plane.getPixelValue(i));
-                if (hasMapContext) {
-                    discreteValue = cc.transform(discreteValue);
-                }
-                buf[i] = alpha | discreteValue << 24
-                        | discreteValue << 16 | discreteValue << 8;
-        	}
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		pixelIndex = sizeX1 * x2;
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			discreteValue = cc.transform(discreteValue);
-        			buf[pixelIndex + x1] = alpha | discreteValue << 24
-        			| discreteValue << 16 | discreteValue << 8;
-        		}
-        	}
-        }
-	    return dataBuf;
-	}
-
+        Plane2D plane = loadPlane(planeDef, metadata, false);
+        RGBAIntBuffer dataBuf = getRGBAIntBuffer();
+        render(plane, RGBA, dataBuf.getDataBuffer(), null);
+        return dataBuf;
+    }
 
 	/**
 	 * Initializes the first active channel binding for the current rendering
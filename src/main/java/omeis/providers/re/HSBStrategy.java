@@ -5,13 +5,17 @@
 package omeis.providers.re;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
@@ -25,9 +29,9 @@ import ome.model.display.QuantumDef;
 import ome.model.enums.PixelsType;
 import ome.util.PixelData;
 import omeis.providers.re.codomain.CodomainChain;
-import omeis.providers.re.data.PlaneFactory;
 import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
 import omeis.providers.re.lut.LutReader;
 import omeis.providers.re.quantum.BinaryMaskQuantizer;
 import omeis.providers.re.quantum.QuantizationException;
@@ -39,9 +43,10 @@ import omeis.providers.re.quantum.QuantumStrategy;
  * each wavelength is mapped to a color. All these things are specified by the
  * rendering context.
  * <p>
- * This strategy renders the in "regions", dividing the planar data up based
- * on {@link #maxTasks} and assigning each task to its own thread. This should
- * result in parallel rendering on multi-processor machines.
+ * This strategy renders the in "regions", recursively dividing the planar
+ * data up into blocks and running them on the executor of the
+ * {@link Renderer}. This should result in parallel rendering on
+ * multi-processor machines whatever the dimensions of the plane.
  * </p>
  * <p>
  * Thread-safety relies on the fact that the rendering context is not going to
@@ -62,21 +67,173 @@ class HSBStrategy extends RenderingStrategy {
 	
     /** The logger for this particular class */
     private static Logger log = LoggerFactory.getLogger(HSBStrategy.class);
+
+    /**
+     * System property defining the size, in bytes, of the wavelength data of
+     * a plane above which the plane is rendered band by band.
+     */
+    static final String STREAMING_THRESHOLD_PROPERTY =
+            "omero.renderer.streaming_threshold";
+
+    /** The default size above which a plane is rendered band by band. */
+    static final int DEFAULT_STREAMING_THRESHOLD = 256 * 1024 * 1024;
+
+    /** The approximate size, in bytes, of the wavelength data of a band. */
+    static final int BAND_SIZE = 16 * 1024 * 1024;
     
     /**
-     * Retrieves the maximum number of reasonable tasks to schedule based on
-     * image size and <i>maxTasks</i>.
-     * 
-     * @param size The width along the X2 axis.
-     * @return the number of tasks to schedule.
+     * Retrieves the plane of the specified channel and records the time
+     * spent reading it.
+     *
+     * @param pDef The plane to retrieve.
+     * @param w The channel index.
+     * @return See above.
+     */
+    private Plane2D loadPlane(PlaneDef pDef, int w) {
+        RenderingStats performanceStats = renderer.getStats();
+        performanceStats.startIO(w);
+        Plane2D plane = createPlane(pDef, w, renderer.getMetadata(),
+                renderer.getPixels());
+        performanceStats.endIO(w, plane);
+        return plane;
+    }
+
+    /**
+     * Reads the planes of the specified channels one after the other.
+     *
+     * @param pDef The plane to retrieve.
+     * @param channels The indexes of the channels.
+     * @param from The index of the first channel to read.
+     * @param to The index after the last channel to read.
+     * @return The planes, in the order of the channels.
+     */
+    private Plane2D[] loadPlanes(PlaneDef pDef, List<Integer> channels,
+            int from, int to) {
+        Plane2D[] planes = new Plane2D[to - from];
+        for (int i = from; i < to; i++) {
+            planes[i - from] = loadPlane(pDef, channels.get(i));
+        }
+        return planes;
+    }
+
+    /**
+     * Submits the reads of the planes of the specified channels to the I/O
+     * executor of the renderer. If the pixels buffer supports
+     * {@link Renderer#isConcurrentReads() concurrent reads}, each plane is
+     * read by a separate task. Otherwise, a single task reads the planes one
+     * after the other so that the buffer is never accessed by two threads
+     * at the same time.
+     *
+     * @param pDef The plane to retrieve.
+     * @param channels The indexes of the channels.
+     * @param from The index of the first channel to read.
+     * @return The pending reads, in the order of the channels.
      */
-    private int numTasks(int size) {
-        for (int i = maxTasks; i > 0; i--) {
-            if (size % i == 0) {
-                return i;
+    private List<Future<Plane2D[]>> submitLoads(final PlaneDef pDef,
+            final List<Integer> channels, int from) {
+        ExecutorService io = renderer.getIOExecutor();
+        List<Future<Plane2D[]>> futures = new ArrayList<Future<Plane2D[]>>();
+        int step = renderer.isConcurrentReads() ? 1 : channels.size();
+        for (int i = from; i < channels.size(); i += step) {
+            final int start = i;
+            final int end = Math.min(channels.size(), i + step);
+            futures.add(io.submit(new Callable<Plane2D[]>() {
+                public Plane2D[] call() {
+                    return loadPlanes(pDef, channels, start, end);
+                }
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Waits for all the specified reads to complete, even if one of them
+     * failed, so the pixels buffer can be closed safely.
+     *
+     * @param futures The pending reads.
+     * @param planes The array to store the planes into.
+     * @param from The index of the element to store the first plane into.
+     * @param failure The failure that already occurred or <code>null</code>.
+     * @throws RuntimeException The first failure that occurred, if any.
+     */
+    private void awaitLoads(List<Future<Plane2D[]>> futures, Plane2D[] planes,
+            int from, RuntimeException failure) {
+        boolean interrupted = false;
+        int index = from;
+        for (Future<Plane2D[]> future : futures) {
+            while (true) {
+                try {
+                    Plane2D[] read = future.get();
+                    System.arraycopy(read, 0, planes, index, read.length);
+                    index += read.length;
+                    break;
+                } catch (InterruptedException e) {
+                    // Keep waiting, the buffer is closed by the caller.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        Throwable cause = e.getCause();
+                        failure = cause instanceof RuntimeException ?
+                                (RuntimeException) cause :
+                                new RuntimeException(cause);
+                    }
+                    break;
+                }
             }
         }
-        return 1;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Retrieves the planes of the specified channels. If the pixels buffer
+     * supports {@link Renderer#isConcurrentReads() concurrent reads}, the
+     * first plane is read in the current thread while the others are read
+     * concurrently on the I/O executor of the renderer. Otherwise the planes
+     * are read one after the other in the current thread. This method
+     * returns once all the reads have completed, even if one of them failed,
+     * so the pixels buffer can be closed safely.
+     *
+     * @param pDef The plane to retrieve.
+     * @param channels The indexes of the channels.
+     * @return The planes, in the order of the channels.
+     */
+    private Plane2D[] loadPlanes(PlaneDef pDef, List<Integer> channels) {
+        int n = channels.size();
+        if (n <= 1 || renderer.hasPreloadedPlanes()
+                || !renderer.isConcurrentReads()) {
+            return loadPlanes(pDef, channels, 0, n);
+        }
+        Plane2D[] planes = new Plane2D[n];
+        List<Future<Plane2D[]>> futures = submitLoads(pDef, channels, 1);
+        RuntimeException failure = null;
+        try {
+            planes[0] = loadPlane(pDef, channels.get(0));
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        awaitLoads(futures, planes, 1, failure);
+        return planes;
+    }
+
+    /**
+     * Returns the indexes of the active channels.
+     *
+     * @return See above.
+     */
+    private List<Integer> getActiveChannels() {
+        ChannelBinding[] channelBindings = renderer.getChannelBindings();
+        List<Integer> channels = new ArrayList<Integer>();
+        for (int w = 0; w < channelBindings.length; w++) {
+            if (channelBindings[w].getActive()) {
+                channels.add(w);
+            }
+        }
+        return channels;
     }
 
     /**
@@ -85,23 +242,13 @@ class HSBStrategy extends RenderingStrategy {
      * @return the wavelength data.
      */
     private List<Plane2D> getWavelengthData(PlaneDef pDef) {
-        ChannelBinding[] channelBindings = renderer.getChannelBindings();
         Pixels metadata = renderer.getMetadata();
         PixelBuffer pixels = renderer.getPixels();
         List<Plane2D> wData = null;
         try
         {
-        	RenderingStats performanceStats = renderer.getStats();
-        	wData = new ArrayList<Plane2D>();
-
-        	for (int w = 0; w < channelBindings.length; w++) {
-        		if (channelBindings[w].getActive()) {
-        			performanceStats.startIO(w);
-        			wData.add(PlaneFactory.createPlane(pDef, w, metadata, 
-        					pixels));
-        			performanceStats.endIO(w);
-        		}
-        	}
+        	wData = new ArrayList<Plane2D>(
+        			Arrays.asList(loadPlanes(pDef, getActiveChannels())));
         	Map<byte[], Integer> overlays = renderer.getOverlays();
         	if (overlays != null)
         	{
@@ -115,10 +262,13 @@ class HSBStrategy extends RenderingStrategy {
         }
         finally
         {
-            // Make sure that the pixel buffer is cleansed properly.
+            // Make sure that the pixel buffer is cleansed properly. Preloaded
+            // planes are rendered while the next ones are read.
             try
             {
-                pixels.close();
+                if (!renderer.hasPreloadedPlanes()) {
+                    pixels.close();
+                }
             } 
             catch (IOException e)
             {
@@ -215,41 +365,60 @@ class HSBStrategy extends RenderingStrategy {
     }
 
     /**
-     * Creates a set of rendering tasks for the image based on the calling
-     * buffer type.
+     * Retrieves the fused lookup table for each active channel. The elements
+     * are <code>null</code> for the channels without table and the overlays.
+     *
+     * @param readers The lookup table readers of the active channels.
+     * @return See above.
+     * @throws QuantizationException
+     *             If an error occurred while building a table.
+     */
+    private List<ChannelLookupTable> getLookupTables(List<LutReader> readers)
+            throws QuantizationException {
+        ChannelBinding[] channelBindings = renderer.getChannelBindings();
+        List<ChannelLookupTable> tables = new ArrayList<ChannelLookupTable>();
+        int i = 0;
+        for (int w = 0; w < channelBindings.length; w++) {
+            if (channelBindings[w].getActive()) {
+                tables.add(renderer.getChannelLookupTable(w, readers.get(i)));
+                i++;
+            }
+        }
+        Map<byte[], Integer> overlays = renderer.getOverlays();
+        if (overlays != null) {
+            for (int j = 0; j < overlays.size(); j++) {
+                tables.add(null);
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Creates the action rendering the image based on the calling buffer
+     * type.
      * 
      * @param planeDef
      *            The plane to render.
      * @param buf
      *            The buffer to render into.
-     * @return An array containing the tasks.
+     * @return See above.
      */
-    private RenderingTask[] makeRenderingTasks(PlaneDef def, RGBBuffer buf) {
-        List<RenderHSBRegionTask> tasks = new ArrayList<RenderHSBRegionTask>();
-
+    private RenderHSBRegionAction makeRenderingAction(PlaneDef def,
+            RGBBuffer buf) throws QuantizationException {
         //RenderingStats performanceStats = renderer.getStats();
         List<Plane2D> wData = getWavelengthData(def);
         List<int[]> colors = getColors();
         List<LutReader> readers = renderer.getLutProvider().getLutReaders(
                 renderer.getChannelBindings());
         List<QuantumStrategy> strategies = getStrategies();
-        // Create a number of rendering tasks.
-        int taskCount = numTasks(sizeX2);
-        int delta = sizeX2/taskCount;
-        int x1Start = 0;
-        int x1End = sizeX1;
-        int x2Start, x2End;
-        log.info("taskCount: "+taskCount+" delta: "+delta);
-        for (int i = 0; i < taskCount; i++) {
-            x2Start = i*delta;
-            x2End = (i+1)*delta;
-            tasks.add(new RenderHSBRegionTask(buf, wData, strategies,
-                    getChains(), colors, renderer.getOptimizations(),
-                    x1Start, x1End, x2Start, x2End, readers));
-        }
-
-        // Turn the list into an array an return it.
-        return tasks.toArray(new RenderingTask[tasks.size()]);
+        int blockSize = RenderHSBRegionAction.getBlockSize(sizeX1, sizeX2,
+                maxTasks);
+        log.debug("sizeX1: " + sizeX1 + " sizeX2: " + sizeX2
+                + " blockSize: " + blockSize);
+        return new RenderHSBRegionAction(buf, wData, strategies, getChains(),
+                colors, renderer.getOptimizations(), readers,
+                getLookupTables(readers), 0, sizeX1, 0, sizeX2, 0, blockSize,
+                renderer.getStats());
     }
 
     /**
@@ -315,45 +484,264 @@ class HSBStrategy extends RenderingStrategy {
     }
 
     /**
-     * Implemented as specified by the superclass.
-     * 
-     * @see RenderingStrategy#render(Renderer ctx, PlaneDef planeDef)
+     * Runs the specified action in the passed pool and waits for it to
+     * complete.
+     *
+     * @param pool The pool to use.
+     * @param action The action to run.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
      */
-    private void render(RGBBuffer buf, PlaneDef planeDef) throws IOException,
-            QuantizationException {
-        RenderingStats performanceStats = renderer.getStats();
-        // Process each active wavelength. If their number N > 1, then
-        // process N-1 async and one in the current thread. If N = 1,
-        // just use the current thread.
-        RenderingTask[] tasks = makeRenderingTasks(planeDef, buf);
-        performanceStats.startRendering();
-        int n = tasks.length;
+    private void invoke(ForkJoinPool pool, RenderHSBRegionAction action)
+            throws QuantizationException {
+        try {
+            pool.invoke(action);
+        } catch (RuntimeException e) {
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof QuantizationException) {
+                    throw (QuantizationException) t;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the specified tasks. N-1 tasks are submitted to the executor and
+     * one runs in the current thread.
+     *
+     * @param processor The executor to use.
+     * @param tasks The tasks to run.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     */
+    private void submit(ExecutorService processor, List<RenderingTask> tasks)
+            throws QuantizationException {
+        int n = tasks.size();
         Future[] rndTskFutures = new Future[n]; // [0] unused.
-        ExecutorService processor = Executors.newCachedThreadPool();
 
         while (0 < --n) {
-            rndTskFutures[n] = processor.submit(tasks[n]);
+            rndTskFutures[n] = processor.submit(tasks.get(n));
         }
 
         // Call the task in the current thread.
         if (n == 0) {
-            tasks[0].call();
+            tasks.get(0).call();
         }
 
-        // Wait for all forked tasks (if any) to complete.
+        // Wait for all forked tasks (if any) to complete. The executor is
+        // shared so it is not shut down.
         for (n = 1; n < rndTskFutures.length; ++n) {
             try {
                 rndTskFutures[n].get();
-            } catch (Exception e) {
-                if (e instanceof QuantizationException) {
-                    throw (QuantizationException) e;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof QuantizationException) {
+                    throw (QuantizationException) e.getCause();
                 }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 throw new RuntimeException(e);
             }
         }
+    }
+
+    /**
+     * Runs the specified action on the executor of the renderer and waits
+     * for it to complete.
+     *
+     * @param action The action to run.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     */
+    private void execute(RenderHSBRegionAction action)
+            throws QuantizationException {
+        ExecutorService processor = renderer.getExecutor();
+        if (processor instanceof ForkJoinPool) {
+            // The blocks are split on demand and balanced by work stealing.
+            invoke((ForkJoinPool) processor, action);
+        } else {
+            submit(processor, action.getTasks());
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the plane is rendered band by band,
+     * <code>false</code> otherwise. Only <i>XY</i> planes read without stride
+     * can be read band by band, and only when the wavelength data is larger
+     * than the threshold defined by {@link #STREAMING_THRESHOLD_PROPERTY}.
+     * The overlays cover the whole plane so their presence disables the
+     * streaming.
+     *
+     * @param planeDef The plane to render.
+     * @param channels The number of active channels.
+     * @return See above.
+     */
+    private boolean isStreamed(PlaneDef planeDef, int channels) {
+        if (planeDef.getSlice() != PlaneDef.XY || planeDef.getStride() > 0
+                || renderer.getOverlays() != null
+                || renderer.hasPreloadedPlanes()
+                || renderer.getProjection() != null) {
+            return false;
+        }
+        long size = (long) sizeX1 * sizeX2 * channels
+                * getBytesPerPixel(renderer.getMetadata());
+        return size > RenderingExecutor.getIntProperty(
+                STREAMING_THRESHOLD_PROPERTY, DEFAULT_STREAMING_THRESHOLD);
+    }
+
+    /**
+     * Returns the number of bytes per pixel of the specified pixels set.
+     *
+     * @param metadata The pixels set.
+     * @return See above.
+     */
+    private static int getBytesPerPixel(Pixels metadata) {
+        return Math.max(1, metadata.getPixelsType().getBitSize() / 8);
+    }
+
+    /**
+     * Returns the number of rows of a band so that the wavelength data of a
+     * band is about {@link #BAND_SIZE} bytes. The number of rows is a
+     * multiple of the tile height of the pixels buffer when possible.
+     *
+     * @param channels The number of active channels.
+     * @return See above.
+     */
+    private int getBandHeight(int channels) {
+        return getBandHeight(sizeX1, sizeX2,
+                channels * getBytesPerPixel(renderer.getMetadata()),
+                renderer.getPixels().getTileSize());
+    }
+
+    /**
+     * Returns the number of rows of a band so that the wavelength data of a
+     * band is about {@link #BAND_SIZE} bytes.
+     *
+     * @param sizeX1 The number of pixels along the <i>X1</i>-axis.
+     * @param sizeX2 The number of pixels along the <i>X2</i>-axis.
+     * @param bytesPerPixel The number of bytes of a pixel, all the active
+     *                      channels included.
+     * @param tile The tile size of the pixels buffer or <code>null</code>.
+     * @return See above.
+     */
+    static int getBandHeight(int sizeX1, int sizeX2, int bytesPerPixel,
+            Dimension tile) {
+        long rowSize = (long) sizeX1 * bytesPerPixel;
+        int rows = (int) Math.max(1, Math.min(sizeX2, BAND_SIZE / rowSize));
+        if (tile != null && tile.height > 0 && rows > tile.height) {
+            rows -= rows % tile.height;
+        }
+        return rows;
+    }
+
+    /**
+     * Creates the definition of a band of the specified plane.
+     *
+     * @param planeDef The plane to render.
+     * @param x The <i>X</i> coordinate of the band.
+     * @param y The <i>Y</i> coordinate of the band.
+     * @param height The number of rows of the band.
+     * @return See above.
+     */
+    private PlaneDef newBand(PlaneDef planeDef, int x, int y, int height) {
+        PlaneDef band = new PlaneDef(PlaneDef.XY, planeDef.getT());
+        band.setZ(planeDef.getZ());
+        band.setRegion(new RegionDef(x, y, sizeX1, height));
+        return band;
+    }
+
+    /**
+     * Renders the plane band by band. The bands of the active channels are
+     * read with {@link PixelBuffer#getTile getTile} on the I/O executor,
+     * the next band being read while the current one is composited into
+     * the output buffer. The bands of the channels are read concurrently
+     * only if the pixels buffer supports
+     * {@link Renderer#isConcurrentReads() concurrent reads}. At most two
+     * bands per channel are held in memory whatever the size of the plane.
+     *
+     * @param buf The buffer to render into.
+     * @param planeDef The plane to render.
+     * @param channels The indexes of the active channels.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     */
+    private void renderBands(RGBBuffer buf, PlaneDef planeDef,
+            List<Integer> channels) throws QuantizationException {
+        RenderingStats performanceStats = renderer.getStats();
+        List<int[]> colors = getColors();
+        List<LutReader> readers = renderer.getLutProvider().getLutReaders(
+                renderer.getChannelBindings());
+        List<QuantumStrategy> strategies = getStrategies();
+        List<CodomainChain> chains = getChains();
+        List<ChannelLookupTable> tables = getLookupTables(readers);
+        RegionDef region = planeDef.getRegion();
+        int x = region == null ? 0 : region.getX();
+        int y = region == null ? 0 : region.getY();
+        int rows = getBandHeight(channels.size());
+        int blockSize = RenderHSBRegionAction.getBlockSize(sizeX1, rows,
+                maxTasks);
+        log.debug("sizeX1: " + sizeX1 + " sizeX2: " + sizeX2
+                + " band height: " + rows + " blockSize: " + blockSize);
+        PixelBuffer pixels = renderer.getPixels();
+        performanceStats.startRendering();
+        List<Future<Plane2D[]>> pending = submitLoads(
+                newBand(planeDef, x, y, rows), channels, 0);
+        try {
+            for (int y0 = 0; y0 < sizeX2; y0 += rows) {
+                int height = Math.min(rows, sizeX2 - y0);
+                Plane2D[] band = new Plane2D[channels.size()];
+                List<Future<Plane2D[]>> current = pending;
+                pending = null;
+                awaitLoads(current, band, 0, null);
+                int next = y0 + height;
+                if (next < sizeX2) {
+                    pending = submitLoads(newBand(planeDef, x, y + next,
+                            Math.min(rows, sizeX2 - next)), channels, 0);
+                }
+                execute(new RenderHSBRegionAction(buf, Arrays.asList(band),
+                        strategies, chains, colors,
+                        renderer.getOptimizations(), readers, tables,
+                        0, sizeX1, 0, height, y0, blockSize,
+                        performanceStats));
+            }
+        } finally {
+            if (pending != null) {
+                // Wait for the reads in progress before closing the buffer.
+                try {
+                    awaitLoads(pending, new Plane2D[channels.size()], 0,
+                            null);
+                } catch (RuntimeException e) {
+                    log.debug("Band could not be read.", e);
+                }
+            }
+            try {
+                pixels.close();
+            } catch (IOException e) {
+                log.error("Pixels could not be closed successfully.", e);
+                throw new ResourceError(
+                        e.getMessage() + " Please check server log.");
+            }
+        }
+        performanceStats.endRendering();
+    }
 
-        // Shutdown the task processor
-        processor.shutdown();
+    /**
+     * Implemented as specified by the superclass.
+     * 
+     * @see RenderingStrategy#render(Renderer ctx, PlaneDef planeDef)
+     */
+    private void render(RGBBuffer buf, PlaneDef planeDef) throws IOException,
+            QuantizationException {
+        List<Integer> channels = getActiveChannels();
+        if (isStreamed(planeDef, channels.size())) {
+            renderBands(buf, planeDef, channels);
+            return;
+        }
+        RenderingStats performanceStats = renderer.getStats();
+        RenderHSBRegionAction action = makeRenderingAction(planeDef, buf);
+        performanceStats.startRendering();
+        execute(action);
 
         // End the performance metrics for this rendering event.
         performanceStats.endRendering();
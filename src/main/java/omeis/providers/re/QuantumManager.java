@@ -17,6 +17,7 @@ import ome.model.display.QuantumDef;
 import ome.model.stats.StatsInfo;
 
 import omeis.providers.re.metadata.StatsFactory;
+import omeis.providers.re.metadata.StatsIndex;
 import omeis.providers.re.quantum.QuantumFactory;
 import omeis.providers.re.quantum.QuantumStrategy;
 
@@ -44,6 +45,9 @@ class QuantumManager {
     /** A quantum factory instance for looking up enumerations. */
     private final QuantumFactory factory;
 
+    /** The index of the statistics of the pixels set or <code>null</code>. */
+    private StatsIndex statsIndex;
+
     /**
      * Creates a new instance.
      * 
@@ -56,6 +60,17 @@ class QuantumManager {
         wavesStg = new QuantumStrategy[metadata.getSizeC().intValue()];
     }
 
+    /**
+     * Sets the index used to determine the global minimum and maximum of the
+     * channels without statistics. Takes effect the next time the strategies
+     * are initialized.
+     *
+     * @param statsIndex The index to use or <code>null</code>.
+     */
+    void setStatsIndex(StatsIndex statsIndex) {
+        this.statsIndex = statsIndex;
+    }
+
     /**
      * Creates and configures an appropriate strategy for each wavelength. The
      * previous window interval settings of each wavelength are retained by the
@@ -92,7 +107,13 @@ class QuantumManager {
             channel = i.next();
             stg = factory.getStrategy(qd, metadata);
             StatsInfo statsInfo = channel.getStatsInfo();
-            if (statsInfo == null) {
+            StatsIndex.Entry entry = statsIndex == null ?
+                    null : statsIndex.getEntry(w);
+            if (statsInfo == null && entry != null
+                    && entry.getMax() > entry.getMin()) {
+                gMin = entry.getMin();
+                gMax = entry.getMax();
+            } else if (statsInfo == null) {
                 minmax = sf.initPixelsRange(metadata);
                 gMin = minmax[0];
                 gMax = minmax[1];
@@ -106,6 +127,9 @@ class QuantumManager {
                             .booleanValue());
             stg.setWindow(waves[w].getInputStart(), waves[w].getInputEnd());
 
+            if (wavesStg[w] != null) {
+                wavesStg[w].release();
+            }
             wavesStg[w] = stg;
             w++;
         }
@@ -122,4 +146,15 @@ class QuantumManager {
         return wavesStg[w];
     }
 
+    /**
+     * Releases the resources the strategies share with other renderers.
+     */
+    void release() {
+        for (QuantumStrategy stg : wavesStg) {
+            if (stg != null) {
+                stg.release();
+            }
+        }
+    }
+
 }
@@ -0,0 +1,252 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.lut.LutReader;
+import omeis.providers.re.quantum.QuantizationException;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+/**
+ * Renders a block of the image by recursively splitting it in two halves
+ * along its longest axis until the blocks are small enough to be rendered
+ * by a {@link RenderHSBRegionTask}. When run by a
+ * {@link java.util.concurrent.ForkJoinPool}, idle threads steal the pending
+ * halves so blocks whose channels are more expensive to render (e.g. lookup
+ * tables) are balanced across the pool whatever the dimensions of the image.
+ *
+ * @since 5.5
+ */
+class RenderHSBRegionAction extends RecursiveAction {
+
+    /** The minimum number of pixels of a block. */
+    static final int MIN_BLOCK_SIZE = 128 * 128;
+
+    /** The number of blocks to aim for per thread. */
+    static final int BLOCKS_PER_THREAD = 4;
+
+    private static final long serialVersionUID = 4823947613420516771L;
+
+    /** Buffer to hold the output image's data. */
+    private final RGBBuffer dataBuffer;
+
+    /** The wavelength data. */
+    private final List<Plane2D> wData;
+
+    /** How to quantize a pixel intensity value. */
+    private final List<QuantumStrategy> strategies;
+
+    /** The spatial transformations to apply to the quantized data. */
+    private final List<CodomainChain> chains;
+
+    /** The color components used when mapping a quantized value. */
+    private final List<int[]> colors;
+
+    /** The optimizations that the renderer has turned on for us. */
+    private final Optimizations optimizations;
+
+    /** The collection of readers.*/
+    private final List<LutReader> readers;
+
+    /** The fused lookup tables, one per wavelength, may contain nulls. */
+    private final List<ChannelLookupTable> tables;
+
+    /** The <i>X1</i>-axis start */
+    private final int x1Start;
+
+    /** The <i>X1</i>-axis end */
+    private final int x1End;
+
+    /** The <i>X2</i>-axis start */
+    private final int x2Start;
+
+    /** The <i>X2</i>-axis end */
+    private final int x2End;
+
+    /** The number of rows of the output buffer above the wavelength data. */
+    private final int rowOffset;
+
+    /** The number of pixels under which a block is no longer split. */
+    private final int blockSize;
+
+    /** The stats of the rendering process or <code>null</code>. */
+    private final RenderingStats stats;
+
+    /**
+     * Returns the number of pixels under which a block is no longer split so
+     * that each thread gets several blocks to render.
+     *
+     * @param sizeX1 The number of pixels along the <i>X1</i>-axis.
+     * @param sizeX2 The number of pixels along the <i>X2</i>-axis.
+     * @param parallelism The number of threads rendering the image.
+     * @return See above.
+     */
+    static int getBlockSize(int sizeX1, int sizeX2, int parallelism)
+    {
+        long size = (long) sizeX1 * sizeX2
+                / ((long) Math.max(1, parallelism) * BLOCKS_PER_THREAD);
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(size, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Creates a new instance to render the specified block.
+     *
+     * @param dataBuffer Buffer to hold the output image's data.
+     * @param wData The wavelength data.
+     * @param strategies The quantum strategy for each wavelength.
+     * @param chains The spatial transformations to apply to the quantized
+     *               data.
+     * @param colors The color components to use when mapping quantized values
+     *               onto the color space.
+     * @param optimizations The optimizations that the renderer has turned on.
+     * @param readers The lookup table readers.
+     * @param tables The fused lookup tables.
+     * @param x1Start The <i>X1</i>-axis start.
+     * @param x1End The <i>X1</i>-axis end.
+     * @param x2Start The <i>X2</i>-axis start.
+     * @param x2End The <i>X2</i>-axis end.
+     * @param rowOffset The number of rows of the output buffer above the
+     *                  first row of the wavelength data.
+     * @param blockSize The number of pixels under which a block is no longer
+     *                  split.
+     * @param stats The stats of the rendering process or <code>null</code>.
+     */
+    RenderHSBRegionAction(RGBBuffer dataBuffer, List<Plane2D> wData,
+            List<QuantumStrategy> strategies, List<CodomainChain> chains,
+            List<int[]> colors, Optimizations optimizations,
+            List<LutReader> readers, List<ChannelLookupTable> tables,
+            int x1Start, int x1End, int x2Start, int x2End, int rowOffset,
+            int blockSize, RenderingStats stats) {
+        this.dataBuffer = dataBuffer;
+        this.wData = wData;
+        this.strategies = strategies;
+        this.chains = chains;
+        this.colors = colors;
+        this.optimizations = optimizations;
+        this.readers = readers;
+        this.tables = tables;
+        this.x1Start = x1Start;
+        this.x1End = x1End;
+        this.x2Start = x2Start;
+        this.x2End = x2End;
+        this.rowOffset = rowOffset;
+        this.blockSize = blockSize;
+        this.stats = stats;
+    }
+
+    /**
+     * Returns <code>true</code> if the block has to be split,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    private boolean isSplittable()
+    {
+        long size = (long) (x1End - x1Start) * (x2End - x2Start);
+        return size > blockSize;
+    }
+
+    /**
+     * Splits the block in two halves along its longest axis.
+     *
+     * @return See above.
+     */
+    private RenderHSBRegionAction[] split()
+    {
+        if (x1End - x1Start >= x2End - x2Start) {
+            int middle = (x1Start + x1End) >>> 1;
+            return new RenderHSBRegionAction[] {
+                    copy(x1Start, middle, x2Start, x2End),
+                    copy(middle, x1End, x2Start, x2End) };
+        }
+        int middle = (x2Start + x2End) >>> 1;
+        return new RenderHSBRegionAction[] {
+                copy(x1Start, x1End, x2Start, middle),
+                copy(x1Start, x1End, middle, x2End) };
+    }
+
+    /**
+     * Creates a new action rendering the specified block with the same
+     * settings as this one.
+     *
+     * @param s1 The <i>X1</i>-axis start.
+     * @param e1 The <i>X1</i>-axis end.
+     * @param s2 The <i>X2</i>-axis start.
+     * @param e2 The <i>X2</i>-axis end.
+     * @return See above.
+     */
+    private RenderHSBRegionAction copy(int s1, int e1, int s2, int e2)
+    {
+        return new RenderHSBRegionAction(dataBuffer, wData, strategies, chains,
+                colors, optimizations, readers, tables, s1, e1, s2, e2,
+                rowOffset, blockSize, stats);
+    }
+
+    /**
+     * Creates the task rendering this block without splitting it.
+     *
+     * @return See above.
+     */
+    private RenderHSBRegionTask newTask()
+    {
+        return new RenderHSBRegionTask(dataBuffer, wData, strategies, chains,
+                colors, optimizations, x1Start, x1End, x2Start, x2End,
+                rowOffset, readers, tables, stats);
+    }
+
+    /**
+     * Splits this block eagerly and returns one task per resulting block.
+     * This is used when the executor does not support work stealing.
+     *
+     * @return See above.
+     */
+    List<RenderingTask> getTasks()
+    {
+        List<RenderingTask> tasks = new ArrayList<RenderingTask>();
+        collectTasks(tasks);
+        return tasks;
+    }
+
+    /**
+     * Adds the tasks rendering this block to the specified list.
+     *
+     * @param tasks The list to populate.
+     */
+    private void collectTasks(List<RenderingTask> tasks)
+    {
+        if (!isSplittable()) {
+            tasks.add(newTask());
+            return;
+        }
+        for (RenderHSBRegionAction half : split()) {
+            half.collectTasks(tasks);
+        }
+    }
+
+    /**
+     * Renders the block, splitting it first if it is too large.
+     *
+     * @see RecursiveAction#compute()
+     */
+    @Override
+    protected void compute()
+    {
+        if (isSplittable()) {
+            RenderHSBRegionAction[] halves = split();
+            invokeAll(halves[0], halves[1]);
+            return;
+        }
+        try {
+            newTask().call();
+        } catch (QuantizationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -9,9 +9,9 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ome.util.PixelData;
 import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.RowReader;
 import omeis.providers.re.lut.LutReader;
 import omeis.providers.re.quantum.BinaryMaskQuantizer;
 import omeis.providers.re.quantum.QuantizationException;
@@ -20,7 +20,8 @@ import omeis.providers.re.quantum.QuantumStrategy;
 /**
  * A task object to render an image region asynchronously. This task is used by
  * the {@link HSBStrategy} to do concurrent rendering if more than one region
- * has to be processed.
+ * has to be processed. The region is a block of the image, it does not need
+ * to span the whole <i>X1</i>-axis.
  * 
  * @author Chris Allan &nbsp;&nbsp;&nbsp;&nbsp; <a
  *         href="mailto:callan@blackcat.ca">callan@blackat.ca</a>
@@ -65,6 +66,12 @@ class RenderHSBRegionTask implements RenderingTask {
 
     /** The <i>X2</i>-axis end */
     private int x2End;
+
+    /**
+     * The number of rows of the output buffer above the first row of the
+     * wavelength data, non zero when the image is rendered band by band.
+     */
+    private int rowOffset;
     
     /** The optimizations that the renderer has turned on for us. */
     private Optimizations optimizations;
@@ -72,6 +79,15 @@ class RenderHSBRegionTask implements RenderingTask {
     /** The collection of readers.*/
     private List<LutReader> readers;
 
+    /** The fused lookup tables, one per wavelength, may contain nulls. */
+    private List<ChannelLookupTable> tables;
+
+    /** The stats of the rendering process or <code>null</code>. */
+    private RenderingStats stats;
+
+    /** The time spent quantizing the values, in nanoseconds. */
+    private long quantizationTime;
+
     /**
      * Creates a new instance to render a wavelength.
      * 
@@ -94,13 +110,20 @@ class RenderHSBRegionTask implements RenderingTask {
      *            The <i>X2</i>-axis start
      * @param x2End
      *            The <i>X2</i>-axis end
+     * @param rowOffset
+     *            The number of rows of the output buffer above the first row
+     *            of the wavelength data.
      * @param readers The lookup table readers.
+     * @param tables The fused lookup tables, one per wavelength. An element
+     *               is <code>null</code> if the wavelength has no table.
+     * @param stats The stats of the rendering process or <code>null</code>.
      */
     RenderHSBRegionTask(RGBBuffer dataBuffer, List<Plane2D> wData,
             List<QuantumStrategy> strategies, List<CodomainChain> chains,
             List<int[]> colors, Optimizations optimizations,
-            int x1Start, int x1End, int x2Start, int x2End,
-            List<LutReader> readers) {
+            int x1Start, int x1End, int x2Start, int x2End, int rowOffset,
+            List<LutReader> readers, List<ChannelLookupTable> tables,
+            RenderingStats stats) {
         this.dataBuffer = dataBuffer;
         this.wData = wData;
         this.strategies = strategies;
@@ -111,7 +134,10 @@ class RenderHSBRegionTask implements RenderingTask {
         this.x1End = x1End;
         this.x2Start = x2Start;
         this.x2End = x2End;
+        this.rowOffset = rowOffset;
         this.readers = readers;
+        this.tables = tables;
+        this.stats = stats;
     }
 
     /**
@@ -122,6 +148,8 @@ class RenderHSBRegionTask implements RenderingTask {
      */
     public Object call() throws QuantizationException {
     	log.debug("Buffer type: "+dataBuffer);
+        long start = System.nanoTime();
+        quantizationTime = 0;
         if (dataBuffer instanceof RGBIntBuffer) {
             renderPackedInt();
         } else if (dataBuffer instanceof RGBAIntBuffer){
@@ -130,9 +158,128 @@ class RenderHSBRegionTask implements RenderingTask {
 	      //renderPackedInt();
           renderBanded(); // cf. ticket #1646
     	}
+        if (stats != null) {
+            long total = System.nanoTime() - start;
+            long pixels = (long) (x1End - x1Start) * (x2End - x2Start)
+                    * wData.size();
+            stats.addTask(pixels, quantizationTime,
+                    total - quantizationTime);
+        }
         return null;
     }
 
+    /**
+     * Returns the reader to use to read the values of the specified plane.
+     *
+     * @param plane The plane to read.
+     * @param qs The strategy used to quantize the values of the plane.
+     * @return See above.
+     */
+    private RowReader newRowReader(Plane2D plane, QuantumStrategy qs)
+    {
+        if (qs instanceof BinaryMaskQuantizer) {
+            return RowReader.newGenericInstance(plane);
+        }
+        return RowReader.newInstance(plane);
+    }
+
+    /**
+     * Reads and quantizes the values of the region along the
+     * <i>X1</i>-axis at the specified <i>X2</i> coordinate.
+     *
+     * @param rowReader The reader to use.
+     * @param qs The strategy used to quantize the values.
+     * @param x2 The <i>X2</i> coordinate of the row.
+     * @param values The array to fill with the quantized values.
+     * @param doubles The array used to read non integral values.
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
+     */
+    private void quantizeRow(RowReader rowReader, QuantumStrategy qs, int x2,
+            int[] values, double[] doubles) throws QuantizationException
+    {
+        int length = x1End - x1Start;
+        long start = System.nanoTime();
+        if (rowReader.isIntegral()) {
+            rowReader.read(x1Start, x2, values, length);
+            qs.quantize(values, values, length);
+        } else {
+            rowReader.read(x1Start, x2, doubles, length);
+            qs.quantize(doubles, values, length);
+        }
+        quantizationTime += System.nanoTime() - start;
+    }
+
+    /**
+     * Returns the fused lookup table to use for the specified wavelength or
+     * <code>null</code> if the values have to be quantized and mapped onto
+     * the color space one by one.
+     *
+     * @param i The index of the wavelength.
+     * @param rowReader The reader used to read the values.
+     * @return See above.
+     */
+    private ChannelLookupTable getTable(int i, RowReader rowReader)
+    {
+        if (tables == null || !rowReader.isIntegral()) {
+            return null;
+        }
+        return tables.get(i);
+    }
+
+    /**
+     * Renders all the wavelengths row by row when each of them has a fused
+     * lookup table. The contributions of the wavelengths to a row are
+     * accumulated in a small array which stays in cache, then written once
+     * into the buffer.
+     *
+     * @param buf The packed buffer to render into.
+     * @param rgba Pass <code>true</code> if the pixels are packed as
+     *             <code>RGBA</code>, <code>false</code> for <code>ARGB</code>.
+     * @return <code>true</code> if the region was rendered,
+     *         <code>false</code> if a wavelength has no fused table.
+     */
+    private boolean renderTables(int[] buf, boolean rgba)
+    {
+        if (tables == null) {
+            return false;
+        }
+        int n = wData.size();
+        RowReader[] rowReaders = new RowReader[n];
+        ChannelLookupTable[] channelTables = new ChannelLookupTable[n];
+        for (int i = 0; i < n; i++) {
+            rowReaders[i] = newRowReader(wData.get(i), strategies.get(i));
+            channelTables[i] = getTable(i, rowReaders[i]);
+            if (channelTables[i] == null) {
+                return false;
+            }
+        }
+        int width = dataBuffer.getSizeX1();
+        int length = x1End - x1Start;
+        int[] values = new int[length];
+        int[] row = new int[length];
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            int pix = width * (x2 + rowOffset) + x1Start;
+            for (int k = 0; k < length; ++k) {
+                row[k] = rgba ? buf[pix + k] >>> 8 : buf[pix + k];
+            }
+            for (int i = 0; i < n; i++) {
+                rowReaders[i].read(x1Start, x2, values, length);
+                channelTables[i].accumulate(values, row, length);
+            }
+            if (rgba) {
+                for (int k = 0; k < length; ++k, ++pix) {
+                    buf[pix] = 0x000000FF | row[k] << 8;
+                }
+            } else {
+                for (int k = 0; k < length; ++k, ++pix) {
+                    buf[pix] = 0xFF000000 | row[k];
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Renders into a banded byte buffer.
      * 
@@ -144,7 +291,10 @@ class RenderHSBRegionTask implements RenderingTask {
         int rValue, gValue, bValue;
         float v;
 
-        int width = x1End - x1Start;
+        int width = dataBuffer.getSizeX1();
+        int length = x1End - x1Start;
+        int[] values = new int[length];
+        double[] doubles = new double[length];
         int i = 0;
         byte[] r = dataBuffer.getRedBand();
         byte[] g = dataBuffer.getGreenBand();
@@ -155,18 +305,21 @@ class RenderHSBRegionTask implements RenderingTask {
             int[] color = colors.get(i);
             reader = readers.get(i);
             cc = chains.get(i);
-            boolean hasMap = cc.hasMapContext();
+            boolean hasMap = !cc.isIdentity();
             QuantumStrategy qs = strategies.get(i);
             int rColor = color[ColorsFactory.RED_INDEX];
             int gColor = color[ColorsFactory.GREEN_INDEX];
             int bColor = color[ColorsFactory.BLUE_INDEX];
 
+            RowReader rowReader = newRowReader(plane, qs);
+
             float alpha = new Float(
                     color[ColorsFactory.ALPHA_INDEX]).floatValue() / 65025;// 255*255
             for (int x2 = x2Start; x2 < x2End; ++x2) {
-                for (int x1 = x1Start; x1 < x1End; ++x1) {
-                    pix = width * x2 + x1;
-                    discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
+                quantizeRow(rowReader, qs, x2, values, doubles);
+                pix = width * (x2 + rowOffset) + x1Start;
+                for (int k = 0; k < length; ++k, ++pix) {
+                    discreteValue = values[k];
                     if (hasMap) {
                         discreteValue = cc.transform(discreteValue);
                     }
@@ -222,13 +375,18 @@ class RenderHSBRegionTask implements RenderingTask {
     private void renderPackedInt() throws QuantizationException {
         int discreteValue, pix;
         double redRatio, greenRatio, blueRatio;
-        int rValue, gValue, bValue;
         int newRValue, newGValue, newBValue;
         int colorOffset = 24;  // Only used when we're doing primary color.
 
-        int width = x1End - x1Start;
+        int width = dataBuffer.getSizeX1();
+        int length = x1End - x1Start;
+        int[] values = new int[length];
+        double[] doubles = new double[length];
         int i = 0;
         int[] buf = ((RGBIntBuffer) dataBuffer).getDataBuffer();
+        if (renderTables(buf, false)) {
+            return;
+        }
         boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
         boolean isAlphaless = optimizations.isAlphalessRendering();
         LutReader reader;
@@ -238,7 +396,7 @@ class RenderHSBRegionTask implements RenderingTask {
             int[] color = colors.get(i);
             reader = readers.get(i);
             cc = chains.get(i);
-            boolean hasMap = cc.hasMapContext();
+            boolean hasMap = !cc.isIdentity();
             QuantumStrategy qs = strategies.get(i);
             boolean isMask = qs instanceof BinaryMaskQuantizer? true : false;
             redRatio = color[ColorsFactory.RED_INDEX] > 0 ? 
@@ -247,9 +405,21 @@ class RenderHSBRegionTask implements RenderingTask {
                      color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
             blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ? 
                      color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
-            boolean isXYPlanar = plane.isXYPlanar();
-            PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
+            RowReader rowReader = newRowReader(plane, qs);
+            ChannelLookupTable table = getTable(i, rowReader);
+            if (table != null) {
+                // One lookup and one saturating add per pixel.
+                for (int x2 = x2Start; x2 < x2End; ++x2) {
+                    rowReader.read(x1Start, x2, values, length);
+                    pix = width * (x2 + rowOffset) + x1Start;
+                    for (int k = 0; k < length; ++k, ++pix) {
+                        buf[pix] = 0xFF000000 | ChannelLookupTable.add(
+                                buf[pix], table.get(values[k]));
+                    }
+                }
+                i++;
+                continue;
+            }
 
             // Get our color offset if we've got the primary color optimization
             // enabled.
@@ -259,38 +429,19 @@ class RenderHSBRegionTask implements RenderingTask {
             float alpha = new Integer(
                     color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
             for (int x2 = x2Start; x2 < x2End; ++x2) {
-                for (int x1 = x1Start; x1 < x1End; ++x1) {
-                    pix = width * x2 + x1;
-                    if (isXYPlanar)
-                        discreteValue =
-                        qs.quantize(
-                                data.getPixelValueDirect(pix * bytesPerPixel));
-                    else
-                        discreteValue =
-                            qs.quantize(plane.getPixelValue(x1, x2));
+                quantizeRow(rowReader, qs, x2, values, doubles);
+                pix = width * (x2 + rowOffset) + x1Start;
+                for (int k = 0; k < length; ++k, ++pix) {
+                    discreteValue = values[k];
                     if (hasMap) {
                         discreteValue = cc.transform(discreteValue);
                     }
                     if (reader != null) {
-                        int r1 = ((buf[pix] & 0x00FF0000) >> 16);
                         int r2 = reader.getRed(discreteValue) & 0xFF;
-                        int g1 = ((buf[pix] & 0x0000FF00) >> 8);
                         int g2 = reader.getGreen(discreteValue) & 0xFF;
-                        int b1 = (buf[pix] & 0x000000FF);
                         int b2 = reader.getBlue(discreteValue) & 0xFF;
-                        int r = r1+r2;
-                        if (r > 255) {
-                            r = 255;
-                        }
-                        int g = g1+g2;
-                        if (g > 255) {
-                            g = 255;
-                        }
-                        int b = b1+b2;
-                        if (b > 255) {
-                            b = 255;
-                        }
-                        buf[pix] = 0xFF000000 | r << 16 | g << 8 | b;
+                        buf[pix] = 0xFF000000 | ChannelLookupTable.add(
+                                buf[pix], r2 << 16 | g2 << 8 | b2);
                         continue;
                     }
                     // Primary colour optimization is in effect, we don't need
@@ -328,32 +479,18 @@ class RenderHSBRegionTask implements RenderingTask {
                         continue;
                     }
                     // Add the existing colour component values to the new
-                    // colour component values.
-                    rValue = ((buf[pix] & 0x00FF0000) >> 16) + newRValue;
-                    gValue = ((buf[pix] & 0x0000FF00) >> 8) + newGValue;
-                    bValue = (buf[pix] & 0x000000FF) + newBValue;
-
-                    // Ensure that each colour component value is between 0 and
-                    // 255 (byte). We must make *certain* that values do not
-                    // wrap over 255 otherwise there will be corruption
-                    // introduced into the rendered image. The value may be over
-                    // 255 if we have mapped two high intensity channels to
-                    // the same color.
-                    if (rValue > 255) {
-                        rValue = 255;
-                    }
-                    if (gValue > 255) {
-                        gValue = 255;
-                    }
-                    if (bValue > 255) {
-                        bValue = 255;
-                    }
+                    // colour component values. Each colour component value
+                    // is clamped to 255 (byte), the value may be over 255 if
+                    // we have mapped two high intensity channels to the same
+                    // color. All the components are added and clamped at
+                    // once, without branching.
 
                     // Packed each colour component along with a 1.0 alpha into
                     // the buffer so that buffered images that use this buffer
                     // can be type 1 (3 bands, pre-multiplied alpha) or type 2
                     // (4 bands, alpha component included).
-                    buf[pix] = 0xFF000000 | rValue << 16 | gValue << 8 | bValue;
+                    buf[pix] = 0xFF000000 | ChannelLookupTable.add(buf[pix],
+                            newRValue << 16 | newGValue << 8 | newBValue);
                 }
             }
             i++;
@@ -369,13 +506,18 @@ class RenderHSBRegionTask implements RenderingTask {
     private void renderPackedIntAsRGBA() throws QuantizationException {
         int discreteValue, pix;
         double redRatio, greenRatio, blueRatio;
-        int rValue, gValue, bValue;
         int newRValue, newGValue, newBValue;
         int colorOffset = 32;  // Only used when we're doing primary color.
 
-        int width = x1End - x1Start;
+        int width = dataBuffer.getSizeX1();
+        int length = x1End - x1Start;
+        int[] values = new int[length];
+        double[] doubles = new double[length];
         int i = 0;
         int[] buf = ((RGBAIntBuffer) dataBuffer).getDataBuffer();
+        if (renderTables(buf, true)) {
+            return;
+        }
         boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
         boolean isAlphaless = optimizations.isAlphalessRendering();
         LutReader reader;
@@ -384,7 +526,7 @@ class RenderHSBRegionTask implements RenderingTask {
             int[] color = colors.get(i);
             reader = readers.get(i);
             cc = chains.get(i);
-            boolean hasMap = cc.hasMapContext();
+            boolean hasMap = !cc.isIdentity();
             QuantumStrategy qs = strategies.get(i);
             redRatio = color[ColorsFactory.RED_INDEX] > 0 ? 
                     color[ColorsFactory.RED_INDEX] / 255.0 : 0.0;
@@ -392,9 +534,21 @@ class RenderHSBRegionTask implements RenderingTask {
                     color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
             blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ? 
                     color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
-            boolean isXYPlanar = plane.isXYPlanar();
-            PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
+            RowReader rowReader = newRowReader(plane, qs);
+            ChannelLookupTable table = getTable(i, rowReader);
+            if (table != null) {
+                // One lookup and one saturating add per pixel.
+                for (int x2 = x2Start; x2 < x2End; ++x2) {
+                    rowReader.read(x1Start, x2, values, length);
+                    pix = width * (x2 + rowOffset) + x1Start;
+                    for (int k = 0; k < length; ++k, ++pix) {
+                        buf[pix] = 0x000000FF | ChannelLookupTable.add(
+                                buf[pix] >>> 8, table.get(values[k])) << 8;
+                    }
+                }
+                i++;
+                continue;
+            }
 
             // Get our color offset if we've got the primary color optimization
             // enabled.
@@ -403,38 +557,19 @@ class RenderHSBRegionTask implements RenderingTask {
 
             float alpha = new Integer(color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
             for (int x2 = x2Start; x2 < x2End; ++x2) {
-                for (int x1 = x1Start; x1 < x1End; ++x1) {
-                    pix = width * x2 + x1;
-                    if (isXYPlanar)
-                        discreteValue =
-                        qs.quantize(
-                                data.getPixelValueDirect(pix * bytesPerPixel));
-                    else
-                        discreteValue =
-                            qs.quantize(plane.getPixelValue(x1, x2));
+                quantizeRow(rowReader, qs, x2, values, doubles);
+                pix = width * (x2 + rowOffset) + x1Start;
+                for (int k = 0; k < length; ++k, ++pix) {
+                    discreteValue = values[k];
                     if (hasMap) {
                         discreteValue = cc.transform(discreteValue);
                     }
                     if (reader != null) {
-                        int r1 = ((buf[pix] & 0xFF000000) >> 24);
                         int r2 = reader.getRed(discreteValue) & 0xFF;
-                        int g1 = ((buf[pix] & 0x00FF0000) >> 16);
                         int g2 = reader.getGreen(discreteValue) & 0xFF;
-                        int b1 = ((buf[pix] & 0x0000FF00) >> 8);
                         int b2 = reader.getBlue(discreteValue) & 0xFF;
-                        int r = r1+r2;
-                        if (r > 255) {
-                            r = 255;
-                        }
-                        int g = g1+g2;
-                        if (g > 255) {
-                            g = 255;
-                        }
-                        int b = b1+b2;
-                        if (b > 255) {
-                            b = 255;
-                        }
-                        buf[pix] = 0x000000FF | r << 24 | g << 16 | b << 8;
+                        buf[pix] = 0x000000FF | ChannelLookupTable.add(
+                                buf[pix] >>> 8, r2 << 16 | g2 << 8 | b2) << 8;
                         continue;
                     }
                     // Primary colour optimization is in effect, we just shift
@@ -460,32 +595,19 @@ class RenderHSBRegionTask implements RenderingTask {
                     }
 
                     // Add the existing colour component values to the new
-                    // colour component values.
-                    rValue = ((buf[pix] & 0xFF000000) >> 24) + newRValue;
-                    gValue = ((buf[pix] & 0x00FF0000) >> 16) + newGValue;
-                    bValue = ((buf[pix] & 0x0000FF00) >> 8) + newBValue;
-
-                    // Ensure that each colour component value is between 0 and
-                    // 255 (byte). We must make *certain* that values do not
-                    // wrap over 255 otherwise there will be corruption
-                    // introduced into the rendered image. The value may be over
-                    // 255 if we have mapped two high intensity channels to
-                    // the same color.
-                    if (rValue > 255) {
-                        rValue = 255;
-                    }
-                    if (gValue > 255) {
-                        gValue = 255;
-                    }
-                    if (bValue > 255) {
-                        bValue = 255;
-                    }
+                    // colour component values. Each colour component value
+                    // is clamped to 255 (byte), the value may be over 255 if
+                    // we have mapped two high intensity channels to the same
+                    // color. All the components are added and clamped at
+                    // once, without branching.
 
                     // Packed each colour component along with a 1.0 alpha into
                     // the buffer so that buffered images that use this buffer
                     // can be type 1 (3 bands, pre-multiplied alpha) or type 2
                     // (4 bands, alpha component included).
-                    buf[pix] = 0x000000FF | rValue << 24 | gValue << 16 | bValue<<8;
+                    buf[pix] = 0x000000FF | ChannelLookupTable.add(
+                            buf[pix] >>> 8,
+                            newRValue << 16 | newGValue << 8 | newBValue) << 8;
                 }
             }
 
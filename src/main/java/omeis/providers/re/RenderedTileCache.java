@@ -0,0 +1,406 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ome.model.display.ChannelBinding;
+import ome.model.display.QuantumDef;
+import ome.model.display.RenderingDef;
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.codomain.CodomainMapContext;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+/**
+ * A cache of the images rendered as packed integers, bounded by the number
+ * of bytes it holds and evicting the least recently used images first.
+ * <p>
+ * An image is keyed by the pixels set, the fingerprint of the rendering
+ * settings, the resolution level and the plane definition, i.e. the
+ * <i>Z</i>-section, timepoint, region and stride. The fingerprint is a
+ * 64-bit hash of the settings which affect the rendered image: the
+ * rendering model, the quantum definition and, for each channel, its
+ * state, window, mapping, color, lookup table and codomain chain, the
+ * parameters of the codomain contexts being captured by the values of the
+ * composed transformation. It is computed by the {@link Renderer} and
+ * recomputed after any of its setters is invoked or any of its codomain
+ * chains is modified, so the images rendered with previous settings are no
+ * longer reachable and are evicted over time.
+ * </p>
+ * <p>
+ * The cache is opt-in, see {@link Renderer#setTileCache(RenderedTileCache)},
+ * and can be shared by several renderers. It is thread-safe.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class RenderedTileCache {
+
+    /** The 64-bit FNV offset basis. */
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    /** The 64-bit FNV prime. */
+    private static final long PRIME = 0x100000001b3L;
+
+    /** The maximum number of bytes held by the cache. */
+    private final long maxBytes;
+
+    /** The cached images, in access order. */
+    private final LinkedHashMap<Key, int[]> images =
+            new LinkedHashMap<Key, int[]>(16, 0.75f, true);
+
+    /** The number of bytes held by the cache. */
+    private long size;
+
+    /** The number of requests served from the cache. */
+    private long hits;
+
+    /** The number of requests not served from the cache. */
+    private long misses;
+
+    /**
+     * Mixes the specified value into the hash.
+     *
+     * @param hash The current hash.
+     * @param value The value to mix.
+     * @return See above.
+     */
+    private static long mix(long hash, long value)
+    {
+        return (hash ^ value) * PRIME;
+    }
+
+    /**
+     * Mixes the specified value into the hash.
+     *
+     * @param hash The current hash.
+     * @param value The value to mix, may be <code>null</code>.
+     * @return See above.
+     */
+    private static long mix(long hash, String value)
+    {
+        if (value == null) {
+            return mix(hash, -1L);
+        }
+        int n = value.length();
+        for (int i = 0; i < n; i++) {
+            hash = mix(hash, value.charAt(i));
+        }
+        return mix(hash, n);
+    }
+
+    /**
+     * Mixes the specified value into the hash.
+     *
+     * @param hash The current hash.
+     * @param value The value to mix.
+     * @return See above.
+     */
+    private static long mix(long hash, double value)
+    {
+        return mix(hash, Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Mixes the specified value into the hash.
+     *
+     * @param hash The current hash.
+     * @param value The value to mix, may be <code>null</code>.
+     * @return See above.
+     */
+    private static long mix(long hash, Number value)
+    {
+        return value == null ? mix(hash, -1L) : mix(hash, value.longValue());
+    }
+
+    /**
+     * Mixes the settings of the specified strategy into the hash. The global
+     * range is included as it drives the noise reduction ramp.
+     *
+     * @param hash The current hash.
+     * @param qs The strategy of a channel.
+     * @return The new hash.
+     */
+    static long mix(long hash, QuantumStrategy qs)
+    {
+        long h = mix(hash, qs.getClass().getName());
+        h = mix(h, qs.getFamily() == null ? null : qs.getFamily().getValue());
+        h = mix(h, qs.getCurveCoefficient());
+        h = mix(h, qs.getNoiseReduction() ? 1L : 0L);
+        h = mix(h, qs.getWindowStart());
+        h = mix(h, qs.getWindowEnd());
+        h = mix(h, qs.getGlobalMin());
+        h = mix(h, qs.getGlobalMax());
+        h = mix(h, qs.getOriginalGlobalMin());
+        return mix(h, qs.getOriginalGlobalMax());
+    }
+
+    /**
+     * Returns the fingerprint of the rendering settings of the specified
+     * renderer.
+     *
+     * @param renderer The renderer.
+     * @return See above.
+     */
+    static long fingerprint(Renderer renderer)
+    {
+        long h = OFFSET_BASIS;
+        RenderingDef def = renderer.getRenderingDef();
+        h = mix(h, def.getModel() == null ? null : def.getModel().getValue());
+        QuantumDef qd = def.getQuantization();
+        if (qd != null) {
+            h = mix(h, qd.getBitResolution());
+            h = mix(h, qd.getCdStart());
+            h = mix(h, qd.getCdEnd());
+        }
+        ChannelBinding[] bindings = renderer.getChannelBindings();
+        QuantumManager manager = renderer.getQuantumManager();
+        for (int w = 0; w < bindings.length; w++) {
+            ChannelBinding cb = bindings[w];
+            h = mix(h, w);
+            if (!cb.getActive()) {
+                h = mix(h, 0L);
+                continue;
+            }
+            h = mix(h, 1L);
+            h = mix(h, cb.getRed());
+            h = mix(h, cb.getGreen());
+            h = mix(h, cb.getBlue());
+            h = mix(h, cb.getAlpha());
+            h = mix(h, cb.getLookupTable());
+            h = mix(h, manager.getStrategyFor(w));
+            CodomainChain cc = renderer.getCodomainChain(w);
+            h = mix(h, cc.getIntervalStart());
+            h = mix(h, cc.getIntervalEnd());
+            for (CodomainMapContext ctx : cc.getContexts()) {
+                h = mix(h, ctx.getClass().getName());
+            }
+            // The parameters of the contexts are captured by the values
+            // of the composed transformation.
+            if (!cc.isIdentity()) {
+                for (int q = QuantumStrategy.MIN; q <= QuantumStrategy.MAX;
+                        q++) {
+                    h = mix(h, cc.transform(q));
+                }
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxBytes The maximum number of bytes held by the cache.
+     */
+    public RenderedTileCache(long maxBytes)
+    {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException(
+                    "The number of bytes must not be negative.");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a copy of the cached image or <code>null</code> if the image
+     * is not cached.
+     *
+     * @param key The key of the image.
+     * @return See above.
+     */
+    int[] get(Key key)
+    {
+        int[] image;
+        synchronized (images) {
+            image = images.get(key);
+            if (image == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        return image.clone();
+    }
+
+    /**
+     * Caches a copy of the specified image, evicting the least recently used
+     * images if required.
+     *
+     * @param key The key of the image.
+     * @param image The image to cache.
+     * @param length The number of pixels of the image.
+     */
+    void put(Key key, int[] image, int length)
+    {
+        long bytes = 4L * length;
+        if (bytes > maxBytes) {
+            return;
+        }
+        int[] copy = new int[length];
+        System.arraycopy(image, 0, copy, 0, length);
+        synchronized (images) {
+            int[] previous = images.put(key, copy);
+            if (previous != null) {
+                size -= 4L * previous.length;
+            }
+            size += bytes;
+            Iterator<int[]> i = images.values().iterator();
+            while (size > maxBytes && i.hasNext()) {
+                size -= 4L * i.next().length;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Discards the images of the specified pixels set.
+     *
+     * @param pixelsId The id of the pixels set.
+     */
+    public void invalidate(long pixelsId)
+    {
+        synchronized (images) {
+            Iterator<Map.Entry<Key, int[]>> i = images.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Key, int[]> e = i.next();
+                if (e.getKey().pixelsId == pixelsId) {
+                    size -= 4L * e.getValue().length;
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /** Discards all the images. */
+    public void clear()
+    {
+        synchronized (images) {
+            images.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Returns the number of bytes held by the cache.
+     *
+     * @return See above.
+     */
+    public long getSize()
+    {
+        synchronized (images) {
+            return size;
+        }
+    }
+
+    /**
+     * Returns the number of requests served from the cache.
+     *
+     * @return See above.
+     */
+    public long getHits()
+    {
+        synchronized (images) {
+            return hits;
+        }
+    }
+
+    /**
+     * Returns the number of requests not served from the cache.
+     *
+     * @return See above.
+     */
+    public long getMisses()
+    {
+        synchronized (images) {
+            return misses;
+        }
+    }
+
+    /** Identifies a rendered image. */
+    static final class Key {
+
+        /** The id of the pixels set. */
+        private final long pixelsId;
+
+        /** The fingerprint of the rendering settings. */
+        private final long fingerprint;
+
+        /** The resolution level. */
+        private final int resolutionLevel;
+
+        /** The plane definition: slice, x, y, z, t, stride and region. */
+        private final int slice, x, y, z, t, stride;
+
+        /** The region, all <code>-1</code> if the whole plane is rendered. */
+        private final int rx, ry, rw, rh;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param pixelsId The id of the pixels set.
+         * @param fingerprint The fingerprint of the rendering settings.
+         * @param resolutionLevel The resolution level.
+         * @param pd The plane definition.
+         */
+        Key(long pixelsId, long fingerprint, int resolutionLevel, PlaneDef pd)
+        {
+            this.pixelsId = pixelsId;
+            this.fingerprint = fingerprint;
+            this.resolutionLevel = resolutionLevel;
+            slice = pd.getSlice();
+            x = pd.getX();
+            y = pd.getY();
+            z = pd.getZ();
+            t = pd.getT();
+            stride = pd.getStride();
+            RegionDef region = pd.getRegion();
+            if (region == null) {
+                rx = ry = rw = rh = -1;
+            } else {
+                rx = region.getX();
+                ry = region.getY();
+                rw = region.getWidth();
+                rh = region.getHeight();
+            }
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return pixelsId == k.pixelsId && fingerprint == k.fingerprint
+                    && resolutionLevel == k.resolutionLevel
+                    && slice == k.slice && x == k.x && y == k.y && z == k.z
+                    && t == k.t && stride == k.stride && rx == k.rx
+                    && ry == k.ry && rw == k.rw && rh == k.rh;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            long h = mix(OFFSET_BASIS, pixelsId);
+            h = mix(h, fingerprint);
+            h = mix(h, resolutionLevel);
+            h = mix(h, slice);
+            h = mix(h, x);
+            h = mix(h, y);
+            h = mix(h, z);
+            h = mix(h, t);
+            h = mix(h, stride);
+            h = mix(h, rx);
+            h = mix(h, ry);
+            h = mix(h, rw);
+            h = mix(h, rh);
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
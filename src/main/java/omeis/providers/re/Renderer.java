@@ -6,11 +6,15 @@ package omeis.providers.re;
 
 import java.awt.Dimension;
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -29,10 +33,16 @@ import ome.model.enums.RenderingModel;
 import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.codomain.CodomainMapContext;
 import omeis.providers.re.codomain.ReverseIntensityContext;
+import omeis.providers.re.data.Downsampler;
+import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.data.PlaneFactory;
+import omeis.providers.re.data.PlaneProjector;
+import omeis.providers.re.data.ProjectionDef;
 import omeis.providers.re.data.RegionDef;
 import omeis.providers.re.lut.LutProvider;
+import omeis.providers.re.lut.LutReader;
+import omeis.providers.re.metadata.StatsIndex;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumFactory;
 import omeis.providers.re.quantum.QuantumStrategy;
@@ -131,6 +141,10 @@ public class Renderer {
      */
     private RenderingStats stats;
 
+    /** The listeners notified of the metrics of each rendered plane. */
+    private final List<RenderingStatsListener> statsListeners =
+            new CopyOnWriteArrayList<RenderingStatsListener>();
+
     /** Renderer optimizations. */
     private Optimizations optimizations = new Optimizations();
     
@@ -140,6 +154,79 @@ public class Renderer {
     /** Lookup table provider. */
     private LutProvider lutProvider;
 
+    /**
+     * The executor used to run the rendering tasks or <code>null</code> to
+     * use the one shared by all the renderers.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The executor used to read the planes of the channels or
+     * <code>null</code> to use the one shared by all the renderers.
+     */
+    private ExecutorService ioExecutor;
+
+    /**
+     * Whether or not the pixels buffer supports concurrent reads, in which
+     * case the planes of the channels are read concurrently.
+     */
+    private boolean concurrentReads;
+
+    /** The cache of the rendered images or <code>null</code>. */
+    private RenderedTileCache tileCache;
+
+    /** The fingerprint of the rendering settings, see {@link #fingerprintValid}. */
+    private long fingerprint;
+
+    /** Whether or not {@link #fingerprint} matches the rendering settings. */
+    private boolean fingerprintValid;
+
+    /**
+     * The versions of the codomain chains when {@link #fingerprint} was
+     * computed. The chains can be modified without invoking the setters.
+     */
+    private int[] fingerprintVersions;
+
+    /**
+     * The projection to render during a call to
+     * {@link #renderProjection(ProjectionDef, PlaneDef)} or
+     * {@link #renderProjectionAsPackedInt(ProjectionDef, PlaneDef)} or
+     * <code>null</code>.
+     */
+    private ProjectionDef projection;
+
+    /** The index of the statistics of the pixels set or <code>null</code>. */
+    private StatsIndex statsIndex;
+
+    /**
+     * Reduces the planes rendered for an output size or <code>null</code>
+     * to use a stride.
+     */
+    private Downsampler downsampler;
+
+    /** The pool the output buffers are taken from or <code>null</code>. */
+    private RenderingBufferPool bufferPool;
+
+    /**
+     * The array to render into during a call to
+     * {@link #renderAsPackedInt(PlaneDef, PixelBuffer, int[])} or
+     * <code>null</code>.
+     */
+    private int[] target;
+
+    /**
+     * The planes loaded ahead of a call to
+     * {@link #renderPreloadedAsPackedInt(PlaneDef, Plane2D[])}, indexed by
+     * channel, or <code>null</code>.
+     */
+    private Plane2D[] preloaded;
+
+    /**
+     * The fused lookup table of each channel, <code>null</code> elements
+     * have to be rebuilt.
+     */
+    private ChannelLookupTable[] lookupTables;
+
     /**
      * Returns a copy of a list of channel bindings with one element removed;
      * the so called "other" channel bindings for the image.
@@ -299,10 +386,13 @@ public class Renderer {
     /**
      * Checks the region definition to ensure that the requested tile width
      * and height are valid with respect to the current resolution level.
-     * @param rd Requested region definition.
+     * For <i>XZ</i> and <i>ZY</i> planes, the region is expressed in the
+     * <i>X1</i> and <i>X2</i> axes of the plane.
+     * @param pd Requested plane definition.
      */
-    private void checkRegionDef(RegionDef rd)
+    private void checkRegionDef(PlaneDef pd)
     {
+        RegionDef rd = pd.getRegion();
         if (rd == null)
         {
             return;
@@ -312,6 +402,14 @@ public class Renderer {
         // Pixels.Size[X,Y] != PixelBuffer.Size[X,Y].
         int sizeX = buffer.getSizeX();
         int sizeY = buffer.getSizeY();
+        if (pd.getSlice() == PlaneDef.XZ)
+        {
+            sizeY = buffer.getSizeZ();
+        }
+        else if (pd.getSlice() == PlaneDef.ZY)
+        {
+            sizeX = buffer.getSizeZ();
+        }
         int x = rd.getX();
         int y = rd.getY();
         if ((rd.getWidth() + x) > sizeX)
@@ -412,6 +510,435 @@ public class Renderer {
         return lutProvider;
     }
 
+    /**
+     * Returns the executor used to run the rendering tasks. Unless one has
+     * been set, this is the executor shared by all the renderers.
+     *
+     * @return See above.
+     * @see RenderingExecutor#getDefault()
+     */
+    public ExecutorService getExecutor()
+    {
+        if (executor == null) {
+            return RenderingExecutor.getDefault();
+        }
+        return executor;
+    }
+
+    /**
+     * Sets the executor used to run the rendering tasks. The executor is not
+     * shut down by the renderer.
+     *
+     * @param executor The executor to use or <code>null</code> to use the one
+     *                 shared by all the renderers.
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the executor used to read the planes of the channels. Unless
+     * one has been set, this is the executor shared by all the renderers.
+     *
+     * @return See above.
+     * @see RenderingExecutor#getDefaultIO()
+     */
+    public ExecutorService getIOExecutor()
+    {
+        if (ioExecutor == null) {
+            return RenderingExecutor.getDefaultIO();
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Sets the executor used to read the planes of the channels. The
+     * executor is not shut down by the renderer. Unless
+     * {@link #setConcurrentReads(boolean) concurrent reads} are enabled, the
+     * executor only runs one read of the pixels buffer at a time.
+     *
+     * @param executor The executor to use or <code>null</code> to use the one
+     *                 shared by all the renderers.
+     */
+    public void setIOExecutor(ExecutorService executor)
+    {
+        this.ioExecutor = executor;
+    }
+
+    /**
+     * Returns <code>true</code> if the planes of the channels are read
+     * concurrently, <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isConcurrentReads()
+    {
+        return concurrentReads;
+    }
+
+    /**
+     * Sets whether or not the planes of the channels are read concurrently.
+     * This must only be enabled if the pixels buffer supports concurrent
+     * reads, which is not the case of the buffers backed by Bio-Formats.
+     * Defaults to <code>false</code>: the planes are then read one after the
+     * other.
+     *
+     * @param concurrentReads Pass <code>true</code> to read the planes
+     *                        concurrently, <code>false</code> otherwise.
+     */
+    public void setConcurrentReads(boolean concurrentReads)
+    {
+        this.concurrentReads = concurrentReads;
+    }
+
+    /**
+     * Returns the pool the output buffers are taken from or
+     * <code>null</code> if the buffers are allocated for each rendering.
+     *
+     * @return See above.
+     */
+    public RenderingBufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    /**
+     * Sets the pool the output buffers are taken from. When a pool is set,
+     * the caller should hand the rendered images back to the pool with
+     * {@link RenderingBufferPool#release(int[])} or
+     * {@link RenderingBufferPool#release(RGBBuffer)} once they are no longer
+     * used.
+     *
+     * @param bufferPool The pool to use or <code>null</code> to allocate the
+     *                   buffers for each rendering.
+     */
+    public void setBufferPool(RenderingBufferPool bufferPool)
+    {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Returns the cache of the rendered images or <code>null</code> if the
+     * images are not cached.
+     *
+     * @return See above.
+     */
+    public RenderedTileCache getTileCache()
+    {
+        return tileCache;
+    }
+
+    /**
+     * Sets the cache of the images rendered by
+     * {@link #renderAsPackedInt(PlaneDef, PixelBuffer)}. The images are not
+     * cached when overlays are rendered or when a pixel buffer is passed in
+     * place of the one of the renderer.
+     *
+     * @param tileCache The cache to use or <code>null</code> to turn caching
+     *                  off.
+     */
+    public void setTileCache(RenderedTileCache tileCache)
+    {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Returns the index of the statistics of the pixels set.
+     *
+     * @return See above.
+     */
+    public StatsIndex getStatsIndex()
+    {
+        return statsIndex;
+    }
+
+    /**
+     * Returns the object reducing the planes rendered by
+     * {@link #renderForSize(PlaneDef, int, int)} or <code>null</code> if
+     * they are reduced with a stride.
+     *
+     * @return See above.
+     */
+    public Downsampler getDownsampler()
+    {
+        return downsampler;
+    }
+
+    /**
+     * Sets the object reducing the planes rendered by
+     * {@link #renderForSize(PlaneDef, int, int)}.
+     *
+     * @param downsampler The object to use or <code>null</code> to reduce
+     *                    the planes with a stride.
+     */
+    public void setDownsampler(Downsampler downsampler)
+    {
+        this.downsampler = downsampler;
+    }
+
+    /**
+     * Sets the index of the statistics of the pixels set. The global minimum
+     * and maximum of the channels without statistics are then read from the
+     * index instead of being set to the range of the pixels type. The
+     * quantum strategies are updated.
+     *
+     * @param statsIndex The index to use or <code>null</code>.
+     * @throws IllegalArgumentException If the index is not the index of the
+     *                                  rendered pixels set.
+     */
+    public void setStatsIndex(StatsIndex statsIndex)
+    {
+        if (statsIndex != null && (metadata.getId() == null
+                || statsIndex.getPixelsId() != metadata.getId())) {
+            throw new IllegalArgumentException("The index of pixels set "
+                    + statsIndex.getPixelsId() + " cannot be used with "
+                    + "pixels set " + metadata.getId() + ".");
+        }
+        this.statsIndex = statsIndex;
+        quantumManager.setStatsIndex(statsIndex);
+        updateQuantumManager();
+    }
+
+    /**
+     * Marks the fingerprint of the rendering settings as out of date. This
+     * method is invoked whenever the settings are modified.
+     */
+    private void invalidateFingerprint()
+    {
+        fingerprintValid = false;
+    }
+
+    /**
+     * Returns the key of the image rendered from the specified plane with the
+     * current settings.
+     *
+     * @param pd The plane definition.
+     * @return See above.
+     */
+    private RenderedTileCache.Key getTileKey(PlaneDef pd)
+    {
+        int[] versions = new int[codomainChains.size()];
+        for (int w = 0; w < versions.length; w++) {
+            versions[w] = codomainChains.get(w).getVersion();
+        }
+        if (!fingerprintValid
+                || !Arrays.equals(versions, fingerprintVersions)) {
+            fingerprint = RenderedTileCache.fingerprint(this);
+            fingerprintVersions = versions;
+            fingerprintValid = true;
+        }
+        Long id = metadata.getId();
+        return new RenderedTileCache.Key(id == null ? -1 : id.longValue(),
+                fingerprint, buffer.getResolutionLevel(), pd);
+    }
+
+    /**
+     * Returns the projection to render or <code>null</code> if a single
+     * plane is rendered.
+     *
+     * @return See above.
+     */
+    ProjectionDef getProjection()
+    {
+        return projection;
+    }
+
+    /**
+     * Returns the array to render into or <code>null</code> if the output
+     * buffer has to be allocated or taken from the pool.
+     *
+     * @return See above.
+     */
+    int[] getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Returns <code>true</code> if the planes to render have been loaded
+     * ahead of the rendering, <code>false</code> otherwise. The pixels
+     * buffer must then be left open as it may be in use by the thread
+     * loading the next planes.
+     *
+     * @return See above.
+     */
+    boolean hasPreloadedPlanes()
+    {
+        return preloaded != null;
+    }
+
+    /**
+     * Returns the plane of the specified channel loaded ahead of the
+     * rendering or <code>null</code> if it has to be read.
+     *
+     * @param w The index of the channel.
+     * @return See above.
+     */
+    Plane2D getPreloadedPlane(int w)
+    {
+        return preloaded == null ? null : preloaded[w];
+    }
+
+    /**
+     * Reads the planes selected by <code>pd</code> that are rendered with
+     * the current rendering settings, i.e. the plane of each active channel
+     * or of the first active channel if the image is rendered in grey
+     * scale. This does not modify the state of the renderer and may be
+     * invoked from another thread than the rendering one, provided the
+     * rendering settings are not modified and the pixels buffer is not used
+     * concurrently. If a projection is being rendered, the planes are
+     * projected.
+     *
+     * @param pd Selects a plane orthogonal to one of the <i>X</i>, <i>Y</i>,
+     *           or <i>Z</i> axes.
+     * @return The planes, indexed by channel. The elements of the channels
+     *         which are not rendered are <code>null</code>.
+     * @see #loadPlanes(PlaneDef, ProjectionDef)
+     */
+    Plane2D[] loadPlanes(PlaneDef pd)
+    {
+        return loadPlanes(pd, projection);
+    }
+
+    /**
+     * Reads the planes selected by <code>pd</code> that are rendered with
+     * the current rendering settings, projecting the <i>Z</i>-sections of
+     * each channel if a projection is specified. The projections are
+     * reduced on the executor of the renderer.
+     *
+     * @param pd Selects a plane orthogonal to one of the <i>X</i>, <i>Y</i>,
+     *           or <i>Z</i> axes, the <i>XY</i> plane to project onto if a
+     *           projection is specified.
+     * @param def The projection to perform or <code>null</code> to read the
+     *            planes.
+     * @return The planes, indexed by channel. The elements of the channels
+     *         which are not rendered are <code>null</code>.
+     * @see #loadPlanes(PlaneDef)
+     */
+    Plane2D[] loadPlanes(PlaneDef pd, ProjectionDef def)
+    {
+        checkRegionDef(pd);
+        ChannelBinding[] cb = getChannelBindings();
+        boolean greyScale = renderingStrategy instanceof GreyScaleStrategy;
+        Plane2D[] planes = new Plane2D[cb.length];
+        for (int w = 0; w < cb.length; w++) {
+            if (cb[w].getActive()) {
+                if (def == null) {
+                    planes[w] = PlaneFactory.createPlane(pd, w, metadata,
+                            buffer);
+                } else {
+                    planes[w] = PlaneProjector.project(def, pd, w, metadata,
+                            buffer, getExecutor());
+                }
+                if (greyScale) {
+                    break;
+                }
+            }
+        }
+        return planes;
+    }
+
+    /**
+     * Registers a listener notified of the metrics collected each time a
+     * plane is rendered.
+     *
+     * @param listener The listener to add.
+     */
+    public void addStatsListener(RenderingStatsListener listener)
+    {
+        if (listener == null) {
+            throw new NullPointerException("No listener.");
+        }
+        statsListeners.add(listener);
+    }
+
+    /**
+     * Removes the specified listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeStatsListener(RenderingStatsListener listener)
+    {
+        statsListeners.remove(listener);
+    }
+
+    /**
+     * Stops the collection of the rendering stats, logs them and notifies
+     * the registered listeners.
+     */
+    private void publishStats()
+    {
+        stats.stop();
+        if (log.isDebugEnabled()) {
+            log.debug(stats.getStats());
+        }
+        if (statsListeners.isEmpty()) {
+            return;
+        }
+        RenderingMetrics metrics = stats.getMetrics();
+        for (RenderingStatsListener listener : statsListeners) {
+            try {
+                listener.onRendered(metrics);
+            } catch (RuntimeException e) {
+                log.warn("Rendering stats listener failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the fused lookup table of the specified channel, building it if
+     * required, or <code>null</code> if no table can be built for the pixels
+     * type or the quantum strategy of the channel.
+     *
+     * @param w The channel index.
+     * @param reader The lookup table of the channel or <code>null</code>.
+     * @return See above.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the values.
+     */
+    ChannelLookupTable getChannelLookupTable(int w, LutReader reader)
+        throws QuantizationException
+    {
+        QuantumStrategy qs = quantumManager.getStrategyFor(w);
+        String type = metadata.getPixelsType().getValue();
+        if (!ChannelLookupTable.isSupported(qs, type)) {
+            return null;
+        }
+        ChannelBinding[] cb = getChannelBindings();
+        if (lookupTables == null || lookupTables.length != cb.length) {
+            lookupTables = new ChannelLookupTable[cb.length];
+        }
+        boolean alphaless = optimizations.isAlphalessRendering();
+        CodomainChain cc = getCodomainChain(w);
+        ChannelLookupTable table = lookupTables[w];
+        if (table == null || !table.isValid(qs, cc, alphaless)) {
+            int[] color = new int[] { cb[w].getRed(), cb[w].getGreen(),
+                    cb[w].getBlue(), cb[w].getAlpha() };
+            table = new ChannelLookupTable(qs, cc, color, reader, alphaless,
+                    type);
+            lookupTables[w] = table;
+        }
+        return table;
+    }
+
+    /**
+     * Discards the fused lookup table of the specified channel.
+     *
+     * @param w The channel index or <code>-1</code> to discard all the tables.
+     */
+    private void invalidateLookupTable(int w)
+    {
+        if (lookupTables == null) {
+            return;
+        }
+        if (w < 0) {
+            Arrays.fill(lookupTables, null);
+        } else if (w < lookupTables.length) {
+            lookupTables[w] = null;
+        }
+    }
+
     /**
      * Specifies the model that dictates how transformed raw data has to be
      * mapped onto a color space. This class delegates the actual rendering to a
@@ -425,6 +952,7 @@ public class Renderer {
     {
         rndDef.setModel(model);
         renderingStrategy = RenderingStrategy.makeNew(model);
+        invalidateFingerprint();
     }
 
     /**
@@ -477,6 +1005,8 @@ public class Renderer {
         QuantumDef qd = rndDef.getQuantization();
         ChannelBinding[] cb = getChannelBindings();
         quantumManager.initStrategies(qd, cb);
+        invalidateLookupTable(-1);
+        invalidateFingerprint();
     }
 
     /**
@@ -503,14 +1033,12 @@ public class Renderer {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        checkRegionDef(pd.getRegion());
+        checkRegionDef(pd);
         stats = new RenderingStats(this, pd);
         log.info("Using: '" + renderingStrategy.getClass().getName()
                 + "' rendering strategy.");
         RGBBuffer img = renderingStrategy.render(this, pd);
-        stats.stop();
-        // TODO: Commenting this out for now. -- callan
-        //log.info(stats.getStats());
+        publishStats();
         return img;
     }
 
@@ -540,11 +1068,63 @@ public class Renderer {
      */
     public int[] renderAsPackedInt(PlaneDef pd, PixelBuffer newBuffer)
         throws IOException, QuantizationException
+    {
+        return renderAsPackedInt(pd, newBuffer, (int[]) null);
+    }
+
+    /**
+     * Renders the data selected by <code>pd</code> into the specified array
+     * according to the current rendering settings. No output buffer is
+     * allocated. The first {@link #getImageSize(PlaneDef) getImageSize}/3
+     * elements of the array are overwritten.
+     *
+     * @param pd
+     *            Selects a plane orthogonal to one of the <i>X</i>, <i>Y</i>,
+     *            or <i>Z</i> axes.
+     * @param newBuffer
+     *             The pixel buffer to use in place of the one currently
+     *             defined in the renderer or <code>null</code>.
+     * @param target
+     *             The array to render into or <code>null</code> to allocate
+     *             it or take it from the buffer pool.
+     * @return The array holding the packed pixels, <code>target</code> if
+     *         not <code>null</code>.
+     * @throws IOException
+     *             If an error occurred while trying to pull out data from the
+     *             pixels data repository.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     * @throws IllegalArgumentException
+     *             If <code>target</code> is too small.
+     * @throws NullPointerException
+     *             If <code>pd</code> is <code>null</code>.
+     */
+    public int[] renderAsPackedInt(PlaneDef pd, PixelBuffer newBuffer,
+            int[] target)
+        throws IOException, QuantizationException
     {
         if (pd == null) {
             throw new NullPointerException("No plane definition.");
         }
-        checkRegionDef(pd.getRegion());
+        checkRegionDef(pd);
+        RenderedTileCache.Key key = null;
+        if (tileCache != null && newBuffer == null && overlays == null
+                && projection == null && preloaded == null) {
+            key = getTileKey(pd);
+            int[] image = tileCache.get(key);
+            if (image != null) {
+                if (target == null) {
+                    return image;
+                }
+                if (target.length < image.length) {
+                    throw new IllegalArgumentException("The target holds "
+                            + target.length + " pixels, expecting "
+                            + image.length + ".");
+                }
+                System.arraycopy(image, 0, target, 0, image.length);
+                return target;
+            }
+        }
         stats = new RenderingStats(this, pd);
         log.info("Using: '" + renderingStrategy.getClass().getName()
                 + "' rendering strategy.");
@@ -555,15 +1135,350 @@ public class Renderer {
             {
                 buffer = newBuffer;
             }
+            this.target = target;
             RGBIntBuffer img = renderingStrategy.renderAsPackedInt(this, pd);
-            stats.stop();
-            // TODO: Commenting this out for now. -- callan
-            //log.info(stats.getStats());
+            publishStats();
+            if (key != null) {
+                tileCache.put(key, img.getDataBuffer(),
+                        img.getSizeX1() * img.getSizeX2());
+            }
             return img.getDataBuffer();
         }
         finally
         {
             buffer = oldBuffer;
+            this.target = null;
+        }
+    }
+
+    /**
+     * Renders the planes loaded by {@link #loadPlanes(PlaneDef)} as packed
+     * integers according to the current rendering settings. The pixels
+     * buffer is neither read nor closed.
+     *
+     * @param pd
+     *            The plane definition the planes were loaded for.
+     * @param planes
+     *            The planes, indexed by channel.
+     * @return An <i>RGB</i> image ready to be displayed on screen.
+     * @throws IOException
+     *             If an error occurred while trying to pull out data from the
+     *             pixels data repository.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     */
+    int[] renderPreloadedAsPackedInt(PlaneDef pd, Plane2D[] planes)
+        throws IOException, QuantizationException
+    {
+        preloaded = planes;
+        try
+        {
+            return renderAsPackedInt(pd, null, (int[]) null);
+        }
+        finally
+        {
+            preloaded = null;
+        }
+    }
+
+    /**
+     * Renders the data selected by <code>pd</code> into the specified buffer
+     * according to the current rendering settings. The pixels are written
+     * from the current position of the buffer, which is advanced past them.
+     * If the buffer is backed by an array starting at its position, no
+     * output buffer is allocated.
+     *
+     * @param pd
+     *            Selects a plane orthogonal to one of the <i>X</i>, <i>Y</i>,
+     *            or <i>Z</i> axes.
+     * @param newBuffer
+     *             The pixel buffer to use in place of the one currently
+     *             defined in the renderer or <code>null</code>.
+     * @param target
+     *             The buffer to render into.
+     * @throws IOException
+     *             If an error occurred while trying to pull out data from the
+     *             pixels data repository.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     * @throws IllegalArgumentException
+     *             If <code>target</code> has not enough remaining elements.
+     * @throws NullPointerException
+     *             If <code>pd</code> or <code>target</code> is
+     *             <code>null</code>.
+     */
+    public void renderAsPackedInt(PlaneDef pd, PixelBuffer newBuffer,
+            IntBuffer target)
+        throws IOException, QuantizationException
+    {
+        if (target == null) {
+            throw new NullPointerException("No target.");
+        }
+        int n = getImageSize(pd) / 3;
+        if (target.remaining() < n) {
+            throw new IllegalArgumentException("The target has "
+                    + target.remaining() + " remaining pixels, expecting "
+                    + n + ".");
+        }
+        if (target.hasArray() && target.arrayOffset() + target.position() == 0)
+        {
+            renderAsPackedInt(pd, newBuffer, target.array());
+            target.position(n);
+            return;
+        }
+        int[] img = renderAsPackedInt(pd, newBuffer, (int[]) null);
+        target.put(img, 0, n);
+        if (bufferPool != null) {
+            bufferPool.release(img);
+        }
+    }
+
+    /**
+     * Projects the <i>Z</i>-sections of each active channel onto the plane
+     * selected by <code>pd</code> and renders the projected plane according
+     * to the current rendering settings. The sections are reduced in raw
+     * pixel space, the projected values are then quantized and mapped onto
+     * the color space once.
+     *
+     * @param def
+     *            The projection to perform.
+     * @param pd
+     *            Selects the timepoint, region and stride of the <i>XY</i>
+     *            plane to project onto. The <i>Z</i>-section is ignored.
+     * @return An <i>RGB</i> image ready to be displayed on screen.
+     * @throws IOException
+     *             If an error occurred while trying to pull out data from the
+     *             pixels data repository.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     * @throws NullPointerException
+     *             If <code>def</code> or <code>pd</code> is
+     *             <code>null</code>.
+     */
+    public RGBBuffer renderProjection(ProjectionDef def, PlaneDef pd)
+        throws IOException, QuantizationException
+    {
+        if (def == null) {
+            throw new NullPointerException("No projection.");
+        }
+        projection = def;
+        try
+        {
+            return render(pd);
+        }
+        finally
+        {
+            projection = null;
+        }
+    }
+
+    /**
+     * Projects the <i>Z</i>-sections of each active channel onto the plane
+     * selected by <code>pd</code> and renders the projected plane as packed
+     * integers according to the current rendering settings.
+     *
+     * @param def
+     *            The projection to perform.
+     * @param pd
+     *            Selects the timepoint, region and stride of the <i>XY</i>
+     *            plane to project onto. The <i>Z</i>-section is ignored.
+     * @return An <i>RGB</i> image ready to be displayed on screen.
+     * @throws IOException
+     *             If an error occurred while trying to pull out data from the
+     *             pixels data repository.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     * @throws NullPointerException
+     *             If <code>def</code> or <code>pd</code> is
+     *             <code>null</code>.
+     * @see #renderProjection(ProjectionDef, PlaneDef)
+     */
+    public int[] renderProjectionAsPackedInt(ProjectionDef def, PlaneDef pd)
+        throws IOException, QuantizationException
+    {
+        if (def == null) {
+            throw new NullPointerException("No projection.");
+        }
+        projection = def;
+        try
+        {
+            return renderAsPackedInt(pd, null);
+        }
+        finally
+        {
+            projection = null;
+        }
+    }
+
+    /**
+     * Renders the data selected by <code>pd</code> as packed integers at
+     * approximately the specified size. The smallest resolution level whose
+     * region is at least as large as the requested size is selected, the
+     * region is remapped onto that level and the remaining reduction is done
+     * with a stride. The cost is thus proportional to the number of output
+     * pixels rather than to the number of pixels of the region at full
+     * resolution.
+     * <p>
+     * The rendered image is at least as large as requested and less than
+     * twice as large on the most reduced axis. The active resolution level
+     * is restored on return and <code>pd</code> is not modified. If a
+     * {@link #setDownsampler(Downsampler) downsampler} is set, the planes
+     * are instead reduced before they are quantized to the smallest size at
+     * least as large as requested which keeps the aspect ratio of the region,
+     * clamped to the size of the region. Only <i>XY</i> planes are read from
+     * a pyramid.
+     * </p>
+     *
+     * @param pd
+     *            Selects the plane and the region, in full resolution
+     *            coordinates, to render. The whole plane is rendered if no
+     *            region is set.
+     * @param sizeX The requested width of the image.
+     * @param sizeY The requested height of the image.
+     * @return An <i>RGB</i> image ready to be displayed on screen.
+     * @throws IOException
+     *             If an error occurred while trying to pull out data from the
+     *             pixels data repository.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     * @throws IllegalArgumentException
+     *             If the requested size is not positive.
+     * @throws NullPointerException
+     *             If <code>pd</code> is <code>null</code>.
+     */
+    public int[] renderForSize(PlaneDef pd, int sizeX, int sizeY)
+        throws IOException, QuantizationException
+    {
+        if (pd == null) {
+            throw new NullPointerException("No plane definition.");
+        }
+        if (sizeX < 1 || sizeY < 1) {
+            throw new IllegalArgumentException("Size not valid: " + sizeX
+                    + "x" + sizeY + ".");
+        }
+        int fullX = metadata.getSizeX();
+        int fullY = metadata.getSizeY();
+        if (pd.getSlice() == PlaneDef.XZ) {
+            fullY = metadata.getSizeZ();
+        } else if (pd.getSlice() == PlaneDef.ZY) {
+            fullX = metadata.getSizeZ();
+        }
+        // Work on a copy so the plane definition of the caller is unchanged.
+        PlaneDef def = new PlaneDef(pd.getSlice(), pd.getT());
+        def.setX(pd.getX());
+        def.setY(pd.getY());
+        def.setZ(pd.getZ());
+        RegionDef rd = pd.getRegion();
+        if (rd == null) {
+            rd = new RegionDef(0, 0, fullX, fullY);
+        } else {
+            rd = new RegionDef(rd.getX(), rd.getY(), rd.getWidth(),
+                    rd.getHeight());
+        }
+        def.setRegion(rd);
+        int level = getResolutionLevel();
+        try {
+            int levels = getResolutionLevels();
+            if (def.getSlice() == PlaneDef.XY && levels > 1) {
+                List<List<Integer>> descriptions =
+                        getResolutionDescriptions();
+                int index = selectResolution(descriptions, rd.getWidth(),
+                        rd.getHeight(), sizeX, sizeY);
+                // Descriptions are ordered from the highest resolution,
+                // which is the last level.
+                setResolutionLevel(levels - 1 - index);
+                double fx = (double) descriptions.get(index).get(0) / fullX;
+                double fy = (double) descriptions.get(index).get(1) / fullY;
+                int x = (int) (rd.getX() * fx);
+                int y = (int) (rd.getY() * fy);
+                rd = new RegionDef(x, y, Math.max(1,
+                        (int) ((rd.getX() + rd.getWidth()) * fx) - x),
+                        Math.max(1,
+                        (int) ((rd.getY() + rd.getHeight()) * fy) - y));
+                def.setRegion(rd);
+            }
+            if (downsampler != null) {
+                return renderDownsampled(def, sizeX, sizeY);
+            }
+            int factor = Math.min(rd.getWidth() / sizeX,
+                    rd.getHeight() / sizeY);
+            def.setStride(Math.max(0, factor - 1));
+            return renderAsPackedInt(def, null);
+        } finally {
+            if (getResolutionLevel() != level) {
+                setResolutionLevel(level);
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the image reduced from a region so that it is at
+     * least as large as requested on both axes while keeping the aspect
+     * ratio of the region, as when the region is reduced with a stride. The
+     * size is clamped to the size of the region.
+     *
+     * @param width The width of the region.
+     * @param height The height of the region.
+     * @param sizeX The requested width.
+     * @param sizeY The requested height.
+     * @return The width and height of the image.
+     */
+    static int[] getReducedSize(int width, int height, int sizeX, int sizeY)
+    {
+        double scale = Math.min(1.0, Math.max((double) sizeX / width,
+                (double) sizeY / height));
+        // Ignore the rounding errors of the scale.
+        int x = (int) Math.ceil(width * scale - 1e-6);
+        int y = (int) Math.ceil(height * scale - 1e-6);
+        return new int[] { Math.min(width, Math.max(1, x)),
+                Math.min(height, Math.max(1, y)) };
+    }
+
+    /**
+     * Reads the region selected by <code>pd</code>, reduces it with the
+     * downsampler and renders it as packed integers. The pixels buffer is
+     * closed once the planes have been rendered.
+     *
+     * @param pd The plane and region to render, without stride.
+     * @param sizeX The requested width of the image.
+     * @param sizeY The requested height of the image.
+     * @return See above.
+     * @throws IOException
+     *             If an error occurred while trying to pull out data from the
+     *             pixels data repository.
+     * @throws QuantizationException
+     *             If an error occurred while quantizing the pixels raw data.
+     */
+    private int[] renderDownsampled(PlaneDef pd, int sizeX, int sizeY)
+        throws IOException, QuantizationException
+    {
+        pd.setStride(0);
+        RegionDef rd = pd.getRegion();
+        int[] size = getReducedSize(rd.getWidth(), rd.getHeight(), sizeX,
+                sizeY);
+        try {
+            Plane2D[] planes = loadPlanes(pd);
+            ExecutorService processor = getExecutor();
+            for (int w = 0; w < planes.length; w++) {
+                if (planes[w] != null) {
+                    planes[w] = downsampler.downsample(planes[w], metadata,
+                            size[0], size[1], processor);
+                }
+            }
+            // The reduced planes are laid out as the region of the plane.
+            PlaneDef reduced = new PlaneDef(pd.getSlice(), pd.getT());
+            reduced.setX(pd.getX());
+            reduced.setY(pd.getY());
+            reduced.setZ(pd.getZ());
+            reduced.setRegion(new RegionDef(0, 0, size[0], size[1]));
+            return renderPreloadedAsPackedInt(reduced, planes);
+        } finally {
+            // The strategies do not close the buffer of preloaded planes.
+            try {
+                buffer.close();
+            } catch (IOException e) {
+                log.error("Pixels could not be closed successfully.", e);
+            }
         }
     }
 
@@ -765,6 +1680,7 @@ public class Renderer {
             c = getCodomainChain(i);
             c.setInterval(start, end);
         }
+        invalidateLookupTable(-1);
         /*
          * RenderingDef rd = getRenderingDef(); QuantumDef qd =
          * rd.getQuantization(), newQd; newQd = new QuantumDef();
@@ -778,6 +1694,7 @@ public class Renderer {
         qd.setCdEnd(Integer.valueOf(end));
         //need to rebuild the look up table
         updateQuantumManager();
+        invalidateFingerprint();
     }
 
     /**
@@ -796,6 +1713,8 @@ public class Renderer {
         ChannelBinding[] cb = getChannelBindings();
         cb[w].setInputStart(new Double(start));
         cb[w].setInputEnd(new Double(end));
+        invalidateLookupTable(w);
+        invalidateFingerprint();
     }
 
     /**
@@ -819,6 +1738,8 @@ public class Renderer {
         cb[w].setFamily(family);
         cb[w].setCoefficient(qs.getCurveCoefficient());
         cb[w].setNoiseReduction(noiseReduction);
+        invalidateLookupTable(w);
+        invalidateFingerprint();
     }
 
     /**
@@ -841,7 +1762,9 @@ public class Renderer {
         cb[w].setGreen(Integer.valueOf(green));
         cb[w].setBlue(Integer.valueOf(blue));
         cb[w].setAlpha(Integer.valueOf(alpha));
+        invalidateLookupTable(w);
         checkOptimizations();
+        invalidateFingerprint();
     }
 
     /**
@@ -853,7 +1776,9 @@ public class Renderer {
     public void setChannelLookupTable(int w, String lookupTable) {
         ChannelBinding[] cb = getChannelBindings();
         cb[w].setLookupTable(lookupTable);
+        invalidateLookupTable(w);
         checkOptimizations();
+        invalidateFingerprint();
     }
 
     /**
@@ -866,6 +1791,7 @@ public class Renderer {
     	ChannelBinding[] cb = getChannelBindings();
     	cb[w].setActive(Boolean.valueOf(active));
     	checkOptimizations();
+    	invalidateFingerprint();
     }
     
     /**
@@ -878,11 +1804,13 @@ public class Renderer {
     }
 
 	/**
-     * Closes the buffer, cleaning up file state.
+     * Closes the buffer, cleaning up file state, and releases the look-up
+     * tables shared with other renderers.
      * 
      * @throws IOException if an I/O error occurs.
      */
     public void close() {
+        quantumManager.release();
 		try
 		{
 			if (buffer != null)
@@ -993,6 +1921,35 @@ public class Renderer {
         return buffer.getResolutionDescriptions();
     }
 
+    /**
+     * Returns the index of the smallest resolution whose region is at least
+     * as large as the requested size, <code>0</code> if the full resolution
+     * region is already smaller.
+     *
+     * @param descriptions The size of each resolution, from the highest.
+     * @param width The width of the region at the highest resolution.
+     * @param height The height of the region at the highest resolution.
+     * @param sizeX The requested width.
+     * @param sizeY The requested height.
+     * @return See above.
+     */
+    static int selectResolution(List<List<Integer>> descriptions, int width,
+            int height, int sizeX, int sizeY)
+    {
+        double fullX = descriptions.get(0).get(0);
+        double fullY = descriptions.get(0).get(1);
+        int selected = 0;
+        for (int i = 1; i < descriptions.size(); i++) {
+            List<Integer> d = descriptions.get(i);
+            if ((int) (width * d.get(0) / fullX) < sizeX
+                    || (int) (height * d.get(1) / fullY) < sizeY) {
+                break;
+            }
+            selected = i;
+        }
+        return selected;
+    }
+
     /**
      * Retrieves the tile size for the pixel store.
      * @return The dimension of the tile or <code>null</code> if the pixel
@@ -0,0 +1,263 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of the arrays backing the rendered images. Arrays are
+ * bucketed by exact length, which matches the way tiles are requested, i.e.
+ * a few distinct sizes requested over and over.
+ * <p>
+ * An array is taken from the pool by the {@link Renderer} when the pool has
+ * been set with {@link Renderer#setBufferPool(RenderingBufferPool)} and is
+ * handed back by the caller with one of the <code>release</code> methods
+ * once the rendered image is no longer used. The number of arrays kept per
+ * length and the total number of bytes retained are bounded, arrays
+ * released beyond those limits are left to the garbage collector. Releasing
+ * an array which is already held by the pool has no effect, so an array is
+ * never handed out twice.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class RenderingBufferPool {
+
+    /** The default maximum number of arrays kept per length. */
+    public static final int DEFAULT_MAX_PER_SIZE = 16;
+
+    /** The default maximum number of bytes retained by the pool. */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /** The maximum number of arrays kept per length. */
+    private final int maxPerSize;
+
+    /** The maximum number of bytes retained by the pool. */
+    private final long maxBytes;
+
+    /** The number of bytes currently retained by the pool. */
+    private final AtomicLong retained = new AtomicLong();
+
+    /** The integer arrays, by length. */
+    private final ConcurrentMap<Integer, BlockingQueue<int[]>> ints =
+            new ConcurrentHashMap<Integer, BlockingQueue<int[]>>();
+
+    /** The byte arrays, by length. */
+    private final ConcurrentMap<Integer, BlockingQueue<byte[]>> bytes =
+            new ConcurrentHashMap<Integer, BlockingQueue<byte[]>>();
+
+    /** The arrays held by the pool, compared by identity. */
+    private final Set<Object> pooled = Collections.synchronizedSet(
+            Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+
+    /** Creates a new instance with the default limits. */
+    public RenderingBufferPool()
+    {
+        this(DEFAULT_MAX_PER_SIZE, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxPerSize The maximum number of arrays kept per length.
+     * @param maxBytes The maximum number of bytes retained by the pool.
+     */
+    public RenderingBufferPool(int maxPerSize, long maxBytes)
+    {
+        if (maxPerSize < 1) {
+            throw new IllegalArgumentException(
+                    "The number of arrays per size must be positive.");
+        }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException(
+                    "The number of bytes must not be negative.");
+        }
+        this.maxPerSize = maxPerSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the queue holding the arrays of the specified length.
+     *
+     * @param map The map of queues.
+     * @param length The length of the arrays.
+     * @return See above.
+     */
+    private <T> BlockingQueue<T> getQueue(ConcurrentMap<Integer,
+            BlockingQueue<T>> map, int length)
+    {
+        BlockingQueue<T> queue = map.get(length);
+        if (queue == null) {
+            queue = new ArrayBlockingQueue<T>(maxPerSize);
+            BlockingQueue<T> existing = map.putIfAbsent(length, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Reserves the specified number of bytes if the pool can retain them.
+     *
+     * @param size The number of bytes.
+     * @return <code>true</code> if the bytes were reserved,
+     *         <code>false</code> otherwise.
+     */
+    private boolean reserve(long size)
+    {
+        for (;;) {
+            long current = retained.get();
+            if (current + size > maxBytes) {
+                return false;
+            }
+            if (retained.compareAndSet(current, current + size)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns a zero-filled integer array of the specified length, taken
+     * from the pool if one is available.
+     *
+     * @param length The length of the array.
+     * @return See above.
+     */
+    public int[] acquireInts(int length)
+    {
+        BlockingQueue<int[]> queue = ints.get(length);
+        int[] array = queue == null ? null : queue.poll();
+        if (array == null) {
+            return new int[length];
+        }
+        pooled.remove(array);
+        retained.addAndGet(-4L * length);
+        Arrays.fill(array, 0);
+        return array;
+    }
+
+    /**
+     * Returns a zero-filled byte array of the specified length, taken from
+     * the pool if one is available.
+     *
+     * @param length The length of the array.
+     * @return See above.
+     */
+    public byte[] acquireBytes(int length)
+    {
+        BlockingQueue<byte[]> queue = bytes.get(length);
+        byte[] array = queue == null ? null : queue.poll();
+        if (array == null) {
+            return new byte[length];
+        }
+        pooled.remove(array);
+        retained.addAndGet(-(long) length);
+        Arrays.fill(array, (byte) 0);
+        return array;
+    }
+
+    /**
+     * Returns the specified array to the pool. The array must no longer be
+     * used by the caller. Releasing an array already held by the pool has
+     * no effect.
+     *
+     * @param array The array to release, may be <code>null</code>.
+     */
+    public void release(int[] array)
+    {
+        if (array == null || array.length == 0 || !pooled.add(array)) {
+            return;
+        }
+        long size = 4L * array.length;
+        if (!reserve(size)) {
+            pooled.remove(array);
+            return;
+        }
+        if (!getQueue(ints, array.length).offer(array)) {
+            pooled.remove(array);
+            retained.addAndGet(-size);
+        }
+    }
+
+    /**
+     * Returns the specified array to the pool. The array must no longer be
+     * used by the caller. Releasing an array already held by the pool has
+     * no effect.
+     *
+     * @param array The array to release, may be <code>null</code>.
+     */
+    public void release(byte[] array)
+    {
+        if (array == null || array.length == 0 || !pooled.add(array)) {
+            return;
+        }
+        long size = array.length;
+        if (!reserve(size)) {
+            pooled.remove(array);
+            return;
+        }
+        if (!getQueue(bytes, array.length).offer(array)) {
+            pooled.remove(array);
+            retained.addAndGet(-size);
+        }
+    }
+
+    /**
+     * Returns the arrays backing the specified image to the pool. The image
+     * must no longer be used by the caller.
+     *
+     * @param buffer The image to release, may be <code>null</code>.
+     */
+    public void release(RGBBuffer buffer)
+    {
+        if (buffer instanceof RGBIntBuffer) {
+            release(((RGBIntBuffer) buffer).getDataBuffer());
+        } else if (buffer instanceof RGBAIntBuffer) {
+            release(((RGBAIntBuffer) buffer).getDataBuffer());
+        } else if (buffer != null) {
+            release(buffer.getRedBand());
+            release(buffer.getGreenBand());
+            release(buffer.getBlueBand());
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently retained by the pool.
+     *
+     * @return See above.
+     */
+    public long getRetainedBytes()
+    {
+        return retained.get();
+    }
+
+    /** Discards all the arrays held by the pool. */
+    public void clear()
+    {
+        for (BlockingQueue<int[]> queue : ints.values()) {
+            int[] array;
+            while ((array = queue.poll()) != null) {
+                pooled.remove(array);
+                retained.addAndGet(-4L * array.length);
+            }
+        }
+        for (BlockingQueue<byte[]> queue : bytes.values()) {
+            byte[] array;
+            while ((array = queue.poll()) != null) {
+                pooled.remove(array);
+                retained.addAndGet(-(long) array.length);
+            }
+        }
+    }
+}
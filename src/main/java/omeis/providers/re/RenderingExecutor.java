@@ -0,0 +1,346 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the executor shared by all the {@link Renderer} instances of the
+ * process. Rendering tasks used to be run on a thread pool created and shut
+ * down for each rendered plane; the shared executor keeps a bounded number of
+ * threads alive instead.
+ * <p>
+ * By default, the executor has a number of threads defined by the
+ * {@link #THREADS_PROPERTY} system property and a bounded queue, sized by
+ * the {@link #QUEUE_PROPERTY} system property. When its queue is full, the
+ * submitting thread runs the task itself. This throttles the callers
+ * instead of queueing an unbounded amount of work. Setting the
+ * {@link #EXECUTOR_PROPERTY} system property to {@link #FORK_JOIN} selects
+ * a {@link ForkJoinPool} instead: idle threads steal pending blocks from
+ * busy ones so the load is balanced whatever the cost of each block, but
+ * the number of queued blocks is not bounded.
+ * Callers can replace the default executor via
+ * {@link #setDefault(ExecutorService)} or a single renderer's executor via
+ * {@link Renderer#setExecutor(ExecutorService)}.
+ * </p>
+ * <p>
+ * The planes of the channels are read on a separate executor, whose number
+ * of threads is defined by the {@link #IO_THREADS_PROPERTY} system property,
+ * so that slow reads neither occupy nor are limited by the rendering
+ * threads. It has a single thread by default. A pixels buffer is only read
+ * by several threads at the same time if the renderer is told that the
+ * buffer supports it, see {@link Renderer#setConcurrentReads(boolean)}.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class RenderingExecutor {
+
+    /** The logger for this particular class */
+    private static Logger log = LoggerFactory.getLogger(RenderingExecutor.class);
+
+    /** System property defining the number of rendering threads. */
+    public static final String THREADS_PROPERTY = "omero.renderer.threads";
+
+    /** System property defining the maximum number of queued tasks. */
+    public static final String QUEUE_PROPERTY = "omero.renderer.queue_depth";
+
+    /** System property defining the number of threads reading planes. */
+    public static final String IO_THREADS_PROPERTY =
+            "omero.renderer.io_threads";
+
+    /** The default number of threads reading planes. */
+    static final int DEFAULT_IO_THREADS = 1;
+
+    /** System property selecting the type of the default executor. */
+    public static final String EXECUTOR_PROPERTY = "omero.renderer.executor";
+
+    /** Selects a work-stealing executor. */
+    public static final String FORK_JOIN = "forkjoin";
+
+    /** Selects an executor with a bounded queue. This is the default. */
+    public static final String BOUNDED = "bounded";
+
+    /** The default number of queued tasks per rendering thread. */
+    static final int QUEUE_PER_THREAD = 16;
+
+    /** The executor shared by all the renderers. */
+    private static ExecutorService defaultExecutor;
+
+    /** The executor reading planes shared by all the renderers. */
+    private static ExecutorService defaultIOExecutor;
+
+    /**
+     * Returns the value of the specified system property as a strictly
+     * positive integer or the default value if the property is not set or
+     * not valid.
+     *
+     * @param name The name of the property.
+     * @param defaultValue The value to return if the property is not valid.
+     * @return See above.
+     */
+    static int getIntProperty(String name, int defaultValue)
+    {
+        String value = System.getProperty(name);
+        if (value == null) return defaultValue;
+        try {
+            int v = Integer.parseInt(value.trim());
+            if (v > 0) return v;
+        } catch (NumberFormatException e) {
+            // Handled below.
+        }
+        log.warn("Invalid value '" + value + "' for " + name + ", using "
+                + defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * Creates a new executor with a bounded number of threads and a bounded
+     * queue. When the queue is full, the task is run by the submitting thread.
+     *
+     * @param threads The maximum number of threads.
+     * @param queueDepth The maximum number of queued tasks.
+     * @return See above.
+     */
+    public static ExecutorService newExecutor(int threads, int queueDepth)
+    {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "The number of threads must be positive: " + threads);
+        }
+        if (queueDepth <= 0) {
+            throw new IllegalArgumentException(
+                    "The queue depth must be positive: " + queueDepth);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueDepth),
+                new RenderingThreadFactory("omero-renderer-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates a new executor reading planes. Reads are queued without bound
+     * as a renderer submits at most one read per channel at a time.
+     *
+     * @param threads The maximum number of threads.
+     * @return See above.
+     */
+    public static ExecutorService newIOExecutor(int threads)
+    {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "The number of threads must be positive: " + threads);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new RenderingThreadFactory("omero-renderer-io-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates a new work-stealing executor.
+     *
+     * @param threads The parallelism level.
+     * @return See above.
+     */
+    public static ForkJoinPool newForkJoinPool(int threads)
+    {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "The number of threads must be positive: " + threads);
+        }
+        return new ForkJoinPool(threads, new RenderingWorkerThreadFactory(),
+                null, false);
+    }
+
+    /**
+     * Returns the executor shared by all the renderers. The executor is
+     * created the first time this method is invoked.
+     *
+     * @return See above.
+     */
+    public static synchronized ExecutorService getDefault()
+    {
+        if (defaultExecutor == null) {
+            int threads = getIntProperty(THREADS_PROPERTY,
+                    Runtime.getRuntime().availableProcessors());
+            if (FORK_JOIN.equals(System.getProperty(EXECUTOR_PROPERTY))) {
+                log.info("Creating work-stealing rendering executor, "
+                        + "threads: " + threads);
+                defaultExecutor = newForkJoinPool(threads);
+            } else {
+                int queueDepth = getIntProperty(QUEUE_PROPERTY,
+                        threads * QUEUE_PER_THREAD);
+                log.info("Creating rendering executor, threads: " + threads
+                        + " queue depth: " + queueDepth);
+                defaultExecutor = newExecutor(threads, queueDepth);
+            }
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Replaces the executor shared by all the renderers. The previous
+     * executor is not shut down, this is the responsibility of the caller.
+     *
+     * @param executor The executor to use. Mustn't be <code>null</code>.
+     */
+    public static synchronized void setDefault(ExecutorService executor)
+    {
+        if (executor == null) {
+            throw new NullPointerException("No executor.");
+        }
+        defaultExecutor = executor;
+    }
+
+    /**
+     * Returns the executor reading planes shared by all the renderers. The
+     * executor is created the first time this method is invoked.
+     *
+     * @return See above.
+     */
+    public static synchronized ExecutorService getDefaultIO()
+    {
+        if (defaultIOExecutor == null) {
+            int threads = getIntProperty(IO_THREADS_PROPERTY,
+                    DEFAULT_IO_THREADS);
+            log.info("Creating I/O executor, threads: " + threads);
+            defaultIOExecutor = newIOExecutor(threads);
+        }
+        return defaultIOExecutor;
+    }
+
+    /**
+     * Replaces the executor reading planes shared by all the renderers. The
+     * previous executor is not shut down, this is the responsibility of the
+     * caller.
+     *
+     * @param executor The executor to use. Mustn't be <code>null</code>.
+     */
+    public static synchronized void setDefaultIO(ExecutorService executor)
+    {
+        if (executor == null) {
+            throw new NullPointerException("No executor.");
+        }
+        defaultIOExecutor = executor;
+    }
+
+    /**
+     * Returns <code>true</code> if the current thread was created by one of
+     * the executors of this class. Such a thread must not wait for tasks
+     * submitted to the shared executor: if all its threads did, the tasks
+     * would never be run.
+     *
+     * @return See above.
+     */
+    public static boolean isRenderingThread()
+    {
+        Thread t = Thread.currentThread();
+        return t instanceof RenderingThread
+                || t instanceof RenderingWorkerThread;
+    }
+
+    /** A thread created by a {@link RenderingThreadFactory}. */
+    static class RenderingThread extends Thread {
+
+        /**
+         * Creates a new instance.
+         *
+         * @param r The task to run.
+         * @param name The name of the thread.
+         */
+        RenderingThread(Runnable r, String name)
+        {
+            super(r, name);
+        }
+    }
+
+    /** A thread created by a {@link RenderingWorkerThreadFactory}. */
+    static class RenderingWorkerThread extends ForkJoinWorkerThread {
+
+        /**
+         * Creates a new instance.
+         *
+         * @param pool The pool the thread works for.
+         */
+        RenderingWorkerThread(ForkJoinPool pool)
+        {
+            super(pool);
+        }
+    }
+
+    /** Creates daemon threads with a recognizable name. */
+    static class RenderingThreadFactory implements ThreadFactory {
+
+        /** The number of threads created so far. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /** The prefix of the thread names. */
+        private final String prefix;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param prefix The prefix of the thread names.
+         */
+        RenderingThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        /**
+         * Implemented as specified by the {@link ThreadFactory} interface.
+         *
+         * @see ThreadFactory#newThread(Runnable)
+         */
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new RenderingThread(r,
+                    prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /** Creates fork/join worker threads with a recognizable name. */
+    static class RenderingWorkerThreadFactory
+        implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+
+        /** The number of threads created so far. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Implemented as specified by the
+         * {@link ForkJoinPool.ForkJoinWorkerThreadFactory} interface.
+         *
+         * @see ForkJoinPool.ForkJoinWorkerThreadFactory#newThread(ForkJoinPool)
+         */
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+        {
+            ForkJoinWorkerThread t = new RenderingWorkerThread(pool);
+            t.setName("omero-renderer-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /** Static methods only. */
+    private RenderingExecutor() {}
+}
@@ -0,0 +1,257 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+/**
+ * Immutable snapshot of the values collected by {@link RenderingStats} while
+ * rendering a plane. All times are expressed in nanoseconds.
+ * <p>
+ * The memory allocation, I/O, rendering and total times are wall-clock
+ * times. The quantization and compositing times are summed over all the
+ * rendering tasks, which may run concurrently, so their sum may exceed the
+ * rendering time. When a fused lookup table is used, quantization and
+ * compositing happen in a single lookup and the time is reported as
+ * compositing time.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class RenderingMetrics {
+
+    /** The id of the pixels set. */
+    private final Long pixelsId;
+
+    /** The type of plane rendered, see {@link omeis.providers.re.data.PlaneDef}. */
+    private final int slice;
+
+    /** The selected <i>Z</i>-section. */
+    private final int z;
+
+    /** The selected timepoint. */
+    private final int t;
+
+    /** The value of the rendering model. */
+    private final String model;
+
+    /** The time taken to allocate the rendering buffers. */
+    private final long mallocTime;
+
+    /** The I/O time per wavelength, <code>-1</code> if not retrieved. */
+    private final long[] ioTimes;
+
+    /** The time spent quantizing the pixels data. */
+    private final long quantizationTime;
+
+    /** The time spent mapping the quantized values onto the color space. */
+    private final long compositingTime;
+
+    /** The time taken to transform the pixels data into an image. */
+    private final long renderingTime;
+
+    /** The total time taken to render the plane. */
+    private final long totalTime;
+
+    /** The number of bytes of pixels data retrieved. */
+    private final long bytesRead;
+
+    /** The number of pixels processed, counted once per wavelength. */
+    private final long pixelsProcessed;
+
+    /** The number of rendering tasks run. */
+    private final int taskCount;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param pixelsId The id of the pixels set.
+     * @param slice The type of plane rendered.
+     * @param z The selected <i>Z</i>-section.
+     * @param t The selected timepoint.
+     * @param model The value of the rendering model.
+     * @param mallocTime The time taken to allocate the rendering buffers.
+     * @param ioTimes The I/O time per wavelength, <code>-1</code> if the
+     *                data of the wavelength was not retrieved.
+     *                The array is not copied.
+     * @param quantizationTime The time spent quantizing the pixels data.
+     * @param compositingTime The time spent mapping the quantized values
+     *                        onto the color space.
+     * @param renderingTime The time taken to transform the pixels data into
+     *                      an image.
+     * @param totalTime The total time taken to render the plane.
+     * @param bytesRead The number of bytes of pixels data retrieved.
+     * @param pixelsProcessed The number of pixels processed.
+     * @param taskCount The number of rendering tasks run.
+     */
+    RenderingMetrics(Long pixelsId, int slice, int z, int t, String model,
+            long mallocTime, long[] ioTimes, long quantizationTime,
+            long compositingTime, long renderingTime, long totalTime,
+            long bytesRead, long pixelsProcessed, int taskCount)
+    {
+        this.pixelsId = pixelsId;
+        this.slice = slice;
+        this.z = z;
+        this.t = t;
+        this.model = model;
+        this.mallocTime = mallocTime;
+        this.ioTimes = ioTimes;
+        this.quantizationTime = quantizationTime;
+        this.compositingTime = compositingTime;
+        this.renderingTime = renderingTime;
+        this.totalTime = totalTime;
+        this.bytesRead = bytesRead;
+        this.pixelsProcessed = pixelsProcessed;
+        this.taskCount = taskCount;
+    }
+
+    /**
+     * Returns the id of the pixels set.
+     *
+     * @return See above.
+     */
+    public Long getPixelsId() { return pixelsId; }
+
+    /**
+     * Returns the type of plane rendered, one of the constants defined by
+     * {@link omeis.providers.re.data.PlaneDef}.
+     *
+     * @return See above.
+     */
+    public int getSlice() { return slice; }
+
+    /**
+     * Returns the selected <i>Z</i>-section.
+     *
+     * @return See above.
+     */
+    public int getZ() { return z; }
+
+    /**
+     * Returns the selected timepoint.
+     *
+     * @return See above.
+     */
+    public int getT() { return t; }
+
+    /**
+     * Returns the value of the rendering model.
+     *
+     * @return See above.
+     */
+    public String getModel() { return model; }
+
+    /**
+     * Returns the time taken to allocate the rendering buffers.
+     *
+     * @return See above.
+     */
+    public long getMallocTime() { return mallocTime; }
+
+    /**
+     * Returns the number of wavelengths of the pixels set.
+     *
+     * @return See above.
+     */
+    public int getChannelCount() { return ioTimes.length; }
+
+    /**
+     * Returns the time taken to retrieve the data of the specified
+     * wavelength or <code>-1</code> if the data was not retrieved.
+     *
+     * @param c The wavelength (channel) index.
+     * @return See above.
+     */
+    public long getIoTime(int c)
+    {
+        if (c < 0 || c >= ioTimes.length) {
+            return -1;
+        }
+        return ioTimes[c];
+    }
+
+    /**
+     * Returns the time taken to retrieve the data of all the wavelengths.
+     *
+     * @return See above.
+     */
+    public long getIoTime()
+    {
+        long total = 0;
+        for (long v : ioTimes) {
+            if (v > 0) {
+                total += v;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the time spent quantizing the pixels data, summed over the
+     * rendering tasks.
+     *
+     * @return See above.
+     */
+    public long getQuantizationTime() { return quantizationTime; }
+
+    /**
+     * Returns the time spent mapping the quantized values onto the color
+     * space, summed over the rendering tasks.
+     *
+     * @return See above.
+     */
+    public long getCompositingTime() { return compositingTime; }
+
+    /**
+     * Returns the time taken to transform the pixels data into an image.
+     *
+     * @return See above.
+     */
+    public long getRenderingTime() { return renderingTime; }
+
+    /**
+     * Returns the total time taken to render the plane.
+     *
+     * @return See above.
+     */
+    public long getTotalTime() { return totalTime; }
+
+    /**
+     * Returns the number of bytes of pixels data retrieved.
+     *
+     * @return See above.
+     */
+    public long getBytesRead() { return bytesRead; }
+
+    /**
+     * Returns the number of pixels processed, counted once per wavelength.
+     *
+     * @return See above.
+     */
+    public long getPixelsProcessed() { return pixelsProcessed; }
+
+    /**
+     * Returns the number of rendering tasks run.
+     *
+     * @return See above.
+     */
+    public int getTaskCount() { return taskCount; }
+
+    /**
+     * Overridden to return the values in a readable format.
+     *
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "RenderingMetrics[pixels=" + pixelsId + " slice=" + slice
+                + " z=" + z + " t=" + t + " model=" + model
+                + " malloc=" + mallocTime + " io=" + getIoTime()
+                + " quantization=" + quantizationTime
+                + " compositing=" + compositingTime
+                + " rendering=" + renderingTime + " total=" + totalTime
+                + " bytes=" + bytesRead + " pixels=" + pixelsProcessed
+                + " tasks=" + taskCount + "]";
+    }
+}
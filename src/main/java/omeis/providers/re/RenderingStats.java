@@ -4,9 +4,11 @@
  */
 package omeis.providers.re;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
+import ome.util.PixelData;
+import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.data.PlaneDef;
 
 /**
@@ -16,6 +18,13 @@ import omeis.providers.re.data.PlaneDef;
  * <code>RenderingStats</code> object is created that can then be accessed by
  * the current {@link RenderingStrategy} to notify start/end times of memory
  * allocation, IO, and rendering time.
+ * <p>
+ * All times are measured in nanoseconds with {@link System#nanoTime()}.
+ * The rendering tasks report the time spent quantizing and compositing as
+ * well as the number of pixels they processed, possibly from several
+ * threads at once. Once the rendering process has finished, the collected
+ * values can be retrieved as an immutable {@link RenderingMetrics} object.
+ * </p>
  * 
  * @author Jean-Marie Burel &nbsp;&nbsp;&nbsp;&nbsp; <a
  *         href="mailto:j.burel@dundee.ac.uk">j.burel@dundee.ac.uk</a>
@@ -28,6 +37,9 @@ import omeis.providers.re.data.PlaneDef;
  */
 public class RenderingStats
 {
+    /** The number of nanoseconds in a millisecond. */
+    private static final long NANOS_PER_MILLI = 1000000L;
+
     /** The object whose <code>render</code> method is being timed. */
     private Renderer context;
 
@@ -38,11 +50,30 @@ public class RenderingStats
     private long mallocTime;
 
     /**
-     * The time that it took to retrieve the pixels data. This is a map that
-     * contains an I/O measurement for each wavelength that is being rendered.
-     * (The key is the wavelength index.)
+     * The time that it took to retrieve the pixels data, indexed by
+     * wavelength. The time is accumulated when the data of a wavelength is
+     * retrieved in several parts e.g. band by band. While a part is being
+     * retrieved, the start time is subtracted from the element.
      */
-    private Map<Integer, Long> ioTime;
+    private long[] ioTime;
+
+    /** Whether or not the data of a wavelength has been retrieved. */
+    private boolean[] ioChannels;
+
+    /** The number of bytes of pixels data retrieved. */
+    private final LongAdder bytesRead = new LongAdder();
+
+    /** The time spent by the rendering tasks quantizing the pixels data. */
+    private final LongAdder quantizationTime = new LongAdder();
+
+    /** The time spent by the rendering tasks compositing the image. */
+    private final LongAdder compositingTime = new LongAdder();
+
+    /** The number of pixels processed, counted once per wavelength. */
+    private final LongAdder pixelsProcessed = new LongAdder();
+
+    /** The number of rendering tasks run. */
+    private final LongAdder taskCount = new LongAdder();
 
     /** The time that it took to transform the pixels data into an image. */
     private long renderingTime;
@@ -50,26 +81,52 @@ public class RenderingStats
     /** The total time a call to the <code>render</code> method takes. */
     private long totalTime;
 
+    /**
+     * Converts the specified number of nanoseconds into milliseconds.
+     *
+     * @param nanos The value to convert.
+     * @return See above.
+     */
+    private static double toMillis(long nanos)
+    {
+        return (double) nanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Makes sure that the I/O arrays can hold the specified wavelength.
+     *
+     * @param c The wavelength (channel) index.
+     */
+    private void ensureChannel(int c)
+    {
+        if (c >= ioTime.length) {
+            ioTime = Arrays.copyOf(ioTime, c + 1);
+            ioChannels = Arrays.copyOf(ioChannels, c + 1);
+        }
+    }
+
     /**
      * Helper method to build a string containing the I/O stats.
      * 
      * @return See above.
      */
     private String getIoTimeString() {
-        StringBuffer buf = new StringBuffer();
+        StringBuilder buf = new StringBuilder();
         long total = 0;
-        Long t;
-        for (Integer key : ioTime.keySet())
+        for (int c = 0; c < ioTime.length; c++)
         {
-            t = ioTime.get(key);
-            total += t;
+            if (!ioChannels[c]) {
+                continue;
+            }
+            total += ioTime[c];
             buf.append("c=");
-            buf.append(key);
+            buf.append(c);
             buf.append(";");
-            buf.append(t);
+            buf.append(String.format("%.3f", toMillis(ioTime[c])));
             buf.append(" ");
         }
-        return total + " -> " + buf.toString();
+        return String.format("%.3f", toMillis(total)) + " -> "
+                + buf.toString();
     }
 
     /**
@@ -89,8 +146,11 @@ public class RenderingStats
     public RenderingStats(Renderer context, PlaneDef plane) {
         this.context = context;
         this.plane = plane;
-        ioTime = new HashMap<Integer, Long>();
-        totalTime = System.currentTimeMillis();
+        Integer sizeC = context.getMetadata().getSizeC();
+        int n = sizeC == null ? 0 : sizeC.intValue();
+        ioTime = new long[n];
+        ioChannels = new boolean[n];
+        totalTime = System.nanoTime();
         mallocTime = 0;
     }
 
@@ -101,7 +161,7 @@ public class RenderingStats
      * @see #endMalloc()
      */
     public void startMalloc() {
-        mallocTime -= System.currentTimeMillis();
+        mallocTime -= System.nanoTime();
     }
 
     /**
@@ -111,7 +171,7 @@ public class RenderingStats
      * @see #startMalloc()
      */
     public void endMalloc() {
-        mallocTime += System.currentTimeMillis();
+        mallocTime += System.nanoTime();
     }
 
     // NOTE: The startMalloc/endMalloc can be called multiple times in the
@@ -131,8 +191,10 @@ public class RenderingStats
      *            The wavelength (channel) index.
      * @see #endIO(int)
      */
-    public void startIO(int c) {
-        ioTime.put(new Integer(c), new Long(System.currentTimeMillis()));
+    public synchronized void startIO(int c) {
+        ensureChannel(c);
+        ioChannels[c] = true;
+        ioTime[c] -= System.nanoTime();
     }
 
     /**
@@ -143,10 +205,56 @@ public class RenderingStats
      *            The wavelength (channel) index.
      * @see #startIO(int)
      */
-    public void endIO(int c) {
-        Integer channel = new Integer(c);
-        long start = ((Long) ioTime.get(channel)).longValue();
-        ioTime.put(channel, new Long(System.currentTimeMillis() - start));
+    public synchronized void endIO(int c) {
+        ioTime[c] += System.nanoTime();
+    }
+
+    /**
+     * Notifies the end of pixels data retrieval for the specified wavelength
+     * (channel) and adds the size of the retrieved data to the amount of
+     * pixels data retrieved.
+     *
+     * @param c
+     *            The wavelength (channel) index.
+     * @param plane
+     *            The retrieved plane.
+     * @see #startIO(int)
+     */
+    public void endIO(int c, Plane2D plane) {
+        endIO(c);
+        PixelData data = plane.getData();
+        addBytesRead((long) data.size() * data.bytesPerPixel());
+    }
+
+    /**
+     * Adds the specified number of bytes to the amount of pixels data
+     * retrieved.
+     *
+     * @param bytes The number of bytes retrieved.
+     */
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Notifies the completion of a rendering task. This method may be
+     * invoked concurrently by several tasks.
+     *
+     * @param pixels
+     *            The number of pixels processed by the task, counted once per
+     *            wavelength.
+     * @param quantization
+     *            The time, in nanoseconds, the task spent quantizing the
+     *            pixels data.
+     * @param compositing
+     *            The time, in nanoseconds, the task spent mapping the
+     *            quantized values onto the color space.
+     */
+    public void addTask(long pixels, long quantization, long compositing) {
+        pixelsProcessed.add(pixels);
+        quantizationTime.add(quantization);
+        compositingTime.add(compositing);
+        taskCount.increment();
     }
 
     /**
@@ -155,7 +263,7 @@ public class RenderingStats
      * @see #endRendering()
      */
     public void startRendering() {
-        renderingTime = System.currentTimeMillis();
+        renderingTime = System.nanoTime();
     }
 
     /**
@@ -164,7 +272,7 @@ public class RenderingStats
      * @see #startRendering()
      */
     public void endRendering() {
-        renderingTime = System.currentTimeMillis() - renderingTime;
+        renderingTime = System.nanoTime() - renderingTime;
     }
 
     /**
@@ -174,7 +282,32 @@ public class RenderingStats
      * be invoked to retrieve the stats report.
      */
     public void stop() {
-        totalTime = System.currentTimeMillis() - totalTime;
+        totalTime = System.nanoTime() - totalTime;
+    }
+
+    /**
+     * Returns the values collected during the rendering process. This
+     * method only provides meaningful values if it is called <i>after</i>
+     * the {@link #stop() stop} method.
+     *
+     * @return See above.
+     */
+    public synchronized RenderingMetrics getMetrics()
+    {
+        long[] io = new long[ioTime.length];
+        for (int c = 0; c < io.length; c++) {
+            io[c] = ioChannels[c] ? ioTime[c] : -1;
+        }
+        String model = null;
+        if (context.getRenderingDef().getModel() != null) {
+            model = context.getRenderingDef().getModel().getValue();
+        }
+        return new RenderingMetrics(context.getMetadata().getId(),
+                plane.getSlice(), plane.getZ(), plane.getT(), model,
+                mallocTime, io, quantizationTime.sum(),
+                compositingTime.sum(), renderingTime, totalTime,
+                bytesRead.sum(), pixelsProcessed.sum(),
+                taskCount.intValue());
     }
 
     /**
@@ -187,8 +320,14 @@ public class RenderingStats
      * 
      * @return A log message embedding the stats report.
      */
-    public String getStats()
+    public synchronized String getStats()
     {
+        int channels = 0;
+        for (boolean loaded : ioChannels) {
+            if (loaded) {
+                channels++;
+            }
+        }
 	String a = "--------------- RENDERING STATS ---------------\n";
     	a += String.format(
     			"CONTEXT ---- OMEIS Pixels ID: %d Plane: %s Type: %s " +
@@ -198,16 +337,24 @@ public class RenderingStats
     				plane,
     				context.getPlaneDimsAsString(plane),
     				context.getPixelsType(),
-    				ioTime.keySet().size(),
+    				channels,
     				context.getImageSize(plane),
     				context.getRenderingDef().getModel().getValue());
     	a += String.format(
-    			"TIMES (ms) ---- Memory Allocation: %d I/O: %s " +
-    			"Rendering: %d Total: %d\n",
-    				mallocTime,
+    			"TIMES (ms) ---- Memory Allocation: %.3f I/O: %s " +
+    			"Quantization: %.3f Compositing: %.3f " +
+    			"Rendering: %.3f Total: %.3f\n",
+    				toMillis(mallocTime),
     				getIoTimeString(),
-    				renderingTime,
-    				totalTime);
+    				toMillis(quantizationTime.sum()),
+    				toMillis(compositingTime.sum()),
+    				toMillis(renderingTime),
+    				toMillis(totalTime));
+    	a += String.format(
+    			"COUNTS ---- Bytes Read: %d Pixels: %d Tasks: %d\n",
+    				bytesRead.sum(),
+    				pixelsProcessed.sum(),
+    				taskCount.sum());
     	a += "-----------------------------------------------";
     	return a;
     }
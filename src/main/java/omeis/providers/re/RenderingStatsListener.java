@@ -0,0 +1,28 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+/**
+ * Receives the metrics collected each time a {@link Renderer} renders a
+ * plane e.g. to publish them to a metrics registry or as flight recorder
+ * events. Listeners are registered with
+ * {@link Renderer#addStatsListener(RenderingStatsListener)}.
+ * <p>
+ * Listeners are notified in the rendering thread so they should return
+ * quickly. An exception thrown by a listener is logged and does not affect
+ * the rendering.
+ * </p>
+ *
+ * @since 5.5
+ */
+public interface RenderingStatsListener {
+
+    /**
+     * Invoked when a plane has been rendered.
+     *
+     * @param metrics The values collected while rendering the plane.
+     */
+    void onRendered(RenderingMetrics metrics);
+}
@@ -8,14 +8,20 @@
 package omeis.providers.re;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.enums.RenderingModel;
 
+import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.PlaneFactory;
+import omeis.providers.re.data.PlaneProjector;
+import omeis.providers.re.data.ProjectionDef;
 import omeis.providers.re.data.RegionDef;
 import omeis.providers.re.quantum.QuantizationException;
 
@@ -74,9 +80,10 @@ abstract class RenderingStrategy {
      * Checks if the passed region is valid.
      * 
      * @param region The region to handle.
+     * @param slice The type of plane the region is in.
      * @param pixels The pixels set.
      */
-    private void isRegionValid(RegionDef region, Pixels pixels)
+    private void isRegionValid(RegionDef region, int slice, Pixels pixels)
     {
     	if (region == null) return;
     	int x = region.getX();
@@ -95,13 +102,18 @@ abstract class RenderingStrategy {
     	if (h <= 0)
    	 		throw new RuntimeException("Invalid Region, the height must be " +
    	 				"positive:"+h);
-    	//for now only check of XY plane
-    	int sizeX = pixels.getSizeX().intValue();
-    	int sizeY = pixels.getSizeY().intValue();
-    	if (x+w > sizeX) //reset the width.
-    		region.setWidth(sizeX-x); 
-    	if (y+h > sizeY) //reset the height.
-    		region.setHeight(sizeY-y); 
+    	// The region is expressed in the X1 and X2 axes of the plane.
+    	int sizeX1 = pixels.getSizeX().intValue();
+    	int sizeX2 = pixels.getSizeY().intValue();
+    	if (slice == PlaneDef.XZ) {
+    		sizeX2 = pixels.getSizeZ().intValue();
+    	} else if (slice == PlaneDef.ZY) {
+    		sizeX1 = pixels.getSizeZ().intValue();
+    	}
+    	if (x+w > sizeX1) //reset the width.
+    		region.setWidth(sizeX1-x);
+    	if (y+h > sizeX2) //reset the height.
+    		region.setHeight(sizeX2-y);
     }
 
     /**
@@ -115,7 +127,7 @@ abstract class RenderingStrategy {
      */
     protected void initAxesSize(PlaneDef pd, Pixels pixels) {
     	RegionDef region = pd.getRegion();
-    	isRegionValid(region, pixels);
+    	isRegionValid(region, pd.getSlice(), pixels);
     	int stride = pd.getStride();
     	if (stride < 0) stride = 0;
     	stride++;
@@ -133,12 +145,22 @@ abstract class RenderingStrategy {
                 	sizeX2 = sizeX2/stride;
                     break;
                 case PlaneDef.XZ:
-                    sizeX1 = pixels.getSizeX().intValue();
-                    sizeX2 = pixels.getSizeZ().intValue();
+                    if (region != null) {
+                        sizeX1 = region.getWidth();
+                        sizeX2 = region.getHeight();
+                    } else {
+                        sizeX1 = pixels.getSizeX().intValue();
+                        sizeX2 = pixels.getSizeZ().intValue();
+                    }
                     break;
                 case PlaneDef.ZY:
-                    sizeX1 = pixels.getSizeZ().intValue();
-                    sizeX2 = pixels.getSizeY().intValue();
+                    if (region != null) {
+                        sizeX1 = region.getWidth();
+                        sizeX2 = region.getHeight();
+                    } else {
+                        sizeX1 = pixels.getSizeZ().intValue();
+                        sizeX2 = pixels.getSizeY().intValue();
+                    }
             }
         } catch (NumberFormatException nfe) {
             throw new RuntimeException("Invalid slice ID: " + pd.getSlice()
@@ -154,10 +176,38 @@ abstract class RenderingStrategy {
     	maxTasks = Runtime.getRuntime().availableProcessors();
     }
 
+    /**
+     * Retrieves the plane to render for the specified channel. If the
+     * renderer is rendering a projection, the <i>Z</i>-sections of the
+     * channel are projected onto the plane. If the plane has been loaded
+     * ahead of the rendering, it is returned as is.
+     *
+     * @param pd The plane to retrieve.
+     * @param w The channel index.
+     * @param metadata The pixels set.
+     * @param pixels The pixels buffer from which the data is to be fetched.
+     * @return See above.
+     */
+    protected Plane2D createPlane(PlaneDef pd, int w, Pixels metadata,
+            PixelBuffer pixels)
+    {
+        Plane2D plane = renderer.getPreloadedPlane(w);
+        if (plane != null) {
+            return plane;
+        }
+        ProjectionDef projection = renderer.getProjection();
+        if (projection != null) {
+            return PlaneProjector.project(projection, pd, w, metadata,
+                    pixels, renderer.getExecutor());
+        }
+        return PlaneFactory.createPlane(pd, w, metadata, pixels);
+    }
+
     /**
      * Returns an RGB buffer for usage. Note that the buffer is reallocated
-     * upon each call. Should only be called within the context of a
-     * "render" operation as it requires a {@link renderer}.
+     * upon each call unless the renderer has a buffer pool. Should only be
+     * called within the context of a "render" operation as it requires a
+     * {@link renderer}.
      * 
      * @param x1 The size to allocate along the X1-axis.
      * @param x2 The size to allocate along the X2-axis.
@@ -167,15 +217,26 @@ abstract class RenderingStrategy {
     {
     	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
-    	RGBBuffer buf = new RGBBuffer(sizeX1, sizeX2);
+    	RGBBuffer buf;
+    	RenderingBufferPool pool = renderer.getBufferPool();
+    	if (pool != null) {
+    		int n = sizeX1 * sizeX2;
+    		buf = new RGBArrayBuffer(pool.acquireBytes(n),
+    				pool.acquireBytes(n), pool.acquireBytes(n),
+    				sizeX1, sizeX2);
+    	} else {
+    		buf = new RGBBuffer(sizeX1, sizeX2);
+    	}
 		stats.endMalloc();
 		return buf;
     }
 
 	/**
-     * Returns an RGB integer buffer for usage. Note that the buffer is
-     * reallocated upon each call. Should only be called within the context of
-     * a "render" operation as it requires a {@link renderer}.
+     * Returns an RGB integer buffer for usage. The buffer wraps the target
+     * of the renderer if one is set, otherwise it is taken from the buffer
+     * pool of the renderer or reallocated upon each call. Should only be
+     * called within the context of a "render" operation as it requires a
+     * {@link renderer}.
      * 
      * @return See above.
      */
@@ -183,15 +244,32 @@ abstract class RenderingStrategy {
     {
     	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
-    	RGBIntBuffer buf =  new RGBIntBuffer(sizeX1, sizeX2);
+    	RGBIntBuffer buf;
+    	int[] target = renderer.getTarget();
+    	RenderingBufferPool pool = renderer.getBufferPool();
+    	if (target != null) {
+    		int n = sizeX1 * sizeX2;
+    		if (target.length < n) {
+    			throw new IllegalArgumentException("The target holds "
+    					+ target.length + " pixels, expecting " + n + ".");
+    		}
+    		Arrays.fill(target, 0, n, 0);
+    		buf = new RGBIntArrayBuffer(target, sizeX1, sizeX2);
+    	} else if (pool != null) {
+    		buf = new RGBIntArrayBuffer(pool.acquireInts(sizeX1 * sizeX2),
+    				sizeX1, sizeX2);
+    	} else {
+    		buf = new RGBIntBuffer(sizeX1, sizeX2);
+    	}
     	stats.endMalloc();
     	return buf;
     }
 	
     /**
      * Returns an RGBA integer buffer for usage. Note that the buffer is
-     * reallocated upon each call. Should only be called within the context of
-     * a "render" operation as it requires a {@link renderer}.
+     * reallocated upon each call unless the renderer has a buffer pool.
+     * Should only be called within the context of a "render" operation as
+     * it requires a {@link renderer}.
      * 
      * @return See above.
      */
@@ -199,7 +277,14 @@ abstract class RenderingStrategy {
     {
     	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
-    	RGBAIntBuffer buf =  new RGBAIntBuffer(sizeX1, sizeX2);
+    	RGBAIntBuffer buf;
+    	RenderingBufferPool pool = renderer.getBufferPool();
+    	if (pool != null) {
+    		buf = new RGBAIntArrayBuffer(pool.acquireInts(sizeX1 * sizeX2),
+    				sizeX1, sizeX2);
+    	} else {
+    		buf = new RGBAIntBuffer(sizeX1, sizeX2);
+    	}
     	stats.endMalloc();
     	return buf;
     }
@@ -355,4 +440,272 @@ abstract class RenderingStrategy {
      */
     abstract String getPlaneDimsAsString(PlaneDef pd, Pixels pixels);
 
+    /**
+     * Returns the exception thrown when the bands of a buffer holding packed
+     * pixels are requested.
+     *
+     * @return See above.
+     */
+    private static UnsupportedOperationException packed()
+    {
+        return new UnsupportedOperationException(
+                "The pixels are packed, use getDataBuffer().");
+    }
+
+    /**
+     * An {@link RGBIntBuffer} backed by an existing array. The empty array
+     * allocated by the superclass is not used, so every accessor is
+     * overridden. The pixels are packed as <code>0xAARRGGBB</code>.
+     */
+    static class RGBIntArrayBuffer extends RGBIntBuffer {
+
+        private static final long serialVersionUID = 6170473612853912541L;
+
+        /** The packed pixels. */
+        private final int[] data;
+
+        /** The number of pixels along the <i>X1</i> and <i>X2</i> axes. */
+        private final int sizeX1, sizeX2;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param data The packed pixels.
+         * @param sizeX1 The number of pixels along the <i>X1</i>-axis.
+         * @param sizeX2 The number of pixels along the <i>X2</i>-axis.
+         */
+        RGBIntArrayBuffer(int[] data, int sizeX1, int sizeX2)
+        {
+            super(0, 0);
+            this.data = data;
+            this.sizeX1 = sizeX1;
+            this.sizeX2 = sizeX2;
+        }
+
+        @Override
+        public int[] getDataBuffer() { return data; }
+
+        @Override
+        public int getSizeX1() { return sizeX1; }
+
+        @Override
+        public int getSizeX2() { return sizeX2; }
+
+        @Override
+        public void setRedValue(int index, int value)
+        {
+            data[index] = data[index] & ~0x00FF0000 | (value & 0xFF) << 16;
+        }
+
+        @Override
+        public byte getRedValue(int index)
+        {
+            return (byte) (data[index] >>> 16);
+        }
+
+        @Override
+        public void setGreenValue(int index, int value)
+        {
+            data[index] = data[index] & ~0x0000FF00 | (value & 0xFF) << 8;
+        }
+
+        @Override
+        public byte getGreenValue(int index)
+        {
+            return (byte) (data[index] >>> 8);
+        }
+
+        @Override
+        public void setBlueValue(int index, int value)
+        {
+            data[index] = data[index] & ~0x000000FF | (value & 0xFF);
+        }
+
+        @Override
+        public byte getBlueValue(int index)
+        {
+            return (byte) data[index];
+        }
+
+        @Override
+        public byte[] getRedBand() { throw packed(); }
+
+        @Override
+        public byte[] getGreenBand() { throw packed(); }
+
+        @Override
+        public byte[] getBlueBand() { throw packed(); }
+    }
+
+    /**
+     * An {@link RGBAIntBuffer} backed by an existing array. The empty array
+     * allocated by the superclass is not used, so every accessor is
+     * overridden. The pixels are packed as <code>0xRRGGBBAA</code>.
+     */
+    static class RGBAIntArrayBuffer extends RGBAIntBuffer {
+
+        private static final long serialVersionUID = -2964331457095137283L;
+
+        /** The packed pixels. */
+        private final int[] data;
+
+        /** The number of pixels along the <i>X1</i> and <i>X2</i> axes. */
+        private final int sizeX1, sizeX2;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param data The packed pixels.
+         * @param sizeX1 The number of pixels along the <i>X1</i>-axis.
+         * @param sizeX2 The number of pixels along the <i>X2</i>-axis.
+         */
+        RGBAIntArrayBuffer(int[] data, int sizeX1, int sizeX2)
+        {
+            super(0, 0);
+            this.data = data;
+            this.sizeX1 = sizeX1;
+            this.sizeX2 = sizeX2;
+        }
+
+        @Override
+        public int[] getDataBuffer() { return data; }
+
+        @Override
+        public int getSizeX1() { return sizeX1; }
+
+        @Override
+        public int getSizeX2() { return sizeX2; }
+
+        @Override
+        public void setRedValue(int index, int value)
+        {
+            data[index] = data[index] & ~0xFF000000 | (value & 0xFF) << 24;
+        }
+
+        @Override
+        public byte getRedValue(int index)
+        {
+            return (byte) (data[index] >>> 24);
+        }
+
+        @Override
+        public void setGreenValue(int index, int value)
+        {
+            data[index] = data[index] & ~0x00FF0000 | (value & 0xFF) << 16;
+        }
+
+        @Override
+        public byte getGreenValue(int index)
+        {
+            return (byte) (data[index] >>> 16);
+        }
+
+        @Override
+        public void setBlueValue(int index, int value)
+        {
+            data[index] = data[index] & ~0x0000FF00 | (value & 0xFF) << 8;
+        }
+
+        @Override
+        public byte getBlueValue(int index)
+        {
+            return (byte) (data[index] >>> 8);
+        }
+
+        @Override
+        public byte[] getRedBand() { throw packed(); }
+
+        @Override
+        public byte[] getGreenBand() { throw packed(); }
+
+        @Override
+        public byte[] getBlueBand() { throw packed(); }
+    }
+
+    /**
+     * An {@link RGBBuffer} backed by existing bands. The empty bands
+     * allocated by the superclass are not used, so every accessor is
+     * overridden.
+     */
+    static class RGBArrayBuffer extends RGBBuffer {
+
+        private static final long serialVersionUID = 3358246702377018224L;
+
+        /** The red, green and blue bands. */
+        private final byte[] red, green, blue;
+
+        /** The number of pixels along the <i>X1</i> and <i>X2</i> axes. */
+        private final int sizeX1, sizeX2;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param red The red band.
+         * @param green The green band.
+         * @param blue The blue band.
+         * @param sizeX1 The number of pixels along the <i>X1</i>-axis.
+         * @param sizeX2 The number of pixels along the <i>X2</i>-axis.
+         */
+        RGBArrayBuffer(byte[] red, byte[] green, byte[] blue, int sizeX1,
+                int sizeX2)
+        {
+            super(0, 0);
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+            this.sizeX1 = sizeX1;
+            this.sizeX2 = sizeX2;
+        }
+
+        @Override
+        public byte[] getRedBand() { return red; }
+
+        @Override
+        public byte[] getGreenBand() { return green; }
+
+        @Override
+        public byte[] getBlueBand() { return blue; }
+
+        @Override
+        public int getSizeX1() { return sizeX1; }
+
+        @Override
+        public int getSizeX2() { return sizeX2; }
+
+        @Override
+        public void setRedValue(int index, int value)
+        {
+            red[index] = (byte) value;
+        }
+
+        @Override
+        public byte getRedValue(int index)
+        {
+            return red[index];
+        }
+
+        @Override
+        public void setGreenValue(int index, int value)
+        {
+            green[index] = (byte) value;
+        }
+
+        @Override
+        public byte getGreenValue(int index)
+        {
+            return green[index];
+        }
+
+        @Override
+        public void setBlueValue(int index, int value)
+        {
+            blue[index] = (byte) value;
+        }
+
+        @Override
+        public byte getBlueValue(int index)
+        {
+            return blue[index];
+        }
+    }
 }
@@ -20,7 +20,17 @@ import omeis.providers.re.quantum.QuantumStrategy;
  * <code>[intervalStart, intervalEnd]</code> &#151; note that, in order to
  * compose the maps, this interval has to be both the domain and codomain of
  * each transformation. The LUT is re-built every time the definition of the
- * codomain interval or the state of the queue changes.
+ * codomain interval or the state of the queue changes, except when a context
+ * is added: its map is then applied to the current table.
+ * </p>
+ * <p>
+ * The table covers the whole
+ * <code>[{@link QuantumStrategy#MIN}, {@link QuantumStrategy#MAX}]</code>
+ * interval and the values outside of the codomain interval are mapped as its
+ * bounds, so the clamping of the input values is part of the table. The table
+ * can be {@link #compose(int[]) composed} with the table of a quantum
+ * strategy and chains which don't alter the values can be
+ * {@link #isIdentity() skipped} at render time.
  * </p>
  * <p>
  * Contexts are privately owned ({@link #add(CodomainMapContext) add} and
@@ -40,8 +50,13 @@ import omeis.providers.re.quantum.QuantumStrategy;
  */
 public class CodomainChain {
 
-    /** Codomain lookup table. */
-    private int[] LUT;
+    /**
+     * Codomain lookup table, one entry per value of the
+     * <code>[{@link QuantumStrategy#MIN}, {@link QuantumStrategy#MAX}]</code>
+     * interval.
+     */
+    private final int[] LUT = new int[QuantumStrategy.MAX - QuantumStrategy.MIN
+            + 1];
 
     /**
      * A queue to sequence the context of each codomain transformation that has
@@ -55,24 +70,62 @@ public class CodomainChain {
     /** The upper bound of the codomain interval. */
     private int intervalEnd;
 
-    /** Builds the lookup table. */
+    /** Whether or not the chain leaves the values unchanged. */
+    private boolean identity;
+
+    /** Incremented every time the chain or the interval is modified. */
+    private int version;
+
+    /**
+     * Builds the lookup table. The values are first clamped to the codomain
+     * interval then each map is applied to the whole table in turn.
+     */
     private void buildLUT() {
-        LUT = new int[intervalEnd - intervalStart + 1];
-        CodomainMap map;
-        CodomainMapContext ctx;
-        int v;
-        Iterator<CodomainMapContext> i;
-        for (int x = intervalStart; x <= intervalEnd; ++x) {
-            v = x;
-            i = chain.iterator();
-            while (i.hasNext()) {
-                ctx = (CodomainMapContext) i.next();
-                map = ctx.getCodomainMap();
-                map.setContext(ctx);
-                v = map.transform(v);
+        for (int x = QuantumStrategy.MIN; x <= QuantumStrategy.MAX; ++x) {
+            int v = x;
+            if (v < intervalStart) {
+                v = intervalStart;
+            } else if (v > intervalEnd) {
+                v = intervalEnd;
+            }
+            LUT[x - QuantumStrategy.MIN] = v;
+        }
+        for (int i = 0; i < chain.size(); i++) {
+            applyMap(chain.get(i));
+        }
+        identity = checkIdentity();
+    }
+
+    /**
+     * Applies the map of the specified context to the lookup table.
+     *
+     * @param ctx
+     *            The context of the map.
+     */
+    private void applyMap(CodomainMapContext ctx) {
+        CodomainMap map = ctx.getCodomainMap();
+        map.setContext(ctx);
+        for (int i = 0; i < LUT.length; i++) {
+            LUT[i] = map.transform(LUT[i]);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if no transformations are queued or if the
+     * lookup table maps each value onto itself, <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    private boolean checkIdentity() {
+        if (chain.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < LUT.length; i++) {
+            if (LUT[i] != i + QuantumStrategy.MIN) {
+                return false;
             }
-            LUT[x - intervalStart] = v;
         }
+        return true;
     }
 
     /**
@@ -100,25 +153,6 @@ public class CodomainChain {
         }
     }
 
-    /**
-     * Verifies that the specifed input value is in the codomain interval. If
-     * the value is less (resp. greater) than the {@link #intervalStart} (resp.
-     * {@link #intervalEnd}), the input value is set to {@link #intervalStart}
-     * (resp. {@link #intervalEnd})
-     * 
-     * @param x
-     *            The Input value.
-     * @return See above.
-     */
-    private int verifyInput(int x) {
-        if (x < intervalStart) {
-            x = intervalStart;
-        } else if (x > intervalEnd) {
-            x = intervalEnd;
-        }
-        return x;
-    }
-
     /**
      * Creates a new chain. The chain will contain the identity context. So if
      * no transformation is added, the {@link #transform(int) transform} method
@@ -198,6 +232,7 @@ public class CodomainChain {
             ctx.buildContext();
         }
         buildLUT();
+        version++;
     }
 
     /**
@@ -227,6 +262,7 @@ public class CodomainChain {
         intervalEnd = QuantumStrategy.MAX;
         chain.removeAll(chain);
         buildLUT();
+        version++;
     }
 
     /**
@@ -237,8 +273,8 @@ public class CodomainChain {
      * because we don't want to compose the same transformation twice. This
      * method adds a copy of <code>mapCtx</code> to the chain. This is because
      * we want to exclude the possibility that the context's state can be
-     * modified after the lookup table is built. This method triggers a re-build
-     * of the lookup table.
+     * modified after the lookup table is built. The map of the context is
+     * applied to the current lookup table.
      * 
      * @param mapCtx
      *            The context to add. Mustn't be <code>null</code>.
@@ -257,7 +293,10 @@ public class CodomainChain {
         mapCtx.setCodomain(intervalStart, intervalEnd);
         mapCtx.buildContext();
         chain.add(mapCtx);
-        buildLUT();
+        // The map is applied after the queued ones: no need to re-build.
+        applyMap(mapCtx);
+        identity = checkIdentity();
+        version++;
         return true;
     }
 
@@ -288,6 +327,7 @@ public class CodomainChain {
         mapCtx.buildContext();
         chain.set(i, mapCtx);
         buildLUT();
+        version++;
     }
 
     /**
@@ -307,6 +347,7 @@ public class CodomainChain {
                                                         // overridden.
             chain.remove(mapCtx);
             buildLUT();
+            version++;
             return true;
         }
         return false;
@@ -315,15 +356,61 @@ public class CodomainChain {
     /**
      * Applies the transformation. This transformation is the result of the
      * composition of all maps defined by the current chain. Composition follows
-     * the chain order.
+     * the chain order. The values outside of the codomain interval are
+     * transformed as its bounds.
      * 
      * @param x
-     *            The input value. Must be in the current codomain interval.
+     *            The input value. Must be in
+     *            <code>[{@link QuantumStrategy#MIN},
+     *            {@link QuantumStrategy#MAX}]</code>.
      * @return The output value, y.
      */
     public int transform(int x) {
-        int y = verifyInput(x);
-        return LUT[y - intervalStart];
+        return LUT[x - QuantumStrategy.MIN];
+    }
+
+    /**
+     * Applies the transformation to each of the specified values, e.g. the
+     * entries of the lookup table of a quantum strategy, so that the
+     * transformation can be merged into that table.
+     * 
+     * @param values
+     *            The values to transform in place. Each value must be in
+     *            <code>[{@link QuantumStrategy#MIN},
+     *            {@link QuantumStrategy#MAX}]</code>.
+     */
+    public void compose(int[] values) {
+        if (identity) {
+            return;
+        }
+        int[] table = LUT;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = table[values[i] - QuantumStrategy.MIN];
+        }
+    }
+
+    /**
+     * Returns a number which changes every time the chain or the codomain
+     * interval is modified, so that the tables built from the chain can be
+     * checked for staleness.
+     * 
+     * @return See above.
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Returns <code>true</code> if the chain leaves the quantized values
+     * unchanged at render time, i.e. if no transformations are queued or if
+     * they compose to the identity, <code>false</code> otherwise.
+     * 
+     * @return See above.
+     */
+    public boolean isIdentity()
+    {
+        return identity;
     }
 
     /**
@@ -0,0 +1,66 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.data;
+
+import ome.model.core.Pixels;
+import ome.util.PixelData;
+
+/**
+ * A {@link Plane2D} backed by a buffer holding only the values of the plane,
+ * stored row by row along the <i>X1</i>-axis. This is used for the
+ * <i>XZ</i> and <i>ZY</i> planes, whose values are read from each
+ * <i>Z</i>-section instead of loading the whole stack.
+ * <p>
+ * Since the values are laid out as in an <i>XY</i> plane,
+ * {@link #isXYPlanar()} returns <code>true</code> so the plane can be read
+ * using the fast paths available for <i>XY</i> planes.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class CompactPlane2D extends Plane2D {
+
+    /**
+     * Creates a new instance.
+     *
+     * @param pDef The type of plane.
+     * @param pixels The pixels set which the plane references.
+     * @param data The values of the plane, row by row.
+     * @param sizeX1 The number of pixels along the <i>X1</i>-axis.
+     * @param sizeX2 The number of pixels along the <i>X2</i>-axis.
+     */
+    public CompactPlane2D(PlaneDef pDef, Pixels pixels, PixelData data,
+            int sizeX1, int sizeX2)
+    {
+        super(pDef, pixels, data);
+        this.sizeX = sizeX1;
+        this.sizeY = sizeX2;
+    }
+
+    /**
+     * Overridden as the values are stored row by row whatever the type of
+     * plane.
+     *
+     * @see Plane2D#getPixelValue(int, int)
+     */
+    @Override
+    public double getPixelValue(int x1, int x2)
+    {
+        return getData().getPixelValueDirect(
+                bytesPerPixel * (sizeX * x2 + x1));
+    }
+
+    /**
+     * Overridden to return <code>true</code> as the values are stored as in
+     * an <i>XY</i> plane.
+     *
+     * @see Plane2D#isXYPlanar()
+     */
+    @Override
+    public boolean isXYPlanar()
+    {
+        return true;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import ome.model.core.Pixels;
+import ome.util.PixelData;
+
+/**
+ * Reduces a plane to an arbitrary size before it is quantized, as an
+ * alternative to the decimation performed by the stride of a
+ * {@link PlaneDef}. The scale factors need not be integers. The following
+ * methods are available:
+ * <ul>
+ * <li>{@link #BOX}: each pixel is the mean of the source pixels whose
+ * indices fall within its footprint.</li>
+ * <li>{@link #AREA_AVERAGE}: each pixel is the mean of the source pixels
+ * it covers, weighted by the covered fraction of each source pixel.</li>
+ * <li>{@link #MAX_POOL}: each pixel is the maximum of the source pixels
+ * whose indices fall within its footprint, which keeps small bright
+ * features visible in thumbnails.</li>
+ * </ul>
+ * The reduction is separable: the weights of each axis are computed once.
+ * The source rows are read with a {@link RowReader} so the loops are
+ * specialized for the pixels type, and blocks of output rows are reduced
+ * concurrently. The values of the reduced plane have the pixels type of the
+ * source plane, integral values being rounded.
+ *
+ * @since 5.5
+ */
+public class Downsampler {
+
+    /** Averages the source pixels within the footprint of each pixel. */
+    public static final int BOX = 0;
+
+    /** Averages the source pixels weighted by their covered area. */
+    public static final int AREA_AVERAGE = 1;
+
+    /** Keeps the maximum of the source pixels within the footprint. */
+    public static final int MAX_POOL = 2;
+
+    /** The minimum number of source pixels reduced by a task. */
+    static final int MIN_BLOCK_SIZE = 64 * 1024;
+
+    /** One of the constants defined by this class. */
+    private final int method;
+
+    /**
+     * The source pixels contributing to each pixel along an axis.
+     */
+    static class Axis {
+
+        /** The first source pixel of each pixel. */
+        final int[] start;
+
+        /** The source pixel after the last one of each pixel. */
+        final int[] end;
+
+        /** The weight of each source pixel of each pixel. */
+        final double[][] weights;
+
+        /**
+         * Creates the contributions of an axis.
+         *
+         * @param method One of the constants defined by the enclosing class.
+         * @param source The number of source pixels.
+         * @param size The number of pixels.
+         */
+        Axis(int method, int source, int size)
+        {
+            start = new int[size];
+            end = new int[size];
+            weights = new double[size][];
+            double scale = (double) source / size;
+            for (int i = 0; i < size; i++) {
+                double a = i * scale;
+                double b = Math.min(source, (i + 1) * scale);
+                int s = Math.min(source - 1, (int) a);
+                int e;
+                if (method == AREA_AVERAGE) {
+                    e = Math.max(s + 1, Math.min(source, (int) Math.ceil(b)));
+                } else {
+                    e = Math.max(s + 1, (int) b);
+                }
+                double[] w = new double[e - s];
+                if (method == AREA_AVERAGE && b > a) {
+                    for (int p = s; p < e; p++) {
+                        w[p - s] = (Math.min(b, p + 1) - Math.max(a, p))
+                                / (b - a);
+                    }
+                } else {
+                    for (int p = s; p < e; p++) {
+                        w[p - s] = 1.0 / (e - s);
+                    }
+                }
+                start[i] = s;
+                end[i] = e;
+                weights[i] = w;
+            }
+        }
+    }
+
+    /**
+     * Reduces a block of rows.
+     */
+    private class ReduceTask implements Callable<Void> {
+
+        /** The plane to read. */
+        private final Plane2D plane;
+
+        /** The contributions along the <i>X1</i>-axis. */
+        private final Axis x1;
+
+        /** The contributions along the <i>X2</i>-axis. */
+        private final Axis x2;
+
+        /** The values of the reduced plane. */
+        private final ByteBuffer target;
+
+        /** The first row of the reduced plane to compute. */
+        private final int rowStart;
+
+        /** The row after the last row of the reduced plane to compute. */
+        private final int rowEnd;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param plane The plane to read.
+         * @param x1 The contributions along the <i>X1</i>-axis.
+         * @param x2 The contributions along the <i>X2</i>-axis.
+         * @param target The values of the reduced plane.
+         * @param rowStart The first row to compute.
+         * @param rowEnd The row after the last row to compute.
+         */
+        ReduceTask(Plane2D plane, Axis x1, Axis x2, ByteBuffer target,
+                int rowStart, int rowEnd)
+        {
+            this.plane = plane;
+            this.x1 = x1;
+            this.x2 = x2;
+            this.target = target;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        /**
+         * Reduces the rows.
+         *
+         * @see Callable#call()
+         */
+        public Void call()
+        {
+            RowReader reader = RowReader.newInstance(plane);
+            int width = plane.getSizeX();
+            int size = x1.start.length;
+            int bytesPerPixel = plane.bytesPerPixel;
+            boolean integral = !plane.getData().isFloat();
+            double[] row = new double[width];
+            double[] values = new double[size];
+            for (int y = rowStart; y < rowEnd; y++) {
+                int s = x2.start[y];
+                double[] wy = x2.weights[y];
+                for (int r = s; r < x2.end[y]; r++) {
+                    reader.read(0, r, row, width);
+                    if (method == MAX_POOL) {
+                        maxRow(row, values, r == s);
+                    } else {
+                        addRow(row, values, wy[r - s], r == s);
+                    }
+                }
+                int offset = y * size;
+                for (int x = 0; x < size; x++) {
+                    double v = integral ? Math.rint(values[x]) : values[x];
+                    write(target, (offset + x) * bytesPerPixel,
+                            bytesPerPixel, integral, v);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Adds the reduced values of a source row, weighted.
+         *
+         * @param row The source row.
+         * @param values The values to add to.
+         * @param weight The weight of the row.
+         * @param first Pass <code>true</code> if this is the first row.
+         */
+        private void addRow(double[] row, double[] values, double weight,
+                boolean first)
+        {
+            for (int x = 0; x < values.length; x++) {
+                int s = x1.start[x];
+                double[] w = x1.weights[x];
+                double sum = 0;
+                for (int k = 0; k < w.length; k++) {
+                    sum += w[k] * row[s + k];
+                }
+                values[x] = first ? weight * sum : values[x] + weight * sum;
+            }
+        }
+
+        /**
+         * Keeps the maximum of the values and of the reduced values of a
+         * source row.
+         *
+         * @param row The source row.
+         * @param values The current maximum values.
+         * @param first Pass <code>true</code> if this is the first row.
+         */
+        private void maxRow(double[] row, double[] values, boolean first)
+        {
+            for (int x = 0; x < values.length; x++) {
+                double max = first ? Double.NEGATIVE_INFINITY : values[x];
+                for (int p = x1.start[x]; p < x1.end[x]; p++) {
+                    if (row[p] > max) {
+                        max = row[p];
+                    }
+                }
+                values[x] = max;
+            }
+        }
+    }
+
+    /**
+     * Writes a value with the specified number of bytes.
+     *
+     * @param buffer The buffer to write into.
+     * @param index The index of the first byte.
+     * @param bytesPerPixel The number of bytes of the value.
+     * @param integral Pass <code>true</code> if the value is an integer.
+     * @param value The value to write.
+     */
+    private static void write(ByteBuffer buffer, int index, int bytesPerPixel,
+            boolean integral, double value)
+    {
+        switch (bytesPerPixel) {
+            case 1:
+                buffer.put(index, (byte) (int) value);
+                break;
+            case 2:
+                buffer.putShort(index, (short) (int) value);
+                break;
+            case 4:
+                if (integral) {
+                    buffer.putInt(index, (int) (long) value);
+                } else {
+                    buffer.putFloat(index, (float) value);
+                }
+                break;
+            default:
+                buffer.putDouble(index, value);
+        }
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param method One of the constants defined by this class.
+     */
+    public Downsampler(int method)
+    {
+        if (method != BOX && method != AREA_AVERAGE && method != MAX_POOL) {
+            throw new IllegalArgumentException("Method not supported: "
+                    + method);
+        }
+        this.method = method;
+    }
+
+    /**
+     * Returns the reduction method.
+     *
+     * @return See above.
+     */
+    public int getMethod()
+    {
+        return method;
+    }
+
+    /**
+     * Reduces the specified plane to the specified size. The reduced plane
+     * is laid out as an <i>XY</i> plane whatever the type of plane.
+     *
+     * @param plane The plane to reduce. Mustn't be <code>null</code>.
+     * @param pixels The pixels set the plane is from.
+     * @param sizeX1 The number of pixels along the <i>X1</i>-axis, at most
+     *               the size of the plane.
+     * @param sizeX2 The number of pixels along the <i>X2</i>-axis, at most
+     *               the size of the plane.
+     * @param executor The executor used to reduce the blocks of rows or
+     *                 <code>null</code> to reduce them in the current thread.
+     * @return See above.
+     */
+    public Plane2D downsample(Plane2D plane, Pixels pixels, int sizeX1,
+            int sizeX2, ExecutorService executor)
+    {
+        if (plane == null) {
+            throw new NullPointerException("No plane.");
+        }
+        if (sizeX1 < 1 || sizeX2 < 1 || sizeX1 > plane.getSizeX()
+                || sizeX2 > plane.getSizeY()) {
+            throw new IllegalArgumentException("Size not valid: " + sizeX1
+                    + "x" + sizeX2 + ".");
+        }
+        Axis x1 = new Axis(method, plane.getSizeX(), sizeX1);
+        Axis x2 = new Axis(method, plane.getSizeY(), sizeX2);
+        ByteBuffer source = plane.getData().getData();
+        ByteBuffer target = ByteBuffer.allocate(
+                sizeX1 * sizeX2 * plane.bytesPerPixel).order(source.order());
+        // The number of source rows read per reduced row.
+        int sourceRows = Math.max(1, plane.getSizeY() / sizeX2);
+        int rows = Math.max(1,
+                MIN_BLOCK_SIZE / Math.max(1, plane.getSizeX() * sourceRows));
+        if (executor == null || rows >= sizeX2) {
+            new ReduceTask(plane, x1, x2, target, 0, sizeX2).call();
+        } else {
+            List<ReduceTask> tasks = new ArrayList<ReduceTask>();
+            for (int y = 0; y < sizeX2; y += rows) {
+                tasks.add(new ReduceTask(plane, x1, x2, target, y,
+                        Math.min(sizeX2, y + rows)));
+            }
+            try {
+                for (Future<Void> f : executor.invokeAll(tasks)) {
+                    f.get();
+                }
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        return new CompactPlane2D(plane.planeDef, pixels,
+                new PixelData(plane.getPixelsType(), target), sizeX1, sizeX2);
+    }
+}
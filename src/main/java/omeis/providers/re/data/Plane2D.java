@@ -74,6 +74,9 @@ public class Plane2D {
     /** The slice we're working with */
     protected int slice;
 
+    /** The value of the pixels type e.g. <i>uint16</i>. */
+    protected String pixelsType;
+
     /**
      * Constructor that sub-classes must call.
      * 
@@ -107,6 +110,7 @@ public class Plane2D {
         this.bytesPerPixel = PlaneFactory.bytesPerPixel(type);
         //this.javaType = PlaneFactory.javaType(type);
         this.signed = PlaneFactory.isTypeSigned(type);
+        this.pixelsType = type.getValue();
         this.slice = pDef.getSlice();
 
         log.debug("Created Plane2D with dimensions " + sizeX + "x" + sizeY + "x"
@@ -171,6 +175,37 @@ public class Plane2D {
     	return (slice == PlaneDef.XY);
     }
 
+    /**
+     * Returns the number of pixels along the <i>X1</i>-axis.
+     *
+     * @return See above.
+     */
+    public int getSizeX()
+    {
+        return sizeX;
+    }
+
+    /**
+     * Returns the number of pixels along the <i>X2</i>-axis.
+     *
+     * @return See above.
+     */
+    public int getSizeY()
+    {
+        return sizeY;
+    }
+
+    /**
+     * Returns the value of the pixels type of the pixels set, e.g.
+     * <i>uint16</i>.
+     *
+     * @return See above.
+     */
+    public String getPixelsType()
+    {
+        return pixelsType;
+    }
+
     /**
      * Returns the pixel data that is used to back this Plane.
      * 
@@ -5,12 +5,15 @@
 package omeis.providers.re.data;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import loci.formats.FormatTools;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.enums.PixelsType;
+import ome.util.PixelData;
 
 /**
  * 
@@ -147,6 +150,32 @@ public class PlaneFactory {
         return FormatTools.getBytesPerPixel(getPixelType(type));
     }
 
+    /**
+     * Returns <code>[min, max]</code> for the specified integer pixels type
+     * or <code>null</code> if the type is a floating point type or is not
+     * supported.
+     *
+     * @param type The value of the pixels type.
+     * @return See above.
+     */
+    public static double[] getRange(String type)
+    {
+        if (PixelsType.VALUE_INT8.equals(type)) {
+            return new double[] { Byte.MIN_VALUE, Byte.MAX_VALUE };
+        } else if (PixelsType.VALUE_UINT8.equals(type)) {
+            return new double[] { 0, 0xFF };
+        } else if (PixelsType.VALUE_INT16.equals(type)) {
+            return new double[] { Short.MIN_VALUE, Short.MAX_VALUE };
+        } else if (PixelsType.VALUE_UINT16.equals(type)) {
+            return new double[] { 0, 0xFFFF };
+        } else if (PixelsType.VALUE_INT32.equals(type)) {
+            return new double[] { Integer.MIN_VALUE, Integer.MAX_VALUE };
+        } else if (PixelsType.VALUE_UINT32.equals(type)) {
+            return new double[] { 0, 0xFFFFFFFFL };
+        }
+        return null;
+    }
+
     /**
      * A static helper method to retrieve pixel byte signage.
      *
@@ -158,6 +187,110 @@ public class PlaneFactory {
         return FormatTools.isSigned(getPixelType(type));
     }
 
+    /**
+     * Creates an <i>XZ</i> plane by reading the requested row of each
+     * <i>Z</i>-section. Only the values of the plane are loaded.
+     *
+     * @param planeDef The plane to retrieve.
+     * @param c The wavelength at which data is to be fetched.
+     * @param pixels The pixels from which the data is to be fetched.
+     * @param buffer The pixels buffer from which the data is to be fetched.
+     * @param x The first <i>X</i> coordinate.
+     * @param width The number of pixels along the <i>X</i>-axis.
+     * @param z The first <i>Z</i>-section.
+     * @param depth The number of <i>Z</i>-sections.
+     * @return See above.
+     * @throws IOException If an error occurred while reading the data.
+     */
+    private static Plane2D createXZPlane(PlaneDef planeDef, Integer c,
+            Pixels pixels, PixelBuffer buffer, int x, int width, int z,
+            int depth)
+        throws IOException
+    {
+        int bytesPerPixel = bytesPerPixel(pixels.getPixelsType());
+        int rowSize = width * bytesPerPixel;
+        byte[] values = new byte[rowSize * depth];
+        Integer t = Integer.valueOf(planeDef.getT());
+        Integer y = Integer.valueOf(planeDef.getY());
+        ByteOrder order = null;
+        for (int i = 0; i < depth; i++) {
+            PixelData row = buffer.getTile(Integer.valueOf(z + i), c, t,
+                    Integer.valueOf(x), y, Integer.valueOf(width), 1);
+            ByteBuffer data = row.getData().duplicate();
+            order = data.order();
+            data.rewind();
+            data.get(values, i * rowSize, rowSize);
+        }
+        return createCompactPlane(planeDef, pixels, values, order, width,
+                depth);
+    }
+
+    /**
+     * Creates a <i>ZY</i> plane by reading the requested column of each
+     * <i>Z</i>-section. Only the values of the plane are loaded.
+     *
+     * @param planeDef The plane to retrieve.
+     * @param c The wavelength at which data is to be fetched.
+     * @param pixels The pixels from which the data is to be fetched.
+     * @param buffer The pixels buffer from which the data is to be fetched.
+     * @param z The first <i>Z</i>-section.
+     * @param depth The number of <i>Z</i>-sections.
+     * @param y The first <i>Y</i> coordinate.
+     * @param height The number of pixels along the <i>Y</i>-axis.
+     * @return See above.
+     * @throws IOException If an error occurred while reading the data.
+     */
+    private static Plane2D createZYPlane(PlaneDef planeDef, Integer c,
+            Pixels pixels, PixelBuffer buffer, int z, int depth, int y,
+            int height)
+        throws IOException
+    {
+        int bytesPerPixel = bytesPerPixel(pixels.getPixelsType());
+        int rowSize = depth * bytesPerPixel;
+        byte[] values = new byte[rowSize * height];
+        Integer t = Integer.valueOf(planeDef.getT());
+        Integer x = Integer.valueOf(planeDef.getX());
+        ByteOrder order = null;
+        for (int i = 0; i < depth; i++) {
+            PixelData column = buffer.getTile(Integer.valueOf(z + i), c, t,
+                    x, Integer.valueOf(y), 1, Integer.valueOf(height));
+            ByteBuffer data = column.getData().duplicate();
+            order = data.order();
+            data.rewind();
+            // The Z-sections are along the X1-axis of the plane.
+            for (int j = 0; j < height; j++) {
+                data.get(values, j * rowSize + i * bytesPerPixel,
+                        bytesPerPixel);
+            }
+        }
+        return createCompactPlane(planeDef, pixels, values, order, depth,
+                height);
+    }
+
+    /**
+     * Creates a plane backed by the specified values.
+     *
+     * @param planeDef The plane to create.
+     * @param pixels The pixels the values are from.
+     * @param values The values of the plane, row by row.
+     * @param order The byte order of the values or <code>null</code>.
+     * @param sizeX1 The number of pixels along the <i>X1</i>-axis.
+     * @param sizeX2 The number of pixels along the <i>X2</i>-axis.
+     * @return See above.
+     */
+    private static Plane2D createCompactPlane(PlaneDef planeDef,
+            Pixels pixels, byte[] values, ByteOrder order, int sizeX1,
+            int sizeX2)
+    {
+        ByteBuffer data = ByteBuffer.wrap(values);
+        if (order != null) {
+            data.order(order);
+        }
+        return new CompactPlane2D(planeDef, pixels,
+                new PixelData(pixels.getPixelsType().getValue(), data),
+                sizeX1, sizeX2);
+    }
+
     /**
      * Factory method to fetch plane data and create an object to access it.
      *
@@ -193,12 +326,14 @@ public class PlaneFactory {
                         return new Plane2D(planeDef, pixels, buffer.getTile(
                                 z, c, t, region.getX(), region.getY(),
                                 region.getWidth(), region.getHeight()));
-                    case PlaneDef.XZ: //TODO
-                        return new Plane2D(planeDef, pixels,
-                                buffer.getStack(c, t));
-                    case PlaneDef.ZY: //TODO
-                        return new Plane2D(planeDef, pixels,
-                                buffer.getStack(c, t));
+                    case PlaneDef.XZ:
+                        return createXZPlane(planeDef, c, pixels, buffer,
+                                region.getX(), region.getWidth(),
+                                region.getY(), region.getHeight());
+                    case PlaneDef.ZY:
+                        return createZYPlane(planeDef, c, pixels, buffer,
+                                region.getX(), region.getWidth(),
+                                region.getY(), region.getHeight());
                 }
             } else {
                 switch (planeDef.getSlice()) {
@@ -212,11 +347,11 @@ public class PlaneFactory {
                                         pixels.getSizeY(), z, c, t,
                                         stride));
                     case PlaneDef.XZ:
-                        return new Plane2D(planeDef, pixels,
-                                buffer.getStack(c, t));
+                        return createXZPlane(planeDef, c, pixels, buffer,
+                                0, pixels.getSizeX(), 0, pixels.getSizeZ());
                     case PlaneDef.ZY:
-                        return new Plane2D(planeDef, pixels,
-                                buffer.getStack(c, t));
+                        return createZYPlane(planeDef, c, pixels, buffer,
+                                0, pixels.getSizeZ(), 0, pixels.getSizeY());
                 }
             }
         } catch (IOException e) {
@@ -0,0 +1,315 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Channel;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.model.stats.StatsInfo;
+import ome.util.PixelData;
+
+/**
+ * Projects the <i>Z</i>-sections of a channel onto a single <i>XY</i> plane.
+ * The sections are read one at a time through the {@link PlaneFactory} and
+ * reduced into an accumulator holding one value per pixel, so the memory
+ * used is bounded by the size of two planes whatever the number of
+ * sections. The reduction of a section is split into blocks of rows run on
+ * the specified executor.
+ * <p>
+ * The projected values are returned as a plane of the pixels type, which can
+ * then be quantized and mapped onto the color space as any other plane. The
+ * type is not widened since the input window of a channel is bounded by the
+ * range of the pixels type. Instead, a sum of integral values is divided by
+ * the smallest factor fitting the sums of the global range of the channel
+ * into the range of the type, see {@link #getSumScale(double[], double[],
+ * int)}. Rendering the plane is the same as rendering the sums against the
+ * input window multiplied by that factor. The values are then clamped to
+ * the range of the type.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class PlaneProjector {
+
+    /** The minimum number of pixels reduced by a task. */
+    static final int MIN_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Returns the factor the sums of <code>count</code> sections are divided
+     * by so that the sums of values within the global range of the channel
+     * fit into the range of the pixels type, <code>1</code> if they already
+     * fit.
+     *
+     * @param range The range of the pixels type.
+     * @param channelRange The global range of the channel or
+     *                     <code>null</code> to use the range of the type.
+     * @param count The number of sections summed.
+     * @return See above.
+     */
+    static double getSumScale(double[] range, double[] channelRange,
+            int count)
+    {
+        if (channelRange == null) {
+            channelRange = range;
+        }
+        double scale = 1;
+        if (channelRange[1] > 0 && range[1] > 0) {
+            scale = Math.max(scale, count * channelRange[1] / range[1]);
+        }
+        if (channelRange[0] < 0 && range[0] < 0) {
+            scale = Math.max(scale, count * channelRange[0] / range[0]);
+        }
+        return scale;
+    }
+
+    /**
+     * Returns the global range of the specified channel or
+     * <code>null</code> if the statistics of the channel are not available.
+     *
+     * @param pixels The pixels set.
+     * @param channel The channel index.
+     * @return See above.
+     */
+    private static double[] getChannelRange(Pixels pixels, int channel)
+    {
+        if (channel >= pixels.sizeOfChannels()) {
+            return null;
+        }
+        Channel c = pixels.getChannel(channel);
+        StatsInfo stats = c == null ? null : c.getStatsInfo();
+        if (stats == null || stats.getGlobalMin() == null
+                || stats.getGlobalMax() == null) {
+            return null;
+        }
+        return new double[] { stats.getGlobalMin(), stats.getGlobalMax() };
+    }
+
+    /**
+     * Reduces the rows of a section into the accumulator.
+     */
+    private static class ReduceTask implements Callable<Object> {
+
+        /** The section to reduce. */
+        private final Plane2D plane;
+
+        /** The accumulator. */
+        private final double[] accumulator;
+
+        /** The projection algorithm. */
+        private final int algorithm;
+
+        /** The first row to reduce. */
+        private final int rowStart;
+
+        /** The row after the last row to reduce. */
+        private final int rowEnd;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param plane The section to reduce.
+         * @param accumulator The accumulator.
+         * @param algorithm The projection algorithm.
+         * @param rowStart The first row to reduce.
+         * @param rowEnd The row after the last row to reduce.
+         */
+        ReduceTask(Plane2D plane, double[] accumulator, int algorithm,
+                int rowStart, int rowEnd)
+        {
+            this.plane = plane;
+            this.accumulator = accumulator;
+            this.algorithm = algorithm;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        /**
+         * Reduces the rows.
+         *
+         * @see Callable#call()
+         */
+        public Object call()
+        {
+            RowReader reader = RowReader.newInstance(plane);
+            int width = plane.getSizeX();
+            double[] row = new double[width];
+            for (int y = rowStart; y < rowEnd; y++) {
+                reader.read(0, y, row, width);
+                int offset = y * width;
+                if (algorithm == ProjectionDef.MAXIMUM_INTENSITY) {
+                    for (int x = 0; x < width; x++) {
+                        if (row[x] > accumulator[offset + x]) {
+                            accumulator[offset + x] = row[x];
+                        }
+                    }
+                } else {
+                    for (int x = 0; x < width; x++) {
+                        accumulator[offset + x] += row[x];
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reduces the specified section into the accumulator.
+     *
+     * @param plane The section to reduce.
+     * @param accumulator The accumulator.
+     * @param algorithm The projection algorithm.
+     * @param executor The executor used to reduce blocks of rows in
+     *                 parallel or <code>null</code>.
+     */
+    private static void reduce(Plane2D plane, double[] accumulator,
+            int algorithm, ExecutorService executor)
+    {
+        int sizeY = plane.getSizeY();
+        int rows = Math.max(1, MIN_BLOCK_SIZE / Math.max(1, plane.getSizeX()));
+        if (executor == null || rows >= sizeY) {
+            new ReduceTask(plane, accumulator, algorithm, 0, sizeY).call();
+            return;
+        }
+        List<ReduceTask> tasks = new ArrayList<ReduceTask>();
+        for (int y = 0; y < sizeY; y += rows) {
+            tasks.add(new ReduceTask(plane, accumulator, algorithm, y,
+                    Math.min(sizeY, y + rows)));
+        }
+        try {
+            for (Future<Object> f : executor.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts the accumulated values into the pixels type, clamping them to
+     * the range of the type.
+     *
+     * @param accumulator The accumulated values.
+     * @param type The value of the pixels type.
+     * @param bytesPerPixel The number of bytes per pixel.
+     * @return See above.
+     */
+    private static PixelData toPixelData(double[] accumulator, String type,
+            int bytesPerPixel)
+    {
+        double[] range = PlaneFactory.getRange(type);
+        ByteBuffer data = ByteBuffer.allocate(
+                accumulator.length * bytesPerPixel);
+        boolean isFloat = PixelsType.VALUE_FLOAT.equals(type);
+        for (double v : accumulator) {
+            if (range != null) {
+                v = Math.rint(Math.max(range[0], Math.min(range[1], v)));
+            }
+            switch (bytesPerPixel) {
+                case 1:
+                    data.put((byte) (long) v);
+                    break;
+                case 2:
+                    data.putShort((short) (long) v);
+                    break;
+                case 8:
+                    data.putDouble(v);
+                    break;
+                default:
+                    if (isFloat) {
+                        data.putFloat((float) v);
+                    } else {
+                        data.putInt((int) (long) v);
+                    }
+            }
+        }
+        data.rewind();
+        return new PixelData(type, data);
+    }
+
+    /**
+     * Projects the selected sections of a channel onto a single plane.
+     *
+     * @param def The projection to perform. Mustn't be <code>null</code>.
+     * @param planeDef The <i>XY</i> plane to project onto: timepoint, region
+     *                 and stride. The <i>Z</i>-section is ignored. Mustn't
+     *                 be <code>null</code>.
+     * @param channel The channel to project.
+     * @param pixels The pixels from which the data is to be fetched.
+     * @param buffer The pixels buffer from which the data is to be fetched.
+     * @param executor The executor used to reduce the sections in parallel
+     *                 or <code>null</code> to reduce them in the calling
+     *                 thread.
+     * @return See above.
+     */
+    public static Plane2D project(ProjectionDef def, PlaneDef planeDef,
+            int channel, Pixels pixels, PixelBuffer buffer,
+            ExecutorService executor)
+    {
+        if (def == null) {
+            throw new NullPointerException("Expecting not null projection");
+        } else if (planeDef == null) {
+            throw new NullPointerException("Expecting not null planeDef");
+        } else if (planeDef.getSlice() != PlaneDef.XY) {
+            throw new IllegalArgumentException(
+                    "Only XY planes can be projected.");
+        }
+        int end = Math.min(def.getEnd(), pixels.getSizeZ() - 1);
+        if (def.getStart() > end) {
+            throw new IllegalArgumentException("Invalid Z range: "
+                    + def.getStart() + "-" + def.getEnd());
+        }
+        PlaneDef section = new PlaneDef(PlaneDef.XY, planeDef.getT());
+        section.setRegion(planeDef.getRegion());
+        section.setStride(planeDef.getStride());
+
+        int algorithm = def.getAlgorithm();
+        double[] accumulator = null;
+        int count = 0;
+        for (int z = def.getStart(); z <= end; z += def.getStepping()) {
+            section.setZ(z);
+            Plane2D plane = PlaneFactory.createPlane(section, channel,
+                    pixels, buffer);
+            if (accumulator == null) {
+                accumulator = new double[plane.getSizeX() * plane.getSizeY()];
+                if (algorithm == ProjectionDef.MAXIMUM_INTENSITY) {
+                    Arrays.fill(accumulator, Double.NEGATIVE_INFINITY);
+                }
+            }
+            reduce(plane, accumulator, algorithm, executor);
+            count++;
+        }
+        String type = pixels.getPixelsType().getValue();
+        double scale = 1;
+        if (algorithm == ProjectionDef.MEAN_INTENSITY) {
+            scale = count;
+        } else if (algorithm == ProjectionDef.SUM_INTENSITY) {
+            double[] range = PlaneFactory.getRange(type);
+            if (range != null) {
+                scale = getSumScale(range, getChannelRange(pixels, channel),
+                        count);
+            }
+        }
+        if (scale != 1) {
+            for (int i = 0; i < accumulator.length; i++) {
+                accumulator[i] /= scale;
+            }
+        }
+        return new Plane2D(planeDef, pixels, toPixelData(accumulator, type,
+                PlaneFactory.bytesPerPixel(pixels.getPixelsType())));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.data;
+
+import java.io.Serializable;
+
+/**
+ * Defines how the <i>Z</i>-sections of a stack are projected onto a single
+ * <i>XY</i> plane: the algorithm and the range of <i>Z</i>-sections.
+ *
+ * @since 5.5
+ */
+public class ProjectionDef implements Serializable {
+
+    private static final long serialVersionUID = -2583316871627845322L;
+
+    /** Keeps the maximum value of each pixel across the sections. */
+    public static final int MAXIMUM_INTENSITY = 0;
+
+    /** Averages the values of each pixel across the sections. */
+    public static final int MEAN_INTENSITY = 1;
+
+    /**
+     * Sums the values of each pixel across the sections. The sums of
+     * integral values are scaled down to fit the range of the pixels type,
+     * see {@link PlaneProjector}.
+     */
+    public static final int SUM_INTENSITY = 2;
+
+    /** One of the constants defined by this class. */
+    private final int algorithm;
+
+    /** The first <i>Z</i>-section to project. */
+    private final int start;
+
+    /** The last <i>Z</i>-section to project, inclusive. */
+    private final int end;
+
+    /** The distance between two projected sections. */
+    private final int stepping;
+
+    /**
+     * Creates a new instance projecting every section of the stack.
+     *
+     * @param algorithm One of the constants defined by this class.
+     */
+    public ProjectionDef(int algorithm)
+    {
+        this(algorithm, 0, Integer.MAX_VALUE, 1);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param algorithm One of the constants defined by this class.
+     * @param start The first <i>Z</i>-section to project.
+     * @param end The last <i>Z</i>-section to project, inclusive. Values
+     *            past the last section of the stack are clamped.
+     * @param stepping The distance between two projected sections.
+     */
+    public ProjectionDef(int algorithm, int start, int end, int stepping)
+    {
+        switch (algorithm) {
+            case MAXIMUM_INTENSITY:
+            case MEAN_INTENSITY:
+            case SUM_INTENSITY:
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Projection algorithm not supported: " + algorithm);
+        }
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid Z range: " + start
+                    + "-" + end);
+        }
+        if (stepping < 1) {
+            throw new IllegalArgumentException(
+                    "The stepping must be positive.");
+        }
+        this.algorithm = algorithm;
+        this.start = start;
+        this.end = end;
+        this.stepping = stepping;
+    }
+
+    /**
+     * Returns the projection algorithm.
+     *
+     * @return See above.
+     */
+    public int getAlgorithm() { return algorithm; }
+
+    /**
+     * Returns the first <i>Z</i>-section to project.
+     *
+     * @return See above.
+     */
+    public int getStart() { return start; }
+
+    /**
+     * Returns the last <i>Z</i>-section to project, inclusive.
+     *
+     * @return See above.
+     */
+    public int getEnd() { return end; }
+
+    /**
+     * Returns the distance between two projected sections.
+     *
+     * @return See above.
+     */
+    public int getStepping() { return stepping; }
+
+    /**
+     * Overridden to return the definition in a readable format.
+     *
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "Projection(algorithm=" + algorithm + " z=" + start + "-"
+                + end + " stepping=" + stepping + ")";
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.data;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+/**
+ * Reads consecutive pixel intensity values along the <i>X1</i>-axis of a
+ * {@link Plane2D} into a primitive array. A concrete reader is provided for
+ * each pixels type: it reads the buffer backing the plane through the
+ * appropriate primitive view (e.g. {@link ShortBuffer} for <i>uint16</i>)
+ * instead of converting each value to a <code>double</code> after a switch on
+ * the pixels type. Readers do not modify the position of the backing buffer
+ * and can be shared across threads.
+ * <p>
+ * Values of the <i>int8</i>, <i>uint8</i>, <i>int16</i>, <i>uint16</i> and
+ * <i>int32</i> types are read as <code>int</code>, see
+ * {@link #isIntegral()}. The other types are read as <code>double</code>.
+ * </p>
+ *
+ * @since 5.5
+ */
+public abstract class RowReader {
+
+    /** The plane to read. */
+    protected final Plane2D plane;
+
+    /** The number of pixels along the <i>X1</i>-axis of the plane. */
+    protected final int sizeX1;
+
+    /**
+     * Returns a view of the buffer backing the specified plane, with the
+     * same byte order and its position set to <code>0</code>.
+     *
+     * @param plane The plane to handle.
+     * @return See above.
+     */
+    private static ByteBuffer getBuffer(Plane2D plane)
+    {
+        ByteBuffer data = plane.getData().getData();
+        ByteBuffer buffer = data.duplicate().order(data.order());
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Creates a reader suitable for the pixels type of the specified plane.
+     * A generic reader is returned if the plane is not an <i>XY</i> plane.
+     *
+     * @param plane The plane to read. Mustn't be <code>null</code>.
+     * @return See above.
+     */
+    public static RowReader newInstance(Plane2D plane)
+    {
+        if (!plane.isXYPlanar()) {
+            return new Generic(plane);
+        }
+        String type = plane.getPixelsType();
+        if (PixelsType.VALUE_UINT8.equals(type)) {
+            return new UInt8(plane);
+        } else if (PixelsType.VALUE_INT8.equals(type)) {
+            return new Int8(plane);
+        } else if (PixelsType.VALUE_UINT16.equals(type)) {
+            return new UInt16(plane);
+        } else if (PixelsType.VALUE_INT16.equals(type)) {
+            return new Int16(plane);
+        } else if (PixelsType.VALUE_UINT32.equals(type)) {
+            return new UInt32(plane);
+        } else if (PixelsType.VALUE_INT32.equals(type)) {
+            return new Int32(plane);
+        } else if (PixelsType.VALUE_FLOAT.equals(type)) {
+            return new Float32(plane);
+        } else if (PixelsType.VALUE_DOUBLE.equals(type)) {
+            return new Float64(plane);
+        }
+        return new Generic(plane);
+    }
+
+    /**
+     * Creates a reader converting each value using the type of the data
+     * backing the plane rather than the pixels type of the plane. This is the
+     * reader to use when the two differ e.g. overlays.
+     *
+     * @param plane The plane to read. Mustn't be <code>null</code>.
+     * @return See above.
+     */
+    public static RowReader newGenericInstance(Plane2D plane)
+    {
+        return new Generic(plane);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param plane The plane to read. Mustn't be <code>null</code>.
+     */
+    RowReader(Plane2D plane)
+    {
+        if (plane == null) {
+            throw new NullPointerException("No plane.");
+        }
+        this.plane = plane;
+        this.sizeX1 = plane.getSizeX();
+    }
+
+    /**
+     * Returns <code>true</code> if the values are read as <code>int</code>
+     * by {@link #read(int, int, int[], int)}, <code>false</code> if they have
+     * to be read as <code>double</code> by
+     * {@link #read(int, int, double[], int)}.
+     *
+     * @return See above.
+     */
+    public abstract boolean isIntegral();
+
+    /**
+     * Reads <code>length</code> values starting at <code>(x1, x2)</code>
+     * along the <i>X1</i>-axis.
+     *
+     * @param x1 The first coordinate of the first value.
+     * @param x2 The second coordinate of the first value.
+     * @param values The array to fill.
+     * @param length The number of values to read.
+     * @throws UnsupportedOperationException If the reader is not integral.
+     */
+    public void read(int x1, int x2, int[] values, int length)
+    {
+        throw new UnsupportedOperationException(
+                "Values cannot be read as int.");
+    }
+
+    /**
+     * Reads <code>length</code> values starting at <code>(x1, x2)</code>
+     * along the <i>X1</i>-axis.
+     *
+     * @param x1 The first coordinate of the first value.
+     * @param x2 The second coordinate of the first value.
+     * @param values The array to fill.
+     * @param length The number of values to read.
+     */
+    public abstract void read(int x1, int x2, double[] values, int length);
+
+    /** Reads <i>uint8</i> values. */
+    static final class UInt8 extends RowReader {
+
+        /** The buffer backing the plane. */
+        private final ByteBuffer buffer;
+
+        UInt8(Plane2D plane)
+        {
+            super(plane);
+            buffer = getBuffer(plane);
+        }
+
+        @Override
+        public boolean isIntegral() { return true; }
+
+        @Override
+        public void read(int x1, int x2, int[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i) & 0xFF;
+            }
+        }
+
+        @Override
+        public void read(int x1, int x2, double[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i) & 0xFF;
+            }
+        }
+    }
+
+    /** Reads <i>int8</i> values. */
+    static final class Int8 extends RowReader {
+
+        /** The buffer backing the plane. */
+        private final ByteBuffer buffer;
+
+        Int8(Plane2D plane)
+        {
+            super(plane);
+            buffer = getBuffer(plane);
+        }
+
+        @Override
+        public boolean isIntegral() { return true; }
+
+        @Override
+        public void read(int x1, int x2, int[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i);
+            }
+        }
+
+        @Override
+        public void read(int x1, int x2, double[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i);
+            }
+        }
+    }
+
+    /** Reads <i>uint16</i> values. */
+    static final class UInt16 extends RowReader {
+
+        /** The buffer backing the plane. */
+        private final ShortBuffer buffer;
+
+        UInt16(Plane2D plane)
+        {
+            super(plane);
+            buffer = getBuffer(plane).asShortBuffer();
+        }
+
+        @Override
+        public boolean isIntegral() { return true; }
+
+        @Override
+        public void read(int x1, int x2, int[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i) & 0xFFFF;
+            }
+        }
+
+        @Override
+        public void read(int x1, int x2, double[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i) & 0xFFFF;
+            }
+        }
+    }
+
+    /** Reads <i>int16</i> values. */
+    static final class Int16 extends RowReader {
+
+        /** The buffer backing the plane. */
+        private final ShortBuffer buffer;
+
+        Int16(Plane2D plane)
+        {
+            super(plane);
+            buffer = getBuffer(plane).asShortBuffer();
+        }
+
+        @Override
+        public boolean isIntegral() { return true; }
+
+        @Override
+        public void read(int x1, int x2, int[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i);
+            }
+        }
+
+        @Override
+        public void read(int x1, int x2, double[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i);
+            }
+        }
+    }
+
+    /** Reads <i>uint32</i> values. */
+    static final class UInt32 extends RowReader {
+
+        /** The buffer backing the plane. */
+        private final IntBuffer buffer;
+
+        UInt32(Plane2D plane)
+        {
+            super(plane);
+            buffer = getBuffer(plane).asIntBuffer();
+        }
+
+        @Override
+        public boolean isIntegral() { return false; }
+
+        @Override
+        public void read(int x1, int x2, double[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i) & 0xFFFFFFFFL;
+            }
+        }
+    }
+
+    /** Reads <i>int32</i> values. */
+    static final class Int32 extends RowReader {
+
+        /** The buffer backing the plane. */
+        private final IntBuffer buffer;
+
+        Int32(Plane2D plane)
+        {
+            super(plane);
+            buffer = getBuffer(plane).asIntBuffer();
+        }
+
+        @Override
+        public boolean isIntegral() { return true; }
+
+        @Override
+        public void read(int x1, int x2, int[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i);
+            }
+        }
+
+        @Override
+        public void read(int x1, int x2, double[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i);
+            }
+        }
+    }
+
+    /** Reads <i>float</i> values. */
+    static final class Float32 extends RowReader {
+
+        /** The buffer backing the plane. */
+        private final FloatBuffer buffer;
+
+        Float32(Plane2D plane)
+        {
+            super(plane);
+            buffer = getBuffer(plane).asFloatBuffer();
+        }
+
+        @Override
+        public boolean isIntegral() { return false; }
+
+        @Override
+        public void read(int x1, int x2, double[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i);
+            }
+        }
+    }
+
+    /** Reads <i>double</i> values. */
+    static final class Float64 extends RowReader {
+
+        /** The buffer backing the plane. */
+        private final DoubleBuffer buffer;
+
+        Float64(Plane2D plane)
+        {
+            super(plane);
+            buffer = getBuffer(plane).asDoubleBuffer();
+        }
+
+        @Override
+        public boolean isIntegral() { return false; }
+
+        @Override
+        public void read(int x1, int x2, double[] values, int length)
+        {
+            int offset = sizeX1 * x2 + x1;
+            for (int i = 0; i < length; i++) {
+                values[i] = buffer.get(offset + i);
+            }
+        }
+    }
+
+    /**
+     * Reads the values through {@link PixelData#getPixelValueDirect(int)},
+     * used for the other planes and types.
+     */
+    static final class Generic extends RowReader {
+
+        /** The data backing the plane. */
+        private final PixelData data;
+
+        /** How many bytes make up a pixel value in the backing data. */
+        private final int bytesPerPixel;
+
+        Generic(Plane2D plane)
+        {
+            super(plane);
+            data = plane.getData();
+            bytesPerPixel = data.bytesPerPixel();
+        }
+
+        @Override
+        public boolean isIntegral() { return false; }
+
+        @Override
+        public void read(int x1, int x2, double[] values, int length)
+        {
+            if (plane.isXYPlanar()) {
+                int offset = sizeX1 * x2 + x1;
+                for (int i = 0; i < length; i++) {
+                    values[i] = data.getPixelValueDirect(
+                            (offset + i) * bytesPerPixel);
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    values[i] = plane.getPixelValue(x1 + i, x2);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.metadata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.RowReader;
+
+/**
+ * The histogram of the pixel intensity values of a plane, built in a single
+ * pass over the plane. The bin of a value is computed in constant time:
+ * <ul>
+ * <li>For integral data whose range holds at most {@link #MAX_EXACT_BINS}
+ * values, e.g. <i>8</i> and <i>16</i>-bit data, there is one bin per value
+ * and the histogram is exact.</li>
+ * <li>Otherwise the range is divided into bins of the same width.</li>
+ * </ul>
+ * Values outside of the range are counted in the first or last bin.
+ * <p>
+ * The rows of the plane are divided into blocks counted concurrently on an
+ * executor, each block into its own array of counts. The values are read
+ * with a {@link RowReader} so the counting loop is specialized for the
+ * pixels type.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class Histogram {
+
+    /** The default number of bins when the histogram is not exact. */
+    public static final int DEFAULT_BINS = 1024;
+
+    /** The maximum number of bins of an exact histogram. */
+    public static final int MAX_EXACT_BINS = 65536;
+
+    /** The minimum number of pixels counted by a task. */
+    static final int MIN_BLOCK_SIZE = 64 * 1024;
+
+    /** The lower bound of the first bin. */
+    private final double min;
+
+    /** The upper bound of the last bin. */
+    private final double max;
+
+    /** The width of a bin. */
+    private final double binWidth;
+
+    /** Whether or not there is one bin per value. */
+    private final boolean exact;
+
+    /** The number of values in each bin. */
+    private final long[] counts;
+
+    /** The number of values counted. */
+    private long total;
+
+    /**
+     * Counts the values of a block of rows.
+     */
+    private static class CountTask implements Callable<int[]> {
+
+        /** The histogram the values are counted for. */
+        private final Histogram histogram;
+
+        /** The plane to read. */
+        private final Plane2D plane;
+
+        /** The first row to count. */
+        private final int rowStart;
+
+        /** The row after the last row to count. */
+        private final int rowEnd;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param histogram The histogram the values are counted for.
+         * @param plane The plane to read.
+         * @param rowStart The first row to count.
+         * @param rowEnd The row after the last row to count.
+         */
+        CountTask(Histogram histogram, Plane2D plane, int rowStart,
+                int rowEnd)
+        {
+            this.histogram = histogram;
+            this.plane = plane;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        /**
+         * Counts the values.
+         *
+         * @see Callable#call()
+         */
+        public int[] call()
+        {
+            int[] counts = new int[histogram.counts.length];
+            RowReader reader = RowReader.newInstance(plane);
+            int width = plane.getSizeX();
+            if (reader.isIntegral()) {
+                int[] row = new int[width];
+                for (int y = rowStart; y < rowEnd; y++) {
+                    reader.read(0, y, row, width);
+                    histogram.count(row, width, counts);
+                }
+            } else {
+                double[] row = new double[width];
+                for (int y = rowStart; y < rowEnd; y++) {
+                    reader.read(0, y, row, width);
+                    histogram.count(row, width, counts);
+                }
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Computes the histogram of the specified plane.
+     *
+     * @param plane The plane to handle. Mustn't be <code>null</code>.
+     * @param min The lower bound of the range, e.g. the global minimum.
+     * @param max The upper bound of the range, e.g. the global maximum.
+     * @param bins The number of bins if the histogram is not exact.
+     * @param executor The executor used to count the blocks of rows or
+     *                 <code>null</code> to count them in the current thread.
+     * @return See above.
+     */
+    public static Histogram compute(Plane2D plane, double min, double max,
+            int bins, ExecutorService executor)
+    {
+        if (plane == null) {
+            throw new NullPointerException("No plane.");
+        }
+        boolean integral = RowReader.newInstance(plane).isIntegral();
+        Histogram histogram = new Histogram(min, max, bins, integral);
+        int sizeY = plane.getSizeY();
+        int rows = Math.max(1, MIN_BLOCK_SIZE / Math.max(1, plane.getSizeX()));
+        if (executor == null || rows >= sizeY) {
+            histogram.add(new CountTask(histogram, plane, 0, sizeY).call());
+            return histogram;
+        }
+        List<CountTask> tasks = new ArrayList<CountTask>();
+        for (int y = 0; y < sizeY; y += rows) {
+            tasks.add(new CountTask(histogram, plane, y,
+                    Math.min(sizeY, y + rows)));
+        }
+        try {
+            for (Future<int[]> f : executor.invokeAll(tasks)) {
+                histogram.add(f.get());
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        return histogram;
+    }
+
+    /**
+     * Creates a new empty histogram.
+     *
+     * @param min The lower bound of the range.
+     * @param max The upper bound of the range.
+     * @param bins The number of bins if the histogram is not exact.
+     * @param integral Pass <code>true</code> if the values are integers.
+     */
+    Histogram(double min, double max, int bins, boolean integral)
+    {
+        if (max < min) {
+            throw new IllegalArgumentException("Range not valid: [" + min
+                    + ", " + max + "].");
+        }
+        if (bins < 1) {
+            throw new IllegalArgumentException(
+                    "The number of bins must be positive.");
+        }
+        exact = integral && min == Math.floor(min) && max == Math.floor(max)
+                && max - min < MAX_EXACT_BINS;
+        if (exact) {
+            counts = new long[(int) (max - min) + 1];
+            binWidth = 1;
+        } else {
+            counts = new long[bins];
+            binWidth = max > min ? (max - min) / bins : 1;
+        }
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Counts the specified integer values.
+     *
+     * @param values The values to count.
+     * @param length The number of values.
+     * @param bins The counts to increment.
+     */
+    void count(int[] values, int length, int[] bins)
+    {
+        int last = bins.length - 1;
+        if (exact) {
+            int base = (int) min;
+            for (int k = 0; k < length; k++) {
+                int i = values[k] - base;
+                bins[i < 0 ? 0 : (i > last ? last : i)]++;
+            }
+            return;
+        }
+        double scale = 1 / binWidth;
+        for (int k = 0; k < length; k++) {
+            int i = (int) ((values[k] - min) * scale);
+            bins[i < 0 ? 0 : (i > last ? last : i)]++;
+        }
+    }
+
+    /**
+     * Counts the specified values.
+     *
+     * @param values The values to count.
+     * @param length The number of values.
+     * @param bins The counts to increment.
+     */
+    void count(double[] values, int length, int[] bins)
+    {
+        int last = bins.length - 1;
+        double scale = 1 / binWidth;
+        for (int k = 0; k < length; k++) {
+            double v = (values[k] - min) * scale;
+            // Also handles NaN, counted in the first bin.
+            int i = v > 0 ? (int) v : 0;
+            bins[i > last ? last : i]++;
+        }
+    }
+
+    /**
+     * Adds the specified counts to the histogram.
+     *
+     * @param bins The counts to add, one per bin.
+     */
+    void add(int[] bins)
+    {
+        for (int i = 0; i < bins.length; i++) {
+            counts[i] += bins[i];
+            total += bins[i];
+        }
+    }
+
+    /**
+     * Adds the specified counts to the histogram.
+     *
+     * @param bins The counts to add, one per bin.
+     */
+    void add(long[] bins)
+    {
+        for (int i = 0; i < bins.length; i++) {
+            counts[i] += bins[i];
+            total += bins[i];
+        }
+    }
+
+    /**
+     * Adds the counts of the specified histogram to this histogram. Both
+     * histograms must have the same range and bins.
+     *
+     * @param other The histogram to add.
+     */
+    void merge(Histogram other)
+    {
+        if (other.min != min || other.max != max || other.exact != exact
+                || other.counts.length != counts.length) {
+            throw new IllegalArgumentException(
+                    "The histograms do not have the same bins.");
+        }
+        add(other.counts);
+    }
+
+    /**
+     * Returns a copy of this histogram.
+     *
+     * @return See above.
+     */
+    Histogram copy()
+    {
+        Histogram h = new Histogram(min, max, counts.length, exact);
+        h.add(counts);
+        return h;
+    }
+
+    /**
+     * Returns <code>true</code> if there is one bin per value,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isExact()
+    {
+        return exact;
+    }
+
+    /**
+     * Returns the number of bins.
+     *
+     * @return See above.
+     */
+    public int getBinCount()
+    {
+        return counts.length;
+    }
+
+    /**
+     * Returns the number of values in the specified bin.
+     *
+     * @param bin The index of the bin.
+     * @return See above.
+     */
+    public long getCount(int bin)
+    {
+        return counts[bin];
+    }
+
+    /**
+     * Returns the lower bound of the specified bin. For an exact histogram,
+     * this is the value of the bin.
+     *
+     * @param bin The index of the bin.
+     * @return See above.
+     */
+    public double getBinStart(int bin)
+    {
+        return min + bin * binWidth;
+    }
+
+    /**
+     * Returns the number of values counted.
+     *
+     * @return See above.
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * Returns the lower bound of the range.
+     *
+     * @return See above.
+     */
+    public double getMin()
+    {
+        return min;
+    }
+
+    /**
+     * Returns the upper bound of the range.
+     *
+     * @return See above.
+     */
+    public double getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Returns the value below which the specified fraction of the values
+     * lies. The value is interpolated within its bin unless the histogram is
+     * exact.
+     *
+     * @param fraction The fraction of the values, between <code>0</code>
+     *                 and <code>1</code>.
+     * @return See above.
+     */
+    public double getPercentile(double fraction)
+    {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException(
+                    "The fraction must be in [0, 1]: " + fraction);
+        }
+        if (total == 0) {
+            return min;
+        }
+        double target = fraction * total;
+        long sum = 0;
+        int last = 0;
+        for (int i = 0; i < counts.length; i++) {
+            long n = counts[i];
+            if (n == 0) {
+                continue;
+            }
+            last = i;
+            if (sum + n >= target) {
+                if (exact) {
+                    return getBinStart(i);
+                }
+                double v = getBinStart(i) + binWidth * (target - sum) / n;
+                return Math.min(v, max);
+            }
+            sum += n;
+        }
+        return exact ? getBinStart(last) : Math.min(getBinStart(last + 1), max);
+    }
+
+    /**
+     * Returns the fraction of the values within each of the specified
+     * number of bins of the same width over the range.
+     *
+     * @param bins The number of bins.
+     * @return See above.
+     */
+    public double[] getFractions(int bins)
+    {
+        if (bins < 1) {
+            throw new IllegalArgumentException(
+                    "The number of bins must be positive.");
+        }
+        double[] fractions = new double[bins];
+        if (total == 0) {
+            return fractions;
+        }
+        double scale = max > min ? bins / (max - min) : 0;
+        for (int i = 0; i < counts.length; i++) {
+            int j = (int) ((getBinStart(i) - min) * scale);
+            fractions[Math.min(j, bins - 1)] += counts[i];
+        }
+        for (int j = 0; j < bins; j++) {
+            fractions[j] /= total;
+        }
+        return fractions;
+    }
+}
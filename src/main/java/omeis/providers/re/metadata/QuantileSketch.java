@@ -0,0 +1,504 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.metadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.RowReader;
+
+/**
+ * A streaming quantile sketch following the <i>KLL</i> algorithm of Karnin,
+ * Lang and Liberty. The sketch holds a bounded number of values whatever
+ * the number of values added: values are kept in a hierarchy of compactors,
+ * a value of level <code>h</code> standing for <code>2<sup>h</sup></code>
+ * values. When a compactor is full, its values are sorted and every other
+ * one is promoted to the next level. The rank error is about
+ * <code>1.7 / k</code>, e.g. less than one percent for the default
+ * {@link #DEFAULT_K}.
+ * <p>
+ * Sketches are mergeable: the sketches of the tiles of a plane can be
+ * computed concurrently and merged into the sketch of the plane, the
+ * sketches of the planes into the sketch of a stack or image. This is used
+ * to determine robust percentiles of <i>32</i>-bit and floating point data,
+ * whose range is too large for an exact {@link Histogram}.
+ * </p>
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class QuantileSketch {
+
+    /** The default size of the largest compactor. */
+    public static final int DEFAULT_K = 200;
+
+    /** The ratio of the capacities of two consecutive compactors. */
+    private static final double CAPACITY_RATIO = 2.0 / 3.0;
+
+    /** The smallest capacity of a compactor. */
+    private static final int MIN_CAPACITY = 8;
+
+    /** The minimum number of pixels added by a task. */
+    static final int MIN_BLOCK_SIZE = 64 * 1024;
+
+    /** The size of the largest compactor. */
+    private final int k;
+
+    /** The values of each level, the first elements of each array are used. */
+    private final List<double[]> levels = new ArrayList<double[]>();
+
+    /** The number of values held by each level. */
+    private int[] sizes = new int[0];
+
+    /** The capacity of each level, recomputed when a level is added. */
+    private int[] capacities = new int[0];
+
+    /** The total capacity of the levels. */
+    private int capacity;
+
+    /** The number of values added. */
+    private long n;
+
+    /** The lowest value added. */
+    private double min = Double.NaN;
+
+    /** The highest value added. */
+    private double max = Double.NaN;
+
+    /** The state of the generator choosing the values to promote. */
+    private long seed = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Adds the values of a block of rows to a new sketch.
+     */
+    private static class SketchTask implements Callable<QuantileSketch> {
+
+        /** The plane to read. */
+        private final Plane2D plane;
+
+        /** The size of the largest compactor. */
+        private final int k;
+
+        /** The first row to add. */
+        private final int rowStart;
+
+        /** The row after the last row to add. */
+        private final int rowEnd;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param plane The plane to read.
+         * @param k The size of the largest compactor.
+         * @param rowStart The first row to add.
+         * @param rowEnd The row after the last row to add.
+         */
+        SketchTask(Plane2D plane, int k, int rowStart, int rowEnd)
+        {
+            this.plane = plane;
+            this.k = k;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        /**
+         * Adds the values.
+         *
+         * @see Callable#call()
+         */
+        public QuantileSketch call()
+        {
+            QuantileSketch sketch = new QuantileSketch(k);
+            RowReader reader = RowReader.newInstance(plane);
+            int width = plane.getSizeX();
+            if (reader.isIntegral()) {
+                int[] row = new int[width];
+                for (int y = rowStart; y < rowEnd; y++) {
+                    reader.read(0, y, row, width);
+                    for (int x = 0; x < width; x++) {
+                        sketch.update(row[x]);
+                    }
+                }
+            } else {
+                double[] row = new double[width];
+                for (int y = rowStart; y < rowEnd; y++) {
+                    reader.read(0, y, row, width);
+                    for (int x = 0; x < width; x++) {
+                        sketch.update(row[x]);
+                    }
+                }
+            }
+            return sketch;
+        }
+    }
+
+    /**
+     * Computes the sketch of the specified plane. The rows of the plane are
+     * divided into blocks whose sketches are computed concurrently and then
+     * merged.
+     *
+     * @param plane The plane to handle. Mustn't be <code>null</code>.
+     * @param k The size of the largest compactor.
+     * @param executor The executor used to handle the blocks of rows or
+     *                 <code>null</code> to handle them in the current thread.
+     * @return See above.
+     */
+    public static QuantileSketch compute(Plane2D plane, int k,
+            ExecutorService executor)
+    {
+        if (plane == null) {
+            throw new NullPointerException("No plane.");
+        }
+        int sizeY = plane.getSizeY();
+        int rows = Math.max(1, MIN_BLOCK_SIZE / Math.max(1, plane.getSizeX()));
+        if (executor == null || rows >= sizeY) {
+            return new SketchTask(plane, k, 0, sizeY).call();
+        }
+        List<SketchTask> tasks = new ArrayList<SketchTask>();
+        for (int y = 0; y < sizeY; y += rows) {
+            tasks.add(new SketchTask(plane, k, y, Math.min(sizeY, y + rows)));
+        }
+        QuantileSketch sketch = new QuantileSketch(k);
+        try {
+            for (Future<QuantileSketch> f : executor.invokeAll(tasks)) {
+                sketch.merge(f.get());
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        return sketch;
+    }
+
+    /** Creates a new empty sketch with the default accuracy. */
+    public QuantileSketch()
+    {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * Creates a new empty sketch.
+     *
+     * @param k The size of the largest compactor, the higher the more
+     *          accurate the sketch.
+     */
+    public QuantileSketch(int k)
+    {
+        if (k < MIN_CAPACITY) {
+            throw new IllegalArgumentException("k must be at least "
+                    + MIN_CAPACITY + ": " + k);
+        }
+        this.k = k;
+        addLevel();
+    }
+
+    /**
+     * Adds an empty level on top of the existing ones and recomputes the
+     * capacities of the levels, which depend on their depth.
+     */
+    private void addLevel()
+    {
+        levels.add(new double[2 * k]);
+        sizes = Arrays.copyOf(sizes, sizes.length + 1);
+        capacities = new int[levels.size()];
+        capacity = 0;
+        for (int h = 0; h < capacities.length; h++) {
+            capacities[h] = getCapacity(h);
+            capacity += capacities[h];
+        }
+    }
+
+    /**
+     * Computes the capacity of the specified level. The top level has a
+     * capacity of <code>k</code>, the capacity decreases geometrically
+     * towards the bottom level.
+     *
+     * @param level The level.
+     * @return See above.
+     */
+    private int getCapacity(int level)
+    {
+        int depth = levels.size() - level - 1;
+        return Math.max(MIN_CAPACITY,
+                (int) Math.ceil(k * Math.pow(CAPACITY_RATIO, depth)));
+    }
+
+    /**
+     * Returns the number of values held by the levels.
+     *
+     * @return See above.
+     */
+    private int getRetained()
+    {
+        int retained = 0;
+        for (int size : sizes) {
+            retained += size;
+        }
+        return retained;
+    }
+
+    /**
+     * Appends a value to the specified level, growing its array if needed.
+     *
+     * @param level The level.
+     * @param value The value to append.
+     */
+    private void append(int level, double value)
+    {
+        double[] values = levels.get(level);
+        if (sizes[level] == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+            levels.set(level, values);
+        }
+        values[sizes[level]++] = value;
+    }
+
+    /**
+     * Returns a random bit.
+     *
+     * @return See above.
+     */
+    private int nextBit()
+    {
+        // xorshift64
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        return (int) (seed >>> 63);
+    }
+
+    /**
+     * Compacts the lowest level exceeding its capacity until the sketch
+     * holds no more values than its total capacity.
+     */
+    private void compress()
+    {
+        while (getRetained() > capacity) {
+            int h = 0;
+            while (sizes[h] < capacities[h]) {
+                h++;
+            }
+            if (h + 1 == levels.size()) {
+                addLevel();
+            }
+            double[] values = levels.get(h);
+            int size = sizes[h];
+            Arrays.sort(values, 0, size);
+            // An odd value out stays at this level.
+            int even = size & ~1;
+            for (int i = nextBit(); i < even; i += 2) {
+                append(h + 1, values[i]);
+            }
+            if (even < size) {
+                values[0] = values[even];
+                sizes[h] = 1;
+            } else {
+                sizes[h] = 0;
+            }
+        }
+    }
+
+    /**
+     * Adds a value to the sketch. <code>NaN</code> values are ignored.
+     *
+     * @param value The value to add.
+     */
+    public void update(double value)
+    {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (n == 0) {
+            min = value;
+            max = value;
+        } else if (value < min) {
+            min = value;
+        } else if (value > max) {
+            max = value;
+        }
+        n++;
+        append(0, value);
+        if (sizes[0] >= capacities[0]) {
+            compress();
+        }
+    }
+
+    /**
+     * Adds the values of the specified sketch to this sketch. The other
+     * sketch is not modified.
+     *
+     * @param other The sketch to merge.
+     */
+    public void merge(QuantileSketch other)
+    {
+        if (other == null || other.n == 0) {
+            return;
+        }
+        while (levels.size() < other.levels.size()) {
+            addLevel();
+        }
+        for (int h = 0; h < other.levels.size(); h++) {
+            double[] values = other.levels.get(h);
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, values[i]);
+            }
+        }
+        if (n == 0) {
+            min = other.min;
+            max = other.max;
+        } else {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+        n += other.n;
+        compress();
+    }
+
+    /**
+     * Returns the number of values added.
+     *
+     * @return See above.
+     */
+    public long getN()
+    {
+        return n;
+    }
+
+    /**
+     * Returns the lowest value added or <code>NaN</code> if the sketch is
+     * empty.
+     *
+     * @return See above.
+     */
+    public double getMin()
+    {
+        return min;
+    }
+
+    /**
+     * Returns the highest value added or <code>NaN</code> if the sketch is
+     * empty.
+     *
+     * @return See above.
+     */
+    public double getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Returns the values held by the sketch sorted in ascending order, and
+     * their cumulated weights.
+     *
+     * @param weights The array to store the cumulated weights into.
+     * @return See above.
+     */
+    private double[] getSortedValues(long[] weights)
+    {
+        int retained = getRetained();
+        double[] values = new double[retained];
+        long[] w = new long[retained];
+        int i = 0;
+        for (int h = 0; h < levels.size(); h++) {
+            double[] level = levels.get(h);
+            for (int j = 0; j < sizes[h]; j++, i++) {
+                values[i] = level[j];
+                w[i] = 1L << h;
+            }
+        }
+        // Sort the values and their weights together.
+        Integer[] order = new Integer[retained];
+        for (i = 0; i < retained; i++) {
+            order[i] = i;
+        }
+        final double[] v = values;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(v[a], v[b]);
+            }
+        });
+        double[] sorted = new double[retained];
+        long sum = 0;
+        for (i = 0; i < retained; i++) {
+            sorted[i] = values[order[i]];
+            sum += w[order[i]];
+            weights[i] = sum;
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns the approximate value below which the specified fraction of
+     * the values lies. The fractions <code>0</code> and <code>1</code>
+     * return the exact minimum and maximum.
+     *
+     * @param fraction The fraction of the values, between <code>0</code>
+     *                 and <code>1</code>.
+     * @return See above or <code>NaN</code> if the sketch is empty.
+     */
+    public double getQuantile(double fraction)
+    {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException(
+                    "The fraction must be in [0, 1]: " + fraction);
+        }
+        if (n == 0) {
+            return Double.NaN;
+        }
+        if (fraction == 0) {
+            return min;
+        }
+        if (fraction == 1) {
+            return max;
+        }
+        long[] weights = new long[getRetained()];
+        double[] values = getSortedValues(weights);
+        long total = weights[weights.length - 1];
+        double target = fraction * total;
+        for (int i = 0; i < values.length; i++) {
+            if (weights[i] >= target) {
+                return values[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the approximate fraction of the values strictly lower than
+     * the specified value.
+     *
+     * @param value The value.
+     * @return See above or <code>0</code> if the sketch is empty.
+     */
+    public double getRank(double value)
+    {
+        if (n == 0) {
+            return 0;
+        }
+        long below = 0, total = 0;
+        for (int h = 0; h < levels.size(); h++) {
+            double[] level = levels.get(h);
+            long weight = 1L << h;
+            for (int j = 0; j < sizes[h]; j++) {
+                if (level[j] < value) {
+                    below += weight;
+                }
+                total += weight;
+            }
+        }
+        return (double) below / total;
+    }
+}
@@ -7,6 +7,9 @@
 
 package omeis.providers.re.metadata;
 
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
 import loci.formats.FormatTools;
 
 import org.slf4j.Logger;
@@ -18,8 +21,12 @@ import ome.model.core.Pixels;
 import ome.model.enums.PixelsType;
 import ome.model.stats.StatsInfo;
 
+import omeis.providers.re.RenderingExecutor;
 import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.PlaneFactory;
+import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.data.RowReader;
 import omeis.providers.re.quantum.QuantumStrategy;
 
 /**
@@ -40,24 +47,30 @@ public class StatsFactory {
     /** The logger for this particular class */
     private static Logger log = LoggerFactory.getLogger(StatsFactory.class);
 
-	/** The minimum range. */
-	private static final int RANGE_RGB = 255;
-	
 	/** The number of bins. */
     private static final int NB_BIN = 2 * QuantumStrategy.DECILE;
 
     /** The default size of a bin. */
     private static final int BIN = 2;
 
-    /** The error factor. */
-    private static final int EPSILON = 4;
-
     /** The threshold value. */
     private static final double THRESHOLD = 0.99;
 
+    /**
+     * The fraction of the values clipped at each end of the histogram when
+     * determining the input window.
+     */
+    private static final double CLIPPED = (1 - THRESHOLD) / 2;
+
     /** The noise reduction threshold value. */
     private static final double NR_THRESHOLD = 0.95;
 
+    /**
+     * The maximum number of values read from a plane to determine the
+     * location stats.
+     */
+    static final int MAX_SAMPLED_PIXELS = 1024 * 1024;
+
     /** The location statistics. */
     private double[] locationStats;
 
@@ -70,88 +83,6 @@ public class StatsFactory {
     /** Value determined according to the location of the pixels' value. */
     private double inputEnd;
 
-    /** The size of the bin.*/
-    private double sizeBin;
-    
-    /** The epsilon value.*/
-    private double epsilon;
-    
-    /**
-     * For the specified {@link Plane2D}, computes the bins, determines the
-     * inputWindow and the noiseReduction flag.
-     * 
-     * @param p2D 	 The selected plane2d.
-     * @param gMin The global minimum.
-     * @param sizeX2 The size along one axis.
-     * @param sizeX1 The size along the other axis.
-     */
-    private void computeBins(Plane2D p2D, double gMin, int sizeX2,
-            int sizeX1) {
-    	int[] totals = new int[NB_BIN];
-        /*
-         * Segment[] segments = new Segment[NB_BIN]; for (int i = 0; i < NB_BIN;
-         * i++) { segments[i] = new Segment( gMin + i * sizeBin, 0, gMin + (i +
-         * 1) * sizeBin, 0); }
-         */
-        BasicSegment[] segments = new BasicSegment[NB_BIN];
-        for (int i = 0; i < NB_BIN; i++) {
-            segments[i] = new BasicSegment(gMin + i * sizeBin, gMin + (i + 1)
-                    * sizeBin);
-        }
-
-        // check segment [o,e[
-        double v;
-        BasicSegment segment;
-        if (p2D.isXYPlanar()) {
-            // modified code
-            int size = sizeX1 * sizeX2;
-            for (int j = 0; j < size; j++) {
-                v = p2D.getPixelValue(j);
-                for (int i = 0; i < segments.length; i++) {
-                    segment = segments[i];
-                    if (v >= segment.x1 && v < segment.x2) {
-                        totals[i]++;
-                        break;
-                    }
-                } // end i
-            }
-        } else {
-            for (int x2 = 0; x2 < sizeX2; ++x2) {
-                for (int x1 = 0; x1 < sizeX1; ++x1) {
-                    v = p2D.getPixelValue(x1, x2);
-                    for (int i = 0; i < segments.length; i++) {
-                        segment = segments[i];
-                        if (v >= segment.x1 && v < segment.x2) {
-                            totals[i]++;
-                            break;
-                        }
-                        /*
-                         * if (!segments[i].equals(1, pointX1, pointX2) &&
-                         * segments[i].lies(pointX1, pointX2)) { totals[i]++;
-                         * break; }
-                         */
-                    } // end i
-                } // end x1
-            }// end x2
-        }
-
-        double total = sizeX2 * sizeX1;
-        for (int i = 0; i < totals.length; i++) {
-            locationStats[i] += totals[i] / total;
-        }
-        double s = segments[0].x2;
-        double end = segments[NB_BIN - 1].x2;
-        total = total - totals[0] - totals[NB_BIN - 1];
-        if (totals[0] >= totals[NB_BIN - 1]) {
-            end = accumulateCloseToMin(totals, segments, total, epsilon);
-        } else {
-            s = accumulateCloseToMax(totals, segments, total, epsilon);
-        }
-        if (s < inputStart) inputStart = s;
-        if (end > inputEnd) inputEnd = end;
-        noiseReduction = noiseReduction();
-    }
-
     /** Determines the value of the noiseReduction flag. */
     private boolean noiseReduction() {
         double sumMin = 0, sumMax = 0;
@@ -169,50 +100,6 @@ public class StatsFactory {
         return true;
     }
 
-    /**
-     * Determines the value of inputEnd when the pixels' values accumulated
-     * closed to the minimum.
-     * 
-     * @param totals The accumulated values.
-     * @param segments The segments to analyze.
-     * @param total The total value.
-     * @param epsilon The error value.
-     */
-    private double accumulateCloseToMin(int[] totals, BasicSegment[] segments,
-            double total, double epsilon) {
-        double e = segments[NB_BIN - 1].x2, sum = 0;
-        for (int i = 1; i < totals.length - 1; i++) {
-            sum += totals[i];
-            if (sum / total > THRESHOLD) {
-                e = segments[i].x1 + epsilon;
-                break;
-            }
-        }
-        return e;
-    }
-
-    /**
-     * Determines the value of inputStart when the pixels' values accumulated
-     * closed to the max.
-     * 
-     * @param totals The accumulated values.
-     * @param segments The segments to analyze.
-     * @param total The total value.
-     * @param epsilon The error value.
-     */
-    private double accumulateCloseToMax(int[] totals, BasicSegment[] segments,
-            double total, double epsilon) {
-        double s = segments[0].x2, sum = 0;
-        for (int i = totals.length - 2; i > 0; i--) {
-            sum += totals[i];
-            if (sum / total > THRESHOLD) {
-                s = segments[i].x2 - epsilon;
-                break;
-            }
-        }
-        return s;
-    }
-
     /** 
      * Determines the minimum and maximum corresponding to the passed
      * pixels.
@@ -255,15 +142,52 @@ public class StatsFactory {
      * Helper object to determine the location of the pixels' values, the
      * inputWindow i.e. <code>inputStart</code> and <code>inputEnd</code>
      * and to initialize the <code>noiseReduction</code> flag.
+     * The histogram of the plane is computed on the executor shared by the
+     * renderers.
      * 
      * @param metadata The pixels to parse.
      * @param pixelsData The buffer.
      * @param pd The plane to handle.
      * @param index The channel index.
-     * @throws PixMetadataException
+     * @see #computeLocationStats(Pixels, PixelBuffer, PlaneDef, int,
+     *      ExecutorService)
      */
     public void computeLocationStats(final Pixels metadata,
             final PixelBuffer pixelsData, final PlaneDef pd, final int index) {
+        computeLocationStats(metadata, pixelsData, pd, index,
+                RenderingExecutor.getDefault());
+    }
+
+    /**
+     * Helper object to determine the location of the pixels' values, the
+     * inputWindow i.e. <code>inputStart</code> and <code>inputEnd</code>
+     * and to initialize the <code>noiseReduction</code> flag.
+     * <p>
+     * The histogram of the selected plane is computed over the global range
+     * of the channel. The input window clips the lowest and highest values
+     * of the histogram and the noise reduction flag is turned off when most
+     * of the values lie at one end of the range. For floating point data and
+     * integral data whose range is too large for an exact histogram, a
+     * {@link QuantileSketch} of the plane is used instead. If the plane
+     * cannot be read, the input window is the global range of the channel.
+     * </p>
+     * <p>
+     * At most about {@link #MAX_SAMPLED_PIXELS} values of an XY plane are
+     * read: the plane is read at the highest resolution level of that size
+     * or, if the buffer has a single resolution, with a stride. The region
+     * of the plane definition is ignored.
+     * </p>
+     *
+     * @param metadata The pixels to parse.
+     * @param pixelsData The buffer.
+     * @param pd The plane to handle.
+     * @param index The channel index.
+     * @param executor The executor used to compute the histogram or
+     *                 sketch, <code>null</code> to compute it in the current
+     *                 thread.
+     */
+    public void computeLocationStats(Pixels metadata, PixelBuffer pixelsData,
+            PlaneDef pd, int index, ExecutorService executor) {
         log.debug("Computing location stats for Pixels:" + metadata.getId());
         Channel channel = metadata.getChannel(index);
         final StatsInfo stats = channel.getStatsInfo();
@@ -277,6 +201,189 @@ public class StatsFactory {
             inputStart = stats.getGlobalMin().doubleValue();
             inputEnd = stats.getGlobalMax().doubleValue();
         }
+        locationStats = new double[NB_BIN];
+        noiseReduction = false;
+        if (pixelsData == null || pd == null) {
+            return;
+        }
+        Histogram histogram = null;
+        QuantileSketch sketch = null;
+        try {
+            Plane2D plane = readSample(metadata, pixelsData, pd, index);
+            if (RowReader.newInstance(plane).isIntegral()
+                    && inputEnd - inputStart < Histogram.MAX_EXACT_BINS) {
+                histogram = Histogram.compute(plane, inputStart, inputEnd,
+                        Histogram.DEFAULT_BINS, executor);
+            } else {
+                sketch = QuantileSketch.compute(plane,
+                        QuantileSketch.DEFAULT_K, executor);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not compute the histogram of channel " + index
+                    + ", using the global range.", e);
+            return;
+        }
+        if (histogram != null) {
+            computeLocationStats(histogram);
+        } else {
+            computeLocationStats(sketch);
+        }
+    }
+
+    /**
+     * Returns the index of the highest resolution with at most
+     * {@link #MAX_SAMPLED_PIXELS} pixels, the lowest resolution if none is
+     * that small.
+     *
+     * @param descriptions The size of each resolution, from the highest.
+     * @return See above.
+     */
+    static int selectSampleResolution(List<List<Integer>> descriptions)
+    {
+        for (int i = 0; i < descriptions.size(); i++) {
+            List<Integer> d = descriptions.get(i);
+            if ((long) d.get(0) * d.get(1) <= MAX_SAMPLED_PIXELS) {
+                return i;
+            }
+        }
+        return descriptions.size() - 1;
+    }
+
+    /**
+     * Returns the stride of the plane definition reading at most
+     * {@link #MAX_SAMPLED_PIXELS} values of a plane, i.e. the number of
+     * columns and rows skipped between two values.
+     *
+     * @param sizeX The width of the plane.
+     * @param sizeY The height of the plane.
+     * @return See above.
+     */
+    static int getSampleStride(int sizeX, int sizeY)
+    {
+        double ratio = (double) sizeX * sizeY / MAX_SAMPLED_PIXELS;
+        return Math.max(0, (int) Math.ceil(Math.sqrt(ratio)) - 1);
+    }
+
+    /**
+     * Reads the values the location stats are computed from. The XY planes
+     * are read at a low resolution level or with a stride so that at most
+     * about {@link #MAX_SAMPLED_PIXELS} values are read. The resolution
+     * level of the buffer is restored.
+     *
+     * @param metadata The pixels to parse.
+     * @param pixelsData The buffer.
+     * @param pd The plane to handle.
+     * @param index The channel index.
+     * @return See above.
+     */
+    private Plane2D readSample(Pixels metadata, PixelBuffer pixelsData,
+            PlaneDef pd, int index)
+    {
+        if (pd.getSlice() != PlaneDef.XY) {
+            return PlaneFactory.createPlane(pd, index, metadata, pixelsData);
+        }
+        PlaneDef def = new PlaneDef(PlaneDef.XY, pd.getT());
+        def.setZ(pd.getZ());
+        int levels = pixelsData.getResolutionLevels();
+        if (levels <= 1) {
+            def.setStride(getSampleStride(metadata.getSizeX(),
+                    metadata.getSizeY()));
+            return PlaneFactory.createPlane(def, index, metadata, pixelsData);
+        }
+        List<List<Integer>> descriptions =
+                pixelsData.getResolutionDescriptions();
+        int selected = selectSampleResolution(descriptions);
+        List<Integer> d = descriptions.get(selected);
+        def.setRegion(new RegionDef(0, 0, d.get(0), d.get(1)));
+        int level = pixelsData.getResolutionLevel();
+        // Descriptions are ordered from the highest resolution, which is
+        // the last level.
+        pixelsData.setResolutionLevel(levels - 1 - selected);
+        try {
+            return PlaneFactory.createPlane(def, index, metadata, pixelsData);
+        } finally {
+            pixelsData.setResolutionLevel(level);
+        }
+    }
+
+    /**
+     * Determines the location stats, the input window and the noise
+     * reduction flag from the statistics of the specified channel stored in
+     * an index, without reading the pixels data.
+     *
+     * @param index The index of the statistics of the pixels set.
+     * @param channel The channel index.
+     * @return <code>true</code> if the index holds the statistics of the
+     *         channel, <code>false</code> otherwise.
+     */
+    public boolean computeLocationStats(StatsIndex index, int channel) {
+        StatsIndex.Entry entry = index.getEntry(channel);
+        if (entry == null) {
+            return false;
+        }
+        inputStart = entry.getMin();
+        inputEnd = entry.getMax();
+        locationStats = new double[NB_BIN];
+        noiseReduction = false;
+        computeLocationStats(entry.getHistogram());
+        return true;
+    }
+
+    /**
+     * Determines the location stats, the input window and the noise
+     * reduction flag from the specified histogram.
+     *
+     * @param histogram The histogram of the plane.
+     */
+    void computeLocationStats(Histogram histogram) {
+        if (histogram.getTotal() == 0) {
+            return;
+        }
+        locationStats = histogram.getFractions(NB_BIN);
+        double s = histogram.getPercentile(CLIPPED);
+        double e = histogram.getPercentile(1 - CLIPPED);
+        if (e > s) {
+            inputStart = s;
+            inputEnd = e;
+        }
+        noiseReduction = noiseReduction();
+    }
+
+    /**
+     * Determines the location stats, the input window and the noise
+     * reduction flag from the specified sketch, e.g. the sketches of the
+     * tiles of a plane or of the planes of a stack merged together. The
+     * location stats are computed over the current input window, i.e.
+     * the global range of the channel after a call to
+     * {@link #computeLocationStats(Pixels, PixelBuffer, PlaneDef, int)}.
+     *
+     * @param sketch The sketch of the values.
+     */
+    public void computeLocationStats(QuantileSketch sketch) {
+        if (sketch.getN() == 0) {
+            return;
+        }
+        double min = inputStart, max = inputEnd;
+        locationStats = new double[NB_BIN];
+        if (max > min) {
+            double width = (max - min) / NB_BIN;
+            double previous = 0;
+            for (int i = 0; i < NB_BIN; i++) {
+                double rank = i == NB_BIN - 1 ? 1
+                        : sketch.getRank(min + (i + 1) * width);
+                locationStats[i] = rank - previous;
+                previous = rank;
+            }
+        } else {
+            locationStats[0] = 1;
+        }
+        double s = sketch.getQuantile(CLIPPED);
+        double e = sketch.getQuantile(1 - CLIPPED);
+        if (e > s) {
+            inputStart = s;
+            inputEnd = e;
+        }
+        noiseReduction = noiseReduction();
     }
 
     /**
@@ -316,31 +423,4 @@ public class StatsFactory {
         return inputEnd;
     }
 
-    // inner class
-    class BasicSegment {
-
-        /** Left bound of the segment. */
-        double x1;
-
-        /** Right bound of the segment. */
-        double x2;
-
-        /**
-         * Creates a new instance.
-         * 
-         * @param x1
-         *            The left bound of the segment.
-         * @param x2
-         *            The right bound of the segment.
-         */
-        BasicSegment(double x1, double x2) {
-            if (x2 < x1) {
-                throw new IllegalArgumentException("Segment not valid.");
-            }
-            this.x2 = x2;
-            this.x1 = x1;
-        }
-
-    }
-
 }
@@ -0,0 +1,541 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A compact index of the statistics of a pixels set, holding for each
+ * channel and resolution level the {@link Histogram} of the values, their
+ * minimum and maximum and a set of percentiles. The index is meant to be
+ * stored next to the pixels set, so the input window of a channel can be
+ * determined without reading the pixels data.
+ * <p>
+ * The index is created with a {@link Builder}, which adds the histograms
+ * of the planes one at a time and can be seeded with an existing index to
+ * update it incrementally. An index written to disk is memory-mapped by
+ * {@link #open(File)}; the histogram of an entry is only decoded when
+ * requested.
+ * </p>
+ * <p>
+ * The file starts with a header holding {@link #MAGIC}, the format
+ * {@link #VERSION} and the identifier of the pixels set, followed by a
+ * directory of the entries and the entries themselves. All values are
+ * big-endian.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class StatsIndex {
+
+    /** The first four bytes of an index: <code>OMSI</code>. */
+    public static final int MAGIC = 0x4F4D5349;
+
+    /** The version of the format. */
+    public static final int VERSION = 1;
+
+    /** The fractions of the values stored as percentiles. */
+    private static final double[] PERCENTILES = { 0, 0.001, 0.005, 0.01,
+            0.05, 0.25, 0.5, 0.75, 0.95, 0.99, 0.995, 0.999, 1 };
+
+    /** The size of the header, in bytes. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    /** The size of an element of the directory, in bytes. */
+    private static final int DIRECTORY_ENTRY_SIZE = 4 + 4 + 4;
+
+    /** The identifier of the pixels set. */
+    private final long pixelsId;
+
+    /** The entries, by key. */
+    private final Map<Long, Entry> entries;
+
+    /**
+     * Returns the key of the specified channel and resolution level.
+     *
+     * @param channel The index of the channel.
+     * @param level The resolution level.
+     * @return See above.
+     */
+    private static long key(int channel, int level)
+    {
+        return (long) channel << 32 | (level & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Memory-maps and reads the index stored in the specified file.
+     *
+     * @param file The file to read.
+     * @return See above.
+     * @throws IOException If the file cannot be read or is not a valid
+     *                     index.
+     */
+    public static StatsIndex open(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping remains valid once the channel is closed.
+            return new StatsIndex(channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Creates a new instance reading the header and the directory of the
+     * specified buffer.
+     *
+     * @param buffer The encoded index.
+     * @throws IOException If the buffer does not hold a valid index.
+     */
+    StatsIndex(ByteBuffer buffer) throws IOException
+    {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a statistics index.");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported statistics index version: "
+                    + version);
+        }
+        pixelsId = buffer.getLong(8);
+        int count = buffer.getInt(16);
+        if (count < 0 || HEADER_SIZE
+                + (long) count * DIRECTORY_ENTRY_SIZE > buffer.limit()) {
+            throw new IOException("Corrupted statistics index.");
+        }
+        Map<Long, Entry> map = new TreeMap<Long, Entry>();
+        for (int i = 0; i < count; i++) {
+            int position = HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE;
+            int c = buffer.getInt(position);
+            int level = buffer.getInt(position + 4);
+            int offset = buffer.getInt(position + 8);
+            map.put(key(c, level), new Entry(buffer, c, level, offset));
+        }
+        entries = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Returns the identifier of the pixels set.
+     *
+     * @return See above.
+     */
+    public long getPixelsId()
+    {
+        return pixelsId;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return See above.
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the entry of the specified channel and resolution level or
+     * <code>null</code> if the index has none.
+     *
+     * @param channel The index of the channel.
+     * @param level The resolution level.
+     * @return See above.
+     */
+    public Entry getEntry(int channel, int level)
+    {
+        return entries.get(key(channel, level));
+    }
+
+    /**
+     * Returns the entry of the specified channel computed from the largest
+     * number of values, i.e. usually the full resolution level, or
+     * <code>null</code> if the index has none.
+     *
+     * @param channel The index of the channel.
+     * @return See above.
+     */
+    public Entry getEntry(int channel)
+    {
+        Entry best = null;
+        for (Entry entry : entries.values()) {
+            if (entry.getChannel() == channel
+                    && (best == null || entry.getTotal() > best.getTotal())) {
+                best = entry;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The statistics of a channel at a resolution level. The scalar values
+     * are decoded when the index is opened, the histogram on demand.
+     */
+    public static final class Entry {
+
+        /** The encoded index. */
+        private final ByteBuffer buffer;
+
+        /** The index of the channel. */
+        private final int channel;
+
+        /** The resolution level. */
+        private final int level;
+
+        /** The position of the histogram within the buffer. */
+        private final int histogramOffset;
+
+        /** The lower bound of the range of the histogram. */
+        private final double rangeStart;
+
+        /** The upper bound of the range of the histogram. */
+        private final double rangeEnd;
+
+        /** Whether or not the histogram has one bin per value. */
+        private final boolean exact;
+
+        /** The number of values. */
+        private final long total;
+
+        /** The fractions of the stored percentiles. */
+        private final double[] fractions;
+
+        /** The stored percentiles. */
+        private final double[] percentiles;
+
+        /** The decoded histogram, see {@link #getHistogram()}. */
+        private Histogram histogram;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param buffer The encoded index.
+         * @param channel The index of the channel.
+         * @param level The resolution level.
+         * @param offset The position of the entry within the buffer.
+         * @throws IOException If the entry is not valid.
+         */
+        Entry(ByteBuffer buffer, int channel, int level, int offset)
+            throws IOException
+        {
+            this.buffer = buffer;
+            this.channel = channel;
+            this.level = level;
+            try {
+                rangeStart = buffer.getDouble(offset);
+                rangeEnd = buffer.getDouble(offset + 8);
+                exact = buffer.get(offset + 16) != 0;
+                total = buffer.getLong(offset + 17);
+                int n = buffer.getInt(offset + 25);
+                fractions = new double[n];
+                percentiles = new double[n];
+                int position = offset + 29;
+                for (int i = 0; i < n; i++, position += 16) {
+                    fractions[i] = buffer.getDouble(position);
+                    percentiles[i] = buffer.getDouble(position + 8);
+                }
+                histogramOffset = position;
+                int bins = buffer.getInt(histogramOffset);
+                if (bins < 1 || histogramOffset + 4
+                        + (long) bins * 8 > buffer.limit()) {
+                    throw new IOException("Corrupted statistics index.");
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Corrupted statistics index.", e);
+            }
+        }
+
+        /**
+         * Encodes the statistics of the specified histogram.
+         *
+         * @param buffer The buffer to write into.
+         * @param histogram The histogram to encode.
+         */
+        static void write(ByteBuffer buffer, Histogram histogram)
+        {
+            buffer.putDouble(histogram.getMin());
+            buffer.putDouble(histogram.getMax());
+            buffer.put((byte) (histogram.isExact() ? 1 : 0));
+            buffer.putLong(histogram.getTotal());
+            buffer.putInt(PERCENTILES.length);
+            for (double fraction : PERCENTILES) {
+                buffer.putDouble(fraction);
+                buffer.putDouble(histogram.getPercentile(fraction));
+            }
+            int bins = histogram.getBinCount();
+            buffer.putInt(bins);
+            for (int i = 0; i < bins; i++) {
+                buffer.putLong(histogram.getCount(i));
+            }
+        }
+
+        /**
+         * Returns the size of the encoded statistics of the specified
+         * histogram, in bytes.
+         *
+         * @param histogram The histogram to encode.
+         * @return See above.
+         */
+        static int getSize(Histogram histogram)
+        {
+            return 29 + PERCENTILES.length * 16 + 4
+                    + histogram.getBinCount() * 8;
+        }
+
+        /**
+         * Returns the index of the channel.
+         *
+         * @return See above.
+         */
+        public int getChannel()
+        {
+            return channel;
+        }
+
+        /**
+         * Returns the resolution level.
+         *
+         * @return See above.
+         */
+        public int getLevel()
+        {
+            return level;
+        }
+
+        /**
+         * Returns the number of values.
+         *
+         * @return See above.
+         */
+        public long getTotal()
+        {
+            return total;
+        }
+
+        /**
+         * Returns the lowest value, within the precision of the histogram.
+         *
+         * @return See above.
+         */
+        public double getMin()
+        {
+            return getPercentile(0);
+        }
+
+        /**
+         * Returns the highest value, within the precision of the histogram.
+         *
+         * @return See above.
+         */
+        public double getMax()
+        {
+            return getPercentile(1);
+        }
+
+        /**
+         * Returns the value below which the specified fraction of the values
+         * lies. Stored percentiles are returned without decoding the
+         * histogram.
+         *
+         * @param fraction The fraction of the values, between
+         *                 <code>0</code> and <code>1</code>.
+         * @return See above.
+         * @see Histogram#getPercentile(double)
+         */
+        public double getPercentile(double fraction)
+        {
+            for (int i = 0; i < fractions.length; i++) {
+                if (fractions[i] == fraction) {
+                    return percentiles[i];
+                }
+            }
+            return getHistogram().getPercentile(fraction);
+        }
+
+        /**
+         * Returns the histogram of the values. The histogram is decoded the
+         * first time this method is invoked.
+         *
+         * @return See above.
+         */
+        public synchronized Histogram getHistogram()
+        {
+            if (histogram == null) {
+                int bins = buffer.getInt(histogramOffset);
+                long[] counts = new long[bins];
+                ByteBuffer view = buffer.duplicate();
+                view.position(histogramOffset + 4);
+                view.asLongBuffer().get(counts);
+                Histogram h = new Histogram(rangeStart, rangeEnd, bins,
+                        exact);
+                h.add(counts);
+                histogram = h;
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * Builds an index by adding the histograms of the planes of a pixels
+     * set. The histograms added for the same channel and resolution level
+     * must have the same range and bins, they are merged.
+     */
+    public static class Builder {
+
+        /** The identifier of the pixels set. */
+        private final long pixelsId;
+
+        /** The merged histograms, by key. */
+        private final Map<Long, Histogram> histograms =
+                new TreeMap<Long, Histogram>();
+
+        /**
+         * Creates a new empty builder.
+         *
+         * @param pixelsId The identifier of the pixels set.
+         */
+        public Builder(long pixelsId)
+        {
+            this.pixelsId = pixelsId;
+        }
+
+        /**
+         * Creates a new builder holding the entries of the specified index,
+         * to update it incrementally.
+         *
+         * @param index The index to update.
+         */
+        public Builder(StatsIndex index)
+        {
+            this(index.getPixelsId());
+            for (Map.Entry<Long, Entry> e : index.entries.entrySet()) {
+                histograms.put(e.getKey(), e.getValue().getHistogram().copy());
+            }
+        }
+
+        /**
+         * Adds the histogram of a plane.
+         *
+         * @param channel The index of the channel.
+         * @param level The resolution level.
+         * @param histogram The histogram to add.
+         * @return This builder.
+         * @throws IllegalArgumentException If the histogram does not have
+         *                                  the same bins as the histograms
+         *                                  already added for the channel and
+         *                                  resolution level.
+         */
+        public Builder add(int channel, int level, Histogram histogram)
+        {
+            if (histogram == null) {
+                throw new NullPointerException("No histogram.");
+            }
+            long key = key(channel, level);
+            Histogram h = histograms.get(key);
+            if (h == null) {
+                histograms.put(key, histogram.copy());
+            } else {
+                h.merge(histogram);
+            }
+            return this;
+        }
+
+        /**
+         * Encodes the index.
+         *
+         * @return See above.
+         */
+        private ByteBuffer encode()
+        {
+            int n = histograms.size();
+            long size = HEADER_SIZE + (long) n * DIRECTORY_ENTRY_SIZE;
+            for (Histogram h : histograms.values()) {
+                size += Entry.getSize(h);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("The index is too large.");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(pixelsId);
+            buffer.putInt(n);
+            int offset = HEADER_SIZE + n * DIRECTORY_ENTRY_SIZE;
+            for (Map.Entry<Long, Histogram> e : histograms.entrySet()) {
+                long key = e.getKey();
+                buffer.putInt((int) (key >> 32));
+                buffer.putInt((int) key);
+                buffer.putInt(offset);
+                offset += Entry.getSize(e.getValue());
+            }
+            for (Histogram h : histograms.values()) {
+                Entry.write(buffer, h);
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Creates an in-memory index holding the added histograms.
+         *
+         * @return See above.
+         */
+        public StatsIndex build()
+        {
+            try {
+                return new StatsIndex(encode());
+            } catch (IOException e) {
+                // The encoded buffer is always valid.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Writes the index to the specified file. The index is written to a
+         * temporary file first, which then replaces the specified file so a
+         * reader never sees a partially written index.
+         *
+         * @param file The file to write.
+         * @throws IOException If the index cannot be written.
+         */
+        public void write(File file) throws IOException
+        {
+            ByteBuffer buffer = encode();
+            File parent = file.getAbsoluteFile().getParentFile();
+            File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+            boolean written = false;
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+                written = true;
+            } finally {
+                raf.close();
+                if (!written) {
+                    tmp.delete();
+                }
+            }
+            if (!tmp.renameTo(file)) {
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    tmp.delete();
+                    throw new IOException("Could not replace " + file);
+                }
+            }
+        }
+    }
+}
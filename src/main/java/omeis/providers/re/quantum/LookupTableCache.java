@@ -0,0 +1,382 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.quantum;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of the look-up tables built by the quantization strategies, shared
+ * by all the renderers of the process so that the channels rendered with
+ * the same settings, e.g. the default settings of an image viewed by many
+ * users, use a single table.
+ * <p>
+ * The tables are immutable once cached. A strategy acquires a table and
+ * releases it when it switches to another table or when its renderer is
+ * closed. The cache is bounded by the number of bytes it holds: the least
+ * recently used tables that are no longer referenced are evicted first. The
+ * tables in use are never evicted so the bound may be exceeded while they
+ * are referenced.
+ * </p>
+ * <p>
+ * The cache is thread-safe.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class LookupTableCache {
+
+    /** The system property setting the size of the default cache, in bytes. */
+    public static final String SIZE_PROPERTY = "omero.renderer.lut_cache_size";
+
+    /** The default size of the default cache, in bytes. */
+    public static final int DEFAULT_SIZE = 64 * 1024 * 1024;
+
+    /** The logger for this particular class */
+    private static final Logger log =
+            LoggerFactory.getLogger(LookupTableCache.class);
+
+    /** The cache shared by the strategies, <code>null</code> if disabled. */
+    private static LookupTableCache defaultCache;
+
+    /** Whether or not the default cache has been initialized. */
+    private static boolean defaultInitialized;
+
+    /** The maximum number of bytes held by the unreferenced tables. */
+    private final long maxBytes;
+
+    /** The cached tables, in access order. */
+    private final LinkedHashMap<Key, Entry> tables =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /** The number of bytes held by the cache. */
+    private long size;
+
+    /** The number of requests served from the cache. */
+    private long hits;
+
+    /** The number of requests not served from the cache. */
+    private long misses;
+
+    /**
+     * Returns the cache shared by the strategies, created on first use with
+     * the size set by the {@link #SIZE_PROPERTY} system property. A size of
+     * <code>0</code> disables the cache.
+     *
+     * @return See above or <code>null</code> if the cache is disabled.
+     */
+    public static synchronized LookupTableCache getDefault()
+    {
+        if (!defaultInitialized) {
+            int size = Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE);
+            if (size > 0) {
+                log.info("Creating look-up table cache, size: " + size);
+                defaultCache = new LookupTableCache(size);
+            }
+            defaultInitialized = true;
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Replaces the cache shared by the strategies. The strategies created
+     * before keep using the previous cache.
+     *
+     * @param cache The cache to use or <code>null</code> to disable it.
+     */
+    public static synchronized void setDefault(LookupTableCache cache)
+    {
+        defaultCache = cache;
+        defaultInitialized = true;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxBytes The maximum number of bytes held by the tables which
+     *                 are no longer referenced.
+     */
+    public LookupTableCache(long maxBytes)
+    {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException(
+                    "The number of bytes must not be negative.");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Evicts the least recently used tables which are no longer referenced
+     * until the cache holds at most its maximum number of bytes.
+     */
+    private void evict()
+    {
+        Iterator<Entry> i = tables.values().iterator();
+        while (size > maxBytes && i.hasNext()) {
+            Entry e = i.next();
+            if (e.references == 0) {
+                size -= e.table.length;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the table cached for the specified key and increments its
+     * reference count.
+     *
+     * @param key The key of the table.
+     * @return See above or <code>null</code> if the table is not cached.
+     */
+    synchronized byte[] acquire(Key key)
+    {
+        Entry e = tables.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        e.references++;
+        return e.table;
+    }
+
+    /**
+     * Caches the specified table and increments its reference count. If a
+     * table is already cached for the key, it is acquired instead and
+     * returned.
+     *
+     * @param key The key of the table.
+     * @param table The table to cache, which must no longer be modified.
+     * @return The cached table.
+     */
+    synchronized byte[] put(Key key, byte[] table)
+    {
+        Entry e = tables.get(key);
+        if (e == null) {
+            e = new Entry(table);
+            tables.put(key, e);
+            size += table.length;
+        }
+        e.references++;
+        evict();
+        return e.table;
+    }
+
+    /**
+     * Decrements the reference count of the table cached for the specified
+     * key.
+     *
+     * @param key The key of the table.
+     */
+    synchronized void release(Key key)
+    {
+        Entry e = tables.get(key);
+        if (e != null && e.references > 0) {
+            e.references--;
+            if (e.references == 0) {
+                evict();
+            }
+        }
+    }
+
+    /** Discards all the tables which are no longer referenced. */
+    public synchronized void clear()
+    {
+        Iterator<Map.Entry<Key, Entry>> i = tables.entrySet().iterator();
+        while (i.hasNext()) {
+            Entry e = i.next().getValue();
+            if (e.references == 0) {
+                size -= e.table.length;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tables held by the cache.
+     *
+     * @return See above.
+     */
+    public synchronized int getCount()
+    {
+        return tables.size();
+    }
+
+    /**
+     * Returns the number of bytes held by the cache.
+     *
+     * @return See above.
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the number of requests served from the cache.
+     *
+     * @return See above.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of requests not served from the cache.
+     *
+     * @return See above.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /** A cached table and the number of strategies using it. */
+    private static final class Entry {
+
+        /** The table. */
+        private final byte[] table;
+
+        /** The number of strategies using the table. */
+        private int references;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param table The table.
+         */
+        Entry(byte[] table)
+        {
+            this.table = table;
+        }
+    }
+
+    /**
+     * Identifies a table by the settings it is built from: the bounds of the
+     * table, the global range and the window of the channel, the mapping
+     * curve and the quantum definition.
+     */
+    static final class Key {
+
+        /** The value of the pixels type. */
+        private final String pixelsType;
+
+        /** The bounds of the table. */
+        private final int lutMin, lutMax;
+
+        /** The global range of the channel. */
+        private final double globalMin, globalMax;
+
+        /** The input window. */
+        private final double windowStart, windowEnd;
+
+        /** The class of the mapping curve. */
+        private final String family;
+
+        /** The curve coefficient. */
+        private final double coefficient;
+
+        /** The noise reduction flag. */
+        private final boolean noiseReduction;
+
+        /** The quantum definition. */
+        private final int bitResolution, cdStart, cdEnd;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param pixelsType The value of the pixels type.
+         * @param lutMin The lower bound of the table.
+         * @param lutMax The upper bound of the table.
+         * @param globalMin The global minimum of the channel.
+         * @param globalMax The global maximum of the channel.
+         * @param windowStart The start of the input window.
+         * @param windowEnd The end of the input window.
+         * @param family The class of the mapping curve.
+         * @param coefficient The curve coefficient.
+         * @param noiseReduction The noise reduction flag.
+         * @param bitResolution The bit resolution.
+         * @param cdStart The start of the codomain interval.
+         * @param cdEnd The end of the codomain interval.
+         */
+        Key(String pixelsType, int lutMin, int lutMax, double globalMin,
+                double globalMax, double windowStart, double windowEnd,
+                String family, double coefficient, boolean noiseReduction,
+                int bitResolution, int cdStart, int cdEnd)
+        {
+            this.pixelsType = pixelsType;
+            this.lutMin = lutMin;
+            this.lutMax = lutMax;
+            this.globalMin = globalMin;
+            this.globalMax = globalMax;
+            this.windowStart = windowStart;
+            this.windowEnd = windowEnd;
+            this.family = family;
+            this.coefficient = coefficient;
+            this.noiseReduction = noiseReduction;
+            this.bitResolution = bitResolution;
+            this.cdStart = cdStart;
+            this.cdEnd = cdEnd;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return lutMin == k.lutMin && lutMax == k.lutMax
+                    && Double.compare(globalMin, k.globalMin) == 0
+                    && Double.compare(globalMax, k.globalMax) == 0
+                    && Double.compare(windowStart, k.windowStart) == 0
+                    && Double.compare(windowEnd, k.windowEnd) == 0
+                    && Double.compare(coefficient, k.coefficient) == 0
+                    && noiseReduction == k.noiseReduction
+                    && bitResolution == k.bitResolution
+                    && cdStart == k.cdStart && cdEnd == k.cdEnd
+                    && equals(pixelsType, k.pixelsType)
+                    && equals(family, k.family);
+        }
+
+        /**
+         * Returns <code>true</code> if the values are equal or both
+         * <code>null</code>.
+         *
+         * @param a The first value.
+         * @param b The second value.
+         * @return See above.
+         */
+        private static boolean equals(String a, String b)
+        {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int h = 17;
+            h = 31 * h + lutMin;
+            h = 31 * h + lutMax;
+            h = 31 * h + Double.valueOf(globalMin).hashCode();
+            h = 31 * h + Double.valueOf(globalMax).hashCode();
+            h = 31 * h + Double.valueOf(windowStart).hashCode();
+            h = 31 * h + Double.valueOf(windowEnd).hashCode();
+            h = 31 * h + Double.valueOf(coefficient).hashCode();
+            h = 31 * h + (noiseReduction ? 1 : 0);
+            h = 31 * h + bitResolution;
+            h = 31 * h + cdStart;
+            h = 31 * h + cdEnd;
+            h = 31 * h + (pixelsType == null ? 0 : pixelsType.hashCode());
+            h = 31 * h + (family == null ? 0 : family.hashCode());
+            return h;
+        }
+    }
+}
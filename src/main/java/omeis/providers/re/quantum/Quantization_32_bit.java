@@ -23,13 +23,6 @@
 
 package omeis.providers.re.quantum;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-
 import ome.model.core.Pixels;
 import ome.model.display.QuantumDef;
 
@@ -82,8 +75,11 @@ public class Quantization_32_bit extends QuantumStrategy {
      */
     private int cdStart, cdEnd;
 
-    /** The mapped values.*/
-    private LoadingCache<Double, Integer> values;
+    /**
+     * The quantized value of each range of the input window or
+     * <code>null</code> if they have to be computed.
+     */
+    private volatile WindowRanges ranges;
 
     /**
      * Initializes the coefficient of the normalize mapping operation.
@@ -160,34 +156,33 @@ public class Quantization_32_bit extends QuantumStrategy {
     /** The input window size changed, re-map the values. */
     @Override
     protected void onWindowChange() {
-        values.invalidateAll();
+        ranges = null;
+        if (valueMapper == null) {
+            return;
+        }
+        try {
+            ranges = buildRanges();
+        } catch (QuantizationException e) {
+            // The values will be mapped when first quantized.
+        }
     }
 
     /**
-     * Maps the value.
+     * Maps a value onto the codomain interval. The normalized and decile
+     * maps must have been initialized.
      *
      * @param value The value to handle.
+     * @param k The coefficient of the selected curve.
+     * @param a1 The slope of the map to the codomain interval.
      * @return The mapped value.
-     * @throws QuantizationException Thrown if an error occurred during
-     *                               the mapping.
      */
-    private int _quantize(double value)
-                throws QuantizationException
+    private int map(double value, double k, double a1)
     {
-        double dStart = getWindowStart(), dEnd = getWindowEnd();
-        double k = getCurveCoefficient();
-        double a1 = (qDef.getCdEnd().intValue() - qDef.getCdStart().intValue())
-                / qDef.getBitResolution().doubleValue();
-
-        // Initializes the normalized map.
-        initNormalizedMap(k);
-        // Initializes the decile map.
-        double v = initDecileMap(dStart, dEnd);
-        QuantumMap normalize = new PolynomialMap();
-
+        double v;
+        // Polynomial map of coefficient 1 i.e. identity.
         if (value > Q1) {
             if (value <= Q9) {
-                v = aDecile * normalize.transform(value, 1) - bDecile;
+                v = aDecile * value - bDecile;
             } else {
                 v = cdEnd;
             }
@@ -201,6 +196,36 @@ public class Quantization_32_bit extends QuantumStrategy {
         return ((byte) v) & 0xFF;
     }
 
+    /**
+     * Maps each range of the input window onto the codomain interval.
+     *
+     * @return See above.
+     * @throws QuantizationException Thrown if no mapping has been set.
+     */
+    private synchronized WindowRanges buildRanges()
+        throws QuantizationException
+    {
+        if (valueMapper == null) {
+            throw new QuantizationException("No mapping defined.");
+        }
+        double dStart = getWindowStart(), dEnd = getWindowEnd();
+        double k = getCurveCoefficient();
+        int start = qDef.getCdStart().intValue();
+        int end = qDef.getCdEnd().intValue();
+        double a1 = (end - start) / qDef.getBitResolution().doubleValue();
+
+        // Initializes the normalized map.
+        initNormalizedMap(k);
+        // Initializes the decile map.
+        initDecileMap(dStart, dEnd);
+
+        WindowRanges r = new WindowRanges(dStart, dEnd, end - start + 1);
+        for (int i = 0; i < r.size(); i++) {
+            r.set(i, map(r.getRepresentative(i), k, a1));
+        }
+        return r;
+    }
+
     /**
      * Creates a new strategy.
      *
@@ -211,13 +236,6 @@ public class Quantization_32_bit extends QuantumStrategy {
      */
     public Quantization_32_bit(QuantumDef qd, Pixels pixels) {
         super(qd, pixels);
-        values = CacheBuilder.newBuilder()
-                .expireAfterWrite(10, TimeUnit.MINUTES)
-                .build(new CacheLoader<Double, Integer>() {
-                    public Integer load(Double key) throws Exception {
-                        return _quantize(key);
-                    }
-                });
     }
 
     /**
@@ -227,10 +245,30 @@ public class Quantization_32_bit extends QuantumStrategy {
      */
     @Override
     public int quantize(double value) throws QuantizationException {
-        try {
-            return values.get(getMiddleRange(value));
-        } catch (ExecutionException e) {
-            throw new QuantizationException(e);
+        WindowRanges r = ranges;
+        if (r == null) {
+            r = buildRanges();
+            ranges = r;
+        }
+        return r.get(value);
+    }
+
+    /**
+     * Overridden to look up the ranges once for the whole array.
+     *
+     * @see QuantumStrategy#quantize(double[], int[], int)
+     */
+    @Override
+    public void quantize(double[] values, int[] result, int length)
+        throws QuantizationException
+    {
+        WindowRanges r = ranges;
+        if (r == null) {
+            r = buildRanges();
+            ranges = r;
+        }
+        for (int i = 0; i < length; i++) {
+            result[i] = r.get(values[i]);
         }
     }
 
@@ -7,8 +7,16 @@
 
 package omeis.providers.re.quantum;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import ome.model.core.Pixels;
 import ome.model.display.QuantumDef;
+import omeis.providers.re.RenderingExecutor;
 
 /**
  * Quantization process. In charge of building a look-up table for each active
@@ -31,9 +39,34 @@ import ome.model.display.QuantumDef;
  */
 public class Quantization_8_16_bit extends QuantumStrategy {
 
-    /** The look-up table. */
+    /** The number of entries mapped with a curve computed by a task. */
+    private static final int CHUNK_SIZE = 8192;
+
+    /** The number of entries mapped linearly computed by a task. */
+    private static final int LINEAR_CHUNK_SIZE = 32768;
+
+    /** The look-up table, either {@link #work} or a shared table. */
     private byte[] LUT;
 
+    /**
+     * The table built by this strategy, <code>null</code> if it has to be
+     * allocated.
+     */
+    private byte[] work;
+
+    /** The cache sharing the tables or <code>null</code>. */
+    private final LookupTableCache tableCache;
+
+    /** The key of the shared table in use or <code>null</code>. */
+    private LookupTableCache.Key tableKey;
+
+    /**
+     * The key of the table built but not shared yet or <code>null</code>.
+     * The table is shared when first used so the windows set while dragging
+     * a slider do not fill the cache.
+     */
+    private volatile LookupTableCache.Key pendingKey;
+
     /** The lowest pixel intensity value. */
     private int min;
 
@@ -73,6 +106,29 @@ public class Quantization_8_16_bit extends QuantumStrategy {
      */
     private int cdStart, cdEnd;
 
+    /**
+     * The first entry of the window when the table was last built or
+     * <code>-1</code> if the table has to be fully built.
+     */
+    private int builtStart = -1;
+
+    /**
+     * The first and the entry after the last entry of the ramp i.e. the
+     * values of the decile interval, when the table was last built.
+     */
+    private int builtRampStart, builtRampEnd;
+
+    /**
+     * The parameters the ramp depends on when the table was last built.
+     * Those are the parameters of the curve and the position of the window
+     * in the normalized interval, not the position of the window in the
+     * table.
+     */
+    private double[] builtParams;
+
+    /** The curve when the table was last built. */
+    private QuantumMap builtMapper;
+
     /**
      * Initializes the LUT. Comparable getGlobalMin and getGlobalMax assumed to
      * be Integer, QuantumStrategy enforces min &lt; max. QuantumFactory makes
@@ -109,7 +165,8 @@ public class Quantization_8_16_bit extends QuantumStrategy {
                     "Lookup table of size %d greater than supported size %f",
                     range, MAX_SIZE_LUT));
         }
-        LUT = new byte[lutMax-lutMin+1];
+        work = null;
+        builtStart = -1;
     }
 
     /**
@@ -123,17 +180,11 @@ public class Quantization_8_16_bit extends QuantumStrategy {
     {
         int pMax = (int) getPixelsTypeMax();
         if (pMax != 0) return;
-        if (s < lutMin && e > lutMax) {
-            lutMin = s;
-            lutMax = e;
-            LUT = new byte[lutMax-lutMin+1];
-        } else if (s < lutMin && e <= lutMax) {
-            lutMin = s;
-            LUT = new byte[lutMax-lutMin+1];
-        } else if (s >= lutMin && e > lutMax) {
-            lutMax = e;
-            LUT = new byte[lutMax-lutMin+1];
-        }
+        if (s >= lutMin && e <= lutMax) return;
+        lutMin = Math.min(s, lutMin);
+        lutMax = Math.max(e, lutMax);
+        work = null;
+        builtStart = -1;
     }
 
     /**
@@ -208,6 +259,107 @@ public class Quantization_8_16_bit extends QuantumStrategy {
         return v;
     }
 
+    /**
+     * Maps the specified value of the normalized interval onto the codomain.
+     *
+     * @param v The value to map.
+     * @param k The coefficient of the selected curve.
+     * @param doTransform Pass <code>true</code> to apply the selected curve.
+     * @param a1 The slope of the map onto the codomain.
+     * @return See above.
+     */
+    private byte map(double v, double k, boolean doTransform, double a1)
+    {
+        if (doTransform) {
+            v = aNormalized * (valueMapper.transform(v, k) - ysNormalized);
+        } else {
+            v = aNormalized * (v - ysNormalized);
+        }
+        v = Math.round(v);
+        v = Math.round(a1 * v + cdStart);
+        return (byte) v;
+    }
+
+    /**
+     * Fills the entries of the table corresponding to the specified values of
+     * the decile interval. The values are mapped relatively to the first
+     * entry of the window so that the entries only depend on their position
+     * in the window.
+     *
+     * @param from The first value.
+     * @param to The value after the last value.
+     * @param s The first entry of the window.
+     * @param c The normalized value of the first entry of the window.
+     * @param k The coefficient of the selected curve.
+     * @param doTransform Pass <code>true</code> to apply the selected curve.
+     * @param a1 The slope of the map onto the codomain.
+     */
+    private void fillLinear(int from, int to, int s, double c, double k,
+            boolean doTransform, double a1)
+    {
+        byte[] lut = work;
+        for (int x = from; x < to; x++) {
+            lut[x - lutMin] = map(aDecile * (x - s) + c, k, doTransform, a1);
+        }
+    }
+
+    /**
+     * Fills the entries of the table corresponding to the specified values of
+     * the decile interval. Large ranges are split into chunks filled
+     * concurrently, the first one in the current thread. The chunks are
+     * larger if no curve is applied as the entries are cheaper to compute.
+     * The range is filled in the current thread if it is a rendering thread
+     * since waiting for the chunks there could deadlock the shared executor.
+     *
+     * @param from The first value.
+     * @param to The value after the last value.
+     * @param s The first entry of the window.
+     * @param c The normalized value of the first entry of the window.
+     * @param k The coefficient of the selected curve.
+     * @param doTransform Pass <code>true</code> to apply the selected curve.
+     * @param a1 The slope of the map onto the codomain.
+     */
+    private void fillLinearConcurrently(int from, int to, final int s,
+            final double c, final double k, final boolean doTransform,
+            final double a1)
+    {
+        int chunk = doTransform ? CHUNK_SIZE : LINEAR_CHUNK_SIZE;
+        if (to - from < 2 * chunk || RenderingExecutor.isRenderingThread()) {
+            fillLinear(from, to, s, c, k, doTransform, a1);
+            return;
+        }
+        ExecutorService executor = RenderingExecutor.getDefault();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int x = from + chunk; x < to; x += chunk) {
+            final int start = x;
+            final int end = Math.min(to, x + chunk);
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    fillLinear(start, end, s, c, k, doTransform, a1);
+                }
+            }));
+        }
+        fillLinear(from, from + chunk, s, c, k, doTransform, a1);
+        RuntimeException failure = null;
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new RuntimeException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new RuntimeException(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     /**
      * Maps the input interval onto the codomain [cdStart, cdEnd] sub-interval
      * of [0, 255]. Since the user can select the bitResolution 2^n-1 where n =
@@ -218,6 +370,16 @@ public class Quantization_8_16_bit extends QuantumStrategy {
      * (qDef.cdEnd-qDef.cdStart)/((double) qDef.bitResolution); g: [0,
      * 2^n-1]-&lt;[cdStart, cdEnd]. For some reasons, we cannot compute directly
      * gof.
+     * <p>
+     * The table is built incrementally. The values clamped to the decile
+     * bounds are mapped once and filled. The values of the decile interval,
+     * the ramp, are mapped relatively to the start of the window so they
+     * only depend on their position in the window: when the window is moved
+     * without changing its width, which is what dragging a slider does, the
+     * ramp entries still in the window are moved instead of being computed
+     * again. If a {@link LookupTableCache} is used, the table is looked up
+     * first and a copy of the table built is shared when first used.
+     * </p>
      */
     private void buildLUT() {
     	double dStart = getWindowStart(), dEnd = getWindowEnd();
@@ -236,42 +398,103 @@ public class Quantization_8_16_bit extends QuantumStrategy {
         // Initializes the normalized map.
         initNormalizedMap(k);
         // Initializes the decile map.
-        double v = initDecileMap(dStart, dEnd);
-
-        // Build the LUT
-        int x = lutMin;
-        for (; x < dStart; ++x) {
-            LUT[x - lutMin] = (byte) cdStart;
-        }
+        initDecileMap(dStart, dEnd);
 
         boolean doTransform = true;
         if (valueMapper instanceof PolynomialMap && k == 1.0) {
             doTransform = false;
         }
-        for (; x < dEnd; ++x) {
-        	if (x > Q1) {
-                if (x <= Q9) {
-                    v = aDecile * x - bDecile;
-                } else {
-                    v = cdEnd;
-                }
-            } else {
-                v = cdStart;
+
+        LookupTableCache.Key key = null;
+        if (tableCache != null) {
+            // A tabulated map is identified by the map and its sampling.
+            String mapper = valueMapper instanceof TabulatedQuantumMap ?
+                    valueMapper.toString() : valueMapper.getClass().getName();
+            key = new LookupTableCache.Key(pixels.getPixelsType().getValue(),
+                    lutMin, lutMax, getGlobalMin(), getGlobalMax(), dStart,
+                    dEnd, mapper, k,
+                    getNoiseReduction(), qDef.getBitResolution().intValue(),
+                    qDef.getCdStart().intValue(), qDef.getCdEnd().intValue());
+            if (key.equals(tableKey) || key.equals(pendingKey)) {
+                return;
             }
-        	
-            if (doTransform) {
-                v = aNormalized * (valueMapper.transform(v, k) - ysNormalized);
+            byte[] shared = tableCache.acquire(key);
+            if (shared != null) {
+                release();
+                LUT = shared;
+                tableKey = key;
+                return;
+            }
+        }
+        if (work == null) {
+            work = new byte[lutMax-lutMin+1];
+            builtStart = -1;
+        }
+
+        // The first entry of the window and the entry after it.
+        int s = (int) Math.max(lutMin, Math.min(lutMax + 1,
+                Math.ceil(dStart)));
+        int e = (int) Math.max(s, Math.min(lutMax + 1, Math.ceil(dEnd)));
+        // The first values above Q1 and Q9 i.e. the ramp.
+        int q1 = (int) Math.max(s, Math.min(e, Math.floor(Q1) + 1));
+        int q9 = (int) Math.max(q1, Math.min(e, Math.floor(Q9) + 1));
+        // The normalized value of the first entry of the window.
+        double c = aDecile * s - bDecile;
+        double[] params = new double[] {k, a1, aNormalized, ysNormalized,
+                aDecile, c, cdStart};
+
+        // The ramp, moving the entries computed for the previous window.
+        int copyStart = q9, copyEnd = q9;
+        if (builtStart >= 0 && valueMapper == builtMapper
+                && Arrays.equals(params, builtParams)) {
+            int shift = s - builtStart;
+            copyStart = Math.max(q1, builtRampStart + shift);
+            copyEnd = Math.min(q9, builtRampEnd + shift);
+            if (copyStart < copyEnd) {
+                System.arraycopy(work, copyStart - shift - lutMin, work,
+                        copyStart - lutMin, copyEnd - copyStart);
             } else {
-                v = aNormalized * (v - ysNormalized);
+                copyStart = copyEnd = q9;
             }
-            v = Math.round(v);
-            v = Math.round(a1 * v + cdStart);
-            LUT[x - lutMin] = (byte) v;
         }
+        fillLinearConcurrently(q1, copyStart, s, c, k, doTransform, a1);
+        fillLinearConcurrently(copyEnd, q9, s, c, k, doTransform, a1);
+        // The values clamped to the decile bounds and outside the window.
+        Arrays.fill(work, 0, s - lutMin, (byte) cdStart);
+        if (s < q1) {
+            Arrays.fill(work, s - lutMin, q1 - lutMin,
+                    map(cdStart, k, doTransform, a1));
+        }
+        if (q9 < e) {
+            Arrays.fill(work, q9 - lutMin, e - lutMin,
+                    map(cdEnd, k, doTransform, a1));
+        }
+        Arrays.fill(work, e - lutMin, work.length, (byte) cdEnd);
+
+        builtStart = s;
+        builtRampStart = q1;
+        builtRampEnd = q9;
+        builtParams = params;
+        builtMapper = valueMapper;
+
+        release();
+        LUT = work;
+        pendingKey = key;
+    }
 
-        for (; x <= lutMax; ++x) {
-            LUT[x - lutMin] = (byte) cdEnd;
+    /**
+     * Shares the table built, if not shared yet, and uses the cached table
+     * instead.
+     */
+    private synchronized void publish() {
+        LookupTableCache.Key key = pendingKey;
+        if (key == null) {
+            return;
         }
+        byte[] shared = tableCache.put(key, work.clone());
+        LUT = shared;
+        tableKey = key;
+        pendingKey = null;
     }
 
     /** The input window size changed, rebuild the LUT. */
@@ -289,7 +512,38 @@ public class Quantization_8_16_bit extends QuantumStrategy {
      *            The pixels
      */
     public Quantization_8_16_bit(QuantumDef qd, Pixels pixels) {
+        this(qd, pixels, LookupTableCache.getDefault());
+    }
+
+    /**
+     * Creates a new strategy sharing its tables through the specified cache.
+     *
+     * @param qd
+     *            Quantum definition object, contained mapping data.
+     * @param pixels
+     *            The pixels
+     * @param tableCache
+     *            The cache sharing the tables or <code>null</code>.
+     */
+    public Quantization_8_16_bit(QuantumDef qd, Pixels pixels,
+            LookupTableCache tableCache) {
         super(qd, pixels);
+        this.tableCache = tableCache;
+    }
+
+    /**
+     * Overridden to release the shared table in use. The table remains
+     * valid.
+     *
+     * @see QuantumStrategy#release()
+     */
+    @Override
+    public void release() {
+        pendingKey = null;
+        if (tableKey != null) {
+            tableCache.release(tableKey);
+            tableKey = null;
+        }
     }
 
     /**
@@ -299,6 +553,9 @@ public class Quantization_8_16_bit extends QuantumStrategy {
      */
     @Override
     public int quantize(double value) throws QuantizationException {
+        if (pendingKey != null) {
+            publish();
+        }
         int x = (int) value;
         if (x < lutMin) {
             double r = getOriginalGlobalMax()-getOriginalGlobalMin();
@@ -321,4 +578,30 @@ public class Quantization_8_16_bit extends QuantumStrategy {
         return i & 0xFF;
     }
 
+    /**
+     * Overridden to look up the values in the table directly, falling back
+     * to {@link #quantize(double)} for the values outside of the table.
+     *
+     * @see QuantumStrategy#quantize(int[], int[], int)
+     */
+    @Override
+    public void quantize(int[] values, int[] result, int length)
+        throws QuantizationException
+    {
+        if (pendingKey != null) {
+            publish();
+        }
+        byte[] lut = LUT;
+        int min = lutMin;
+        int max = lutMax;
+        for (int i = 0; i < length; i++) {
+            int x = values[i];
+            if (x < min || x > max) {
+                result[i] = quantize(x);
+            } else {
+                result[i] = lut[x - min] & 0xFF;
+            }
+        }
+    }
+
 }
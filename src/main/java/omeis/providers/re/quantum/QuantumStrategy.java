@@ -341,12 +341,18 @@ public abstract class QuantumStrategy {
     }
 
     /**
-     * Sets the quantum map.
+     * Sets the quantum map, e.g. a {@link TabulatedQuantumMap} of the map of
+     * the current family. The look-up table is rebuilt if the mapping has
+     * already been set. Note that {@link #setMapping(Family, double, boolean)}
+     * replaces the map by the analytic map of the family.
      * 
      * @param qMap The value to set.
      */
     public void setMap(QuantumMap qMap) {
         valueMapper = qMap;
+        if (family != null) {
+            onWindowChange();
+        }
     }
 
     /**
@@ -446,6 +452,12 @@ public abstract class QuantumStrategy {
      */
     protected abstract void onWindowChange();
 
+    /**
+     * Releases the resources shared with other strategies, e.g. a look-up
+     * table, when the strategy is no longer used. Does nothing by default.
+     */
+    public void release() {}
+
     /**
      * Maps a value from [windowStart, windowEnd] to a value in the codomain
      * interval.
@@ -460,4 +472,44 @@ public abstract class QuantumStrategy {
      */
     public abstract int quantize(double value) throws QuantizationException;
 
+    /**
+     * Maps <code>length</code> values from [windowStart, windowEnd] to values
+     * in the codomain interval. This is equivalent to invoking
+     * {@link #quantize(double)} for each value but allows sub-classes to
+     * process a row of pixels without boxing or per-value dispatch.
+     * <code>values</code> and <code>result</code> may be the same array.
+     *
+     * @param values The pixel intensity values.
+     * @param result The array to fill with the quantized values.
+     * @param length The number of values to quantize.
+     * @throws QuantizationException
+     *             If a value is not in the interval [globalMin, globalMax].
+     */
+    public void quantize(int[] values, int[] result, int length)
+        throws QuantizationException
+    {
+        for (int i = 0; i < length; i++) {
+            result[i] = quantize(values[i]);
+        }
+    }
+
+    /**
+     * Maps <code>length</code> values from [windowStart, windowEnd] to values
+     * in the codomain interval. This is equivalent to invoking
+     * {@link #quantize(double)} for each value.
+     *
+     * @param values The pixel intensity values.
+     * @param result The array to fill with the quantized values.
+     * @param length The number of values to quantize.
+     * @throws QuantizationException
+     *             If a value is not in the interval [globalMin, globalMax].
+     */
+    public void quantize(double[] values, int[] result, int length)
+        throws QuantizationException
+    {
+        for (int i = 0; i < length; i++) {
+            result[i] = quantize(values[i]);
+        }
+    }
+
 }
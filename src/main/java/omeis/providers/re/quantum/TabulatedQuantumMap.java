@@ -0,0 +1,253 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.quantum;
+
+/**
+ * Evaluates a {@link QuantumMap} by linear interpolation in a table sampled
+ * over the <code>[1, {@link QuantumStrategy#MAX}]</code> interval i.e. the
+ * normalized domain the strategies map the values from, so that the
+ * logarithmic, exponential and polynomial families cost about the same as
+ * the linear one. The values outside of that interval, where some maps are
+ * singular, are mapped with the analytic form.
+ * <p>
+ * The table is built for the curve coefficient of the first call and
+ * re-built when the coefficient changes. The values of the table at the
+ * integers are exact, the error between them is reported by
+ * {@link #getMaxError(double)}. If the map overflows over the interval, the
+ * analytic form is used instead.
+ * </p>
+ * <p>
+ * A tabulated map is selected with {@link QuantumStrategy#setMap(QuantumMap)}
+ * e.g. <code>qs.setMap(new TabulatedQuantumMap(new LogarithmicMap()))</code>.
+ * The instances are thread-safe.
+ * </p>
+ *
+ * @since 5.5
+ */
+public class TabulatedQuantumMap implements QuantumMap {
+
+    /** The default number of samples per unit of the domain. */
+    public static final int DEFAULT_SAMPLES = 16;
+
+    /** The lower bound of the tabulated domain. */
+    static final int DOMAIN_START = 1;
+
+    /** The upper bound of the tabulated domain. */
+    static final int DOMAIN_END = QuantumStrategy.MAX;
+
+    /** The map to tabulate. */
+    private final QuantumMap map;
+
+    /** The number of samples per unit of the domain. */
+    private final int samples;
+
+    /** The table built for the last coefficient. */
+    private volatile Table table;
+
+    /** The values of the map for a coefficient. */
+    private static final class Table {
+
+        /** The coefficient of the curve. */
+        final double k;
+
+        /** The sampled values or <code>null</code> if the map overflows. */
+        final double[] values;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param k The coefficient of the curve.
+         * @param values The sampled values or <code>null</code>.
+         */
+        Table(double k, double[] values)
+        {
+            this.k = k;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Creates a new instance with {@link #DEFAULT_SAMPLES} samples per unit.
+     *
+     * @param map The map to tabulate. Mustn't be <code>null</code>.
+     */
+    public TabulatedQuantumMap(QuantumMap map)
+    {
+        this(map, DEFAULT_SAMPLES);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param map The map to tabulate. Mustn't be <code>null</code>.
+     * @param samples The number of samples per unit of the domain.
+     */
+    public TabulatedQuantumMap(QuantumMap map, int samples)
+    {
+        if (map == null) {
+            throw new NullPointerException("No map.");
+        }
+        if (samples < 1) {
+            throw new IllegalArgumentException(
+                    "The number of samples must be positive: " + samples);
+        }
+        this.map = map;
+        this.samples = samples;
+    }
+
+    /**
+     * Returns the table for the specified coefficient, building it if
+     * required.
+     *
+     * @param k The coefficient of the curve.
+     * @return See above.
+     */
+    private double[] getTable(double k)
+    {
+        Table t = table;
+        if (t == null || Double.compare(t.k, k) != 0) {
+            int n = (DOMAIN_END - DOMAIN_START) * samples + 1;
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                double v = i % samples == 0 ?
+                        map.transform(DOMAIN_START + i / samples, k) :
+                        map.transform(DOMAIN_START + (double) i / samples, k);
+                if (Double.isNaN(v) || Double.isInfinite(v)) {
+                    values = null;
+                    break;
+                }
+                values[i] = v;
+            }
+            t = new Table(k, values);
+            table = t;
+        }
+        return t.values;
+    }
+
+    /**
+     * Interpolates the value of the map.
+     *
+     * @param x The input value.
+     * @param k The coefficient of the curve.
+     * @return The mapped value.
+     */
+    private double interpolate(double x, double k)
+    {
+        if (!(x >= DOMAIN_START && x <= DOMAIN_END)) {
+            return map.transform(x, k);
+        }
+        double[] values = getTable(k);
+        if (values == null) {
+            return map.transform(x, k);
+        }
+        double p = (x - DOMAIN_START) * samples;
+        int i = (int) p;
+        if (i >= values.length - 1) {
+            return values[values.length - 1];
+        }
+        return values[i] + (p - i) * (values[i + 1] - values[i]);
+    }
+
+    /**
+     * Returns the map which is tabulated.
+     *
+     * @return See above.
+     */
+    public QuantumMap getMap()
+    {
+        return map;
+    }
+
+    /**
+     * Returns the number of samples per unit of the domain.
+     *
+     * @return See above.
+     */
+    public int getSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * Returns the maximum error of the interpolation for the specified
+     * coefficient, relative to the range of the map over the tabulated
+     * domain. Multiply by the bit resolution of the quantum definition to get
+     * the error in quantized values. The error is estimated at the middle of
+     * each sampling interval.
+     *
+     * @param k The coefficient of the curve.
+     * @return See above or <code>0</code> if the analytic form is used.
+     */
+    public double getMaxError(double k)
+    {
+        double[] values = getTable(k);
+        if (values == null) {
+            return 0;
+        }
+        double range = Math.abs(values[values.length - 1] - values[0]);
+        if (range == 0) {
+            return 0;
+        }
+        double max = 0;
+        for (int i = 0; i < values.length - 1; i++) {
+            double x = DOMAIN_START + (i + 0.5) / samples;
+            double e = Math.abs(interpolate(x, k) - map.transform(x, k));
+            if (e > max) {
+                max = e;
+            }
+        }
+        return max / range;
+    }
+
+    /**
+     * Implemented as specified in {@link QuantumMap}. The values of the
+     * tabulated domain are exact.
+     *
+     * @see QuantumMap#transform(int, double)
+     */
+    public double transform(int x, double k)
+    {
+        if (x < DOMAIN_START || x > DOMAIN_END) {
+            return map.transform(x, k);
+        }
+        double[] values = getTable(k);
+        if (values == null) {
+            return map.transform(x, k);
+        }
+        return values[(x - DOMAIN_START) * samples];
+    }
+
+    /**
+     * Implemented as specified in {@link QuantumMap}.
+     *
+     * @see QuantumMap#transform(double, double)
+     */
+    public double transform(double x, double k)
+    {
+        return interpolate(x, k);
+    }
+
+    /**
+     * Implemented as specified in {@link QuantumMap}.
+     *
+     * @see QuantumMap#transform(float, double)
+     */
+    public double transform(float x, double k)
+    {
+        return interpolate(x, k);
+    }
+
+    /**
+     * Returns the name identifying the tabulated map and its sampling.
+     *
+     * @return See above.
+     */
+    @Override
+    public String toString()
+    {
+        return getClass().getName() + "[" + map.getClass().getName() + ", "
+                + samples + "]";
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.quantum;
+
+/**
+ * Divides the input window into as many ranges as values in the codomain
+ * interval and holds the quantized value of each range. A value is mapped
+ * onto the same representative value as
+ * {@link QuantumStrategy#getMiddleRange(double)}, so quantizing a value only
+ * requires to compute the index of its range and to read an array.
+ * <p>
+ * The ranges are laid out as follows: the values below the window, the
+ * values above the window, the start of the window and then one element per
+ * range within the window.
+ * </p>
+ *
+ * @since 5.5
+ */
+class WindowRanges {
+
+    /** The index of the values below the window. */
+    private static final int BELOW = 0;
+
+    /** The index of the values above the window. */
+    private static final int ABOVE = 1;
+
+    /** The index of the start of the window. */
+    private static final int START = 2;
+
+    /** The index of the first range within the window. */
+    private static final int FIRST = 3;
+
+    /** The lower bound of the input window. */
+    private final double start;
+
+    /** The upper bound of the input window. */
+    private final double end;
+
+    /** The size of a range. */
+    private final double step;
+
+    /** The number of ranges within the window. */
+    private final int count;
+
+    /** The quantized value of each range. */
+    private final int[] values;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param start The lower bound of the input window.
+     * @param end The upper bound of the input window.
+     * @param count The number of values in the codomain interval.
+     */
+    WindowRanges(double start, double end, int count)
+    {
+        this.start = start;
+        this.end = end;
+        this.count = count;
+        step = Math.abs(end - start) / count;
+        // The last range is only reached by the end of the window.
+        values = new int[FIRST + count + 1];
+    }
+
+    /**
+     * Returns the number of ranges.
+     *
+     * @return See above.
+     */
+    int size()
+    {
+        return values.length;
+    }
+
+    /**
+     * Returns the value representing the specified range, as computed by
+     * {@link QuantumStrategy#getMiddleRange(double)}.
+     *
+     * @param index The index of the range.
+     * @return See above.
+     */
+    double getRepresentative(int index)
+    {
+        switch (index) {
+            case BELOW:
+                return start;
+            case ABOVE:
+                return end;
+            case START:
+                return start + step / 2;
+            default:
+                int v = index - FIRST;
+                return (start + (v - 1) * step + start + v * step) / 2;
+        }
+    }
+
+    /**
+     * Sets the quantized value of the specified range.
+     *
+     * @param index The index of the range.
+     * @param value The quantized value.
+     */
+    void set(int index, int value)
+    {
+        values[index] = value;
+    }
+
+    /**
+     * Returns the quantized value of the range containing the specified
+     * value.
+     *
+     * @param value The pixel intensity value.
+     * @return See above.
+     */
+    int get(double value)
+    {
+        if (value < start) return values[BELOW];
+        if (value > end) return values[ABOVE];
+        if (value == start) return values[START];
+        int v = (int) ((value - start) / step);
+        if (v < 0) {
+            v = 0;
+        } else if (v > count) {
+            v = count;
+        }
+        return values[FIRST + v];
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Channel;
+import ome.model.core.Pixels;
+import ome.model.display.ChannelBinding;
+import ome.model.display.RenderingDef;
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+import ome.model.enums.RenderingModel;
+import omeis.providers.re.quantum.Quantization_8_16_bit;
+import omeis.providers.re.quantum.QuantumFactory;
+import omeis.providers.re.quantum.QuantumStrategy;
+import omeis.providers.re.quantum.QuantumTestUtils;
+
+/**
+ * Creates the objects shared by the unit tests of the renderers.
+ */
+public class RenderingTestUtils {
+
+    /**
+     * Creates a strategy mapping the specified window of 8-bit or 16-bit
+     * integral pixels linearly, without sharing its table.
+     *
+     * @param type The value of the pixels type.
+     * @param start The lower bound of the window.
+     * @param end The upper bound of the window.
+     * @return See above.
+     */
+    public static QuantumStrategy createStrategy(String type, double start,
+            double end)
+    {
+        Quantization_8_16_bit qs = QuantumTestUtils.createStrategy(type,
+                Family.VALUE_LINEAR, 1.0, false, null);
+        qs.setWindow(start, end);
+        return qs;
+    }
+
+    /**
+     * Creates the metadata of an unsigned 8-bit pixels set.
+     *
+     * @param sizeX The number of pixels along the <i>X</i>-axis.
+     * @param sizeY The number of pixels along the <i>Y</i>-axis.
+     * @param sizeZ The number of <i>Z</i>-sections.
+     * @param sizeC The number of channels.
+     * @param sizeT The number of timepoints.
+     * @return See above.
+     */
+    public static Pixels createPixels(int sizeX, int sizeY, int sizeZ,
+            int sizeC, int sizeT)
+    {
+        Pixels pixels = new Pixels();
+        pixels.setId(1L);
+        PixelsType type = new PixelsType(PixelsType.VALUE_UINT8);
+        type.setBitSize(8);
+        pixels.setPixelsType(type);
+        pixels.setSizeX(sizeX);
+        pixels.setSizeY(sizeY);
+        pixels.setSizeZ(sizeZ);
+        pixels.setSizeC(sizeC);
+        pixels.setSizeT(sizeT);
+        for (int c = 0; c < sizeC; c++) {
+            pixels.addChannel(new Channel());
+        }
+        return pixels;
+    }
+
+    /**
+     * Creates a renderer of the specified pixels set, mapping the whole
+     * range of the channels linearly onto greyscale.
+     *
+     * @param pixels The pixels set.
+     * @param buffer The buffer to read the pixels from.
+     * @return See above.
+     */
+    public static Renderer createRenderer(Pixels pixels, PixelBuffer buffer)
+    {
+        RenderingModel model = new RenderingModel();
+        model.setValue(RenderingModel.VALUE_GREYSCALE);
+        RenderingDef def = new RenderingDef();
+        def.setModel(model);
+        def.setQuantization(QuantumTestUtils.createQuantumDef());
+        def.setDefaultZ(0);
+        def.setDefaultT(0);
+        for (int c = 0; c < pixels.getSizeC(); c++) {
+            ChannelBinding cb = new ChannelBinding();
+            cb.setActive(Boolean.TRUE);
+            cb.setFamily(new Family(Family.VALUE_LINEAR));
+            cb.setCoefficient(1.0);
+            cb.setNoiseReduction(Boolean.FALSE);
+            cb.setInputStart(0.0);
+            cb.setInputEnd(255.0);
+            cb.setRed(255);
+            cb.setGreen(255);
+            cb.setBlue(255);
+            cb.setAlpha(255);
+            def.addChannelBinding(cb);
+        }
+        List<Family> families = new ArrayList<Family>();
+        families.add(new Family(Family.VALUE_LINEAR));
+        List<RenderingModel> models = new ArrayList<RenderingModel>();
+        models.add(model);
+        return new Renderer(new QuantumFactory(families), models, pixels,
+                def, buffer, null);
+    }
+
+    /** Static methods only. */
+    private RenderingTestUtils() {}
+}
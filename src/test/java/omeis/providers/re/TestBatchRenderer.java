@@ -0,0 +1,201 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.io.nio.PixelBuffer;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.BatchRenderer}.
+ */
+@Test
+public class TestBatchRenderer {
+
+    private static final int SIZE_X = 4;
+
+    private static final int SIZE_Y = 3;
+
+    private static final int SIZE_T = 8;
+
+    /** The number of planes read or failed to be read so far. */
+    private final AtomicInteger reads = new AtomicInteger();
+
+    /** Whether the buffer has been closed. */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates a buffer whose planes are filled with <code>10 * t</code>,
+     * failing to read the specified timepoint.
+     */
+    private PixelBuffer createBuffer(final int failedT) {
+        reads.set(0);
+        closed.set(false);
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws IOException {
+                String name = method.getName();
+                if (name.equals("close")) {
+                    closed.set(true);
+                    return null;
+                }
+                if (!name.equals("getPlane")) {
+                    throw new UnsupportedOperationException(name);
+                }
+                int t = (Integer) args[2];
+                reads.incrementAndGet();
+                if (t == failedT) {
+                    throw new IOException("Cannot read timepoint " + t);
+                }
+                byte[] values = new byte[SIZE_X * SIZE_Y];
+                Arrays.fill(values, (byte) (10 * t));
+                return new PixelData(PixelsType.VALUE_UINT8,
+                        ByteBuffer.wrap(values));
+            }
+        };
+        return (PixelBuffer) Proxy.newProxyInstance(
+                PixelBuffer.class.getClassLoader(),
+                new Class<?>[] { PixelBuffer.class }, handler);
+    }
+
+    private BatchRenderer createBatchRenderer(int window, int failedT) {
+        return new BatchRenderer(RenderingTestUtils.createRenderer(
+                RenderingTestUtils.createPixels(SIZE_X, SIZE_Y, 1, 1, SIZE_T),
+                createBuffer(failedT)), window);
+    }
+
+    /**
+     * Collects the frames and checks that the loader reads no more than
+     * <code>window</code> frames ahead of the frame rendered.
+     */
+    private class Consumer implements BatchRenderer.FrameConsumer {
+
+        private final int window;
+
+        private final List<Integer> indexes = new ArrayList<Integer>();
+
+        private final List<int[]> frames = new ArrayList<int[]>();
+
+        Consumer(int window) {
+            this.window = window;
+        }
+
+        public void frameRendered(int index, PlaneDef pd, int[] frame) {
+            int allowed = Math.min(SIZE_T, index + 1 + window);
+            long timeout = System.currentTimeMillis() + 5000;
+            try {
+                while (reads.get() < allowed
+                        && System.currentTimeMillis() < timeout) {
+                    Thread.sleep(1);
+                }
+                // Leaves time for a read beyond the window.
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Assert.assertEquals(reads.get(), allowed, "Frame " + index);
+            indexes.add(index);
+            frames.add(frame.clone());
+        }
+    }
+
+    public void testTimepoints() {
+        PlaneDef template = new PlaneDef(PlaneDef.XY, 0);
+        template.setZ(3);
+        template.setStride(1);
+        RegionDef region = new RegionDef(10, 20, 30, 40);
+        template.setRegion(region);
+        List<PlaneDef> planes = BatchRenderer.getTimepoints(template, 2, 5);
+        Assert.assertEquals(planes.size(), 4);
+        for (int i = 0; i < planes.size(); i++) {
+            PlaneDef pd = planes.get(i);
+            Assert.assertEquals(pd.getT(), 2 + i);
+            Assert.assertEquals(pd.getSlice(), PlaneDef.XY);
+            Assert.assertEquals(pd.getZ(), 3);
+            Assert.assertEquals(pd.getStride(), 1);
+            RegionDef rd = pd.getRegion();
+            Assert.assertNotSame(rd, region);
+            Assert.assertEquals(rd.getX(), 10);
+            Assert.assertEquals(rd.getY(), 20);
+            Assert.assertEquals(rd.getWidth(), 30);
+            Assert.assertEquals(rd.getHeight(), 40);
+        }
+        // The frames are independent of each other.
+        planes.get(0).getRegion().setWidth(1);
+        Assert.assertEquals(planes.get(1).getRegion().getWidth(), 30);
+        Assert.assertEquals(region.getWidth(), 30);
+    }
+
+    public void testSingleTimepoint() {
+        PlaneDef template = new PlaneDef(PlaneDef.XZ, 7);
+        template.setY(4);
+        List<PlaneDef> planes = BatchRenderer.getTimepoints(template, 1, 1);
+        Assert.assertEquals(planes.size(), 1);
+        Assert.assertEquals(planes.get(0).getT(), 1);
+        Assert.assertEquals(planes.get(0).getSlice(), PlaneDef.XZ);
+        Assert.assertEquals(planes.get(0).getY(), 4);
+        Assert.assertNull(planes.get(0).getRegion());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidRange() {
+        BatchRenderer.getTimepoints(new PlaneDef(PlaneDef.XY, 0), 3, 2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNegativeTimepoint() {
+        BatchRenderer.getTimepoints(new PlaneDef(PlaneDef.XY, 0), -1, 2);
+    }
+
+    public void testFramesDeliveredInOrder() throws Exception {
+        for (int window = 1; window <= 3; window++) {
+            Consumer consumer = new Consumer(window);
+            createBatchRenderer(window, -1).renderAsPackedInt(
+                    BatchRenderer.getTimepoints(new PlaneDef(PlaneDef.XY, 0),
+                            0, SIZE_T - 1), consumer);
+            Assert.assertEquals(consumer.indexes.size(), SIZE_T);
+            for (int t = 0; t < SIZE_T; t++) {
+                Assert.assertEquals(consumer.indexes.get(t).intValue(), t);
+                int[] frame = consumer.frames.get(t);
+                Assert.assertEquals(frame.length, SIZE_X * SIZE_Y);
+                for (int v : frame) {
+                    Assert.assertEquals(v & 0xFF, 10 * t);
+                }
+            }
+            Assert.assertTrue(closed.get());
+        }
+    }
+
+    public void testLoaderFailurePropagates() throws Exception {
+        Consumer consumer = new Consumer(2);
+        try {
+            createBatchRenderer(2, 3).renderAsPackedInt(
+                    BatchRenderer.getTimepoints(new PlaneDef(PlaneDef.XY, 0),
+                            0, SIZE_T - 1), consumer);
+            Assert.fail("The failed read was not reported.");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        Assert.assertEquals(consumer.indexes, Arrays.asList(0, 1, 2));
+        Assert.assertTrue(closed.get());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ome.model.enums.PixelsType;
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.codomain.ReverseIntensityContext;
+import omeis.providers.re.data.PlaneFactory;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.ChannelLookupTable}
+ * instances.
+ */
+@Test
+public class TestChannelLookupTable {
+
+    private QuantumStrategy createStrategy() {
+        return RenderingTestUtils.createStrategy(PixelsType.VALUE_UINT8, 0,
+                255);
+    }
+
+    private int addComponents(int a, int b) {
+        int r = Math.min(255, ((a >> 16) & 0xFF) + ((b >> 16) & 0xFF));
+        int g = Math.min(255, ((a >> 8) & 0xFF) + ((b >> 8) & 0xFF));
+        int bl = Math.min(255, (a & 0xFF) + (b & 0xFF));
+        return r << 16 | g << 8 | bl;
+    }
+
+    public void testAddSaturates() {
+        Assert.assertEquals(ChannelLookupTable.add(0x00FF8001, 0x00018001),
+                0x00FFFF02);
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            int a = random.nextInt() & 0x00FFFFFF;
+            int b = random.nextInt() & 0x00FFFFFF;
+            Assert.assertEquals(ChannelLookupTable.add(a, b),
+                    addComponents(a, b));
+        }
+    }
+
+    public void testRange() {
+        Assert.assertTrue(Arrays.equals(ChannelLookupTable.getRange(
+                PixelsType.VALUE_INT8), new int[] {-128, 127}));
+        Assert.assertTrue(Arrays.equals(ChannelLookupTable.getRange(
+                PixelsType.VALUE_UINT16), new int[] {0, 65535}));
+        Assert.assertNull(ChannelLookupTable.getRange(PixelsType.VALUE_INT32));
+        Assert.assertNull(ChannelLookupTable.getRange(PixelsType.VALUE_FLOAT));
+        Assert.assertTrue(Arrays.equals(PlaneFactory.getRange(
+                PixelsType.VALUE_UINT32), new double[] {0, 4294967295.0}));
+        Assert.assertNull(PlaneFactory.getRange(PixelsType.VALUE_DOUBLE));
+    }
+
+    public void testGreyTable() throws Exception {
+        QuantumStrategy qs = createStrategy();
+        CodomainChain cc = new CodomainChain(0, 255);
+        ChannelLookupTable table = new ChannelLookupTable(qs, cc,
+                new int[] {255, 255, 255, 255}, null, true,
+                PixelsType.VALUE_UINT8);
+        for (int v = 0; v < 256; v++) {
+            int q = qs.quantize(v);
+            Assert.assertEquals(table.get(v), q << 16 | q << 8 | q);
+        }
+        int[] colors = new int[] {0x00F0F0F0, 0};
+        table.accumulate(new int[] {255, 1}, colors, 2);
+        Assert.assertEquals(colors[0], 0x00FFFFFF);
+        Assert.assertEquals(colors[1], table.get(1));
+    }
+
+    public void testChainModificationInvalidates() throws Exception {
+        QuantumStrategy qs = createStrategy();
+        CodomainChain cc = new CodomainChain(0, 255);
+        int[] color = new int[] {255, 0, 0, 255};
+        ChannelLookupTable table = new ChannelLookupTable(qs, cc, color,
+                null, false, PixelsType.VALUE_UINT8);
+        Assert.assertTrue(table.isValid(qs, cc, false));
+        Assert.assertFalse(table.isValid(qs, cc, true));
+        Assert.assertFalse(table.isValid(qs, new CodomainChain(0, 255),
+                false));
+        cc.add(new ReverseIntensityContext());
+        Assert.assertFalse(table.isValid(qs, cc, false));
+        table = new ChannelLookupTable(qs, cc, color, null, false,
+                PixelsType.VALUE_UINT8);
+        Assert.assertTrue(table.isValid(qs, cc, false));
+        Assert.assertEquals(table.get(0), cc.transform(qs.quantize(0)) << 16);
+        cc.setInterval(0, 200);
+        Assert.assertFalse(table.isValid(qs, cc, false));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import ome.model.core.Pixels;
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.codomain.ReverseIntensityContext;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.quantum.Quantization_8_16_bit;
+import omeis.providers.re.quantum.Quantization_float;
+import omeis.providers.re.quantum.QuantumStrategy;
+import omeis.providers.re.quantum.QuantumTestUtils;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases checking the row kernel of
+ * {@link omeis.providers.re.GreyScaleStrategy} against the values mapped
+ * pixel by pixel.
+ */
+@Test
+public class TestGreyScaleStrategy {
+
+    private static final int SIZE_X = 64;
+
+    private static final int SIZE_Y = 40;
+
+    private static final int ALPHA = 200;
+
+    /** The values of the plane being rendered. */
+    private double[] values;
+
+    private Pixels createPixels(String type, int bitSize) {
+        Pixels pixels = new Pixels();
+        PixelsType pixelsType = new PixelsType(type);
+        pixelsType.setBitSize(bitSize);
+        pixels.setPixelsType(pixelsType);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        return pixels;
+    }
+
+    private Plane2D createUInt16Plane(Random random) {
+        ByteBuffer data = ByteBuffer.allocate(SIZE_X * SIZE_Y * 2);
+        values = new double[SIZE_X * SIZE_Y];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(65536);
+            data.putShort((short) values[i]);
+        }
+        data.rewind();
+        return new Plane2D(new PlaneDef(PlaneDef.XY, 0),
+                createPixels(PixelsType.VALUE_UINT16, 16),
+                new PixelData(PixelsType.VALUE_UINT16, data));
+    }
+
+    private Plane2D createFloatPlane(Random random) {
+        ByteBuffer data = ByteBuffer.allocate(SIZE_X * SIZE_Y * 4);
+        values = new double[SIZE_X * SIZE_Y];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float) (random.nextGaussian() * 100);
+            data.putFloat((float) values[i]);
+        }
+        data.rewind();
+        return new Plane2D(new PlaneDef(PlaneDef.XY, 0),
+                createPixels(PixelsType.VALUE_FLOAT, 32),
+                new PixelData(PixelsType.VALUE_FLOAT, data));
+    }
+
+    private QuantumStrategy createUInt16Strategy() {
+        Quantization_8_16_bit qs = QuantumTestUtils.createStrategy(
+                PixelsType.VALUE_UINT16, Family.VALUE_LOGARITHMIC, 1.0, false,
+                null);
+        qs.setWindow(1000, 50000);
+        return qs;
+    }
+
+    private QuantumStrategy createFloatStrategy() {
+        Quantization_float qs = new Quantization_float(
+                QuantumTestUtils.createQuantumDef(),
+                createPixels(PixelsType.VALUE_FLOAT, 32));
+        qs.setExtent(-500, 500);
+        qs.setMapping(new Family(Family.VALUE_LINEAR), 1.0, false);
+        qs.setWindow(-150, 200);
+        return qs;
+    }
+
+    /** Maps a value the way it was mapped pixel by pixel. */
+    private int reference(QuantumStrategy qs, CodomainChain cc, double value,
+            int format) throws Exception {
+        int v = qs.quantize(value);
+        if (cc.hasMapContext()) {
+            v = cc.transform(v);
+        }
+        switch (format) {
+            case GreyScaleStrategy.BANDED:
+                return (byte) (v * (ALPHA / 255f));
+            case GreyScaleStrategy.ARGB:
+                return ALPHA << 24 | v << 16 | v << 8 | v;
+            default:
+                return ALPHA | v << 24 | v << 16 | v << 8;
+        }
+    }
+
+    /** Renders the plane in two blocks of rows. */
+    private void render(Plane2D plane, QuantumStrategy qs, CodomainChain cc,
+            int format, int[] packed, byte[][] bands) throws Exception {
+        int[] table = GreyScaleStrategy.makeTable(cc, ALPHA, format);
+        new GreyScaleStrategy.GreyScaleTask(plane, qs, table, packed, bands,
+                SIZE_X, 0, 13).call();
+        new GreyScaleStrategy.GreyScaleTask(plane, qs, table, packed, bands,
+                SIZE_X, 13, SIZE_Y).call();
+    }
+
+    private void assertMatchesReference(Plane2D plane, QuantumStrategy qs)
+            throws Exception {
+        CodomainChain reversed = new CodomainChain(0, 255);
+        reversed.add(new ReverseIntensityContext());
+        CodomainChain[] chains = { new CodomainChain(0, 255), reversed };
+        for (CodomainChain cc : chains) {
+            for (int format : new int[] { GreyScaleStrategy.ARGB,
+                    GreyScaleStrategy.RGBA }) {
+                int[] packed = new int[values.length];
+                render(plane, qs, cc, format, packed, null);
+                for (int i = 0; i < values.length; i++) {
+                    Assert.assertEquals(packed[i],
+                            reference(qs, cc, values[i], format));
+                }
+            }
+            byte[][] bands = new byte[3][values.length];
+            render(plane, qs, cc, GreyScaleStrategy.BANDED, null, bands);
+            for (int i = 0; i < values.length; i++) {
+                int expected = reference(qs, cc, values[i],
+                        GreyScaleStrategy.BANDED);
+                Assert.assertEquals(bands[0][i], expected);
+                Assert.assertEquals(bands[1][i], expected);
+                Assert.assertEquals(bands[2][i], expected);
+            }
+        }
+    }
+
+    public void testIntegralKernel() throws Exception {
+        Plane2D plane = createUInt16Plane(new Random(42));
+        assertMatchesReference(plane, createUInt16Strategy());
+    }
+
+    public void testFloatKernel() throws Exception {
+        Plane2D plane = createFloatPlane(new Random(7));
+        assertMatchesReference(plane, createFloatStrategy());
+    }
+}
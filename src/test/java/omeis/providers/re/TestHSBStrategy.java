@@ -0,0 +1,48 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.awt.Dimension;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for the bands of the planes streamed by
+ * {@link omeis.providers.re.HSBStrategy}.
+ */
+@Test
+public class TestHSBStrategy {
+
+    public void testBandSize() {
+        // 4096 pixels of 2 bytes per row.
+        Assert.assertEquals(HSBStrategy.getBandHeight(4096, 20000, 2, null),
+                HSBStrategy.BAND_SIZE / 8192);
+        // Two channels: half the rows.
+        Assert.assertEquals(HSBStrategy.getBandHeight(4096, 20000, 4, null),
+                HSBStrategy.BAND_SIZE / 16384);
+    }
+
+    public void testBandIsMultipleOfTileHeight() {
+        Assert.assertEquals(HSBStrategy.getBandHeight(4096, 20000, 2,
+                new Dimension(256, 256)), 2048);
+        Assert.assertEquals(HSBStrategy.getBandHeight(4096, 20000, 2,
+                new Dimension(300, 300)), 1800);
+        // Fewer rows than a tile: unchanged.
+        Assert.assertEquals(HSBStrategy.getBandHeight(4096, 20000, 2,
+                new Dimension(4096, 4096)), 2048);
+    }
+
+    public void testBandBounds() {
+        Assert.assertEquals(HSBStrategy.getBandHeight(4096, 100, 2, null),
+                100);
+        // A row larger than a band.
+        Assert.assertEquals(HSBStrategy.getBandHeight(
+                HSBStrategy.BAND_SIZE, 100, 2, null), 1);
+        Assert.assertEquals(HSBStrategy.getBandHeight(
+                HSBStrategy.BAND_SIZE, 100, 2, new Dimension(512, 512)), 1);
+    }
+}
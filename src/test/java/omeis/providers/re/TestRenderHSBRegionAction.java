@@ -0,0 +1,109 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.lut.LutReader;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for the block decomposition of
+ * {@link omeis.providers.re.RenderHSBRegionAction} instances.
+ */
+@Test
+public class TestRenderHSBRegionAction {
+
+    private static final int SIZE_X = 300;
+
+    private static final int SIZE_Y = 200;
+
+    private Plane2D createPlane() {
+        Pixels pixels = new Pixels();
+        PixelsType type = new PixelsType(PixelsType.VALUE_UINT8);
+        type.setBitSize(8);
+        pixels.setPixelsType(type);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        byte[] values = new byte[SIZE_X * SIZE_Y];
+        new Random(42).nextBytes(values);
+        return new Plane2D(new PlaneDef(PlaneDef.XY, 0), pixels,
+                new PixelData(PixelsType.VALUE_UINT8, ByteBuffer.wrap(values)));
+    }
+
+    private RenderHSBRegionAction createAction(int[] data, int blockSize) {
+        RGBBuffer buffer = new RenderingStrategy.RGBIntArrayBuffer(data,
+                SIZE_X, SIZE_Y);
+        List<LutReader> readers = Collections.singletonList(null);
+        return new RenderHSBRegionAction(buffer,
+                Collections.singletonList(createPlane()),
+                Collections.singletonList(RenderingTestUtils.createStrategy(
+                        PixelsType.VALUE_UINT8, 20, 200)),
+                Collections.singletonList(new CodomainChain(0, 255)),
+                Collections.singletonList(new int[] {255, 128, 0, 255}),
+                new Optimizations(), readers, null, 0, SIZE_X, 0, SIZE_Y, 0,
+                blockSize, null);
+    }
+
+    private int[] renderTasks(int blockSize) throws Exception {
+        int[] data = new int[SIZE_X * SIZE_Y];
+        for (RenderingTask task : createAction(data, blockSize).getTasks()) {
+            task.call();
+        }
+        return data;
+    }
+
+    public void testBlockSize() {
+        Assert.assertEquals(RenderHSBRegionAction.getBlockSize(64, 64, 8),
+                RenderHSBRegionAction.MIN_BLOCK_SIZE);
+        Assert.assertEquals(RenderHSBRegionAction.getBlockSize(4096, 4096, 8),
+                4096 * 4096 / (8 * RenderHSBRegionAction.BLOCKS_PER_THREAD));
+        Assert.assertEquals(RenderHSBRegionAction.getBlockSize(4096, 4096, 0),
+                RenderHSBRegionAction.getBlockSize(4096, 4096, 1));
+        Assert.assertEquals(RenderHSBRegionAction.getBlockSize(100000, 100000,
+                1), Integer.MAX_VALUE);
+    }
+
+    public void testTaskCount() {
+        int[] data = new int[SIZE_X * SIZE_Y];
+        Assert.assertEquals(createAction(data, SIZE_X * SIZE_Y).getTasks()
+                .size(), 1);
+        // 300x200 -> 150x200 -> 150x100 -> 75x100 -> 75x50 -> ...
+        Assert.assertEquals(createAction(data, 75 * 100).getTasks().size(), 8);
+        Assert.assertEquals(createAction(data, 75 * 100 - 1).getTasks()
+                .size(), 16);
+    }
+
+    public void testBlocksMatchSingleTask() throws Exception {
+        int[] expected = renderTasks(SIZE_X * SIZE_Y);
+        Assert.assertTrue(Arrays.equals(renderTasks(1000), expected));
+        int[] data = new int[SIZE_X * SIZE_Y];
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            pool.invoke(createAction(data, 1000));
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertTrue(Arrays.equals(data, expected));
+        // Every pixel was rendered, at least with the opaque alpha.
+        for (int v : expected) {
+            Assert.assertEquals(v >>> 24, 0xFF);
+        }
+    }
+}
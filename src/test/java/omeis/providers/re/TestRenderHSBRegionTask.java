@@ -0,0 +1,152 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.lut.LutReader;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for the compositing of the packed pixels by
+ * {@link omeis.providers.re.RenderHSBRegionTask} instances.
+ */
+@Test
+public class TestRenderHSBRegionTask {
+
+    private static final int SIZE_X = 64;
+
+    private static final int SIZE_Y = 32;
+
+    /** The colors of the channels, overlapping so the sums saturate. */
+    private static final int[][] COLORS = { {255, 200, 0, 255},
+            {255, 100, 255, 255}, {0, 255, 128, 255} };
+
+    private Pixels createPixels() {
+        Pixels pixels = new Pixels();
+        PixelsType type = new PixelsType(PixelsType.VALUE_UINT8);
+        type.setBitSize(8);
+        pixels.setPixelsType(type);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        return pixels;
+    }
+
+    /**
+     * Creates the rows <code>[y, y + height)</code> of a plane filled with
+     * the specified values.
+     */
+    private Plane2D createBand(byte[] values, int y, int height) {
+        PlaneDef pd = new PlaneDef(PlaneDef.XY, 0);
+        pd.setRegion(new RegionDef(0, y, SIZE_X, height));
+        return new Plane2D(pd, createPixels(), new PixelData(
+                PixelsType.VALUE_UINT8, ByteBuffer.wrap(values,
+                        y * SIZE_X, height * SIZE_X).slice()));
+    }
+
+    /**
+     * Renders the channels into the specified buffer band by band, with the
+     * fused lookup tables if <code>fused</code> is <code>true</code>.
+     */
+    private void render(RGBBuffer buffer, boolean fused, int bandHeight)
+            throws Exception {
+        Random random = new Random(42);
+        List<byte[]> values = new ArrayList<byte[]>();
+        List<QuantumStrategy> strategies = new ArrayList<QuantumStrategy>();
+        List<CodomainChain> chains = new ArrayList<CodomainChain>();
+        List<int[]> colors = new ArrayList<int[]>();
+        List<LutReader> readers = new ArrayList<LutReader>();
+        List<ChannelLookupTable> tables = new ArrayList<ChannelLookupTable>();
+        for (int i = 0; i < COLORS.length; i++) {
+            byte[] v = new byte[SIZE_X * SIZE_Y];
+            random.nextBytes(v);
+            values.add(v);
+            QuantumStrategy qs = RenderingTestUtils.createStrategy(
+                    PixelsType.VALUE_UINT8, 10 * i, 200 + 10 * i);
+            CodomainChain cc = new CodomainChain(0, 255);
+            strategies.add(qs);
+            chains.add(cc);
+            colors.add(COLORS[i]);
+            readers.add(null);
+            tables.add(new ChannelLookupTable(qs, cc, COLORS[i], null, false,
+                    PixelsType.VALUE_UINT8));
+        }
+        for (int y = 0; y < SIZE_Y; y += bandHeight) {
+            int height = Math.min(bandHeight, SIZE_Y - y);
+            List<Plane2D> planes = new ArrayList<Plane2D>();
+            for (byte[] v : values) {
+                planes.add(createBand(v, y, height));
+            }
+            new RenderHSBRegionTask(buffer, planes, strategies, chains,
+                    colors, new Optimizations(), 0, SIZE_X, 0, height, y,
+                    readers, fused ? tables : null, null).call();
+        }
+    }
+
+    private void render(RGBBuffer buffer, boolean fused) throws Exception {
+        render(buffer, fused, SIZE_Y);
+    }
+
+    private int[] renderARGB(boolean fused) throws Exception {
+        int[] data = new int[SIZE_X * SIZE_Y];
+        render(new RenderingStrategy.RGBIntArrayBuffer(data, SIZE_X, SIZE_Y),
+                fused);
+        return data;
+    }
+
+    private int[] renderRGBA(boolean fused) throws Exception {
+        int[] data = new int[SIZE_X * SIZE_Y];
+        render(new RenderingStrategy.RGBAIntArrayBuffer(data, SIZE_X, SIZE_Y),
+                fused);
+        return data;
+    }
+
+    public void testFusedTablesMatchPerPixelPath() throws Exception {
+        int[] expected = renderARGB(false);
+        Assert.assertTrue(Arrays.equals(renderARGB(true), expected));
+        // Some components saturated.
+        boolean saturated = false;
+        for (int v : expected) {
+            saturated |= (v & 0x00FF0000) == 0x00FF0000;
+        }
+        Assert.assertTrue(saturated);
+    }
+
+    public void testRGBAMatchesARGB() throws Exception {
+        int[] argb = renderARGB(false);
+        for (boolean fused : new boolean[] { false, true }) {
+            int[] rgba = renderRGBA(fused);
+            for (int i = 0; i < argb.length; i++) {
+                Assert.assertEquals(rgba[i], argb[i] << 8 | 0xFF,
+                        "Pixel " + i + " fused: " + fused);
+            }
+        }
+    }
+
+    public void testBandsMatchWholePlane() throws Exception {
+        for (boolean fused : new boolean[] { false, true }) {
+            int[] expected = renderARGB(fused);
+            int[] data = new int[SIZE_X * SIZE_Y];
+            render(new RenderingStrategy.RGBIntArrayBuffer(data, SIZE_X,
+                    SIZE_Y), fused, 10);
+            Assert.assertTrue(Arrays.equals(data, expected));
+        }
+    }
+}
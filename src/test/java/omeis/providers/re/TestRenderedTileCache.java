@@ -0,0 +1,111 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.quantum.Quantization_8_16_bit;
+import omeis.providers.re.quantum.QuantumStrategy;
+import omeis.providers.re.quantum.QuantumTestUtils;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.RenderedTileCache}
+ * instances.
+ */
+@Test
+public class TestRenderedTileCache {
+
+    private RenderedTileCache.Key createKey(long fingerprint, int z) {
+        PlaneDef pd = new PlaneDef(PlaneDef.XY, 0);
+        pd.setZ(z);
+        return new RenderedTileCache.Key(1, fingerprint, 0, pd);
+    }
+
+    private QuantumStrategy createStrategy(double min, double max) {
+        Quantization_8_16_bit qs = QuantumTestUtils.createStrategy(
+                PixelsType.VALUE_UINT16, Family.VALUE_LINEAR, 1.0, true, null);
+        qs.setExtent(min, max);
+        qs.setWindow(1000, 2000);
+        return qs;
+    }
+
+    public void testGetReturnsCopy() {
+        RenderedTileCache cache = new RenderedTileCache(1024);
+        int[] image = new int[] {1, 2, 3, 4};
+        cache.put(createKey(7, 0), image, 3);
+        image[0] = 42;
+        int[] cached = cache.get(createKey(7, 0));
+        Assert.assertEquals(cached.length, 3);
+        Assert.assertEquals(cached[0], 1);
+        cached[1] = 42;
+        Assert.assertEquals(cache.get(createKey(7, 0))[1], 2);
+        Assert.assertEquals(cache.getHits(), 2);
+        Assert.assertNull(cache.get(createKey(8, 0)));
+        Assert.assertEquals(cache.getMisses(), 1);
+    }
+
+    public void testKeyCoversRegion() {
+        PlaneDef a = new PlaneDef(PlaneDef.XY, 0);
+        a.setRegion(new RegionDef(0, 0, 256, 256));
+        PlaneDef b = new PlaneDef(PlaneDef.XY, 0);
+        b.setRegion(new RegionDef(256, 0, 256, 256));
+        RenderedTileCache.Key ka = new RenderedTileCache.Key(1, 7, 0, a);
+        Assert.assertEquals(ka, new RenderedTileCache.Key(1, 7, 0, a));
+        Assert.assertEquals(ka.hashCode(),
+                new RenderedTileCache.Key(1, 7, 0, a).hashCode());
+        Assert.assertFalse(ka.equals(new RenderedTileCache.Key(1, 7, 0, b)));
+        Assert.assertFalse(ka.equals(new RenderedTileCache.Key(1, 7, 1, a)));
+    }
+
+    public void testLeastRecentlyUsedEvictedFirst() {
+        // Room for two images of 4 pixels.
+        RenderedTileCache cache = new RenderedTileCache(32);
+        cache.put(createKey(1, 0), new int[4], 4);
+        cache.put(createKey(1, 1), new int[4], 4);
+        Assert.assertNotNull(cache.get(createKey(1, 0)));
+        cache.put(createKey(1, 2), new int[4], 4);
+        Assert.assertEquals(cache.getSize(), 32);
+        Assert.assertNull(cache.get(createKey(1, 1)));
+        Assert.assertNotNull(cache.get(createKey(1, 0)));
+        Assert.assertNotNull(cache.get(createKey(1, 2)));
+    }
+
+    public void testByteBound() {
+        RenderedTileCache cache = new RenderedTileCache(32);
+        // Larger than the cache: not cached.
+        cache.put(createKey(1, 0), new int[9], 9);
+        Assert.assertEquals(cache.getSize(), 0);
+        cache.put(createKey(1, 1), new int[8], 8);
+        Assert.assertEquals(cache.getSize(), 32);
+        // Replacing an image does not count it twice.
+        cache.put(createKey(1, 1), new int[8], 8);
+        Assert.assertEquals(cache.getSize(), 32);
+        cache.put(createKey(1, 2), new int[2], 2);
+        Assert.assertEquals(cache.getSize(), 8);
+        cache.invalidate(1);
+        Assert.assertEquals(cache.getSize(), 0);
+    }
+
+    public void testExtentChangesFingerprint() {
+        // Same window, the noise reduction ramp depends on the extent.
+        QuantumStrategy a = createStrategy(0, 65535);
+        QuantumStrategy b = createStrategy(500, 4000);
+        Assert.assertEquals(RenderedTileCache.mix(0, a),
+                RenderedTileCache.mix(0, createStrategy(0, 65535)));
+        long fa = RenderedTileCache.mix(0, a);
+        long fb = RenderedTileCache.mix(0, b);
+        Assert.assertTrue(fa != fb);
+        RenderedTileCache cache = new RenderedTileCache(1024);
+        cache.put(createKey(fa, 0), new int[4], 4);
+        Assert.assertNotNull(cache.get(createKey(fa, 0)));
+        Assert.assertNull(cache.get(createKey(fb, 0)));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.io.nio.PixelBuffer;
+import omeis.providers.re.metadata.StatsIndex;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.Renderer} instances and
+ * their static methods.
+ */
+@Test
+public class TestRenderer {
+
+    /** A pyramid of 4 levels, from 4096x2048 down to 512x256. */
+    private List<List<Integer>> createDescriptions() {
+        List<List<Integer>> descriptions = new ArrayList<List<Integer>>();
+        for (int i = 0; i < 4; i++) {
+            descriptions.add(Arrays.asList(4096 >> i, 2048 >> i));
+        }
+        return descriptions;
+    }
+
+    public void testSelectResolutionWholePlane() {
+        List<List<Integer>> d = createDescriptions();
+        Assert.assertEquals(Renderer.selectResolution(d, 4096, 2048, 4096,
+                2048), 0);
+        Assert.assertEquals(Renderer.selectResolution(d, 4096, 2048, 2048,
+                1024), 1);
+        Assert.assertEquals(Renderer.selectResolution(d, 4096, 2048, 1500,
+                700), 1);
+        Assert.assertEquals(Renderer.selectResolution(d, 4096, 2048, 512,
+                256), 3);
+        // Smaller than the lowest level.
+        Assert.assertEquals(Renderer.selectResolution(d, 4096, 2048, 64,
+                64), 3);
+    }
+
+    public void testSelectResolutionRegion() {
+        List<List<Integer>> d = createDescriptions();
+        // A 1024x1024 region is 256x256 at the third level.
+        Assert.assertEquals(Renderer.selectResolution(d, 1024, 1024, 256,
+                256), 2);
+        Assert.assertEquals(Renderer.selectResolution(d, 1024, 1024, 257,
+                200), 1);
+        // The most constrained axis selects the level.
+        Assert.assertEquals(Renderer.selectResolution(d, 1024, 128, 128,
+                64), 1);
+    }
+
+    public void testSelectResolutionLargerThanRegion() {
+        List<List<Integer>> d = createDescriptions();
+        Assert.assertEquals(Renderer.selectResolution(d, 100, 100, 200,
+                200), 0);
+    }
+
+    public void testSelectResolutionSingleLevel() {
+        List<List<Integer>> d = new ArrayList<List<Integer>>();
+        d.add(Arrays.asList(100, 100));
+        Assert.assertEquals(Renderer.selectResolution(d, 100, 100, 10, 10),
+                0);
+    }
+
+    public void testReducedSizeKeepsAspectRatio() {
+        // 1000x500 into 300x300: covers the box, as the stride does.
+        Assert.assertTrue(Arrays.equals(
+                Renderer.getReducedSize(1000, 500, 300, 300),
+                new int[] {600, 300}));
+        Assert.assertTrue(Arrays.equals(
+                Renderer.getReducedSize(1000, 500, 300, 100),
+                new int[] {300, 150}));
+        // Never larger than the region.
+        Assert.assertTrue(Arrays.equals(
+                Renderer.getReducedSize(100, 50, 300, 300),
+                new int[] {100, 50}));
+        Assert.assertTrue(Arrays.equals(
+                Renderer.getReducedSize(10000, 1, 10, 10),
+                new int[] {10000, 1}));
+    }
+
+    /** Creates a renderer whose buffer cannot be read. */
+    private Renderer createRenderer() {
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+        };
+        PixelBuffer buffer = (PixelBuffer) Proxy.newProxyInstance(
+                PixelBuffer.class.getClassLoader(),
+                new Class<?>[] { PixelBuffer.class }, handler);
+        return RenderingTestUtils.createRenderer(
+                RenderingTestUtils.createPixels(4, 4, 1, 1, 1), buffer);
+    }
+
+    public void testStatsIndexOfPixelsSet() {
+        Renderer renderer = createRenderer();
+        renderer.setStatsIndex(new StatsIndex.Builder(1).build());
+        renderer.setStatsIndex(null);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testStatsIndexOfOtherPixelsSet() {
+        createRenderer().setStatsIndex(new StatsIndex.Builder(2).build());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.RenderingBufferPool}
+ * instances and the buffers wrapping its arrays.
+ */
+@Test
+public class TestRenderingBufferPool {
+
+    public void testReleasedArrayIsReused() {
+        RenderingBufferPool pool = new RenderingBufferPool();
+        int[] ints = pool.acquireInts(16);
+        ints[3] = 42;
+        pool.release(ints);
+        Assert.assertEquals(pool.getRetainedBytes(), 64);
+        int[] reused = pool.acquireInts(16);
+        Assert.assertSame(reused, ints);
+        Assert.assertEquals(reused[3], 0);
+        Assert.assertEquals(pool.getRetainedBytes(), 0);
+        // Another length is a new array.
+        Assert.assertEquals(pool.acquireInts(8).length, 8);
+    }
+
+    public void testDoubleReleaseIsIgnored() {
+        RenderingBufferPool pool = new RenderingBufferPool();
+        byte[] bytes = pool.acquireBytes(10);
+        pool.release(bytes);
+        pool.release(bytes);
+        Assert.assertEquals(pool.getRetainedBytes(), 10);
+        Assert.assertSame(pool.acquireBytes(10), bytes);
+        Assert.assertNotSame(pool.acquireBytes(10), bytes);
+        int[] ints = new int[4];
+        pool.release(ints);
+        pool.release(ints);
+        Assert.assertSame(pool.acquireInts(4), ints);
+        Assert.assertNotSame(pool.acquireInts(4), ints);
+    }
+
+    public void testLimits() {
+        RenderingBufferPool pool = new RenderingBufferPool(1, 100);
+        pool.release(new byte[40]);
+        // More than one array of that length.
+        pool.release(new byte[40]);
+        Assert.assertEquals(pool.getRetainedBytes(), 40);
+        // More than the number of bytes.
+        pool.release(new int[20]);
+        Assert.assertEquals(pool.getRetainedBytes(), 40);
+        pool.clear();
+        Assert.assertEquals(pool.getRetainedBytes(), 0);
+        // A released array is accepted again once cleared.
+        byte[] bytes = new byte[40];
+        pool.release(bytes);
+        pool.clear();
+        pool.release(bytes);
+        Assert.assertSame(pool.acquireBytes(40), bytes);
+    }
+
+    public void testReleaseImage() {
+        RenderingBufferPool pool = new RenderingBufferPool();
+        byte[] red = new byte[4], green = new byte[4], blue = new byte[4];
+        pool.release(new RenderingStrategy.RGBArrayBuffer(red, green, blue,
+                2, 2));
+        Assert.assertEquals(pool.getRetainedBytes(), 12);
+        int[] data = new int[4];
+        pool.release(new RenderingStrategy.RGBIntArrayBuffer(data, 2, 2));
+        Assert.assertSame(pool.acquireInts(4), data);
+    }
+
+    public void testIntArrayBufferAccessors() {
+        int[] data = new int[6];
+        RenderingStrategy.RGBIntArrayBuffer buf =
+                new RenderingStrategy.RGBIntArrayBuffer(data, 3, 2);
+        Assert.assertSame(buf.getDataBuffer(), data);
+        Assert.assertEquals(buf.getSizeX1(), 3);
+        Assert.assertEquals(buf.getSizeX2(), 2);
+        buf.setRedValue(5, 0x12);
+        buf.setGreenValue(5, 0x34);
+        buf.setBlueValue(5, 0xFF);
+        Assert.assertEquals(data[5], 0x1234FF);
+        buf.setGreenValue(5, 0x56);
+        Assert.assertEquals(data[5], 0x1256FF);
+        Assert.assertEquals(buf.getRedValue(5), 0x12);
+        Assert.assertEquals(buf.getGreenValue(5), 0x56);
+        Assert.assertEquals(buf.getBlueValue(5), (byte) 0xFF);
+    }
+
+    public void testRGBAIntArrayBufferAccessors() {
+        int[] data = new int[] { 0x000000FF };
+        RenderingStrategy.RGBAIntArrayBuffer buf =
+                new RenderingStrategy.RGBAIntArrayBuffer(data, 1, 1);
+        buf.setRedValue(0, 0x12);
+        buf.setGreenValue(0, 0x34);
+        buf.setBlueValue(0, 0x56);
+        Assert.assertEquals(data[0], 0x123456FF);
+        Assert.assertEquals(buf.getRedValue(0), 0x12);
+        Assert.assertEquals(buf.getGreenValue(0), 0x34);
+        Assert.assertEquals(buf.getBlueValue(0), 0x56);
+    }
+
+    public void testArrayBufferAccessors() {
+        byte[] red = new byte[2], green = new byte[2], blue = new byte[2];
+        RenderingStrategy.RGBArrayBuffer buf =
+                new RenderingStrategy.RGBArrayBuffer(red, green, blue, 2, 1);
+        buf.setRedValue(1, 200);
+        buf.setGreenValue(1, 3);
+        buf.setBlueValue(0, 4);
+        Assert.assertEquals(red[1], (byte) 200);
+        Assert.assertEquals(buf.getRedValue(1), (byte) 200);
+        Assert.assertEquals(buf.getGreenValue(1), 3);
+        Assert.assertEquals(buf.getBlueValue(0), 4);
+        Assert.assertSame(buf.getGreenBand(), green);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testIntArrayBufferHasNoBands() {
+        new RenderingStrategy.RGBIntArrayBuffer(new int[1], 1, 1)
+                .getRedBand();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.RenderingExecutor}.
+ */
+@Test
+public class TestRenderingExecutor {
+
+    private static final String PROPERTY = "omero.renderer.test.threads";
+
+    public void testIntProperty() {
+        try {
+            Assert.assertEquals(RenderingExecutor.getIntProperty(PROPERTY, 3),
+                    3);
+            System.setProperty(PROPERTY, " 7 ");
+            Assert.assertEquals(RenderingExecutor.getIntProperty(PROPERTY, 3),
+                    7);
+            System.setProperty(PROPERTY, "0");
+            Assert.assertEquals(RenderingExecutor.getIntProperty(PROPERTY, 3),
+                    3);
+            System.setProperty(PROPERTY, "many");
+            Assert.assertEquals(RenderingExecutor.getIntProperty(PROPERTY, 3),
+                    3);
+        } finally {
+            System.clearProperty(PROPERTY);
+        }
+    }
+
+    public void testExecutorIsBounded() {
+        ExecutorService executor = RenderingExecutor.newExecutor(2, 5);
+        try {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            Assert.assertEquals(pool.getMaximumPoolSize(), 2);
+            Assert.assertEquals(pool.getQueue().remainingCapacity(), 5);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testFullQueueRunsInCaller() throws Exception {
+        ExecutorService executor = RenderingExecutor.newExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            // Occupies the thread then the queue.
+            Runnable blocked = new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            executor.submit(blocked);
+            executor.submit(blocked);
+            Future<Thread> f = executor.submit(new Callable<Thread>() {
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            });
+            Assert.assertSame(f.get(), Thread.currentThread());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    public void testThreadsAreDaemons() throws Exception {
+        ExecutorService executor = RenderingExecutor.newIOExecutor(1);
+        try {
+            Thread t = executor.submit(new Callable<Thread>() {
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            }).get();
+            Assert.assertTrue(t.isDaemon());
+            Assert.assertTrue(t.getName().startsWith("omero-renderer-io-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testDefaultIOIsSequential() {
+        ThreadPoolExecutor pool =
+                (ThreadPoolExecutor) RenderingExecutor.getDefaultIO();
+        Assert.assertEquals(pool.getMaximumPoolSize(),
+                RenderingExecutor.DEFAULT_IO_THREADS);
+        Assert.assertEquals(RenderingExecutor.DEFAULT_IO_THREADS, 1);
+    }
+
+    public void testIOExecutorRunsReadsInOrder() throws Exception {
+        ExecutorService executor = RenderingExecutor.newIOExecutor(1);
+        final List<Integer> reads =
+                Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 16; i++) {
+                final int c = i;
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        int n = running.incrementAndGet();
+                        if (n > maxRunning.get()) {
+                            maxRunning.set(n);
+                        }
+                        reads.add(c);
+                        running.decrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(maxRunning.get(), 1);
+        for (int i = 0; i < reads.size(); i++) {
+            Assert.assertEquals(reads.get(i).intValue(), i);
+        }
+    }
+
+    public void testRenderingThreads() throws Exception {
+        Callable<Boolean> task = new Callable<Boolean>() {
+            public Boolean call() {
+                return RenderingExecutor.isRenderingThread();
+            }
+        };
+        Assert.assertFalse(RenderingExecutor.isRenderingThread());
+        ExecutorService executor = RenderingExecutor.newExecutor(1, 1);
+        ForkJoinPool pool = RenderingExecutor.newForkJoinPool(1);
+        try {
+            Assert.assertTrue(executor.submit(task).get());
+            Assert.assertTrue(pool.submit(task).get());
+        } finally {
+            executor.shutdown();
+            pool.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidThreads() {
+        RenderingExecutor.newExecutor(0, 1);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import omeis.providers.re.data.PlaneDef;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.RenderingMetrics}.
+ */
+@Test
+public class TestRenderingMetrics {
+
+    private RenderingMetrics createMetrics(long[] io) {
+        return new RenderingMetrics(Long.valueOf(5), PlaneDef.XY, 2, 3,
+                "rgb", 10, io, 100, 200, 400, 1000, 4096, 2048, 4);
+    }
+
+    public void testIoTimeSkipsUnreadChannels() {
+        RenderingMetrics metrics = createMetrics(new long[] {30, -1, 12});
+        Assert.assertEquals(metrics.getChannelCount(), 3);
+        Assert.assertEquals(metrics.getIoTime(0), 30);
+        Assert.assertEquals(metrics.getIoTime(1), -1);
+        Assert.assertEquals(metrics.getIoTime(2), 12);
+        Assert.assertEquals(metrics.getIoTime(), 42);
+    }
+
+    public void testIoTimeOutOfRange() {
+        RenderingMetrics metrics = createMetrics(new long[] {30});
+        Assert.assertEquals(metrics.getIoTime(-1), -1);
+        Assert.assertEquals(metrics.getIoTime(1), -1);
+        Assert.assertEquals(createMetrics(new long[0]).getIoTime(), 0);
+    }
+
+    public void testValues() {
+        RenderingMetrics metrics = createMetrics(new long[] {30});
+        Assert.assertEquals(metrics.getPixelsId(), Long.valueOf(5));
+        Assert.assertEquals(metrics.getSlice(), PlaneDef.XY);
+        Assert.assertEquals(metrics.getZ(), 2);
+        Assert.assertEquals(metrics.getT(), 3);
+        Assert.assertEquals(metrics.getModel(), "rgb");
+        Assert.assertEquals(metrics.getMallocTime(), 10);
+        Assert.assertEquals(metrics.getQuantizationTime(), 100);
+        Assert.assertEquals(metrics.getCompositingTime(), 200);
+        Assert.assertEquals(metrics.getRenderingTime(), 400);
+        Assert.assertEquals(metrics.getTotalTime(), 1000);
+        Assert.assertEquals(metrics.getBytesRead(), 4096);
+        Assert.assertEquals(metrics.getPixelsProcessed(), 2048);
+        Assert.assertEquals(metrics.getTaskCount(), 4);
+        Assert.assertTrue(metrics.toString().contains(" io=30 "));
+    }
+}
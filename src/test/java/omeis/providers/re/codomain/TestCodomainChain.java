@@ -0,0 +1,99 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.codomain;
+
+import java.util.Arrays;
+
+import omeis.providers.re.quantum.QuantumStrategy;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for the lookup table of
+ * {@link omeis.providers.re.codomain.CodomainChain} instances.
+ */
+@Test
+public class TestCodomainChain {
+
+    /** Returns all the values of the domain. */
+    private int[] getDomain() {
+        int[] values = new int[QuantumStrategy.MAX - QuantumStrategy.MIN + 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = QuantumStrategy.MIN + i;
+        }
+        return values;
+    }
+
+    public void testEmptyChainClamps() {
+        CodomainChain cc = new CodomainChain(10, 200);
+        Assert.assertTrue(cc.isIdentity());
+        Assert.assertFalse(cc.hasMapContext());
+        for (int x = QuantumStrategy.MIN; x <= QuantumStrategy.MAX; x++) {
+            Assert.assertEquals(cc.transform(x),
+                    Math.min(200, Math.max(10, x)));
+        }
+    }
+
+    public void testReverseIntensity() {
+        CodomainChain cc = new CodomainChain(10, 200);
+        Assert.assertTrue(cc.add(new ReverseIntensityContext()));
+        Assert.assertFalse(cc.isIdentity());
+        Assert.assertTrue(cc.hasMapContext());
+        Assert.assertEquals(cc.transform(10), 200);
+        Assert.assertEquals(cc.transform(200), 10);
+        Assert.assertEquals(cc.transform(100), 110);
+        // Clamped to the interval before being reversed.
+        Assert.assertEquals(cc.transform(QuantumStrategy.MIN), 200);
+        Assert.assertEquals(cc.transform(QuantumStrategy.MAX), 10);
+    }
+
+    public void testCompose() {
+        CodomainChain cc = new CodomainChain(0, 255);
+        int[] values = getDomain();
+        cc.compose(values);
+        Assert.assertTrue(Arrays.equals(values, getDomain()));
+        cc.add(new ReverseIntensityContext());
+        cc.compose(values);
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(values[i], cc.transform(QuantumStrategy.MIN
+                    + i));
+        }
+        // Composing a table with its own values.
+        int[] table = new int[] {0, 0, 255, 128};
+        cc.compose(table);
+        Assert.assertTrue(Arrays.equals(table, new int[] {255, 255, 0, 127}));
+    }
+
+    public void testChangesRebuildTable() {
+        CodomainChain cc = new CodomainChain(10, 200);
+        int version = cc.getVersion();
+        cc.add(new ReverseIntensityContext());
+        Assert.assertTrue(cc.getVersion() != version);
+        // Already in the chain: updated, not applied twice.
+        version = cc.getVersion();
+        Assert.assertFalse(cc.add(new ReverseIntensityContext()));
+        Assert.assertTrue(cc.getVersion() != version);
+        Assert.assertEquals(cc.transform(100), 110);
+        version = cc.getVersion();
+        cc.setInterval(0, 255);
+        Assert.assertTrue(cc.getVersion() != version);
+        Assert.assertEquals(cc.transform(100), 155);
+        version = cc.getVersion();
+        Assert.assertTrue(cc.remove(new ReverseIntensityContext()));
+        Assert.assertTrue(cc.getVersion() != version);
+        Assert.assertTrue(cc.isIdentity());
+        Assert.assertEquals(cc.transform(100), 100);
+        version = cc.getVersion();
+        Assert.assertFalse(cc.remove(new ReverseIntensityContext()));
+        Assert.assertEquals(cc.getVersion(), version);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidInterval() {
+        new CodomainChain(200, 10);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.data;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.data.Downsampler}
+ * instances.
+ */
+@Test
+public class TestDownsampler {
+
+    private Pixels createPixels(String type, int bitSize, int sizeX,
+            int sizeY) {
+        Pixels pixels = new Pixels();
+        PixelsType pixelsType = new PixelsType(type);
+        pixelsType.setBitSize(bitSize);
+        pixels.setPixelsType(pixelsType);
+        pixels.setSizeX(sizeX);
+        pixels.setSizeY(sizeY);
+        return pixels;
+    }
+
+    private Plane2D createPlane(Pixels pixels, String type, ByteBuffer data) {
+        data.rewind();
+        return new Plane2D(new PlaneDef(PlaneDef.XY, 0), pixels,
+                new PixelData(type, data));
+    }
+
+    private double[] read(Plane2D plane) {
+        RowReader reader = RowReader.newInstance(plane);
+        double[] values = new double[plane.getSizeX() * plane.getSizeY()];
+        double[] row = new double[plane.getSizeX()];
+        for (int y = 0; y < plane.getSizeY(); y++) {
+            reader.read(0, y, row, row.length);
+            System.arraycopy(row, 0, values, y * row.length, row.length);
+        }
+        return values;
+    }
+
+    /** A 4x2 plane: 0 10 20 30 / 40 50 60 70. */
+    private Plane2D createUInt8Plane(Pixels pixels) {
+        byte[] values = new byte[8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (byte) (i * 10);
+        }
+        return createPlane(pixels, "uint8", ByteBuffer.wrap(values));
+    }
+
+    public void testBox() {
+        Pixels pixels = createPixels("uint8", 8, 4, 2);
+        Plane2D plane = new Downsampler(Downsampler.BOX).downsample(
+                createUInt8Plane(pixels), pixels, 2, 1, null);
+        Assert.assertEquals(plane.getSizeX(), 2);
+        Assert.assertEquals(plane.getSizeY(), 1);
+        double[] values = read(plane);
+        Assert.assertEquals(values[0], 25.0);
+        Assert.assertEquals(values[1], 45.0);
+    }
+
+    public void testMaxPool() {
+        Pixels pixels = createPixels("uint8", 8, 4, 2);
+        Plane2D plane = new Downsampler(Downsampler.MAX_POOL).downsample(
+                createUInt8Plane(pixels), pixels, 2, 1, null);
+        double[] values = read(plane);
+        Assert.assertEquals(values[0], 50.0);
+        Assert.assertEquals(values[1], 70.0);
+    }
+
+    public void testAreaAverageNonIntegerScale() {
+        // 3 float values reduced to 2: each output pixel covers 1.5 pixels.
+        Pixels pixels = createPixels("float", 32, 3, 1);
+        ByteBuffer data = ByteBuffer.allocate(12);
+        data.putFloat(0).putFloat(3).putFloat(6);
+        Plane2D plane = new Downsampler(Downsampler.AREA_AVERAGE).downsample(
+                createPlane(pixels, "float", data), pixels, 2, 1, null);
+        double[] values = read(plane);
+        Assert.assertEquals(values[0], 1.0, 1e-6);
+        Assert.assertEquals(values[1], 5.0, 1e-6);
+    }
+
+    public void testParallelMatchesSequential() {
+        int sizeX = 1000, sizeY = 700;
+        Pixels pixels = createPixels("uint16", 16, sizeX, sizeY);
+        ByteBuffer data = ByteBuffer.allocate(sizeX * sizeY * 2);
+        for (int i = 0; i < sizeX * sizeY; i++) {
+            data.putShort((short) (i * 31));
+        }
+        Plane2D source = createPlane(pixels, "uint16", data);
+        Downsampler downsampler = new Downsampler(Downsampler.AREA_AVERAGE);
+        double[] sequential = read(downsampler.downsample(source, pixels,
+                300, 210, null));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            double[] parallel = read(downsampler.downsample(source, pixels,
+                    300, 210, executor));
+            Assert.assertTrue(Arrays.equals(parallel, sequential));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUpsamplingNotSupported() {
+        Pixels pixels = createPixels("uint8", 8, 4, 2);
+        new Downsampler(Downsampler.BOX).downsample(createUInt8Plane(pixels),
+                pixels, 8, 2, null);
+    }
+}
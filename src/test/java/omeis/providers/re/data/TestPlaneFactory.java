@@ -0,0 +1,162 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.data;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for the <i>XZ</i> and <i>ZY</i> planes created by
+ * {@link omeis.providers.re.data.PlaneFactory}.
+ */
+@Test
+public class TestPlaneFactory {
+
+    private static final int SIZE_X = 4;
+
+    private static final int SIZE_Y = 3;
+
+    private static final int SIZE_Z = 5;
+
+    /** The tiles requested as <code>{z, x, y, w, h}</code>. */
+    private final List<int[]> tiles = new ArrayList<int[]>();
+
+    /** The value of the pixel at the specified coordinates. */
+    private static int valueAt(int x, int y, int z) {
+        return x + SIZE_X * y + SIZE_X * SIZE_Y * z;
+    }
+
+    private Pixels createPixels() {
+        Pixels pixels = new Pixels();
+        PixelsType type = new PixelsType(PixelsType.VALUE_UINT8);
+        type.setBitSize(8);
+        pixels.setPixelsType(type);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(SIZE_Z);
+        return pixels;
+    }
+
+    /**
+     * Creates a buffer serving tiles of the stack and failing on any other
+     * read so the whole stack cannot be loaded.
+     */
+    private PixelBuffer createBuffer() {
+        tiles.clear();
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (!method.getName().equals("getTile")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                int z = (Integer) args[0];
+                int x = (Integer) args[3], y = (Integer) args[4];
+                int w = (Integer) args[5], h = (Integer) args[6];
+                tiles.add(new int[] {z, x, y, w, h});
+                byte[] values = new byte[w * h];
+                for (int j = 0; j < h; j++) {
+                    for (int i = 0; i < w; i++) {
+                        values[j * w + i] = (byte) valueAt(x + i, y + j, z);
+                    }
+                }
+                return new PixelData(PixelsType.VALUE_UINT8,
+                        ByteBuffer.wrap(values));
+            }
+        };
+        return (PixelBuffer) Proxy.newProxyInstance(
+                PixelBuffer.class.getClassLoader(),
+                new Class<?>[] { PixelBuffer.class }, handler);
+    }
+
+    private int[] readRow(Plane2D plane, int x2) {
+        int[] values = new int[plane.getSizeX()];
+        RowReader.newInstance(plane).read(0, x2, values, values.length);
+        return values;
+    }
+
+    public void testXZPlane() {
+        PlaneDef pd = new PlaneDef(PlaneDef.XZ, 0);
+        pd.setY(1);
+        Plane2D plane = PlaneFactory.createPlane(pd, 0, createPixels(),
+                createBuffer());
+        Assert.assertEquals(plane.getSizeX(), SIZE_X);
+        Assert.assertEquals(plane.getSizeY(), SIZE_Z);
+        Assert.assertTrue(plane.isXYPlanar());
+        Assert.assertEquals(tiles.size(), SIZE_Z);
+        for (int z = 0; z < SIZE_Z; z++) {
+            int[] row = readRow(plane, z);
+            for (int x = 0; x < SIZE_X; x++) {
+                Assert.assertEquals(row[x], valueAt(x, 1, z));
+            }
+            // One row of each section.
+            Assert.assertEquals(tiles.get(z)[4], 1);
+        }
+    }
+
+    public void testZYPlane() {
+        PlaneDef pd = new PlaneDef(PlaneDef.ZY, 0);
+        pd.setX(2);
+        Plane2D plane = PlaneFactory.createPlane(pd, 0, createPixels(),
+                createBuffer());
+        Assert.assertEquals(plane.getSizeX(), SIZE_Z);
+        Assert.assertEquals(plane.getSizeY(), SIZE_Y);
+        Assert.assertEquals(tiles.size(), SIZE_Z);
+        for (int y = 0; y < SIZE_Y; y++) {
+            int[] row = readRow(plane, y);
+            for (int z = 0; z < SIZE_Z; z++) {
+                Assert.assertEquals(row[z], valueAt(2, y, z));
+            }
+        }
+        // One column of each section.
+        for (int[] tile : tiles) {
+            Assert.assertEquals(tile[3], 1);
+        }
+    }
+
+    public void testXZRegion() {
+        PlaneDef pd = new PlaneDef(PlaneDef.XZ, 0);
+        pd.setY(2);
+        pd.setRegion(new RegionDef(1, 2, 2, 3));
+        Plane2D plane = PlaneFactory.createPlane(pd, 0, createPixels(),
+                createBuffer());
+        Assert.assertEquals(plane.getSizeX(), 2);
+        Assert.assertEquals(plane.getSizeY(), 3);
+        Assert.assertEquals(tiles.size(), 3);
+        for (int j = 0; j < 3; j++) {
+            int[] row = readRow(plane, j);
+            Assert.assertEquals(row[0], valueAt(1, 2, 2 + j));
+            Assert.assertEquals(row[1], valueAt(2, 2, 2 + j));
+        }
+    }
+
+    public void testZYRegion() {
+        PlaneDef pd = new PlaneDef(PlaneDef.ZY, 0);
+        pd.setX(3);
+        pd.setRegion(new RegionDef(1, 1, 3, 2));
+        Plane2D plane = PlaneFactory.createPlane(pd, 0, createPixels(),
+                createBuffer());
+        Assert.assertEquals(plane.getSizeX(), 3);
+        Assert.assertEquals(plane.getSizeY(), 2);
+        Assert.assertEquals(tiles.size(), 3);
+        for (int j = 0; j < 2; j++) {
+            int[] row = readRow(plane, j);
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(row[i], valueAt(3, 1 + j, 1 + i));
+            }
+        }
+    }
+}
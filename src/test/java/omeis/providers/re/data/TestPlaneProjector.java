@@ -0,0 +1,297 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.data;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Channel;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.model.stats.StatsInfo;
+import ome.util.PixelData;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.data.PlaneProjector}.
+ */
+@Test
+public class TestPlaneProjector {
+
+    /** The sections requested. */
+    private final List<Integer> sections = new ArrayList<Integer>();
+
+    private Pixels createPixels(String type, int sizeX, int sizeY,
+            int sizeZ) {
+        Pixels pixels = new Pixels();
+        PixelsType pixelsType = new PixelsType(type);
+        pixelsType.setBitSize(8 * PlaneFactory.bytesPerPixel(pixelsType));
+        pixels.setPixelsType(pixelsType);
+        pixels.setSizeX(sizeX);
+        pixels.setSizeY(sizeY);
+        pixels.setSizeZ(sizeZ);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        pixels.addChannel(new Channel());
+        return pixels;
+    }
+
+    /** Encodes the values as the specified pixels type. */
+    private ByteBuffer encode(String type, double[] values) {
+        int bytesPerPixel = PlaneFactory.bytesPerPixel(new PixelsType(type));
+        ByteBuffer data = ByteBuffer.allocate(values.length * bytesPerPixel);
+        for (double v : values) {
+            if (PixelsType.VALUE_FLOAT.equals(type)) {
+                data.putFloat((float) v);
+            } else if (PixelsType.VALUE_DOUBLE.equals(type)) {
+                data.putDouble(v);
+            } else if (bytesPerPixel == 1) {
+                data.put((byte) (long) v);
+            } else if (bytesPerPixel == 2) {
+                data.putShort((short) (long) v);
+            } else {
+                data.putInt((int) (long) v);
+            }
+        }
+        data.rewind();
+        return data;
+    }
+
+    /**
+     * Creates a buffer serving the planes of the specified stack, indexed by
+     * section, and failing on any other read.
+     */
+    private PixelBuffer createBuffer(final String type,
+            final double[][] stack) {
+        sections.clear();
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (!method.getName().equals("getPlane")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                int z = (Integer) args[0];
+                sections.add(z);
+                return new PixelData(type, encode(type, stack[z]));
+            }
+        };
+        return (PixelBuffer) Proxy.newProxyInstance(
+                PixelBuffer.class.getClassLoader(),
+                new Class<?>[] { PixelBuffer.class }, handler);
+    }
+
+    private double[][] createStack(int size, int sizeZ, long seed) {
+        Random random = new Random(seed);
+        double[][] stack = new double[sizeZ][size];
+        for (double[] plane : stack) {
+            for (int i = 0; i < size; i++) {
+                plane[i] = random.nextInt(256);
+            }
+        }
+        return stack;
+    }
+
+    private double[] read(Plane2D plane) {
+        int width = plane.getSizeX();
+        double[] values = new double[width * plane.getSizeY()];
+        double[] row = new double[width];
+        RowReader reader = RowReader.newInstance(plane);
+        for (int y = 0; y < plane.getSizeY(); y++) {
+            reader.read(0, y, row, width);
+            System.arraycopy(row, 0, values, y * width, width);
+        }
+        return values;
+    }
+
+    /**
+     * Projects the specified sections pixel per pixel, the way the
+     * projection is specified.
+     */
+    private double[] reference(double[][] stack, Pixels pixels,
+            ProjectionDef def) {
+        String type = pixels.getPixelsType().getValue();
+        double[] range = PlaneFactory.getRange(type);
+        int end = Math.min(def.getEnd(), pixels.getSizeZ() - 1);
+        int count = 0;
+        for (int z = def.getStart(); z <= end; z += def.getStepping()) {
+            count++;
+        }
+        double scale = 1;
+        if (def.getAlgorithm() == ProjectionDef.MEAN_INTENSITY) {
+            scale = count;
+        } else if (def.getAlgorithm() == ProjectionDef.SUM_INTENSITY
+                && range != null) {
+            StatsInfo stats = pixels.getChannel(0).getStatsInfo();
+            scale = PlaneProjector.getSumScale(range, stats == null ? null :
+                new double[] {stats.getGlobalMin(), stats.getGlobalMax()},
+                count);
+        }
+        double[] expected = new double[stack[0].length];
+        for (int i = 0; i < expected.length; i++) {
+            double v = def.getAlgorithm() == ProjectionDef.MAXIMUM_INTENSITY
+                    ? Double.NEGATIVE_INFINITY : 0;
+            for (int z = def.getStart(); z <= end; z += def.getStepping()) {
+                if (def.getAlgorithm() == ProjectionDef.MAXIMUM_INTENSITY) {
+                    v = Math.max(v, stack[z][i]);
+                } else {
+                    v += stack[z][i];
+                }
+            }
+            v /= scale;
+            if (range != null) {
+                v = Math.rint(Math.max(range[0], Math.min(range[1], v)));
+            }
+            expected[i] = v;
+        }
+        return expected;
+    }
+
+    private void assertProjection(int algorithm) {
+        Pixels pixels = createPixels(PixelsType.VALUE_UINT8, 5, 3, 6);
+        double[][] stack = createStack(15, 6, 42 + algorithm);
+        ProjectionDef def = new ProjectionDef(algorithm);
+        Plane2D plane = PlaneProjector.project(def,
+                new PlaneDef(PlaneDef.XY, 0), 0, pixels,
+                createBuffer(PixelsType.VALUE_UINT8, stack), null);
+        Assert.assertEquals(plane.getSizeX(), 5);
+        Assert.assertEquals(plane.getSizeY(), 3);
+        Assert.assertEquals(sections, Arrays.asList(0, 1, 2, 3, 4, 5));
+        Assert.assertTrue(Arrays.equals(read(plane),
+                reference(stack, pixels, def)));
+    }
+
+    public void testMaximum() {
+        assertProjection(ProjectionDef.MAXIMUM_INTENSITY);
+    }
+
+    public void testMean() {
+        assertProjection(ProjectionDef.MEAN_INTENSITY);
+    }
+
+    public void testSum() {
+        assertProjection(ProjectionDef.SUM_INTENSITY);
+    }
+
+    public void testZRangeClampedAndStepping() {
+        Pixels pixels = createPixels(PixelsType.VALUE_UINT8, 4, 2, 6);
+        double[][] stack = createStack(8, 6, 7);
+        ProjectionDef def = new ProjectionDef(ProjectionDef.SUM_INTENSITY, 1,
+                100, 2);
+        Plane2D plane = PlaneProjector.project(def,
+                new PlaneDef(PlaneDef.XY, 0), 0, pixels,
+                createBuffer(PixelsType.VALUE_UINT8, stack), null);
+        Assert.assertEquals(sections, Arrays.asList(1, 3, 5));
+        Assert.assertTrue(Arrays.equals(read(plane),
+                reference(stack, pixels, def)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testZRangeOutsideStack() {
+        Pixels pixels = createPixels(PixelsType.VALUE_UINT8, 4, 2, 6);
+        PlaneProjector.project(new ProjectionDef(
+                ProjectionDef.MAXIMUM_INTENSITY, 6, 8, 1),
+                new PlaneDef(PlaneDef.XY, 0), 0, pixels,
+                createBuffer(PixelsType.VALUE_UINT8, createStack(8, 6, 7)),
+                null);
+    }
+
+    public void testExecutorMatchesCallingThread() throws Exception {
+        // 32 rows per block.
+        int sizeX = 2048, sizeY = 100;
+        Pixels pixels = createPixels(PixelsType.VALUE_UINT8, sizeX, sizeY, 4);
+        double[][] stack = createStack(sizeX * sizeY, 4, 3);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int algorithm = 0; algorithm <= 2; algorithm++) {
+                ProjectionDef def = new ProjectionDef(algorithm);
+                double[] expected = read(PlaneProjector.project(def,
+                        new PlaneDef(PlaneDef.XY, 0), 0, pixels,
+                        createBuffer(PixelsType.VALUE_UINT8, stack), null));
+                Assert.assertTrue(Arrays.equals(expected,
+                        reference(stack, pixels, def)));
+                double[] blocks = read(PlaneProjector.project(def,
+                        new PlaneDef(PlaneDef.XY, 0), 0, pixels,
+                        createBuffer(PixelsType.VALUE_UINT8, stack),
+                        executor));
+                Assert.assertTrue(Arrays.equals(blocks, expected),
+                        "Algorithm " + algorithm);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Checks that the projected values are clamped to the range of the type
+     * and rounded half to even, except for the floating point types.
+     */
+    public void testPixelDataClampedAndRounded() {
+        String[] types = { PixelsType.VALUE_INT8, PixelsType.VALUE_UINT8,
+                PixelsType.VALUE_INT16, PixelsType.VALUE_UINT16,
+                PixelsType.VALUE_INT32, PixelsType.VALUE_UINT32,
+                PixelsType.VALUE_FLOAT, PixelsType.VALUE_DOUBLE };
+        for (String type : types) {
+            double[] range = PlaneFactory.getRange(type);
+            double min = range == null ? -1000 : range[0];
+            double max = range == null ? 1000 : range[1];
+            double[][] stack = { { max, min, 1, 2 }, { max, min, 2, 3 } };
+            Pixels pixels = createPixels(type, 4, 1, 2);
+            // The sums are not scaled down.
+            pixels.getChannel(0).setStatsInfo(new StatsInfo(-1.0, 1.0));
+            double[] sums = read(PlaneProjector.project(new ProjectionDef(
+                    ProjectionDef.SUM_INTENSITY), new PlaneDef(PlaneDef.XY, 0),
+                    0, pixels, createBuffer(type, stack), null));
+            double[] means = read(PlaneProjector.project(new ProjectionDef(
+                    ProjectionDef.MEAN_INTENSITY),
+                    new PlaneDef(PlaneDef.XY, 0), 0, pixels,
+                    createBuffer(type, stack), null));
+            if (range == null) {
+                Assert.assertTrue(Arrays.equals(sums,
+                        new double[] { 2 * max, 2 * min, 3, 5 }), type);
+                Assert.assertTrue(Arrays.equals(means,
+                        new double[] { max, min, 1.5, 2.5 }), type);
+            } else {
+                Assert.assertTrue(Arrays.equals(sums,
+                        new double[] { max, min, 3, 5 }), type);
+                Assert.assertTrue(Arrays.equals(means,
+                        new double[] { max, min, 2, 2 }), type);
+            }
+        }
+    }
+
+    public void testSumScaleKeepsFittingSums() {
+        double[] range = new double[] { 0, 65535 };
+        // 12-bit values: the sum of 10 sections fits into 16 bits.
+        Assert.assertEquals(PlaneProjector.getSumScale(range,
+                new double[] { 0, 4095 }, 10), 1.0);
+        Assert.assertEquals(PlaneProjector.getSumScale(range,
+                new double[] { 0, 4095 }, 32), 32 * 4095 / 65535.0);
+    }
+
+    public void testSumScaleWithoutStatistics() {
+        double[] range = new double[] { 0, 255 };
+        Assert.assertEquals(PlaneProjector.getSumScale(range, null, 5), 5.0);
+        Assert.assertEquals(PlaneProjector.getSumScale(range, null, 1), 1.0);
+    }
+
+    public void testSumScaleSigned() {
+        double[] range = new double[] { -128, 127 };
+        Assert.assertEquals(PlaneProjector.getSumScale(range,
+                new double[] { -100, 10 }, 4), 400 / 128.0);
+        Assert.assertEquals(PlaneProjector.getSumScale(range,
+                new double[] { -10, 100 }, 4), 400 / 127.0);
+    }
+}
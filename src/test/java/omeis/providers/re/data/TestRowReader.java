@@ -0,0 +1,172 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for the type-specialized
+ * {@link omeis.providers.re.data.RowReader} instances.
+ */
+@Test
+public class TestRowReader {
+
+    /** The values of the 3x2 planes, row after row. */
+    private static final double[] VALUES = { 0, 1, 2, 3, 4, 5 };
+
+    private Plane2D createPlane(String type, int bitSize, ByteBuffer data) {
+        Pixels pixels = new Pixels();
+        PixelsType pixelsType = new PixelsType(type);
+        pixelsType.setBitSize(bitSize);
+        pixels.setPixelsType(pixelsType);
+        pixels.setSizeX(3);
+        pixels.setSizeY(2);
+        data.rewind();
+        return new Plane2D(new PlaneDef(PlaneDef.XY, 0), pixels,
+                new PixelData(type, data));
+    }
+
+    /**
+     * Reads the last two values of the second row i.e. <code>(1, 1)</code>
+     * and <code>(2, 1)</code>.
+     */
+    private double[] readDoubles(RowReader reader) {
+        double[] values = new double[2];
+        reader.read(1, 1, values, 2);
+        return values;
+    }
+
+    private int[] readInts(RowReader reader) {
+        int[] values = new int[2];
+        reader.read(1, 1, values, 2);
+        return values;
+    }
+
+    private void assertIntegral(Plane2D plane, Class<?> type, int a, int b) {
+        RowReader reader = RowReader.newInstance(plane);
+        Assert.assertEquals(reader.getClass(), type);
+        Assert.assertTrue(reader.isIntegral());
+        Assert.assertTrue(Arrays.equals(readInts(reader), new int[] {a, b}));
+        Assert.assertTrue(Arrays.equals(readDoubles(reader),
+                new double[] {a, b}));
+    }
+
+    private void assertNotIntegral(Plane2D plane, Class<?> type, double a,
+            double b) {
+        RowReader reader = RowReader.newInstance(plane);
+        Assert.assertEquals(reader.getClass(), type);
+        Assert.assertFalse(reader.isIntegral());
+        Assert.assertTrue(Arrays.equals(readDoubles(reader),
+                new double[] {a, b}));
+    }
+
+    public void testUInt8() {
+        ByteBuffer data = ByteBuffer.allocate(6);
+        data.put(new byte[] {0, 1, 2, 3, (byte) 200, (byte) 255});
+        assertIntegral(createPlane(PixelsType.VALUE_UINT8, 8, data),
+                RowReader.UInt8.class, 200, 255);
+    }
+
+    public void testInt8() {
+        ByteBuffer data = ByteBuffer.allocate(6);
+        data.put(new byte[] {0, 1, 2, 3, -128, 127});
+        assertIntegral(createPlane(PixelsType.VALUE_INT8, 8, data),
+                RowReader.Int8.class, -128, 127);
+    }
+
+    public void testUInt16() {
+        ByteBuffer data = ByteBuffer.allocate(12);
+        for (double v : VALUES) {
+            data.putShort((short) v);
+        }
+        data.putShort(8, (short) 65535);
+        assertIntegral(createPlane(PixelsType.VALUE_UINT16, 16, data),
+                RowReader.UInt16.class, 65535, 5);
+    }
+
+    public void testUInt16LittleEndian() {
+        ByteBuffer data = ByteBuffer.allocate(12).order(
+                ByteOrder.LITTLE_ENDIAN);
+        for (double v : VALUES) {
+            data.putShort((short) (v * 1000));
+        }
+        assertIntegral(createPlane(PixelsType.VALUE_UINT16, 16, data),
+                RowReader.UInt16.class, 4000, 5000);
+    }
+
+    public void testInt16() {
+        ByteBuffer data = ByteBuffer.allocate(12);
+        for (double v : VALUES) {
+            data.putShort((short) v);
+        }
+        data.putShort(8, Short.MIN_VALUE);
+        assertIntegral(createPlane(PixelsType.VALUE_INT16, 16, data),
+                RowReader.Int16.class, Short.MIN_VALUE, 5);
+    }
+
+    public void testUInt32() {
+        ByteBuffer data = ByteBuffer.allocate(24);
+        for (double v : VALUES) {
+            data.putInt((int) v);
+        }
+        data.putInt(16, -1);
+        assertNotIntegral(createPlane(PixelsType.VALUE_UINT32, 32, data),
+                RowReader.UInt32.class, 4294967295.0, 5);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testUInt32NotReadAsInt() {
+        ByteBuffer data = ByteBuffer.allocate(24);
+        readInts(RowReader.newInstance(createPlane(PixelsType.VALUE_UINT32,
+                32, data)));
+    }
+
+    public void testInt32() {
+        ByteBuffer data = ByteBuffer.allocate(24);
+        for (double v : VALUES) {
+            data.putInt((int) v);
+        }
+        data.putInt(16, Integer.MIN_VALUE);
+        assertIntegral(createPlane(PixelsType.VALUE_INT32, 32, data),
+                RowReader.Int32.class, Integer.MIN_VALUE, 5);
+    }
+
+    public void testFloat() {
+        ByteBuffer data = ByteBuffer.allocate(24);
+        for (double v : VALUES) {
+            data.putFloat((float) (v + 0.5));
+        }
+        assertNotIntegral(createPlane(PixelsType.VALUE_FLOAT, 32, data),
+                RowReader.Float32.class, 4.5, 5.5);
+    }
+
+    public void testDouble() {
+        ByteBuffer data = ByteBuffer.allocate(48);
+        for (double v : VALUES) {
+            data.putDouble(v - 0.25);
+        }
+        assertNotIntegral(createPlane(PixelsType.VALUE_DOUBLE, 64, data),
+                RowReader.Float64.class, 3.75, 4.75);
+    }
+
+    public void testReaderIgnoresBufferPosition() {
+        ByteBuffer data = ByteBuffer.allocate(6);
+        data.put(new byte[] {0, 1, 2, 3, 4, 5});
+        Plane2D plane = createPlane(PixelsType.VALUE_UINT8, 8, data);
+        data.position(5);
+        assertIntegral(plane, RowReader.UInt8.class, 4, 5);
+        Assert.assertEquals(data.position(), 5);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.metadata;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.PlaneDef;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.metadata.Histogram}
+ * instances.
+ */
+@Test
+public class TestHistogram {
+
+    private Plane2D createPlane(String type, int bitSize, ByteBuffer data,
+            int sizeX, int sizeY) {
+        Pixels pixels = new Pixels();
+        PixelsType pixelsType = new PixelsType(type);
+        pixelsType.setBitSize(bitSize);
+        pixels.setPixelsType(pixelsType);
+        pixels.setSizeX(sizeX);
+        pixels.setSizeY(sizeY);
+        data.rewind();
+        return new Plane2D(new PlaneDef(PlaneDef.XY, 0), pixels,
+                new PixelData(type, data));
+    }
+
+    private Plane2D createUInt8Plane(int sizeX, int sizeY) {
+        byte[] values = new byte[sizeX * sizeY];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (byte) (i % 256);
+        }
+        return createPlane("uint8", 8, ByteBuffer.wrap(values), sizeX, sizeY);
+    }
+
+    public void testExactUInt8() {
+        Histogram h = Histogram.compute(createUInt8Plane(256, 4), 0, 255,
+                Histogram.DEFAULT_BINS, null);
+        Assert.assertTrue(h.isExact());
+        Assert.assertEquals(h.getBinCount(), 256);
+        Assert.assertEquals(h.getTotal(), 1024);
+        for (int i = 0; i < h.getBinCount(); i++) {
+            Assert.assertEquals(h.getCount(i), 4);
+        }
+        Assert.assertEquals(h.getPercentile(0), 0.0);
+        Assert.assertEquals(h.getPercentile(0.5), 127.0);
+        Assert.assertEquals(h.getPercentile(1), 255.0);
+    }
+
+    public void testValuesOutOfRangeAreClamped() {
+        Histogram h = Histogram.compute(createUInt8Plane(256, 1), 10, 19,
+                Histogram.DEFAULT_BINS, null);
+        Assert.assertEquals(h.getBinCount(), 10);
+        Assert.assertEquals(h.getCount(0), 11);
+        Assert.assertEquals(h.getCount(9), 256 - 19);
+        Assert.assertEquals(h.getTotal(), 256);
+    }
+
+    public void testFixedBinsFloat() {
+        int n = 1000;
+        ByteBuffer data = ByteBuffer.allocate(n * 4);
+        for (int i = 0; i < n; i++) {
+            data.putFloat(i / 10f);
+        }
+        Histogram h = Histogram.compute(createPlane("float", 32, data, n, 1),
+                0, 100, 10, null);
+        Assert.assertFalse(h.isExact());
+        Assert.assertEquals(h.getBinCount(), 10);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(h.getCount(i), 100);
+        }
+        Assert.assertEquals(h.getPercentile(0.25), 25.0, 0.001);
+    }
+
+    public void testParallelMatchesSequential() throws Exception {
+        Plane2D plane = createUInt8Plane(1024, 512);
+        Histogram sequential = Histogram.compute(plane, 0, 255,
+                Histogram.DEFAULT_BINS, null);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Histogram parallel = Histogram.compute(plane, 0, 255,
+                    Histogram.DEFAULT_BINS, executor);
+            Assert.assertEquals(parallel.getTotal(), sequential.getTotal());
+            for (int i = 0; i < sequential.getBinCount(); i++) {
+                Assert.assertEquals(parallel.getCount(i),
+                        sequential.getCount(i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testFractions() {
+        Histogram h = Histogram.compute(createUInt8Plane(256, 1), 0, 255,
+                Histogram.DEFAULT_BINS, null);
+        double[] fractions = h.getFractions(4);
+        for (double f : fractions) {
+            Assert.assertEquals(f, 0.25, 1e-9);
+        }
+    }
+
+    public void testLocationStatsClipsWindow() {
+        // 1000 values at 100, one outlier at each end of the range.
+        byte[] values = new byte[1002];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 100;
+        }
+        values[0] = 0;
+        values[1] = (byte) 255;
+        Histogram h = Histogram.compute(createPlane("uint8", 8,
+                ByteBuffer.wrap(values), values.length, 1), 0, 255,
+                Histogram.DEFAULT_BINS, null);
+        StatsFactory sf = new StatsFactory();
+        sf.computeLocationStats(h);
+        // A constant plane keeps the window untouched.
+        Assert.assertEquals(sf.getLocationStats().length, 20);
+
+        byte[] ramp = new byte[2560];
+        for (int i = 0; i < ramp.length; i++) {
+            ramp[i] = (byte) (i / 10);
+        }
+        h = Histogram.compute(createPlane("uint8", 8, ByteBuffer.wrap(ramp),
+                ramp.length, 1), 0, 255, Histogram.DEFAULT_BINS, null);
+        sf.computeLocationStats(h);
+        Assert.assertTrue(sf.getInputStart() > 0);
+        Assert.assertTrue(sf.getInputEnd() < 255);
+        Assert.assertTrue(sf.getInputEnd() > sf.getInputStart());
+        Assert.assertTrue(sf.isNoiseReduction());
+    }
+}
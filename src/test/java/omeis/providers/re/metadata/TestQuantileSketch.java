@@ -0,0 +1,115 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.metadata;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.PlaneDef;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.metadata.QuantileSketch}
+ * instances.
+ */
+@Test
+public class TestQuantileSketch {
+
+    private Plane2D createFloatPlane(int sizeX, int sizeY) {
+        ByteBuffer data = ByteBuffer.allocate(sizeX * sizeY * 4);
+        for (int i = 0; i < sizeX * sizeY; i++) {
+            data.putFloat(i);
+        }
+        data.rewind();
+        Pixels pixels = new Pixels();
+        PixelsType pixelsType = new PixelsType("float");
+        pixelsType.setBitSize(32);
+        pixels.setPixelsType(pixelsType);
+        pixels.setSizeX(sizeX);
+        pixels.setSizeY(sizeY);
+        return new Plane2D(new PlaneDef(PlaneDef.XY, 0), pixels,
+                new PixelData("float", data));
+    }
+
+    public void testEmpty() {
+        QuantileSketch sketch = new QuantileSketch();
+        Assert.assertEquals(sketch.getN(), 0);
+        Assert.assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+    }
+
+    public void testSmallIsExact() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 1; i <= 100; i++) {
+            sketch.update(i);
+        }
+        sketch.update(Double.NaN);
+        Assert.assertEquals(sketch.getN(), 100);
+        Assert.assertEquals(sketch.getMin(), 1.0);
+        Assert.assertEquals(sketch.getMax(), 100.0);
+        Assert.assertEquals(sketch.getQuantile(0.5), 50.0);
+        Assert.assertEquals(sketch.getRank(26), 0.25, 1e-9);
+    }
+
+    public void testLargeStreamIsAccurate() {
+        int n = 1000000;
+        QuantileSketch sketch = new QuantileSketch();
+        // Values in a scrambled order.
+        for (int i = 0; i < n; i++) {
+            sketch.update((i * 7919L) % n);
+        }
+        Assert.assertEquals(sketch.getN(), n);
+        for (double q : new double[] {0.005, 0.1, 0.5, 0.9, 0.995}) {
+            Assert.assertEquals(sketch.getQuantile(q) / n, q, 0.02);
+        }
+    }
+
+    public void testMerge() {
+        QuantileSketch low = new QuantileSketch();
+        QuantileSketch high = new QuantileSketch();
+        for (int i = 0; i < 50000; i++) {
+            low.update(i);
+            high.update(50000 + i);
+        }
+        low.merge(high);
+        Assert.assertEquals(low.getN(), 100000);
+        Assert.assertEquals(low.getMin(), 0.0);
+        Assert.assertEquals(low.getMax(), 99999.0);
+        Assert.assertEquals(low.getQuantile(0.5), 50000, 2000);
+        Assert.assertEquals(low.getQuantile(0.75), 75000, 2000);
+    }
+
+    public void testParallelPlane() throws Exception {
+        Plane2D plane = createFloatPlane(1024, 512);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            QuantileSketch sketch = QuantileSketch.compute(plane,
+                    QuantileSketch.DEFAULT_K, executor);
+            int n = 1024 * 512;
+            Assert.assertEquals(sketch.getN(), n);
+            Assert.assertEquals(sketch.getMax(), n - 1.0);
+            Assert.assertEquals(sketch.getQuantile(0.5) / n, 0.5, 0.02);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testLocationStats() {
+        StatsFactory sf = new StatsFactory();
+        QuantileSketch sketch = QuantileSketch.compute(
+                createFloatPlane(1000, 10), QuantileSketch.DEFAULT_K, null);
+        sf.computeLocationStats(sketch);
+        Assert.assertTrue(sf.getInputStart() > 0);
+        Assert.assertTrue(sf.getInputEnd() < 9999);
+        Assert.assertTrue(sf.getInputEnd() > sf.getInputStart());
+    }
+}
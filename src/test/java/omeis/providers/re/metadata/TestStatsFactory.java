@@ -19,6 +19,10 @@
 
 package omeis.providers.re.metadata;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import ome.model.core.Pixels;
 import ome.model.enums.PixelsType;
 
@@ -129,4 +133,26 @@ public class TestStatsFactory {
         Assert.assertEquals(pixelsRange[0], 0.0);
         Assert.assertEquals(pixelsRange[1], 65535.0);
     }
+
+    public void testSampleStride() {
+        Assert.assertEquals(StatsFactory.getSampleStride(1024, 1024), 0);
+        Assert.assertEquals(StatsFactory.getSampleStride(100, 100), 0);
+        Assert.assertEquals(StatsFactory.getSampleStride(2048, 2048), 1);
+        Assert.assertEquals(StatsFactory.getSampleStride(2049, 2048), 2);
+        int stride = StatsFactory.getSampleStride(40000, 30000);
+        long read = (long) (40000 / (stride + 1)) * (30000 / (stride + 1));
+        Assert.assertTrue(read <= StatsFactory.MAX_SAMPLED_PIXELS);
+    }
+
+    public void testSampleResolution() {
+        List<List<Integer>> descriptions = new ArrayList<List<Integer>>();
+        for (int size = 8192; size >= 256; size /= 2) {
+            descriptions.add(Arrays.asList(size, size / 2));
+        }
+        // 1024x512 is the largest level of at most 1024x1024 pixels.
+        Assert.assertEquals(
+                StatsFactory.selectSampleResolution(descriptions), 3);
+        Assert.assertEquals(StatsFactory.selectSampleResolution(
+                descriptions.subList(0, 2)), 1);
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.metadata;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.metadata.StatsIndex}
+ * instances.
+ */
+@Test
+public class TestStatsIndex {
+
+    private Histogram createHistogram(int from, int to) {
+        Histogram h = new Histogram(0, 255, Histogram.DEFAULT_BINS, true);
+        int[] values = new int[to - from];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = from + i;
+        }
+        int[] bins = new int[h.getBinCount()];
+        h.count(values, values.length, bins);
+        h.add(bins);
+        return h;
+    }
+
+    public void testWriteAndOpen() throws IOException {
+        StatsIndex.Builder builder = new StatsIndex.Builder(42L);
+        builder.add(0, 0, createHistogram(10, 110));
+        builder.add(1, 0, createHistogram(0, 256));
+        File file = File.createTempFile("stats", ".idx");
+        try {
+            builder.write(file);
+            StatsIndex index = StatsIndex.open(file);
+            Assert.assertEquals(index.getPixelsId(), 42L);
+            Assert.assertEquals(index.size(), 2);
+            StatsIndex.Entry entry = index.getEntry(0, 0);
+            Assert.assertEquals(entry.getTotal(), 100L);
+            Assert.assertEquals(entry.getMin(), 10.0);
+            Assert.assertEquals(entry.getMax(), 109.0);
+            Assert.assertEquals(entry.getPercentile(0.5), 59.0);
+            // Not stored, computed from the histogram.
+            Assert.assertEquals(entry.getPercentile(0.3), 39.0);
+            Assert.assertEquals(entry.getHistogram().getCount(10), 1L);
+            Assert.assertNull(index.getEntry(2, 0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testIncrementalUpdate() {
+        StatsIndex index = new StatsIndex.Builder(1L)
+                .add(0, 0, createHistogram(0, 100)).build();
+        index = new StatsIndex.Builder(index)
+                .add(0, 0, createHistogram(100, 200))
+                .add(0, 1, createHistogram(0, 50)).build();
+        StatsIndex.Entry entry = index.getEntry(0, 0);
+        Assert.assertEquals(entry.getTotal(), 200L);
+        Assert.assertEquals(entry.getMax(), 199.0);
+        Assert.assertEquals(index.getEntry(0).getLevel(), 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testMergeDifferentBins() {
+        new StatsIndex.Builder(1L).add(0, 0, createHistogram(0, 100))
+                .add(0, 0, new Histogram(0, 1, 10, false));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testOpenInvalidFile() throws IOException {
+        File file = File.createTempFile("stats", ".idx");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(new byte[32]);
+            } finally {
+                out.close();
+            }
+            StatsIndex.open(file);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.quantum;
+
+import ome.model.core.Pixels;
+import ome.model.display.QuantumDef;
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+import omeis.providers.re.data.PlaneFactory;
+
+/**
+ * Creates the strategies shared by the unit tests of the quantization.
+ */
+public class QuantumTestUtils {
+
+    /**
+     * Creates the metadata of a pixels set of the specified type.
+     *
+     * @param type The value of the pixels type.
+     * @param bitSize The number of bits per pixel.
+     * @return See above.
+     */
+    public static Pixels createPixels(String type, int bitSize)
+    {
+        Pixels pixels = new Pixels();
+        PixelsType pixelsType = new PixelsType(type);
+        pixelsType.setBitSize(bitSize);
+        pixels.setPixelsType(pixelsType);
+        return pixels;
+    }
+
+    /**
+     * Creates a quantum definition mapping onto <code>[0, 255]</code>.
+     *
+     * @return See above.
+     */
+    public static QuantumDef createQuantumDef()
+    {
+        QuantumDef qd = new QuantumDef();
+        qd.setBitResolution(QuantumFactory.DEPTH_8BIT);
+        qd.setCdStart(0);
+        qd.setCdEnd(QuantumFactory.DEPTH_8BIT);
+        return qd;
+    }
+
+    /**
+     * Creates a strategy for 8-bit or 16-bit integral pixels whose extent is
+     * the range of the pixels type. The window is not set so no table is
+     * built yet.
+     *
+     * @param type The value of the pixels type.
+     * @param family The value of the mapping family.
+     * @param k The curve coefficient.
+     * @param noiseReduction The noise reduction flag.
+     * @param cache The cache sharing the tables or <code>null</code>.
+     * @return See above.
+     */
+    public static Quantization_8_16_bit createStrategy(String type,
+            String family, double k, boolean noiseReduction,
+            LookupTableCache cache)
+    {
+        boolean bytes = PixelsType.VALUE_UINT8.equals(type)
+                || PixelsType.VALUE_INT8.equals(type);
+        Quantization_8_16_bit qs = new Quantization_8_16_bit(
+                createQuantumDef(), createPixels(type, bytes ? 8 : 16), cache);
+        double[] range = PlaneFactory.getRange(type);
+        qs.setExtent(range[0], range[1]);
+        qs.setMapping(new Family(family), k, noiseReduction);
+        return qs;
+    }
+
+    /** Static methods only. */
+    private QuantumTestUtils() {}
+}
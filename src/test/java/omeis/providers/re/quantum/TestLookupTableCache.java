@@ -0,0 +1,102 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.quantum;
+
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.quantum.LookupTableCache}
+ * instances.
+ */
+@Test
+public class TestLookupTableCache {
+
+    private Quantization_8_16_bit createStrategy(LookupTableCache cache,
+            double start, double end) {
+        Quantization_8_16_bit qs = QuantumTestUtils.createStrategy(
+                PixelsType.VALUE_UINT16, Family.VALUE_LINEAR, 1.0, false,
+                cache);
+        qs.setWindow(start, end);
+        return qs;
+    }
+
+    private LookupTableCache.Key createKey(int i) {
+        return new LookupTableCache.Key(PixelsType.VALUE_UINT8, 0, 255, 0,
+                255, i, 255, PolynomialMap.class.getName(), 1.0, false, 255,
+                0, 255);
+    }
+
+    public void testSameSettingsShareTable() throws Exception {
+        LookupTableCache cache = new LookupTableCache(1024 * 1024);
+        Quantization_8_16_bit a = createStrategy(cache, 100, 1000);
+        // The table is shared when first used.
+        Assert.assertEquals(cache.getCount(), 0);
+        a.quantize(0);
+        Quantization_8_16_bit b = createStrategy(cache, 100, 1000);
+        Assert.assertEquals(cache.getCount(), 1);
+        Assert.assertEquals(cache.getHits(), 1);
+        for (int x = 0; x < 65536; x += 97) {
+            Assert.assertEquals(b.quantize(x), a.quantize(x));
+        }
+        Assert.assertEquals(a.quantize(100), 0);
+        Assert.assertEquals(a.quantize(1000), 255);
+    }
+
+    public void testWindowChangeAcquiresNewTable() throws Exception {
+        LookupTableCache cache = new LookupTableCache(1024 * 1024);
+        Quantization_8_16_bit a = createStrategy(cache, 100, 1000);
+        int v = a.quantize(500);
+        a.setWindow(0, 2000);
+        Assert.assertTrue(a.quantize(500) < v);
+        Assert.assertEquals(cache.getCount(), 2);
+        a.setWindow(100, 1000);
+        Assert.assertEquals(a.quantize(500), v);
+        Assert.assertEquals(cache.getHits(), 1);
+    }
+
+    public void testReferencedTablesAreNotEvicted() {
+        LookupTableCache cache = new LookupTableCache(256);
+        byte[] first = new byte[256];
+        Assert.assertSame(cache.put(createKey(0), first), first);
+        cache.put(createKey(1), new byte[256]);
+        // Both tables are referenced.
+        Assert.assertEquals(cache.getCount(), 2);
+        cache.release(createKey(0));
+        Assert.assertEquals(cache.getCount(), 1);
+        Assert.assertNull(cache.acquire(createKey(0)));
+        Assert.assertNotNull(cache.acquire(createKey(1)));
+    }
+
+    public void testRelease() throws Exception {
+        LookupTableCache cache = new LookupTableCache(0);
+        Quantization_8_16_bit a = createStrategy(cache, 100, 1000);
+        a.quantize(0);
+        Assert.assertEquals(cache.getCount(), 1);
+        a.release();
+        Assert.assertEquals(cache.getCount(), 0);
+    }
+
+    public void testWindowChangesShareUsedTablesOnly() throws Exception {
+        LookupTableCache cache = new LookupTableCache(64 * 1024 * 1024);
+        Quantization_8_16_bit a = createStrategy(cache, 100, 1000);
+        for (int i = 1; i <= 50; i++) {
+            a.setWindow(100 + i, 1000 + i);
+        }
+        Assert.assertEquals(cache.getCount(), 0);
+        int v = a.quantize(600);
+        Assert.assertEquals(cache.getCount(), 1);
+        Assert.assertEquals(createStrategy(cache, 150, 1050).quantize(600), v);
+        Assert.assertEquals(cache.getHits(), 1);
+        // Released before being used.
+        a.setWindow(0, 2000);
+        a.release();
+        Assert.assertEquals(cache.getCount(), 1);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.quantum;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ome.model.display.QuantumDef;
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+import omeis.providers.re.RenderingExecutor;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for the lookup table built by
+ * {@link omeis.providers.re.quantum.Quantization_8_16_bit} instances.
+ */
+@Test
+public class TestQuantization_8_16_bit {
+
+    /** The families to check. */
+    private static final String[] FAMILIES = { Family.VALUE_LINEAR,
+            Family.VALUE_POLYNOMIAL, Family.VALUE_EXPONENTIAL,
+            Family.VALUE_LOGARITHMIC };
+
+    /** The upper bound of the unsigned 16-bit values. */
+    private static final int TYPE_MAX = 65535;
+
+    private Quantization_8_16_bit createStrategy(String family, double k,
+            boolean noiseReduction)
+    {
+        return QuantumTestUtils.createStrategy(PixelsType.VALUE_UINT16,
+                family, k, noiseReduction, null);
+    }
+
+    /**
+     * Maps a value the way the table was built entry per entry before the
+     * ramp was mapped relative to the window start.
+     */
+    private int reference(Quantization_8_16_bit qs, int x)
+    {
+        QuantumDef qd = qs.qDef;
+        double dStart = qs.getWindowStart(), dEnd = qs.getWindowEnd();
+        double k = qs.getCurveCoefficient();
+        double min = qs.getGlobalMin(), max = qs.getGlobalMax();
+        int cdStart = qd.getCdStart(), cdEnd = qd.getCdEnd();
+        double a1 = (cdEnd - cdStart) / qd.getBitResolution().doubleValue();
+        double ys = qs.valueMapper.transform(QuantumStrategy.MIN, k);
+        double ye = qs.valueMapper.transform(QuantumStrategy.MAX, k);
+        double aNormalized = qd.getBitResolution() / (ye - ys);
+        double q1 = dStart <= min ? dStart : min;
+        double q9 = dEnd >= max ? dEnd : max;
+        double denum = dEnd - dStart, num = QuantumStrategy.MAX, b = dStart;
+        int e = 0;
+        if (qs.getNoiseReduction()) {
+            double decile = (max - min) / QuantumStrategy.DECILE;
+            q1 += decile;
+            q9 -= decile;
+            denum = q9 - q1;
+            e = QuantumStrategy.DECILE;
+            num = QuantumStrategy.MAX - 2 * QuantumStrategy.DECILE;
+            b = q1;
+            if (dStart >= q1 && dEnd > q9) {
+                denum = q9 - dStart;
+                b = dStart;
+            } else if (dStart >= q1 && dEnd <= q9) {
+                denum = dEnd - dStart;
+                b = dStart;
+            } else if (dStart < q1 && dEnd <= q9) {
+                denum = dEnd - q1;
+            }
+            cdStart = Math.max(cdStart, QuantumStrategy.DECILE);
+            cdEnd = Math.min(cdEnd,
+                    QuantumStrategy.MAX - QuantumStrategy.DECILE);
+        }
+        double aDecile = num / denum;
+        if (x < dStart) {
+            return cdStart;
+        }
+        if (x >= dEnd) {
+            return cdEnd;
+        }
+        double v = x > q1 ? (x <= q9 ? aDecile * x - (aDecile * b - e) : cdEnd)
+                : cdStart;
+        v = Math.round(aNormalized * (qs.valueMapper.transform(v, k) - ys));
+        // The entries are stored as bytes.
+        return (int) Math.round(a1 * v + cdStart) & 0xFF;
+    }
+
+    private int[] getTable(QuantumStrategy qs) throws Exception
+    {
+        int[] table = new int[TYPE_MAX + 1];
+        for (int x = 0; x < table.length; x++) {
+            table[x] = qs.quantize(x);
+        }
+        return table;
+    }
+
+    /**
+     * Checks that dragging the window, which reuses the ramp of the previous
+     * table, gives the table built from scratch for each window.
+     */
+    public void testShiftedWindowMatchesNewTable() throws Exception
+    {
+        Random random = new Random(42);
+        for (String family : FAMILIES) {
+            for (boolean noiseReduction : new boolean[] { false, true }) {
+                Quantization_8_16_bit dragged = createStrategy(family, 1.5,
+                        noiseReduction);
+                int start = 1000, width = 20000;
+                for (int i = 0; i < 8; i++) {
+                    start += random.nextInt(4001) - 1000;
+                    dragged.setWindow(start, start + width);
+                    Quantization_8_16_bit fresh = createStrategy(family, 1.5,
+                            noiseReduction);
+                    fresh.setWindow(start, start + width);
+                    Assert.assertTrue(Arrays.equals(getTable(dragged),
+                            getTable(fresh)),
+                            family + " " + noiseReduction + " " + start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the table against the previous builder. Mapping the ramp
+     * relative to the window start may round the ties the other way, hence
+     * one quantized value of tolerance.
+     */
+    public void testTableMatchesPreviousBuilder() throws Exception
+    {
+        Random random = new Random(7);
+        for (String family : FAMILIES) {
+            for (boolean noiseReduction : new boolean[] { false, true }) {
+                Quantization_8_16_bit qs = createStrategy(family, 0.8,
+                        noiseReduction);
+                for (int i = 0; i < 6; i++) {
+                    int start = random.nextInt(TYPE_MAX - 1);
+                    int end = start + 1 + random.nextInt(TYPE_MAX - start);
+                    qs.setWindow(start, end);
+                    for (int x = 0; x <= TYPE_MAX; x++) {
+                        int expected = reference(qs, x);
+                        if (Math.abs(qs.quantize(x) - expected) > 1) {
+                            Assert.fail(family + " " + noiseReduction + " ["
+                                    + start + ", " + end + "] " + x + ": "
+                                    + qs.quantize(x) + " != " + expected);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a table is built by a thread of the shared executor while
+     * all the threads are busy, as the fan-out used to wait forever.
+     */
+    public void testTableBuiltOnRenderingThread() throws Exception
+    {
+        ExecutorService previous = RenderingExecutor.getDefault();
+        ExecutorService executor = RenderingExecutor.newExecutor(1, 64);
+        RenderingExecutor.setDefault(executor);
+        try {
+            final Quantization_8_16_bit expected = createStrategy(
+                    Family.VALUE_LOGARITHMIC, 1.5, false);
+            expected.setWindow(0, TYPE_MAX);
+            int[] table = executor.submit(new Callable<int[]>() {
+                public int[] call() throws Exception {
+                    Quantization_8_16_bit qs = createStrategy(
+                            Family.VALUE_LOGARITHMIC, 1.5, false);
+                    qs.setWindow(0, TYPE_MAX);
+                    return getTable(qs);
+                }
+            }).get(30, TimeUnit.SECONDS);
+            Assert.assertTrue(Arrays.equals(table, getTable(expected)));
+        } finally {
+            RenderingExecutor.setDefault(previous);
+            executor.shutdown();
+        }
+    }
+}
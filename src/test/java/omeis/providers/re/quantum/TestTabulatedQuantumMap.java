@@ -0,0 +1,86 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.quantum;
+
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.quantum.TabulatedQuantumMap}
+ * instances.
+ */
+@Test
+public class TestTabulatedQuantumMap {
+
+    private Quantization_8_16_bit createStrategy(String family, double k) {
+        Quantization_8_16_bit qs = QuantumTestUtils.createStrategy(
+                PixelsType.VALUE_UINT16, family, k, false, null);
+        qs.setWindow(100, 5000);
+        return qs;
+    }
+
+    public void testIntegersAreExact() {
+        QuantumMap[] maps = { new PolynomialMap(), new LogarithmicMap(),
+                new ExponentialMap() };
+        for (QuantumMap map : maps) {
+            TabulatedQuantumMap t = new TabulatedQuantumMap(map);
+            for (int x = -2; x <= 260; x++) {
+                Assert.assertEquals(t.transform(x, 2.0), map.transform(x, 2.0));
+            }
+        }
+    }
+
+    public void testErrorBounds() {
+        // Less than half a quantized value with 8-bit output.
+        double bound = 0.5 / 255;
+        Assert.assertTrue(new TabulatedQuantumMap(new LogarithmicMap())
+                .getMaxError(1.0) < bound);
+        Assert.assertTrue(new TabulatedQuantumMap(new ExponentialMap())
+                .getMaxError(1.0) < bound);
+        for (double k : new double[] { 0.5, 2.0, 4.0 }) {
+            Assert.assertTrue(new TabulatedQuantumMap(new PolynomialMap())
+                    .getMaxError(k) < bound);
+        }
+        // The interpolation of a linear map is exact.
+        Assert.assertEquals(new TabulatedQuantumMap(new PolynomialMap())
+                .getMaxError(1.0), 0.0, 1e-12);
+    }
+
+    public void testCoarseSamplingIsLessAccurate() {
+        TabulatedQuantumMap fine = new TabulatedQuantumMap(
+                new ExponentialMap());
+        TabulatedQuantumMap coarse = new TabulatedQuantumMap(
+                new ExponentialMap(), 1);
+        Assert.assertTrue(coarse.getMaxError(1.0) > fine.getMaxError(1.0));
+    }
+
+    public void testOverflowUsesAnalyticForm() {
+        ExponentialMap map = new ExponentialMap();
+        TabulatedQuantumMap t = new TabulatedQuantumMap(map);
+        // exp(255^2) overflows.
+        Assert.assertEquals(t.getMaxError(2.0), 0.0);
+        Assert.assertEquals(t.transform(3.5, 2.0), map.transform(3.5, 2.0));
+    }
+
+    public void testSetMapRebuildsTable() throws Exception {
+        Quantization_8_16_bit qs = createStrategy(Family.VALUE_LOGARITHMIC,
+                1.0);
+        int[] expected = new int[65536];
+        for (int x = 0; x < expected.length; x++) {
+            expected[x] = qs.quantize(x);
+        }
+        qs.setMap(new TabulatedQuantumMap(new LogarithmicMap()));
+        for (int x = 0; x < expected.length; x++) {
+            Assert.assertTrue(Math.abs(qs.quantize(x) - expected[x]) <= 1);
+        }
+        // The table is rebuilt when the map changes.
+        qs.setMap(new PolynomialMap());
+        Assert.assertTrue(qs.quantize(1000) != expected[1000]);
+    }
+}
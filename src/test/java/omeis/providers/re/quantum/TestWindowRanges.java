@@ -0,0 +1,116 @@
+/*
+ *   Copyright 2019 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re.quantum;
+
+import java.util.Random;
+
+import ome.model.core.Pixels;
+import ome.model.display.QuantumDef;
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test cases for {@link omeis.providers.re.quantum.WindowRanges}
+ * instances and the strategies quantizing through them.
+ */
+@Test
+public class TestWindowRanges {
+
+    private QuantumStrategy createStrategy(String type, int bitSize,
+            String family, double start, double end)
+    {
+        Pixels pixels = QuantumTestUtils.createPixels(type, bitSize);
+        QuantumDef qd = QuantumTestUtils.createQuantumDef();
+        QuantumStrategy qs = PixelsType.VALUE_FLOAT.equals(type) ?
+                new Quantization_float(qd, pixels) :
+                new Quantization_32_bit(qd, pixels);
+        qs.setExtent(-1e6, 1e6);
+        qs.setMapping(new Family(family), 1.0, false);
+        qs.setWindow(start, end);
+        return qs;
+    }
+
+    /**
+     * Returns a random value within or around the window, either anywhere or
+     * on the bound of a range.
+     */
+    private double nextValue(Random random, double start, double end)
+    {
+        double width = end - start;
+        if (random.nextInt(4) == 0) {
+            return start + random.nextInt(257) * width / 256;
+        }
+        return start - width / 4 + random.nextDouble() * width * 1.5;
+    }
+
+    /**
+     * Checks that each value is mapped onto the range represented by the
+     * value {@link QuantumStrategy#getMiddleRange(double)} returns, which is
+     * the key the previous cache used.
+     */
+    public void testRangeMatchesMiddleRange()
+    {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            double start = (random.nextDouble() - 0.5) * 1e6;
+            double end = start + 1 + random.nextDouble() * 1e5;
+            QuantumStrategy qs = createStrategy(PixelsType.VALUE_INT32, 32,
+                    Family.VALUE_LOGARITHMIC, start, end);
+            WindowRanges ranges = new WindowRanges(qs.getWindowStart(),
+                    qs.getWindowEnd(), 256);
+            for (int j = 0; j < ranges.size(); j++) {
+                ranges.set(j, j);
+            }
+            for (int j = 0; j < 1000; j++) {
+                double v = nextValue(random, start, end);
+                Assert.assertEquals(ranges.getRepresentative(ranges.get(v)),
+                        qs.getMiddleRange(v).doubleValue(), 0.0,
+                        "[" + start + ", " + end + "] " + v);
+            }
+        }
+    }
+
+    /**
+     * Checks that quantizing an array gives the values quantized one by one.
+     */
+    public void testQuantizeArray() throws Exception
+    {
+        Random random = new Random(7);
+        String[] types = { PixelsType.VALUE_INT32, PixelsType.VALUE_FLOAT };
+        for (String type : types) {
+            for (int i = 0; i < 20; i++) {
+                double start = (random.nextDouble() - 0.5) * 1e5;
+                double end = start + 1 + random.nextDouble() * 1e4;
+                QuantumStrategy qs = createStrategy(type, 32,
+                        Family.VALUE_LOGARITHMIC, start, end);
+                double[] values = new double[1000];
+                int[] result = new int[values.length];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = nextValue(random, start, end);
+                }
+                qs.quantize(values, result, values.length);
+                for (int j = 0; j < values.length; j++) {
+                    Assert.assertEquals(result[j], qs.quantize(values[j]));
+                }
+            }
+        }
+    }
+
+    public void testWindowChangeRebuildsRanges() throws Exception
+    {
+        QuantumStrategy qs = createStrategy(PixelsType.VALUE_INT32, 32,
+                Family.VALUE_LINEAR, 0, 1000);
+        Assert.assertEquals(qs.quantize(-1), 0);
+        Assert.assertEquals(qs.quantize(1001), 255);
+        int before = qs.quantize(500);
+        qs.setWindow(500, 1500);
+        Assert.assertEquals(qs.quantize(500), 0);
+        Assert.assertTrue(before > 0);
+    }
+}